@@ -0,0 +1,351 @@
+package com.kaper.devtunnel;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Access log: one JSON line per finished web request (opt-in, tunnel.accessLog.enabled). With it, the per-request
+ * "Handled ..." lines are logged at debug level, so the request path does not format and write several log lines.
+ * - On the request path, only a small Entry is put on a bounded queue (no locks, no formatting, no I/O). If the queue
+ *   is full, the entry is dropped and counted (getDroppedCount), a slow disk or console never slows down requests.
+ * - A writer thread takes the entries in batches, encodes them to JSON lines, and writes each batch in one go to
+ *   stdout, or to tunnel.accessLog.file. The file is rotated at fileSizeBytes, keeping "file.1" up to "file.{files}".
+ * The tracing headers of the request (see traceHeaderField) are added to the line, like they are in the MDC.
+ */
+@Slf4j
+@Component
+public class AccessLog {
+    /** Turns the "-x" in a header name into "X", see traceHeaderField. */
+    private static final Pattern DASH_LETTER = Pattern.compile("-([a-z])");
+    /** Marks a header name which is not a tracing header, in the traceHeaderFields cache. */
+    private static final String NO_TRACE_HEADER = "";
+    /** Header names are cached, up to this number (web clients can send any name). */
+    private static final int MAX_CACHED_HEADER_NAMES = 1024;
+    private static final int MAX_TRACE_HEADER_VALUE_LENGTH = 80;
+    /** Prefix for a tracing header field which has the name of one of our own fields, see traceHeaderField. */
+    private static final String TRACE_HEADER_PREFIX = "header.";
+    /** Our own field names in the access log and the MDC (lower case), which a tracing header must not overwrite. */
+    private static final Set<String> RESERVED_FIELDS = Set.of("timestamp", "request", "status", "source", "durationms",
+            Constants.MDC_REQUEST_STAGE, Constants.MDC_USER_ID, Constants.MDC_REQUESTER, Constants.MDC_WEB_REQUEST_ID,
+            Constants.MDC_TUNNEL_SERVER_PORT, Constants.MDC_WEB_TO_APP_BODY_BYTES, Constants.MDC_APP_TO_WEB_BODY_BYTES,
+            Constants.MDC_ACTIVE_POLL_COUNT, Constants.MDC_ACTIVE_REQUEST_COUNT, Constants.MDC_ACTIVE_CONNECTION_COUNT,
+            Constants.MDC_TUNNEL_ERROR_COUNT).stream().map(String::toLowerCase).collect(Collectors.toUnmodifiableSet());
+    private static final Map<String, String> traceHeaderFields = new ConcurrentHashMap<>();
+
+    private final boolean enabled;
+    private final Path file;
+    private final long fileSizeBytes;
+    private final int files;
+    private final int queueSize;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final Queue<Entry> entries = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedCount = new AtomicInteger();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    // Below fields are only used by the writer thread.
+    private OutputStream output;
+    private long fileBytes;
+
+    public AccessLog(TunnelMetrics tunnelMetrics,
+                     @Value("${tunnel.accessLog.enabled:false}") boolean enabled,
+                     @Value("${tunnel.accessLog.file:}") String file,
+                     @Value("${tunnel.accessLog.fileSizeBytes:104857600}") long fileSizeBytes,
+                     @Value("${tunnel.accessLog.files:5}") int files,
+                     @Value("${tunnel.accessLog.queueSize:65536}") int queueSize,
+                     @Value("${tunnel.accessLog.batchSize:512}") int batchSize,
+                     @Value("${tunnel.accessLog.flushIntervalMs:200}") long flushIntervalMs) {
+        this.enabled = enabled;
+        this.file = file == null || file.isBlank() ? null : Path.of(file);
+        this.fileSizeBytes = fileSizeBytes;
+        this.files = Math.max(1, files);
+        this.queueSize = queueSize;
+        this.batchSize = Math.max(1, batchSize);
+        this.flushIntervalMs = flushIntervalMs;
+        tunnelMetrics.registerAccessLogCounters(this);
+        if (enabled) {
+            Thread thread = new Thread(this::run);
+            thread.setName("Access-Log-Writer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Log one of the per-request "Handled ..." lines: at info level, or at debug level if the access log is on, as it
+     * has the same information then.
+     */
+    public void logHandled(Logger logger, String format, Object... arguments) {
+        if (enabled) {
+            logger.debug(format, arguments);
+        } else {
+            logger.info(format, arguments);
+        }
+    }
+
+    /**
+     * Log a finished web request, with the response as set by WebRequest.setResponse. Never blocks.
+     */
+    public void log(UserServerContext userServerContext, String webRequestId, WebRequest webRequest) {
+        if (!enabled) {
+            return;
+        }
+        if (queuedCount.incrementAndGet() > queueSize) {
+            queuedCount.decrementAndGet();
+            droppedCount.incrementAndGet();
+            return;
+        }
+        long nowNanos = System.nanoTime();
+        entries.add(new Entry(System.currentTimeMillis(),
+                userServerContext == null ? null : userServerContext.getUserId(),
+                userServerContext == null ? 0 : userServerContext.getServerPort(),
+                webRequestId,
+                String.valueOf(webRequest.getRemoteSocketAddress()),
+                webRequest.getHeaders().getFirstLine(),
+                webRequest.getResponseStatus(),
+                webRequest.getResponseSource(),
+                webRequest.getWebToAppBytes(),
+                webRequest.getAppToWebBytes(),
+                nowNanos - webRequest.getFirstByteNanos(),
+                getTraceHeaders(webRequest.getHeaders())));
+    }
+
+    /**
+     * The tracing headers of a request, as field name / value pairs. Null if there are none (mostly).
+     */
+    private static List<String> getTraceHeaders(Headers headers) {
+        List<String> traceHeaders = null;
+        for (String headerName : headers.getHeaderNames()) {
+            String field = traceHeaderField(headerName);
+            if (field != null) {
+                String headerValue = headers.getHeaderValue(headerName);
+                if (headerValue != null && headerValue.length() <= MAX_TRACE_HEADER_VALUE_LENGTH) {
+                    if (traceHeaders == null) {
+                        traceHeaders = new ArrayList<>(4);
+                    }
+                    traceHeaders.add(field);
+                    traceHeaders.add(headerValue);
+                }
+            }
+        }
+        return traceHeaders;
+    }
+
+    /**
+     * At work, we use some tracing/informational headers, all starting wih "X-" and ending in "-Id". This returns the
+     * log field name for such a header (camelcase: X-Correlation-Id becomes correlationId, X-Request-Id requestId), or
+     * null if the header is not a tracing header. A web client can send any header, so a name which is one of our own
+     * fields gets a prefix (X-User-Id becomes header.userId), and can not overwrite the real userId.
+     * The answer is cached per header name, as this runs for all headers of all requests (also for the MDC, see
+     * TunnelDataController).
+     */
+    public static String traceHeaderField(String headerName) {
+        String field = traceHeaderFields.get(headerName);
+        if (field == null) {
+            field = toTraceHeaderField(headerName);
+            if (traceHeaderFields.size() < MAX_CACHED_HEADER_NAMES) {
+                traceHeaderFields.put(headerName, field);
+            }
+        }
+        return field.isEmpty() ? null : field;
+    }
+
+    private static String toTraceHeaderField(String headerName) {
+        String lowerCaseName = headerName.toLowerCase();
+        if (!lowerCaseName.startsWith("x-") || !lowerCaseName.endsWith("-id")) {
+            return NO_TRACE_HEADER;
+        }
+        String field = DASH_LETTER.matcher(lowerCaseName.substring(2)).replaceAll(match -> match.group(1).toUpperCase());
+        return RESERVED_FIELDS.contains(field.toLowerCase()) ? TRACE_HEADER_PREFIX + field : field;
+    }
+
+    private void run() {
+        StringBuilder batch = new StringBuilder(64 * 1024);
+        while (true) {
+            try {
+                if (!writeBatch(batch)) {
+                    Thread.sleep(flushIntervalMs);
+                }
+            } catch (InterruptedException e) {
+                log.warn("access log interrupted - shut down");
+                return;
+            } catch (Exception e) {
+                // whatever happens, we never want to stop the access log, so just log and continue.
+                log.error("Error in access log?", e);
+                closeOutput();
+            }
+        }
+    }
+
+    /**
+     * Encode and write (at most) one batch of entries. Returns false if there were none.
+     */
+    private boolean writeBatch(StringBuilder batch) throws IOException {
+        batch.setLength(0);
+        int count = 0;
+        Entry entry;
+        while (count < batchSize && (entry = entries.poll()) != null) {
+            entry.appendJson(batch);
+            batch.append('\n');
+            count++;
+        }
+        if (count == 0) {
+            return false;
+        }
+        queuedCount.addAndGet(-count);
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        if (file == null) {
+            System.out.write(bytes);
+            System.out.flush();
+        } else {
+            if (output == null || fileBytes + bytes.length > fileSizeBytes) {
+                openFile(bytes.length);
+            }
+            output.write(bytes);
+            output.flush();
+            fileBytes += bytes.length;
+        }
+        writtenCount.addAndGet(count);
+        return true;
+    }
+
+    /**
+     * Open the log file for appending. If the next bytes do not fit anymore, it is rotated first: file.{n} becomes
+     * file.{n+1}, the oldest one is dropped, and the file becomes file.1.
+     */
+    private void openFile(int nextBytes) throws IOException {
+        closeOutput();
+        if (Files.exists(file) && Files.size(file) > 0 && Files.size(file) + nextBytes > fileSizeBytes) {
+            for (int i = files - 1; i >= 1; i--) {
+                Path older = rotated(i);
+                if (Files.exists(older)) {
+                    Files.move(older, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        output = new FileOutputStream(file.toFile(), true);
+        fileBytes = Files.size(file);
+    }
+
+    private Path rotated(int number) {
+        return file.resolveSibling(file.getFileName() + "." + number);
+    }
+
+    private void closeOutput() {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            output = null;
+        }
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * One finished web request. The traceHeaders are field name / value pairs, or null.
+     */
+    private record Entry(
+            long timestampMs,
+            String userId,
+            int serverPort,
+            String webRequestId,
+            String requester,
+            String request,
+            int status,
+            RequestTracer.Source source,
+            long webToAppBytes,
+            long appToWebBytes,
+            long durationNanos,
+            List<String> traceHeaders
+    ) {
+        void appendJson(StringBuilder json) {
+            json.append("{\"timestamp\":\"").append(Instant.ofEpochMilli(timestampMs)).append('"');
+            appendField(json, Constants.MDC_USER_ID, userId);
+            json.append(",\"").append(Constants.MDC_TUNNEL_SERVER_PORT).append("\":").append(serverPort);
+            appendField(json, Constants.MDC_WEB_REQUEST_ID, webRequestId);
+            appendField(json, Constants.MDC_REQUESTER, requester);
+            appendField(json, "request", request);
+            json.append(",\"status\":").append(status);
+            json.append(",\"source\":\"").append(source).append('"');
+            json.append(",\"").append(Constants.MDC_WEB_TO_APP_BODY_BYTES).append("\":").append(webToAppBytes);
+            json.append(",\"").append(Constants.MDC_APP_TO_WEB_BODY_BYTES).append("\":").append(appToWebBytes);
+            json.append(",\"durationMs\":").append(durationNanos / 1_000_000);
+            if (traceHeaders != null) {
+                for (int i = 0; i + 1 < traceHeaders.size(); i += 2) {
+                    appendField(json, traceHeaders.get(i), traceHeaders.get(i + 1));
+                }
+            }
+            json.append('}');
+        }
+
+        private static void appendField(StringBuilder json, String name, String value) {
+            if (value == null) {
+                return;
+            }
+            json.append(',');
+            appendString(json, name);
+            json.append(':');
+            appendString(json, value);
+        }
+
+        /**
+         * Append a JSON string. Field names are escaped as well, the ones of tracing headers come from the web client.
+         */
+        private static void appendString(StringBuilder json, String value) {
+            json.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"' -> json.append("\\\"");
+                    case '\\' -> json.append("\\\\");
+                    case '\n' -> json.append("\\n");
+                    case '\r' -> json.append("\\r");
+                    case '\t' -> json.append("\\t");
+                    default -> {
+                        if (c < 0x20) {
+                            json.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            json.append(c);
+                        }
+                    }
+                }
+            }
+            json.append('"');
+        }
+    }
+}
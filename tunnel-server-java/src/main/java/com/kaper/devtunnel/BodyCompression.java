@@ -0,0 +1,102 @@
+package com.kaper.devtunnel;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Body compression on the tunnel leg (between tunnel server and tunnel client), for tunnel clients from version 4.
+ * Across a VPN, uncompressed JSON and javascript bundles of local dev servers are the main bandwidth cost.
+ * Only the body is compressed (raw deflate), the header block is always sent as-is. The receiving side inflates the
+ * body again, so the web client and the app see the exact same bytes as without compression.
+ * - web to app: the server compresses bodies of web requests which are worth it (see shouldCompress). In a batch
+ *   entry, the line gets a 4th field "deflate" (bodyBytes is then the compressed size), and a /data/body response
+ *   gets the "X-Tunnel-Body-Encoding: deflate" header.
+ * - app to web: the tunnel client can compress the app response body. It marks this using the
+ *   "X-Tunnel-Body-Encoding: deflate" header on POST /data, or a 3rd field "deflate" on a batch entry line.
+ * The registration response tells the client if compression is on, using the same X-Tunnel-Body-Encoding header.
+ */
+@Component
+public class BodyCompression {
+    private final boolean enabled;
+    private final int minBytes;
+    private final int level;
+    private final List<String> contentTypes;
+
+    public BodyCompression(@Value("${tunnel.compression.enabled:true}") boolean enabled,
+                           @Value("${tunnel.compression.minBytes:1024}") int minBytes,
+                           @Value("${tunnel.compression.level:6}") int level,
+                           @Value("${tunnel.compression.contentTypes:text/,application/json,application/javascript,application/xml,+json,+xml,image/svg+xml,application/x-www-form-urlencoded,application/graphql}")
+                           String contentTypes) {
+        this.enabled = enabled;
+        this.minBytes = minBytes;
+        this.level = level;
+        this.contentTypes = Arrays.stream(contentTypes.split(",")).map(String::trim).filter(type -> !type.isEmpty()).map(String::toLowerCase).toList();
+    }
+
+    /**
+     * Can bodies be compressed on the tunnel leg of this user?
+     */
+    public boolean isEnabledFor(UserServerContext userServerContext) {
+        return enabled && userServerContext.getClientVersion() >= Constants.CLIENT_VERSION_COMPRESSION;
+    }
+
+    /**
+     * Is it worth compressing this body? It must have a compressible content type, and must not be compressed
+     * already (no Content-Encoding). The bodyLength is -1 if not known (chunked), that is seen as large enough.
+     */
+    public boolean shouldCompress(UserServerContext userServerContext, Headers headers, long bodyLength) {
+        if (!isEnabledFor(userServerContext) || (bodyLength >= 0 && bodyLength < minBytes) || headers.getHeaderValue(Constants.CONTENT_ENCODING_HEADER) != null) {
+            return false;
+        }
+        String contentType = headers.getHeaderValue(Constants.CONTENT_TYPE_HEADER);
+        if (contentType == null) {
+            return false;
+        }
+        // Leave out parameters like "; charset=utf-8".
+        int semicolon = contentType.indexOf(';');
+        String mimeType = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase();
+        for (String type : contentTypes) {
+            if (type.endsWith("/") ? mimeType.startsWith(type) : type.startsWith("+") ? mimeType.endsWith(type) : mimeType.equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A new deflater with the configured level, raw deflate (no zlib header). Call end() on it when done.
+     */
+    public Deflater newDeflater() {
+        return new Deflater(level, true);
+    }
+
+    /**
+     * Compress a body which is in memory already (small inline batch bodies).
+     */
+    public byte[] deflate(byte[] body) {
+        Deflater deflater = newDeflater();
+        try {
+            deflater.setInput(body);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, body.length / 2));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Did the tunnel client mark the body as compressed? The value of the header or batch entry field.
+     */
+    public static boolean isDeflate(String bodyEncoding) {
+        return bodyEncoding != null && bodyEncoding.trim().equalsIgnoreCase(Constants.BODY_ENCODING_DEFLATE);
+    }
+}
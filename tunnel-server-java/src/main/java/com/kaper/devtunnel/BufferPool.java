@@ -0,0 +1,145 @@
+package com.kaper.devtunnel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Pool of re-usable copy buffers, to prevent allocating a fresh (large) buffer for every stream copy.
+ * Buffers come in a few size classes. The class is chosen from the expected number of bytes to copy, so a small
+ * body only takes a small buffer. Each thread keeps one small buffer per class for itself (no contention at all),
+ * the rest is shared in a lock-free queue per class.
+ * The total amount of memory owned by the pool is capped. If the cap is reached, an unpooled minimal buffer is
+ * handed out instead, which is just thrown away after use.
+ * Buffers parked in a thread cache are not counted against the cap, they are bounded by the number of threads
+ * times the (small) cached sizes. This also keeps the accounting right if a thread dies with a cached buffer.
+ */
+@Component
+public class BufferPool {
+    /** The buffer size classes, from small to large. */
+    private static final int[] SIZE_CLASSES = {8 * 1024, 64 * 1024, 1024 * 1024};
+    /** Size class to use if we do not know how many bytes will be copied. */
+    private static final int UNKNOWN_LENGTH_CLASS = 1;
+    /** Only size classes up to this size are cached per thread, as there can be many (tomcat) threads. */
+    private static final int THREAD_CACHE_MAX_BUFFER_SIZE = 64 * 1024;
+    /** Size of the unpooled buffer, handed out when the pool is at its cap. Is not a size class, so it is not pooled on release. */
+    private static final int CAPPED_BUFFER_SIZE = 4 * 1024;
+
+    private final long maxPoolBytes;
+    private final ThreadLocal<byte[][]> threadCache = ThreadLocal.withInitial(() -> new byte[SIZE_CLASSES.length][]);
+    /** The shared pool per size class. */
+    private final List<Queue<byte[]>> sharedPools = new ArrayList<>(SIZE_CLASSES.length);
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong cappedCount = new AtomicLong();
+    private final AtomicLong ownedBytes = new AtomicLong();
+    private final AtomicLong sharedPoolBytes = new AtomicLong();
+    private final AtomicLong borrowedCount = new AtomicLong();
+
+    public BufferPool(@Value("${tunnel.bufferPool.maxPoolBytes:67108864}") long maxPoolBytes) {
+        this.maxPoolBytes = maxPoolBytes;
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            sharedPools.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    /**
+     * Get a buffer to copy the given number of bytes. Pass a negative length if the length is not known.
+     * The buffer can be larger or smaller than the requested length. Give it back using release() when done.
+     */
+    public byte[] acquire(long expectedLength) {
+        int sizeClass = sizeClassFor(expectedLength);
+        borrowedCount.incrementAndGet();
+
+        byte[][] cache = threadCache.get();
+        byte[] buffer = cache[sizeClass];
+        if (buffer != null) {
+            cache[sizeClass] = null;
+            ownedBytes.addAndGet(buffer.length);
+            hitCount.incrementAndGet();
+            return buffer;
+        }
+        buffer = sharedPools.get(sizeClass).poll();
+        if (buffer != null) {
+            sharedPoolBytes.addAndGet(-buffer.length);
+            hitCount.incrementAndGet();
+            return buffer;
+        }
+
+        int size = SIZE_CLASSES[sizeClass];
+        if (ownedBytes.addAndGet(size) > maxPoolBytes) {
+            // Pool is full. Hand out a minimal buffer which is not owned by the pool.
+            ownedBytes.addAndGet(-size);
+            cappedCount.incrementAndGet();
+            return new byte[CAPPED_BUFFER_SIZE];
+        }
+        missCount.incrementAndGet();
+        return new byte[size];
+    }
+
+    /**
+     * Give a buffer back to the pool.
+     */
+    public void release(byte[] buffer) {
+        borrowedCount.decrementAndGet();
+        int sizeClass = exactSizeClass(buffer.length);
+        if (sizeClass < 0) {
+            return;
+        }
+        if (buffer.length <= THREAD_CACHE_MAX_BUFFER_SIZE) {
+            byte[][] cache = threadCache.get();
+            if (cache[sizeClass] == null) {
+                cache[sizeClass] = buffer;
+                ownedBytes.addAndGet(-buffer.length);
+                return;
+            }
+        }
+        sharedPools.get(sizeClass).offer(buffer);
+        sharedPoolBytes.addAndGet(buffer.length);
+    }
+
+    private static int sizeClassFor(long expectedLength) {
+        if (expectedLength < 0) {
+            return UNKNOWN_LENGTH_CLASS;
+        }
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (expectedLength <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return SIZE_CLASSES.length - 1;
+    }
+
+    private static int exactSizeClass(int length) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (length == SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public Stats getStats() {
+        return new Stats(hitCount.get(), missCount.get(), cappedCount.get(), ownedBytes.get(), sharedPoolBytes.get(), borrowedCount.get(), maxPoolBytes);
+    }
+
+    /**
+     * Pool statistics, to see if the pool is sized properly.
+     * ownedBytes is the memory allocated by the pool which is in use, or in the shared pool (so not in thread caches).
+     */
+    public record Stats(
+            long hits,
+            long misses,
+            long capped,
+            long ownedBytes,
+            long sharedPoolBytes,
+            long borrowed,
+            long maxPoolBytes
+    ) {
+    }
+}
@@ -0,0 +1,143 @@
+package com.kaper.devtunnel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.MDC;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Cluster mode: forward tunnel client requests (/register, /close, /data) to the replica which owns the userId.
+ * The load balancer can send a tunnel client request to any replica, but the user only lives on its owner (see
+ * ClusterRing). A request which lands on another replica is passed on to the owner as a streaming relay: the request
+ * body goes out while it comes in, and the response is flushed to the tunnel client for every block we get. So long
+ * polls, and large or chunked bodies are relayed without buffering them.
+ * WebSocket tunnels (/tunnel) can not be relayed this way. They get a 421 (misdirected request), and the tunnel client
+ * can connect to the owner directly. Every tunnel client response carries the owner in the X-Tunnel-Owner header (set
+ * by the owner itself, for forwarded requests).
+ * A forwarded request is marked with an X-Tunnel-Forwarded-By header, and is never forwarded again. So replicas with a
+ * different peer list can not bounce a request around.
+ */
+@Slf4j
+@Component
+public class ClusterForwardingFilter extends OncePerRequestFilter {
+    private static final Set<String> TUNNEL_CLIENT_PATHS = Set.of("/register", "/close", "/data", "/data/body", "/tunnel");
+    private static final String WEBSOCKET_PATH = "/tunnel";
+    /** Per connection headers, and the ones the http client sets itself. */
+    private static final Set<String> SKIPPED_HEADERS = Set.of("connection", "keep-alive", "proxy-connection", "transfer-encoding", "te",
+            "trailer", "upgrade", "content-length", "expect", "host");
+
+    private final ClusterRing clusterRing;
+    private final BufferPool bufferPool;
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .followRedirects(HttpClient.Redirect.NEVER)
+            .build();
+
+    public ClusterForwardingFilter(ClusterRing clusterRing, BufferPool bufferPool) {
+        this.clusterRing = clusterRing;
+        this.bufferPool = bufferPool;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !clusterRing.isEnabled() || !TUNNEL_CLIENT_PATHS.contains(request.getServletPath())
+                || request.getHeader(Constants.X_TUNNEL_USER_ID) == null;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        String userId = request.getHeader(Constants.X_TUNNEL_USER_ID);
+        ClusterRing.Peer owner = clusterRing.ownerOf(userId);
+        String forwardedBy = request.getHeader(Constants.X_TUNNEL_FORWARDED_BY);
+        if (owner.self() || forwardedBy != null) {
+            if (!owner.self()) {
+                log.warn("Got request for user {} forwarded by {}, but the owner is {} - peer lists differ? Handled here.", userId, forwardedBy, owner.name());
+            }
+            response.setHeader(Constants.X_TUNNEL_OWNER, clusterRing.getSelf().url().toString());
+            filterChain.doFilter(request, response);
+            return;
+        }
+        if (WEBSOCKET_PATH.equals(request.getServletPath())) {
+            response.setHeader(Constants.X_TUNNEL_OWNER, owner.url().toString());
+            response.setStatus(421);
+            response.getOutputStream().println("Misdirected request, connect to " + owner.url());
+            return;
+        }
+        try {
+            MDC.put(Constants.MDC_REQUEST_STAGE, Constants.STAGE_CLUSTER_FORWARD);
+            MDC.put(Constants.MDC_USER_ID, userId);
+            forward(request, response, owner);
+        } finally {
+            MDC.clear();
+        }
+    }
+
+    private void forward(HttpServletRequest request, HttpServletResponse response, ClusterRing.Peer owner) throws IOException {
+        URI target = URI.create(owner.url() + request.getRequestURI() + (request.getQueryString() != null ? "?" + request.getQueryString() : ""));
+        log.debug("Forward {} {} to {}", request.getMethod(), request.getRequestURI(), owner.name());
+        HttpRequest.Builder forwardRequest = HttpRequest.newBuilder(target).method(request.getMethod(), bodyPublisher(request));
+        for (String name : Collections.list(request.getHeaderNames())) {
+            if (!SKIPPED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                for (String value : Collections.list(request.getHeaders(name))) {
+                    forwardRequest.header(name, value);
+                }
+            }
+        }
+        forwardRequest.header(Constants.X_TUNNEL_FORWARDED_BY, clusterRing.getSelf().name());
+
+        HttpResponse<InputStream> ownerResponse;
+        try {
+            ownerResponse = httpClient.send(forwardRequest.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (IOException e) {
+            log.warn("Can not forward {} to owner {}: {}", request.getRequestURI(), owner.name(), e.toString());
+            response.setHeader(Constants.X_TUNNEL_OWNER, owner.url().toString());
+            response.setStatus(502);
+            response.getOutputStream().println("Owner of user not reachable: " + owner.name());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while forwarding to " + owner.name(), e);
+        }
+
+        try (InputStream body = ownerResponse.body()) {
+            response.setStatus(ownerResponse.statusCode());
+            ownerResponse.headers().map().forEach((name, values) -> {
+                if (!SKIPPED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                    values.forEach(value -> response.addHeader(name, value));
+                }
+            });
+            ownerResponse.headers().firstValueAsLong(Constants.CONTENT_LENGTH_HEADER).ifPresent(response::setContentLengthLong);
+            StreamHelper.streamCopyUntilEnd(body, response.getOutputStream(), "cluster-forward-response", bufferPool);
+        }
+    }
+
+    /**
+     * Stream the request body. With a known length it is sent as-is, otherwise in chunked transfer encoding.
+     */
+    private static HttpRequest.BodyPublisher bodyPublisher(HttpServletRequest request) throws IOException {
+        long contentLength = request.getContentLengthLong();
+        List<String> transferEncoding = Collections.list(request.getHeaders(Constants.TRANSFER_ENCODING_HEADER));
+        if (contentLength <= 0 && transferEncoding.isEmpty()) {
+            return HttpRequest.BodyPublishers.noBody();
+        }
+        InputStream in = request.getInputStream();
+        HttpRequest.BodyPublisher publisher = HttpRequest.BodyPublishers.ofInputStream(() -> in);
+        return contentLength > 0 ? HttpRequest.BodyPublishers.fromPublisher(publisher, contentLength) : publisher;
+    }
+}
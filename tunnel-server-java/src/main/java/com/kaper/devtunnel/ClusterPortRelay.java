@@ -0,0 +1,108 @@
+package com.kaper.devtunnel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Relay for web connections which land on the port of another replica (cluster mode).
+ * A load balancer in front of the replicas (like a k8s service) sends a web connection for a user port to any replica,
+ * but only the replica which owns the user listens on that port for real. So every replica also listens on the ports of
+ * the other replicas, and passes those connections on to the owner, byte for byte: we do not need to understand the
+ * traffic, and keep-alive, chunked bodies and web-sockets all just work. The owner of a port is known from the split of
+ * the port range (see ClusterRing), no lookup needed.
+ * Enable with tunnel.cluster.relayWebPorts. Keep it off if all replicas run on the same host (like a test on localhost),
+ * as the ports can only be bound once per host. In that case, web clients must use the owner directly.
+ */
+@Slf4j
+@Component
+public class ClusterPortRelay {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private final ClusterRing clusterRing;
+    private final WebSelectorEngine webSelectorEngine;
+    private final BufferPool bufferPool;
+    private final boolean relayWebPorts;
+    private final ExecutorService relayExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setName("Cluster-Port-Relay");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ClusterPortRelay(ClusterRing clusterRing, WebSelectorEngine webSelectorEngine, BufferPool bufferPool,
+                            @Value("${tunnel.cluster.relayWebPorts:false}") boolean relayWebPorts) {
+        this.clusterRing = clusterRing;
+        this.webSelectorEngine = webSelectorEngine;
+        this.bufferPool = bufferPool;
+        this.relayWebPorts = relayWebPorts;
+    }
+
+    @PostConstruct
+    public void startListening() {
+        if (!clusterRing.isEnabled() || !relayWebPorts) {
+            return;
+        }
+        for (ClusterRing.Peer peer : clusterRing.getPeers()) {
+            if (peer.self()) {
+                continue;
+            }
+            int bound = 0;
+            for (int port = peer.startPort(); port <= peer.endPort(); port++) {
+                int targetPort = port;
+                try {
+                    webSelectorEngine.bindForward(port, channel -> relayExecutor.execute(() -> relay(channel, peer, targetPort)));
+                    bound++;
+                } catch (IOException e) {
+                    log.warn("Can not listen on port {} to relay to peer {}: {}", port, peer.name(), e.getMessage());
+                }
+            }
+            log.info("Relaying {} ports ({}-{}) to peer {}", bound, peer.startPort(), peer.endPort(), peer.name());
+        }
+    }
+
+    /**
+     * Connect to the same port on the owner, and copy both directions. The connection is done when the owner closes
+     * it; a web client which is done sending only half closes it, as it still waits for the response.
+     */
+    private void relay(SocketChannel channel, ClusterRing.Peer peer, int port) {
+        try (Socket webSocket = channel.socket(); Socket peerSocket = new Socket()) {
+            peerSocket.setTcpNoDelay(true);
+            peerSocket.connect(new InetSocketAddress(peer.host(), port), CONNECT_TIMEOUT_MS);
+            log.debug("Relay web connection on port {} to peer {}", port, peer.name());
+            // Web to peer on another thread, peer to web on this one.
+            relayExecutor.execute(() -> copy(webSocket, peerSocket, "relay-web-to-peer"));
+            copy(peerSocket, webSocket, "relay-peer-to-web");
+        } catch (IOException e) {
+            log.warn("Relay of web connection on port {} to peer {} failed: {}", port, peer.name(), e.getMessage());
+        }
+    }
+
+    /**
+     * Copy until the end of the input, and pass the end on (half close), so the other side knows we are done.
+     */
+    private void copy(Socket from, Socket to, String direction) {
+        try {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            StreamHelper.streamCopyUntilEnd(in, out, direction, bufferPool);
+        } catch (IOException e) {
+            log.debug("Relay {} ended: {}", direction, e.getMessage());
+        } finally {
+            try {
+                to.shutdownOutput();
+            } catch (IOException e) {
+                // ignore, the socket is already closed.
+            }
+        }
+    }
+}
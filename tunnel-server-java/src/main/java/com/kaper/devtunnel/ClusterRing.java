@@ -0,0 +1,130 @@
+package com.kaper.devtunnel;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Cluster membership and ownership of users, for running several tunnel-server replicas side by side.
+ * The members are a static list of peers (tunnel.cluster.peers), which must be the same (also in order) on all replicas.
+ * Each userId is owned by exactly one peer, found using consistent hashing: every peer is put on a hash ring a number
+ * of times (virtual nodes), and the owner of a userId is the first peer on the ring after the hash of the userId.
+ * Because all replicas have the same list, they all agree on the owner without talking to each other. And if a peer
+ * is added or removed, only the users of that peer move.
+ * The port range is split evenly over the peers, in list order. A peer only hands out ports of its own part, so any
+ * replica knows which peer is behind a port.
+ * If no peers are configured, the cluster mode is off, and this server owns everything.
+ */
+@Slf4j
+@Component
+public class ClusterRing {
+    private final List<Peer> peers;
+    private final Peer self;
+    private final NavigableMap<Long, Peer> ring = new TreeMap<>();
+
+    /**
+     * @param peersConfig comma separated list of name=url, e.g. "a=http://tunnel-0:8080,b=http://tunnel-1:8080".
+     * @param selfName the name of this replica in that list.
+     */
+    public ClusterRing(@Value("${tunnel.cluster.peers:}") String peersConfig,
+                       @Value("${tunnel.cluster.self:}") String selfName,
+                       @Value("${tunnel.cluster.virtualNodes:128}") int virtualNodes,
+                       @Value("${tunnel.startPort}") int startPort,
+                       @Value("${tunnel.endPort}") int endPort) {
+        List<String> peerSpecs = peersConfig == null || peersConfig.isBlank() ? List.of() : List.of(peersConfig.trim().split("\\s*,\\s*"));
+        List<Peer> parsedPeers = new ArrayList<>();
+        int rangeSize = Math.max(0, endPort - startPort + 1);
+        for (int index = 0; index < peerSpecs.size(); index++) {
+            String[] nameAndUrl = peerSpecs.get(index).split("=", 2);
+            if (nameAndUrl.length != 2 || nameAndUrl[0].isBlank()) {
+                throw new IllegalArgumentException("Invalid tunnel.cluster.peers entry, expected name=url: " + peerSpecs.get(index));
+            }
+            URI url = URI.create(nameAndUrl[1].replaceFirst("/+$", ""));
+            // Peer i gets ports [start + i * size / count, start + (i + 1) * size / count).
+            int peerStartPort = startPort + (int) ((long) index * rangeSize / peerSpecs.size());
+            int peerEndPort = startPort + (int) ((long) (index + 1) * rangeSize / peerSpecs.size()) - 1;
+            parsedPeers.add(new Peer(nameAndUrl[0].trim(), url, peerStartPort, peerEndPort, nameAndUrl[0].trim().equals(selfName)));
+        }
+        this.peers = Collections.unmodifiableList(parsedPeers);
+        this.self = peers.stream().filter(Peer::self).findFirst().orElse(null);
+        if (!peers.isEmpty() && self == null) {
+            throw new IllegalArgumentException("tunnel.cluster.self (" + selfName + ") is not one of the tunnel.cluster.peers");
+        }
+        for (Peer peer : peers) {
+            for (int node = 0; node < virtualNodes; node++) {
+                ring.put(hash(peer.name() + "#" + node), peer);
+            }
+        }
+        if (isEnabled()) {
+            log.info("Cluster mode: this is {} of {} peers, own ports {}-{}", self.name(), peers.size(), self.startPort(), self.endPort());
+        }
+    }
+
+    public boolean isEnabled() {
+        return self != null;
+    }
+
+    public List<Peer> getPeers() {
+        return peers;
+    }
+
+    /**
+     * This replica. Null if the cluster mode is off.
+     */
+    public Peer getSelf() {
+        return self;
+    }
+
+    /**
+     * The peer owning the user. Null if the cluster mode is off (we own all users).
+     */
+    public Peer ownerOf(String userId) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Map.Entry<Long, Peer> entry = ring.ceilingEntry(hash(userId));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    public boolean isOwnedBySelf(String userId) {
+        return !isEnabled() || ownerOf(userId).self();
+    }
+
+    /**
+     * 64 bits of the MD5 of the key. Not for security, just a well spread hash which is the same on all JVMs.
+     */
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+
+    /**
+     * A member of the cluster, with the part of the port range it hands out.
+     */
+    public record Peer(
+            String name,
+            URI url,
+            int startPort,
+            int endPort,
+            boolean self
+    ) {
+        public String host() {
+            return url.getHost();
+        }
+    }
+}
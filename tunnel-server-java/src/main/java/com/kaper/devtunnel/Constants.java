@@ -8,9 +8,34 @@ public class Constants {
     public static final String X_TUNNEL_WEB_REQUEST = "X-Tunnel-Request";
     public static final String X_TUNNEL_SERVER_PORT = "X-Tunnel-Server-Port";
     public static final String X_TUNNEL_STATUS = "X-Tunnel-Status";
+    public static final String X_TUNNEL_BATCH_COUNT = "X-Tunnel-Batch-Count";
+    public static final String X_TUNNEL_REQUEST_TIMEOUT_MS = "X-Tunnel-Request-Timeout-Ms";
+    public static final String X_TUNNEL_ROUTE = "X-Tunnel-Route";
+    public static final String X_TUNNEL_OWNER = "X-Tunnel-Owner";
+    public static final String X_TUNNEL_FORWARDED_BY = "X-Tunnel-Forwarded-By";
+    /** Set on responses from the ResponseCache: HIT (answered by the tunnel-server), or REVALIDATED (app said 304). */
+    public static final String X_TUNNEL_CACHE = "X-Tunnel-Cache";
+    public static final String CACHE_STATUS_HIT = "HIT";
+    public static final String CACHE_STATUS_REVALIDATED = "REVALIDATED";
+
+    /** First tunnel client version which can handle a web request body in chunked transfer encoding. */
+    public static final int CLIENT_VERSION_CHUNKED_REQUEST = 2;
+    /** First tunnel client version which gets the web requests in batches, see TunnelDataController. */
+    public static final int CLIENT_VERSION_BATCH = 3;
+    /** First tunnel client version which can handle compressed bodies on the tunnel leg, see BodyCompression. */
+    public static final int CLIENT_VERSION_COMPRESSION = 4;
+    public static final String X_TUNNEL_BODY_ENCODING = "X-Tunnel-Body-Encoding";
+    public static final String BODY_ENCODING_DEFLATE = "deflate";
 
     public static final String CONNECTION_HEADER = "Connection";
     public static final String CONNECTION_CLOSE_VALUE = "close";
+    public static final String CONNECTION_KEEP_ALIVE_VALUE = "keep-alive";
+    public static final String KEEP_ALIVE_HEADER = "Keep-Alive";
+    public static final String RETRY_AFTER_HEADER = "Retry-After";
+    public static final String CONTENT_LENGTH_HEADER = "Content-Length";
+    public static final String TRANSFER_ENCODING_HEADER = "Transfer-Encoding";
+    public static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+    public static final String CONTENT_TYPE_HEADER = "Content-Type";
 
     public static final String MDC_REQUEST_STAGE = "stage";
     public static final String MDC_USER_ID = "userId";
@@ -28,6 +53,9 @@ public class Constants {
     public static final String STAGE_APP_TO_WEB_RESPONSE = "app-to-web-response";
     public static final String STAGE_REGISTER = "register";
     public static final String STAGE_CLOSE = "close";
+    public static final String STAGE_EXPIRE = "expire";
+    public static final String STAGE_RESTORE = "restore";
+    public static final String STAGE_CLUSTER_FORWARD = "cluster-forward";
     public static final String DIRECTION_WEB_TO_APP_REQUEST = "webToAppRequest";
     public static final String DIRECTION_APP_TO_WEB_RESPONSE = "appToWebResponse";
 }
@@ -0,0 +1,139 @@
+package com.kaper.devtunnel;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * HTTP header block parser.
+ * The header block is read in blocks (not byte by byte), and scanned incrementally for the "\r\n\r\n" end marker.
+ * Any body bytes which were read beyond the header block are pushed back into the PrefixedInputStream, so a
+ * following stream copy of the body starts at the right spot.
+ */
+@Slf4j
+public class HeaderParser {
+    public static final int MAX_HEADER_SIZE = 1_000_000;
+    private static final int READ_BLOCK_SIZE = 8 * 1024;
+
+    private HeaderParser() {
+        // no instances, just a helper class.
+    }
+
+    /**
+     * Look for the "\r\n\r\n" end of header marker in data[0..limit>, starting at scanFrom.
+     * The scanFrom can be the limit of a previous call, to only scan newly added data.
+     * Returns the header block length (including the marker), or -1 if not found yet.
+     */
+    public static int findHeaderEnd(byte[] data, int scanFrom, int limit) {
+        for (int i = Math.max(scanFrom, 3); i < limit; i++) {
+            if (data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n' && data[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read a header block from the stream. Construct header set from an input stream. This can both be request or response data.
+     * Read input stream up to and including "\r\n\r\n", e.g. the end of header block with the empty line.
+     * We do not close the stream, to allow a following stream copy loop to copy the message BODY.
+     */
+    public static Headers read(PrefixedInputStream stream, BufferPool bufferPool) {
+        byte[] pooled = bufferPool.acquire(READ_BLOCK_SIZE);
+        byte[] buffer = pooled;
+        int length = 0;
+        try {
+            int bytesRead;
+            while ((bytesRead = stream.read(buffer, length, buffer.length - length)) != -1) {
+                int scanFrom = length;
+                length += bytesRead;
+                int headerEnd = findHeaderEnd(buffer, scanFrom, length);
+                if (headerEnd > 0) {
+                    // do we have two newlines? if so, we have the full header!
+                    stream.unread(buffer, headerEnd, length - headerEnd);
+                    return parse(buffer, 0, headerEnd);
+                }
+                if (length == buffer.length) {
+                    if (buffer.length >= MAX_HEADER_SIZE) {
+                        log.warn("Header block too large, more than {} bytes", MAX_HEADER_SIZE);
+                        return parsePartial(buffer, length);
+                    }
+                    buffer = Arrays.copyOf(buffer, Math.min(MAX_HEADER_SIZE, buffer.length * 4));
+                }
+            }
+            log.warn("Unexpected end of stream while reading headers (eof)");
+            // Ok, EOF, but then let's use what we have so far. It could be that the last header line is broken...
+            return parsePartial(buffer, length);
+        } catch (IOException e) {
+            // This one will probably be more like a remote disconnect.
+            log.warn("Unexpected end of stream while reading headers: {}", e.getMessage());
+            return parsePartial(buffer, 0);
+        } finally {
+            bufferPool.release(pooled);
+        }
+    }
+
+    private static Headers parsePartial(byte[] data, int length) {
+        // not a complete block, so we can not use it as serialized form.
+        return parseLines(data, 0, length, null);
+    }
+
+    /**
+     * Parse a complete header block (including the "\r\n\r\n" end marker).
+     */
+    public static Headers parse(byte[] data, int offset, int length) {
+        return parseLines(data, offset, length, Arrays.copyOfRange(data, offset, offset + length));
+    }
+
+    private static Headers parseLines(byte[] data, int offset, int length, byte[] rawBlock) {
+        log.debug("Header size: {}", length);
+        String firstLine = null;
+        List<Headers.Field> fields = new ArrayList<>();
+        int end = offset + length;
+        int lineStart = offset;
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && !(data[lineEnd] == '\r' && lineEnd + 1 < end && data[lineEnd + 1] == '\n')) {
+                lineEnd++;
+            }
+            if (lineEnd == lineStart) {
+                // empty line, end of header block.
+                break;
+            }
+            if (firstLine == null) {
+                firstLine = new String(data, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+            } else {
+                fields.add(parseField(data, lineStart, lineEnd));
+            }
+            lineStart = lineEnd + 2;
+        }
+        if (log.isDebugEnabled() && firstLine != null) {
+            log.debug("Header: {}", firstLine);
+            fields.forEach(it -> log.debug("Header: {}: {}", it.name(), it.value()));
+        }
+        return new Headers(firstLine, fields, rawBlock, length);
+    }
+
+    private static Headers.Field parseField(byte[] data, int lineStart, int lineEnd) {
+        int colon = lineStart;
+        while (colon < lineEnd && data[colon] != ':') {
+            colon++;
+        }
+        if (colon == lineEnd) {
+            return new Headers.Field(new String(data, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8), null);
+        }
+        int valueStart = colon + 1;
+        while (valueStart < lineEnd && (data[valueStart] == ' ' || data[valueStart] == '\t')) {
+            valueStart++;
+        }
+        int valueEnd = lineEnd;
+        while (valueEnd > valueStart && (data[valueEnd - 1] == ' ' || data[valueEnd - 1] == '\t')) {
+            valueEnd--;
+        }
+        return new Headers.Field(new String(data, lineStart, colon - lineStart, StandardCharsets.ISO_8859_1),
+                new String(data, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8));
+    }
+}
@@ -1,164 +1,224 @@
 package com.kaper.devtunnel;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * Class representing request or response headers.
  * And contains some utility methods to work with headers.
+ * The headers are kept as first line plus a list of name/value fields. Name lookups are case-insensitive, using an
+ * index from lower-cased name to the (first) value, which is built on the first lookup and kept up to date after that.
+ * The serialized form is cached, so sending the headers and counting their bytes does not encode them twice.
+ * Use the HeaderParser to read headers from a stream or byte block.
  */
 @Slf4j
 public class Headers {
-    private List<String> headerLines = new ArrayList<>();
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final String firstLine;
+    private final List<Field> fields;
+    /** Lower-cased header name to the value of its first field. Null until the first lookup. */
+    private Map<String, String> index;
     private int headerBytesRead = 0;
+    /** Serialized header block, including the end of header empty line. Null if it needs to be rebuilt. */
+    private byte[] serialized;
+
+    /**
+     * A single header line. If the line had no colon, the name is the full line, and the value is null.
+     */
+    record Field(String name, String value) {
+    }
 
     /**
      * Construct response header set.
      * Used for creating error responses.
      */
     public Headers(String httpResponseStatus) {
-        headerLines.add("HTTP/1.1 " + httpResponseStatus);
+        this.firstLine = "HTTP/1.1 " + httpResponseStatus;
+        this.fields = new ArrayList<>();
     }
 
     /**
-     * Construct header set from an input stream. This can both be request or response data.
-     * Read input stream up to and including "\r\n\r\n", e.g. the end of header block with the empty line.
-     * We do not close the stream, to allow a following stream copy loop to copy the message BODY.
+     * Construct header set from parsed data. The raw block is the header data as it was read (if any), which is
+     * used as serialized form as long as the headers are not changed.
      */
-    public Headers(InputStream stream) {
-        int bytesRead;
-        final byte[] fullRequest = new byte[1_000_000]; // max 1 MB to fit full request
-        try {
-            // read the stream byte by byte (ugly, but I guess the OS will cache the real incoming network packet anyway).
-            while ((bytesRead = stream.read(fullRequest, headerBytesRead, 1)) != -1) {
-                headerBytesRead += bytesRead;
-                // Check last 4 bytes read for "\r\n\r\n"
-                if (headerBytesRead > 4 && (fullRequest[headerBytesRead - 4] == '\r'
-                        && fullRequest[headerBytesRead - 3] == '\n' && fullRequest[headerBytesRead - 2] == '\r'
-                        && fullRequest[headerBytesRead - 1] == '\n')) {
-                    // do we have two newlines? if so, we have the full header!
-                    log.debug("Header size: {}", headerBytesRead);
-                    headerLines = new ArrayList<>(Arrays.asList(new String(fullRequest, 0, headerBytesRead).split("\r\n")));
-                    if (log.isDebugEnabled()) {
-                        headerLines.forEach(it -> log.debug("Header: " + it));
-                    }
-                    return;
-                }
-            }
-            log.warn("Unexpected end of stream while reading headers (eof)");
-            // Ok, EOF, but then let's use what we have so far. It could be that the last header line is broken...
-            log.debug("Header size: {}", headerBytesRead);
-            if (headerBytesRead > 0) {
-                headerLines = new ArrayList<>(Arrays.asList(new String(fullRequest, 0, headerBytesRead).split("\r\n")));
-                if (log.isDebugEnabled()) {
-                    headerLines.forEach(it -> log.debug("Header: " + it));
-                }
-            }
-        } catch (IOException e) {
-            // This one will probably be more like a remote disconnect.
-            log.warn("Unexpected end of stream while reading headers: {}", e.getMessage());
-        }
+    Headers(String firstLine, List<Field> fields, byte[] rawBlock, int headerBytesRead) {
+        this.firstLine = firstLine;
+        this.fields = fields;
+        this.serialized = rawBlock;
+        this.headerBytesRead = headerBytesRead;
+    }
+
+    /**
+     * A copy which can be changed without changing this one. Used for the stored headers of cached responses.
+     */
+    public Headers copy() {
+        return new Headers(firstLine, new ArrayList<>(fields), serialized, headerBytesRead);
     }
 
     /**
      * Send header lines to client or server.
      */
     public void sendHeaderLines(OutputStream stream, String direction) {
-        StringBuilder data = new StringBuilder();
-        for (String line : headerLines) {
-            log.debug("{} {}", direction, line);
-            data.append(line).append("\r\n");
-        }
-        data.append("\r\n");
+        logHeaderLines(direction);
         try {
-            stream.write(data.toString().getBytes());
+            stream.write(getSerialized());
             stream.flush();
         } catch (IOException e) {
             log.info("{} header send error? - {}", direction, e.getMessage());
         }
     }
 
+    /**
+     * Log the header lines (at debug level), for headers which are sent in some other way than by sendHeaderLines.
+     */
+    public void logHeaderLines(String direction) {
+        if (log.isDebugEnabled()) {
+            log.debug("{} {}", direction, firstLine);
+            fields.forEach(field -> log.debug("{} {}", direction, toLine(field)));
+        }
+    }
+
     public int sendHeaderLineByteCount() {
-        int count = 0;
-        for (String line : headerLines) {
-            count += (line.getBytes().length + 2);
+        return getSerialized().length;
+    }
+
+    /**
+     * Get the full header block as bytes, including the empty line at the end.
+     */
+    public byte[] getSerialized() {
+        if (serialized == null) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream(64 + fields.size() * 48);
+            if (firstLine != null) {
+                data.writeBytes(firstLine.getBytes(StandardCharsets.UTF_8));
+                data.writeBytes(CRLF);
+            }
+            for (Field field : fields) {
+                data.writeBytes(toLine(field).getBytes(StandardCharsets.UTF_8));
+                data.writeBytes(CRLF);
+            }
+            data.writeBytes(CRLF);
+            serialized = data.toByteArray();
         }
-        return count + 2;
+        return serialized;
+    }
+
+    private static String toLine(Field field) {
+        return field.value() == null ? field.name() : field.name() + ": " + field.value();
     }
 
     public String getHeaderValue(String headerName) {
-        for (String line : headerLines) {
-            if (line.toLowerCase().startsWith(headerName.toLowerCase() + ": ")) {
-                return line.substring(headerName.length() + 2).trim();
+        return getIndex().get(headerName.toLowerCase(Locale.ROOT));
+    }
+
+    private Map<String, String> getIndex() {
+        if (index == null) {
+            Map<String, String> newIndex = new HashMap<>(fields.size() * 2);
+            for (Field field : fields) {
+                if (field.value() != null) {
+                    newIndex.putIfAbsent(field.name().toLowerCase(Locale.ROOT), field.value());
+                }
             }
+            index = newIndex;
         }
-        return null;
+        return index;
     }
 
     public void setContentLength(int length) {
         setHeader("Content-Length", String.valueOf(length));
     }
 
+    /**
+     * The Content-Length, null if there is none, or if it is not a valid length (see isContentLengthValid).
+     */
     public Integer getContentLength() {
-        Integer length = null;
         String contentLength = getHeaderValue("content-length");
-        if (contentLength != null) {
-            length = Integer.parseInt(contentLength);
+        if (contentLength == null) {
+            return null;
+        }
+        try {
+            int length = Integer.parseInt(contentLength.trim());
+            return length >= 0 ? length : null;
+        } catch (NumberFormatException e) {
+            return null;
         }
-        return length;
+    }
+
+    /**
+     * False if there is a Content-Length header, which is not a number we can handle. Such a web request is refused.
+     */
+    public boolean isContentLengthValid() {
+        return getHeaderValue("content-length") == null || getContentLength() != null;
     }
 
     public void addHeader(String headerName, String headerValue) {
-        headerLines.add(headerName + ": " + headerValue);
+        fields.add(new Field(headerName, headerValue));
+        if (index != null && headerValue != null) {
+            index.putIfAbsent(headerName.toLowerCase(Locale.ROOT), headerValue);
+        }
+        serialized = null;
     }
 
     public void setHeader(String headerName, String headerValue) {
         removeHeader(headerName);
-        headerLines.add(headerName + ": " + headerValue);
+        addHeader(headerName, headerValue);
     }
 
     /**
      * Find given header name, and remove it from the list.
      */
     public void removeHeader(String filterHeader) {
-        boolean foundOne = false;
-        List<String> result = new ArrayList<>();
-        for (String line : headerLines) {
-            if (!line.toLowerCase().startsWith(filterHeader.toLowerCase() + ":")) {
-                result.add(line);
-            } else {
-                log.debug("Removing header: {}", line);
-                foundOne = true;
+        boolean removed = fields.removeIf(field -> {
+            if (field.value() != null && field.name().equalsIgnoreCase(filterHeader)) {
+                log.debug("Removing header: {}", toLine(field));
+                return true;
+            }
+            return false;
+        });
+        if (removed) {
+            serialized = null;
+            if (index != null) {
+                index.remove(filterHeader.toLowerCase(Locale.ROOT));
             }
         }
-        if (!foundOne) {
-            return;
-        }
-        headerLines.clear();
-        headerLines.addAll(result);
     }
 
     public List<String> getHeaderNames() {
-        List<String> result = new ArrayList<>();
-        for (String line : headerLines) {
-            if (line.contains(": ")) {
-                result.add(line.replaceFirst(": .*$", "").trim());
+        List<String> result = new ArrayList<>(fields.size());
+        for (Field field : fields) {
+            if (field.value() != null) {
+                result.add(field.name());
             }
         }
         return result;
     }
 
+    /**
+     * The status code of a response (the number after the protocol on the first line), -1 if there is none.
+     */
+    public int getStatusCode() {
+        int space = firstLine.indexOf(' ');
+        try {
+            return Integer.parseInt(firstLine.substring(space + 1, Math.min(firstLine.length(), space + 4)));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
     public String getFirstLine() {
-        return headerLines.stream().findFirst().orElse(null);
+        return firstLine;
     }
 
     public boolean hasHeaderLines() {
-        return !headerLines.isEmpty();
+        return firstLine != null;
     }
 
     public int getHeaderBytesRead() {
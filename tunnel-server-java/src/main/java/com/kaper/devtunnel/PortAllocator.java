@@ -0,0 +1,207 @@
+package com.kaper.devtunnel;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps track of which ports of the configured range are free, and which user owns the others.
+ * Built to stay cheap for large port ranges (10k+ ports), as it is used on every registration:
+ * - The free ports are kept in a dense array, with per port its position in that array (or -1 if in use). Checking a
+ *   port, taking a random free port, and taking or giving back a specific port are all O(1).
+ * - The used ports are kept in a set sorted by the time the owner was last seen, to find the oldest one to reclaim in
+ *   O(log n). The owners update their last seen time all the time (on every poll) without telling us, so the sort key
+ *   is a snapshot which can be outdated. That is fixed lazily: if the oldest entry turns out to have been seen since,
+ *   it is moved to its new spot, and we look at the next oldest. A single call moves at most MAX_REFRESH_PER_CALL
+ *   entries. Otherwise, when all users are active, every call would move all of them (O(n log n) per registration).
+ * The port range is configured in the application.yml; tunnel.startPort and tunnel.endPort. In cluster mode, only the
+ * part of the range which belongs to this replica is used (see ClusterRing).
+ * All methods are synchronized, but none of them do more than a few array and tree operations.
+ */
+@Component
+public class PortAllocator {
+    /** Max number of outdated entries findReclaimable moves to their new spot in one call. */
+    private static final int MAX_REFRESH_PER_CALL = 64;
+    private static final Comparator<SeenEntry> SEEN_ORDER = Comparator.comparingLong(SeenEntry::lastSeenMs).thenComparingInt(SeenEntry::port);
+
+    private final int startPort;
+    private final int endPort;
+    /** The free ports (as offset from startPort), in positions 0 to freeCount. */
+    private final int[] freePorts;
+    /** Per port (offset), the position in freePorts, or -1 if the port is in use. */
+    private final int[] freePosition;
+    private int freeCount;
+    /** Per port (offset), the owning user, and the last seen time with which it was put in the seenOrder set. */
+    private final UserServerContext[] owners;
+    private final long[] seenSnapshotMs;
+    private final NavigableSet<SeenEntry> seenOrder = new TreeSet<>(SEEN_ORDER);
+
+    @Autowired
+    public PortAllocator(ClusterRing clusterRing, @Value("${tunnel.startPort}") int startPort, @Value("${tunnel.endPort}") int endPort) {
+        this(clusterRing.isEnabled() ? clusterRing.getSelf().startPort() : startPort,
+                clusterRing.isEnabled() ? clusterRing.getSelf().endPort() : endPort);
+    }
+
+    public PortAllocator(int startPort, int endPort) {
+        this.startPort = startPort;
+        this.endPort = endPort;
+        int size = Math.max(0, endPort - startPort + 1);
+        freePorts = new int[size];
+        freePosition = new int[size];
+        for (int offset = 0; offset < size; offset++) {
+            freePorts[offset] = offset;
+            freePosition[offset] = offset;
+        }
+        freeCount = size;
+        owners = new UserServerContext[size];
+        seenSnapshotMs = new long[size];
+    }
+
+    /**
+     * Take a free port for the user. The preferred port if that one is free, otherwise a random free port.
+     * Returns -1 if no ports are free.
+     */
+    public synchronized int claimFreePort(Integer preferredPort, UserServerContext owner) {
+        if (freeCount == 0) {
+            return -1;
+        }
+        int offset;
+        if (preferredPort != null && isInRange(preferredPort) && freePosition[preferredPort - startPort] >= 0) {
+            offset = preferredPort - startPort;
+        } else {
+            offset = freePorts[ThreadLocalRandom.current().nextInt(freeCount)];
+        }
+        take(offset, owner);
+        return startPort + offset;
+    }
+
+    /**
+     * Take a specific port for the user. Returns true if it is now owned by this user (also if it was already).
+     * Ports outside the range are not tracked, and always succeed.
+     */
+    public synchronized boolean claim(int port, UserServerContext owner) {
+        if (!isInRange(port)) {
+            return true;
+        }
+        int offset = port - startPort;
+        if (owners[offset] == owner) {
+            return true;
+        }
+        if (freePosition[offset] < 0) {
+            return false;
+        }
+        take(offset, owner);
+        return true;
+    }
+
+    /**
+     * Give back the port, if it is still owned by this user.
+     */
+    public synchronized void release(int port, UserServerContext owner) {
+        if (!isInRange(port) || owners[port - startPort] != owner) {
+            return;
+        }
+        int offset = port - startPort;
+        seenOrder.remove(new SeenEntry(seenSnapshotMs[offset], port));
+        owners[offset] = null;
+        freePosition[offset] = freeCount;
+        freePorts[freeCount++] = offset;
+    }
+
+    /**
+     * Find a user of which the port can be reclaimed, because it was not seen recently.
+     * That is the owner of the preferred port if possible, otherwise the user which was not seen for the longest time.
+     * Returns null if all users are active.
+     * If the refresh limit is hit, the owner of the oldest entry at that point is used (if it was not seen recently). That
+     * is a user which can be reclaimed, but maybe not the one which was not seen for the longest time. Or it returns
+     * null, while a user further back could be reclaimed. The next call then continues after the entries moved now.
+     */
+    public synchronized UserServerContext findReclaimable(Integer preferredPort) {
+        if (preferredPort != null && isInRange(preferredPort)) {
+            UserServerContext preferredOwner = owners[preferredPort - startPort];
+            if (preferredOwner != null && !preferredOwner.wasUserRecentlySeen()) {
+                return preferredOwner;
+            }
+        }
+        int refreshCount = 0;
+        while (!seenOrder.isEmpty()) {
+            SeenEntry oldest = seenOrder.first();
+            UserServerContext owner = owners[oldest.port() - startPort];
+            if (refreshCount < MAX_REFRESH_PER_CALL && refresh(oldest, owner)) {
+                // Was seen since, it moved back. Look at the next oldest.
+                refreshCount++;
+                continue;
+            }
+            // This one is really the oldest (unless we hit the refresh limit). If that was seen recently, so were all others.
+            return owner.wasUserRecentlySeen() ? null : owner;
+        }
+        return null;
+    }
+
+    public synchronized Stats getStats() {
+        int reclaimable = 0;
+        Iterator<SeenEntry> iterator = seenOrder.iterator();
+        while (iterator.hasNext()) {
+            SeenEntry entry = iterator.next();
+            UserServerContext owner = owners[entry.port() - startPort];
+            if (owner.getUserLastSeenTimestampMs() == entry.lastSeenMs() && owner.wasUserRecentlySeen()) {
+                // Sorted by last seen, the next ones were seen even more recently.
+                break;
+            }
+            if (!owner.wasUserRecentlySeen()) {
+                reclaimable++;
+            }
+        }
+        return new Stats(startPort, endPort, freeCount, freePorts.length - freeCount, reclaimable);
+    }
+
+    private boolean isInRange(int port) {
+        return port >= startPort && port <= endPort;
+    }
+
+    private void take(int offset, UserServerContext owner) {
+        // Move the last free port into the spot of the taken one.
+        int position = freePosition[offset];
+        int lastOffset = freePorts[--freeCount];
+        freePorts[position] = lastOffset;
+        freePosition[lastOffset] = position;
+        freePosition[offset] = -1;
+        owners[offset] = owner;
+        seenSnapshotMs[offset] = owner.getUserLastSeenTimestampMs();
+        seenOrder.add(new SeenEntry(seenSnapshotMs[offset], startPort + offset));
+    }
+
+    /**
+     * Move the entry to its current last seen time, if it changed. Returns true if it was moved.
+     */
+    private boolean refresh(SeenEntry entry, UserServerContext owner) {
+        long lastSeenMs = owner.getUserLastSeenTimestampMs();
+        if (lastSeenMs == entry.lastSeenMs()) {
+            return false;
+        }
+        seenOrder.remove(entry);
+        seenSnapshotMs[entry.port() - startPort] = lastSeenMs;
+        seenOrder.add(new SeenEntry(lastSeenMs, entry.port()));
+        return true;
+    }
+
+    private record SeenEntry(long lastSeenMs, int port) {
+    }
+
+    /**
+     * Port usage. Reclaimable ports are in use by users which have not been seen recently.
+     */
+    public record Stats(
+            int startPort,
+            int endPort,
+            int free,
+            int used,
+            int reclaimable
+    ) {
+    }
+}
@@ -0,0 +1,120 @@
+package com.kaper.devtunnel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Input stream which first returns a set of "prefix" bytes, and after that continues reading from the wrapped stream.
+ * Used when more bytes were read from a socket than were needed for the header block. Those overread body bytes
+ * are put in front of the socket stream again, so a following stream copy of the body does not lose any data.
+ * Bytes which were read too far can also be pushed back using unread().
+ */
+public class PrefixedInputStream extends InputStream {
+    private final InputStream in;
+    private byte[] prefix;
+    private int prefixPos;
+    private int prefixEnd;
+    /** If set, the bytes read are also copied into this, until it is full (see capture). */
+    private byte[] capture;
+    private int captured;
+
+    public PrefixedInputStream(byte[] prefix, int offset, int length, InputStream in) {
+        this.in = in;
+        this.prefix = Arrays.copyOfRange(prefix, offset, offset + length);
+        this.prefixPos = 0;
+        this.prefixEnd = length;
+    }
+
+    public PrefixedInputStream(InputStream in) {
+        this(new byte[0], 0, 0, in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = prefixPos < prefixEnd ? prefix[prefixPos++] & 0xff : in.read();
+        if (capture != null && b >= 0 && captured < capture.length) {
+            capture[captured++] = (byte) b;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        int count;
+        if (prefixPos < prefixEnd) {
+            count = Math.min(length, prefixEnd - prefixPos);
+            System.arraycopy(prefix, prefixPos, buffer, offset, count);
+            prefixPos += count;
+        } else {
+            count = in.read(buffer, offset, length);
+        }
+        if (capture != null && count > 0 && captured < capture.length) {
+            int keep = Math.min(count, capture.length - captured);
+            System.arraycopy(buffer, offset, capture, captured, keep);
+            captured += keep;
+        }
+        return count;
+    }
+
+    /**
+     * Keep a copy of the bytes which are read from now on, until the copy array is full. Used by the TrafficCapture.
+     */
+    public void capture(byte[] copy) {
+        this.capture = copy;
+        this.captured = 0;
+    }
+
+    /**
+     * Number of bytes in the capture copy array.
+     */
+    public int getCaptured() {
+        return captured;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (prefixEnd - prefixPos) + in.available();
+    }
+
+    /**
+     * Push back bytes which were read too far, they will be returned first on the next read.
+     */
+    public void unread(byte[] buffer, int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+        int left = prefixEnd - prefixPos;
+        byte[] newPrefix = new byte[length + left];
+        System.arraycopy(buffer, offset, newPrefix, 0, length);
+        System.arraycopy(prefix, prefixPos, newPrefix, length, left);
+        prefix = newPrefix;
+        prefixPos = 0;
+        prefixEnd = newPrefix.length;
+    }
+
+    /**
+     * Number of prefix bytes which have not been read yet.
+     */
+    public int prefixRemaining() {
+        return prefixEnd - prefixPos;
+    }
+
+    /**
+     * Take out the prefix bytes which have not been read yet. After this, reads go straight to the wrapped stream.
+     */
+    public byte[] takePrefix() {
+        byte[] result = Arrays.copyOfRange(prefix, prefixPos, prefixEnd);
+        prefixPos = 0;
+        prefixEnd = 0;
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,345 @@
+package com.kaper.devtunnel;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Journal of the registered users (userId, port, route name, client version, timeouts, registration and last seen times), so the
+ * TunnelServer can rebuild its registry after a restart. Without it, all tunnel clients get a 404 on their next poll,
+ * and all of them re-register at the same moment, maybe getting another port.
+ * The journal is an append-only memory-mapped file. Each record is: [length:4][type:1][payload][crc32:4], and a
+ * length of 0 marks the end. A record which was half written when the server died has a wrong checksum, and it is
+ * ignored together with anything after it. When the file is getting full, it is compacted: the current state is
+ * written to a new file (one record per user), which replaces the old one. If the current state takes more than half
+ * of the compaction threshold, the new file is made bigger (doubled until it fits), so compactions do not follow each
+ * other on every write. The file size goes back to tunnel.journal.fileSizeBytes when the state gets smaller again.
+ * Registrations and closes are only queued on the request threads. A writer thread appends them to the file, and also
+ * appends the last seen time of users which have been active since the previous write. So no file I/O happens on the
+ * request path.
+ * If tunnel.journal.file is not set, the journal is disabled.
+ */
+@Slf4j
+@Component
+public class RegistryJournal {
+    private static final int MAGIC = 0x54554e31; // "TUN1"
+    private static final byte TYPE_REGISTERED = 1;
+    private static final byte TYPE_CLOSED = 2;
+    private static final byte TYPE_SEEN = 3;
+    /** Compact when the file is filled above this fraction. */
+    private static final double COMPACT_FILL_RATIO = 0.75;
+
+    private final Path file;
+    private final int fileSizeBytes;
+    private final long writeIntervalMs;
+    private final Queue<Event> events = new ConcurrentLinkedQueue<>();
+    // Below fields are only used by the writer thread (after start).
+    /** The registered users as known by the journal, with the last seen time we wrote for each of them. */
+    private final Map<String, UserServerContext> journaledUsers = new HashMap<>();
+    private final Map<String, Long> journaledLastSeenMs = new HashMap<>();
+    private MappedByteBuffer buffer;
+    /** Size of the current file, at least fileSizeBytes. */
+    private long mappedSizeBytes;
+
+    public RegistryJournal(@Value("${tunnel.journal.file:}") String file,
+                           @Value("${tunnel.journal.fileSizeBytes:4194304}") int fileSizeBytes,
+                           @Value("${tunnel.journal.writeIntervalMs:1000}") long writeIntervalMs) {
+        this.file = file == null || file.isBlank() ? null : Path.of(file);
+        this.fileSizeBytes = fileSizeBytes;
+        this.writeIntervalMs = writeIntervalMs;
+    }
+
+    public boolean isEnabled() {
+        return file != null;
+    }
+
+    /**
+     * Read the journal, and return the users which were registered when the server stopped.
+     */
+    public List<Entry> replay() {
+        Map<String, Entry> users = new LinkedHashMap<>();
+        if (!isEnabled() || !Files.exists(file)) {
+            return new ArrayList<>();
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (data.remaining() < 4 || data.getInt() != MAGIC) {
+                log.warn("Registry journal {} has no valid header - ignored", file);
+                return new ArrayList<>();
+            }
+            int records = 0;
+            while (data.remaining() >= 4) {
+                int length = data.getInt();
+                if (length <= 0 || length + 4 > data.remaining()) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                data.get(record);
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                if ((int) crc.getValue() != data.getInt()) {
+                    log.warn("Registry journal {} has a broken record at {} - ignoring the rest", file, data.position());
+                    break;
+                }
+                apply(ByteBuffer.wrap(record), users);
+                records++;
+            }
+            unmap(data);
+            log.info("Registry journal {}: read {} records, {} users", file, records, users.size());
+        } catch (IOException | RuntimeException e) {
+            log.error("Error reading registry journal {} - {}", file, e.toString());
+        }
+        return new ArrayList<>(users.values());
+    }
+
+    private static void apply(ByteBuffer record, Map<String, Entry> users) {
+        byte type = record.get();
+        String userId = readString(record);
+        switch (type) {
+            case TYPE_REGISTERED -> {
+                Entry entry = new Entry(userId, record.getInt(), record.getInt(), record.getLong(), record.getLong(), record.getLong(), null);
+                String routeName = readString(record);
+                users.put(userId, routeName.isEmpty() ? entry : entry.withRouteName(routeName));
+            }
+            case TYPE_CLOSED -> users.remove(userId);
+            case TYPE_SEEN -> {
+                long lastSeenMs = record.getLong();
+                users.computeIfPresent(userId, (id, entry) -> entry.withLastSeenMs(lastSeenMs));
+            }
+            default -> throw new IllegalStateException("Unknown journal record type " + type);
+        }
+    }
+
+    /**
+     * Start writing. The journal is compacted first, to hold just the given (restored) users.
+     */
+    public void start(List<UserServerContext> restoredUsers) {
+        if (!isEnabled()) {
+            return;
+        }
+        restoredUsers.forEach(userServerContext -> journaledUsers.put(userServerContext.getUserId(), userServerContext));
+        try {
+            compact();
+        } catch (IOException e) {
+            log.error("Can not write registry journal {} - journal disabled. {}", file, e.toString());
+            return;
+        }
+        Thread thread = new Thread(this::run);
+        thread.setName("Registry-Journal");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void recordRegistered(UserServerContext userServerContext) {
+        if (isEnabled()) {
+            events.add(new Event(TYPE_REGISTERED, userServerContext, Entry.of(userServerContext)));
+        }
+    }
+
+    public void recordClosed(UserServerContext userServerContext) {
+        if (isEnabled()) {
+            events.add(new Event(TYPE_CLOSED, userServerContext, null));
+        }
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                Thread.sleep(writeIntervalMs);
+                writePending();
+            } catch (InterruptedException e) {
+                log.warn("registry journal interrupted - shut down");
+                return;
+            } catch (Exception e) {
+                // whatever happens, we never want to stop the journal, so just log and continue.
+                log.error("Error in registry journal?", e);
+            }
+        }
+    }
+
+    private void writePending() throws IOException {
+        boolean written = false;
+        Event event;
+        while ((event = events.poll()) != null) {
+            String userId = event.userServerContext().getUserId();
+            if (event.type() == TYPE_REGISTERED) {
+                journaledUsers.put(userId, event.userServerContext());
+                journaledLastSeenMs.put(userId, event.entry().lastSeenMs());
+                append(registeredRecord(event.entry()));
+            } else if (journaledUsers.remove(userId, event.userServerContext())) {
+                journaledLastSeenMs.remove(userId);
+                append(record(TYPE_CLOSED, userId, 0));
+            }
+            written = true;
+        }
+        for (UserServerContext userServerContext : journaledUsers.values()) {
+            long lastSeenMs = userServerContext.getUserLastSeenTimestampMs();
+            Long journaledMs = journaledLastSeenMs.put(userServerContext.getUserId(), lastSeenMs);
+            if (journaledMs == null || journaledMs != lastSeenMs) {
+                append(seenRecord(userServerContext.getUserId(), lastSeenMs));
+                written = true;
+            }
+        }
+        if (written) {
+            buffer.force();
+        }
+    }
+
+    private void append(byte[] record) throws IOException {
+        if (buffer.position() + record.length + 4 > mappedSizeBytes * COMPACT_FILL_RATIO) {
+            // The compacted file has the current state of all users, which already includes this record.
+            compact();
+            return;
+        }
+        buffer.put(record);
+        // Make sure there is an end marker after the last record (the file might be re-used after a crash).
+        buffer.putInt(buffer.position(), 0);
+    }
+
+    /**
+     * Write the current state to a new file, and swap it in. Until the swap, the old file stays valid.
+     */
+    private void compact() throws IOException {
+        List<byte[]> records = new ArrayList<>(journaledUsers.size());
+        long liveBytes = 4 + 4;
+        for (UserServerContext userServerContext : journaledUsers.values()) {
+            Entry entry = Entry.of(userServerContext);
+            journaledLastSeenMs.put(entry.userId(), entry.lastSeenMs());
+            byte[] record = registeredRecord(entry);
+            records.add(record);
+            liveBytes += record.length;
+        }
+        long sizeBytes = fileSizeBytes;
+        while (liveBytes > sizeBytes * COMPACT_FILL_RATIO / 2) {
+            sizeBytes *= 2;
+        }
+        if (sizeBytes > Integer.MAX_VALUE) {
+            throw new IOException("Registry journal state too large: " + liveBytes + " bytes");
+        }
+
+        Path compactFile = file.resolveSibling(file.getFileName() + ".compact");
+        Files.deleteIfExists(compactFile);
+        MappedByteBuffer compactBuffer;
+        try (FileChannel channel = FileChannel.open(compactFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            compactBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, sizeBytes);
+        }
+        compactBuffer.putInt(MAGIC);
+        records.forEach(compactBuffer::put);
+        compactBuffer.putInt(compactBuffer.position(), 0);
+        compactBuffer.force();
+        Files.move(compactFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (buffer != null) {
+            unmap(buffer);
+        }
+        buffer = compactBuffer;
+        mappedSizeBytes = sizeBytes;
+        log.info("Registry journal {} compacted, {} users, {} of {} bytes", file, journaledUsers.size(), buffer.position(), sizeBytes);
+    }
+
+    /**
+     * Release the memory mapping of the buffer now, instead of whenever the garbage collector finds it. Otherwise,
+     * every compaction leaves a mapping of the size of the file behind (and on some systems the replaced file stays
+     * on disk while mapped). The buffer must not be used after this.
+     * There is no public API for this, so it uses Unsafe.invokeCleaner (jdk.unsupported module). If that is not
+     * available, the mapping is left to the garbage collector.
+     */
+    private static void unmap(ByteBuffer mappedBuffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(theUnsafe.get(null), mappedBuffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("Can not unmap registry journal buffer - {}", e.toString());
+        }
+    }
+
+    private static byte[] registeredRecord(Entry entry) {
+        byte[] userId = entry.userId().getBytes(StandardCharsets.UTF_8);
+        byte[] routeName = (entry.routeName() == null ? "" : entry.routeName()).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + 2 + userId.length + 4 + 4 + 8 + 8 + 8 + 2 + routeName.length);
+        payload.put(TYPE_REGISTERED).putShort((short) userId.length).put(userId).putInt(entry.serverPort()).putInt(entry.clientVersion())
+                .putLong(entry.requestTimeoutMs()).putLong(entry.registeredMs()).putLong(entry.lastSeenMs())
+                .putShort((short) routeName.length).put(routeName);
+        return frame(payload.array());
+    }
+
+    private static byte[] seenRecord(String userId, long lastSeenMs) {
+        return record(TYPE_SEEN, userId, lastSeenMs);
+    }
+
+    private static byte[] record(byte type, String userId, long value) {
+        byte[] userIdBytes = userId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + 2 + userIdBytes.length + (type == TYPE_SEEN ? 8 : 0));
+        payload.put(type).putShort((short) userIdBytes.length).put(userIdBytes);
+        if (type == TYPE_SEEN) {
+            payload.putLong(value);
+        }
+        return frame(payload.array());
+    }
+
+    /**
+     * Add the length in front, and the checksum after the payload.
+     */
+    private static byte[] frame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return ByteBuffer.allocate(4 + payload.length + 4).putInt(payload.length).put(payload).putInt((int) crc.getValue()).array();
+    }
+
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getShort() & 0xffff];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private record Event(byte type, UserServerContext userServerContext, Entry entry) {
+    }
+
+    /**
+     * A registered user as stored in the journal.
+     */
+    public record Entry(
+            String userId,
+            int serverPort,
+            int clientVersion,
+            long requestTimeoutMs,
+            long registeredMs,
+            long lastSeenMs,
+            String routeName
+    ) {
+        static Entry of(UserServerContext userServerContext) {
+            return new Entry(userServerContext.getUserId(), userServerContext.getServerPort(), userServerContext.getClientVersion(),
+                    userServerContext.getRequestTimeoutMs(), userServerContext.getUserRegisteredTimestampMs(), userServerContext.getUserLastSeenTimestampMs(),
+                    userServerContext.getRouteName());
+        }
+
+        Entry withLastSeenMs(long lastSeenMs) {
+            return new Entry(userId, serverPort, clientVersion, requestTimeoutMs, registeredMs, lastSeenMs, routeName);
+        }
+
+        Entry withRouteName(String routeName) {
+            return new Entry(userId, serverPort, clientVersion, requestTimeoutMs, registeredMs, lastSeenMs, routeName);
+        }
+    }
+}
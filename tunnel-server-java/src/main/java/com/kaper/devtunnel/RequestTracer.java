@@ -0,0 +1,255 @@
+package com.kaper.devtunnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Timing trace of the last web requests of each user, to find out where the time goes if "the tunnel is slow".
+ * For each finished request, the time spent in each stage is recorded (see Stage), with the byte counts and status.
+ * The records of a user are kept in a fixed size ring buffer (tunnel.trace.requestsPerUser), which is written without
+ * locks: a writer claims a slot with one atomic increment, and fills in primitive fields (no objects per request).
+ * A reader uses the sequence number of a slot to skip records which are being overwritten while it reads.
+ * The trace of a user is shown on /status/{userId}/requests, with percentiles per stage (see TunnelStatusController).
+ */
+@Component
+public class RequestTracer {
+    /** The stages of a request, in order. The time of a stage is -1 if the request did not get there. */
+    public enum Stage {
+        /** Reading the request headers, from the first byte until the complete header block. */
+        HEADER,
+        /** Waiting in the request queue of the user, until a tunnel client picked it up. */
+        QUEUE,
+        /** Sending the request (headers and body) to the tunnel client. */
+        WEB_TO_APP,
+        /** Tunnel client and app: from the request sent, until the app response starts coming in. */
+        APP,
+        /** Sending the app response (headers and body) on to the web client. */
+        APP_TO_WEB
+    }
+
+    /** How the response was made: by the app through the tunnel, from the ResponseCache, by a SingleFlight leader, or an error. */
+    public enum Source {
+        TUNNEL, CACHE, SHARED, ERROR
+    }
+
+    private static final int SEQUENCE = 0;
+    private static final int START_MS = 1;
+    private static final int FIRST_STAGE = 2;
+    private static final int TOTAL = FIRST_STAGE + Stage.values().length;
+    private static final int WEB_TO_APP_BYTES = TOTAL + 1;
+    private static final int APP_TO_WEB_BYTES = TOTAL + 2;
+    private static final int STATUS = TOTAL + 3;
+    private static final int SOURCE = TOTAL + 4;
+    private static final int FIELDS = SOURCE + 1;
+
+    private final boolean enabled;
+    private final int requestsPerUser;
+    private final Map<String, TraceRing> traceRings = new ConcurrentHashMap<>();
+
+    public RequestTracer(@Value("${tunnel.trace.enabled:true}") boolean enabled,
+                         @Value("${tunnel.trace.requestsPerUser:256}") int requestsPerUser) {
+        this.enabled = enabled;
+        this.requestsPerUser = Math.max(1, requestsPerUser);
+    }
+
+    /**
+     * Record a finished web request, with the response as set by WebRequest.setResponse.
+     */
+    public void record(UserServerContext userServerContext, WebRequest webRequest) {
+        if (!enabled || userServerContext == null) {
+            return;
+        }
+        TraceRing traceRing = traceRings.get(userServerContext.getUserId());
+        if (traceRing == null) {
+            traceRing = traceRings.computeIfAbsent(userServerContext.getUserId(), userId -> new TraceRing(requestsPerUser));
+        }
+        traceRing.add(webRequest);
+    }
+
+    /**
+     * Drop the trace of a closed user.
+     */
+    public void removeUser(UserServerContext userServerContext) {
+        traceRings.remove(userServerContext.getUserId());
+    }
+
+    /**
+     * The trace of a user: percentiles per stage over the recorded requests, and the last (at most) limit requests,
+     * newest first. Returns null if there is no trace for the user.
+     */
+    public UserTrace getUserTrace(String userId, int limit) {
+        TraceRing traceRing = traceRings.get(userId);
+        if (traceRing == null) {
+            return null;
+        }
+        List<TraceRecord> records = traceRing.snapshot();
+        List<TraceLine> requests = new ArrayList<>();
+        for (int i = records.size() - 1; i >= 0 && requests.size() < limit; i--) {
+            long[] record = records.get(i).fields();
+            requests.add(new TraceLine(record[START_MS], records.get(i).requestLine(), (int) record[STATUS], Source.values()[(int) record[SOURCE]],
+                    toMs(record[FIRST_STAGE + Stage.HEADER.ordinal()]), toMs(record[FIRST_STAGE + Stage.QUEUE.ordinal()]),
+                    toMs(record[FIRST_STAGE + Stage.WEB_TO_APP.ordinal()]), toMs(record[FIRST_STAGE + Stage.APP.ordinal()]),
+                    toMs(record[FIRST_STAGE + Stage.APP_TO_WEB.ordinal()]), toMs(record[TOTAL]), record[WEB_TO_APP_BYTES], record[APP_TO_WEB_BYTES]));
+        }
+        Map<String, StageStats> stages = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            stages.put(stage.name(), stageStats(records, FIRST_STAGE + stage.ordinal()));
+        }
+        stages.put("TOTAL", stageStats(records, TOTAL));
+        return new UserTrace(userId, traceRing.sequence.get(), records.size(), stages, requests);
+    }
+
+    private static StageStats stageStats(List<TraceRecord> records, int field) {
+        long[] values = new long[records.size()];
+        int count = 0;
+        for (TraceRecord record : records) {
+            if (record.fields()[field] >= 0) {
+                values[count++] = record.fields()[field];
+            }
+        }
+        if (count == 0) {
+            return new StageStats(0, -1, -1, -1, -1);
+        }
+        Arrays.sort(values, 0, count);
+        return new StageStats(count, toMs(percentile(values, count, 0.50)), toMs(percentile(values, count, 0.90)),
+                toMs(percentile(values, count, 0.99)), toMs(values[count - 1]));
+    }
+
+    private static long percentile(long[] sortedValues, int count, double fraction) {
+        return sortedValues[Math.min(count - 1, (int) Math.ceil(fraction * count) - 1)];
+    }
+
+    private static double toMs(long nanos) {
+        return nanos < 0 ? -1 : Math.round(nanos / 10_000.0) / 100.0;
+    }
+
+    /**
+     * Time between two System.nanoTime() stamps, -1 if one of them was not set (stage not reached).
+     */
+    private static long between(long fromNanos, long toNanos) {
+        return fromNanos == 0 || toNanos == 0 ? -1 : Math.max(0, toNanos - fromNanos);
+    }
+
+    /**
+     * Fixed size ring of trace records. All fields of all records are in one AtomicLongArray, FIELDS per record.
+     * The SEQUENCE field of a record is set last (the number of the record + 1), and set to 0 before it is changed.
+     */
+    private static final class TraceRing {
+        private final int size;
+        private final AtomicLong sequence = new AtomicLong();
+        private final AtomicLongArray fields;
+        /** The request lines (the first line of the request headers, no copy is made). */
+        private final AtomicReferenceArray<String> requestLines;
+
+        TraceRing(int size) {
+            this.size = size;
+            this.fields = new AtomicLongArray(size * FIELDS);
+            this.requestLines = new AtomicReferenceArray<>(size);
+        }
+
+        void add(WebRequest webRequest) {
+            long number = sequence.getAndIncrement();
+            int slot = (int) (number % size);
+            int base = slot * FIELDS;
+            long doneNanos = System.nanoTime();
+            long requestSentNanos = webRequest.getRequestSentNanos() != 0 ? webRequest.getRequestSentNanos() : webRequest.getPickedUpNanos();
+            fields.set(base + SEQUENCE, 0);
+            fields.lazySet(base + START_MS, System.currentTimeMillis() - (doneNanos - webRequest.getFirstByteNanos()) / 1_000_000);
+            fields.lazySet(base + FIRST_STAGE + Stage.HEADER.ordinal(), between(webRequest.getFirstByteNanos(), webRequest.getCreatedNanos()));
+            fields.lazySet(base + FIRST_STAGE + Stage.QUEUE.ordinal(), between(webRequest.getQueuedNanos(), webRequest.getPickedUpNanos()));
+            fields.lazySet(base + FIRST_STAGE + Stage.WEB_TO_APP.ordinal(), between(webRequest.getPickedUpNanos(), webRequest.getRequestSentNanos()));
+            fields.lazySet(base + FIRST_STAGE + Stage.APP.ordinal(), between(requestSentNanos, webRequest.getAppResponseNanos()));
+            fields.lazySet(base + FIRST_STAGE + Stage.APP_TO_WEB.ordinal(),
+                    between(webRequest.getAppResponseNanos() != 0 ? webRequest.getAppResponseNanos() : webRequest.getCreatedNanos(), doneNanos));
+            fields.lazySet(base + TOTAL, between(webRequest.getFirstByteNanos(), doneNanos));
+            fields.lazySet(base + WEB_TO_APP_BYTES, webRequest.getWebToAppBytes());
+            fields.lazySet(base + APP_TO_WEB_BYTES, webRequest.getAppToWebBytes());
+            fields.lazySet(base + STATUS, webRequest.getResponseStatus());
+            fields.lazySet(base + SOURCE, webRequest.getResponseSource().ordinal());
+            requestLines.lazySet(slot, webRequest.getHeaders().getFirstLine());
+            fields.set(base + SEQUENCE, number + 1);
+        }
+
+        /**
+         * Copy the complete records, oldest first. A record which is being written during the copy is left out.
+         * The request line is read together with the fields, before the SEQUENCE check, so it belongs to the same
+         * request as the timings.
+         */
+        List<TraceRecord> snapshot() {
+            long end = sequence.get();
+            List<TraceRecord> records = new ArrayList<>(size);
+            for (long number = Math.max(0, end - size); number < end; number++) {
+                int slot = (int) (number % size);
+                int base = slot * FIELDS;
+                long[] record = new long[FIELDS];
+                for (int i = 1; i < FIELDS; i++) {
+                    record[i] = fields.get(base + i);
+                }
+                record[SEQUENCE] = number;
+                String requestLine = requestLines.get(slot);
+                if (fields.get(base + SEQUENCE) == number + 1) {
+                    records.add(new TraceRecord(record, requestLine));
+                }
+            }
+            return records;
+        }
+    }
+
+    /**
+     * A copy of one complete record of a TraceRing: the fields, and the request line.
+     */
+    private record TraceRecord(long[] fields, String requestLine) {
+    }
+
+    /**
+     * The trace of a user. The recorded count is the total since the start, the traced count the number in the ring.
+     */
+    public record UserTrace(
+            String userId,
+            long recorded,
+            int traced,
+            Map<String, StageStats> stages,
+            List<TraceLine> requests
+    ) {
+    }
+
+    /**
+     * Percentiles of the time of one stage (ms), over the traced requests which got to that stage.
+     */
+    public record StageStats(
+            int count,
+            double p50Ms,
+            double p90Ms,
+            double p99Ms,
+            double maxMs
+    ) {
+    }
+
+    /**
+     * One traced request. Times in ms, -1 for stages the request did not get to.
+     */
+    public record TraceLine(
+            long startTimestampMs,
+            String request,
+            int status,
+            Source source,
+            double headerMs,
+            double queueMs,
+            double webToAppMs,
+            double appMs,
+            double appToWebMs,
+            double totalMs,
+            long webToAppBytes,
+            long appToWebBytes
+    ) {
+    }
+}
@@ -0,0 +1,532 @@
+package com.kaper.devtunnel;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Per user cache of app responses (opt-in, tunnel.cache.enabled), so unchanged static assets (vendor bundles, images,
+ * fonts) do not need the full round trip through the tunnel for every browser request. It is off by default, as a
+ * developer who changes a file expects the next reload to show it, also if the app sends caching headers.
+ * It works like a shared HTTP cache, in front of the request queue (see TunnelServer.queueWebRequest):
+ * - Only GET requests (and HEAD, answered from the GET entry) without a body and without Authorization are looked up.
+ * - A "200" response is stored if its length is known and at most maxEntryBytes, it has no "no-store" or "private",
+ *   no Set-Cookie, no "Vary: *", and it has a freshness lifetime (max-age, s-maxage, Expires) or a validator (ETag,
+ *   Last-Modified). The body is copied while it is sent on to the web client (see Capture), nothing is read twice.
+ * - A fresh entry is sent to the web client right away, the request never reaches the tunnel client.
+ * - A stale entry with a validator turns the request into a conditional one (If-None-Match / If-Modified-Since). If
+ *   the app answers "304 Not Modified", the entry is refreshed and sent to the web client, so the body does not cross
+ *   the tunnel again. A web client asking "no-cache" (hard reload) also gets a revalidated entry.
+ * - Vary is respected: an entry only matches requests with the same values for the request headers it varies on.
+ *   Only one variant per URL is kept, the latest one.
+ * - Unsafe requests (POST, PUT, ...) on a URL drop the entry of that URL. The cache of a user is dropped when the user
+ *   registers again or is closed, as the app might be restarted with other content.
+ * The cache of each user is bounded in bytes, and evicts the least recently used entries first.
+ */
+@Slf4j
+@Component
+public class ResponseCache {
+    private static final String CACHE_CONTROL_HEADER = "Cache-Control";
+    private static final String ETAG_HEADER = "ETag";
+    private static final String LAST_MODIFIED_HEADER = "Last-Modified";
+    private static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+    private static final String IF_MODIFIED_SINCE_HEADER = "If-Modified-Since";
+    /** Response headers which are sent along with a "304 Not Modified" (the ones which describe the cached version). */
+    private static final List<String> NOT_MODIFIED_HEADERS = List.of(CACHE_CONTROL_HEADER, "Content-Location", "Date", ETAG_HEADER, "Expires", "Vary",
+            LAST_MODIFIED_HEADER);
+    /** Response headers which belong to one connection or one request, and are never stored (lower case). */
+    private static final Set<String> UNSTORED_HEADERS = Set.of("connection", "keep-alive", "proxy-connection", "te", "trailer", "transfer-encoding",
+            "upgrade", "age", Constants.X_TUNNEL_USER_ID.toLowerCase(), Constants.X_TUNNEL_WEB_REQUEST_ID.toLowerCase(),
+            Constants.X_TUNNEL_SERVER_PORT.toLowerCase(), Constants.X_TUNNEL_CACHE.toLowerCase());
+
+    private final TunnelMetrics tunnelMetrics;
+    private final boolean enabled;
+    private final long maxBytesPerUser;
+    private final int maxEntryBytes;
+    private final Map<String, UserCache> userCaches = new ConcurrentHashMap<>();
+
+    public ResponseCache(TunnelMetrics tunnelMetrics,
+                         @Value("${tunnel.cache.enabled:false}") boolean enabled,
+                         @Value("${tunnel.cache.maxBytesPerUser:33554432}") long maxBytesPerUser,
+                         @Value("${tunnel.cache.maxEntryBytes:2097152}") int maxEntryBytes) {
+        this.tunnelMetrics = tunnelMetrics;
+        this.enabled = enabled;
+        this.maxBytesPerUser = maxBytesPerUser;
+        this.maxEntryBytes = (int) Math.min(maxEntryBytes, maxBytesPerUser);
+        tunnelMetrics.registerCacheGauges(this);
+    }
+
+    /**
+     * Look up a web request in the cache of its user. Returns a fresh entry to send to the web client, or null if the
+     * request has to go to the app. In that case the request is prepared for the cache: it remembers its cache key
+     * (so the response can be stored), and for a stale entry the validators are added as conditional headers.
+     * This runs on a selector thread, it only takes a short lock on the cache of the user.
+     */
+    public Entry lookup(UserServerContext userServerContext, WebRequest webRequest) {
+        Headers requestHeaders = webRequest.getHeaders();
+        String method = getMethod(requestHeaders);
+        if (!enabled || method == null) {
+            return null;
+        }
+        boolean get = method.equals("GET");
+        if (!get && !method.equals("HEAD")) {
+            if (!method.equals("OPTIONS") && !method.equals("TRACE")) {
+                // An unsafe request might change the resource, so a cached version of it is not to be trusted anymore.
+                UserCache userCache = userCaches.get(userServerContext.getUserId());
+                if (userCache != null) {
+                    userCache.remove(getKey(requestHeaders));
+                }
+            }
+            return null;
+        }
+        Map<String, String> requestCacheControl = parseCacheControl(requestHeaders.getHeaderValue(CACHE_CONTROL_HEADER));
+        if (requestCacheControl.containsKey("no-store") || requestHeaders.getHeaderValue("Authorization") != null
+                || requestHeaders.getHeaderValue(Constants.TRANSFER_ENCODING_HEADER) != null
+                || (requestHeaders.getContentLength() != null && requestHeaders.getContentLength() > 0)) {
+            return null;
+        }
+        UserCache userCache = cacheFor(userServerContext);
+        if (userCache == null) {
+            return null;
+        }
+        String key = getKey(requestHeaders);
+        Entry entry = userCache.get(key);
+        if (entry != null && !entry.matchesVary(requestHeaders)) {
+            entry = null;
+        }
+        if (entry != null && entry.isFresh() && !requestCacheControl.containsKey("no-cache") && !"0".equals(requestCacheControl.get("max-age"))
+                && !"no-cache".equalsIgnoreCase(requestHeaders.getHeaderValue("Pragma"))) {
+            userCache.hitCount.incrementAndGet();
+            tunnelMetrics.countCacheResult(userServerContext, TunnelMetrics.CACHE_HIT);
+            return entry;
+        }
+        if (!get) {
+            // A HEAD response has no body to store, and a 304 for it can not be turned into a full response.
+            return null;
+        }
+        boolean ownConditionals = requestHeaders.getHeaderValue(IF_NONE_MATCH_HEADER) != null || requestHeaders.getHeaderValue(IF_MODIFIED_SINCE_HEADER) != null;
+        if (entry != null && entry.hasValidator() && !ownConditionals) {
+            if (entry.etag != null) {
+                requestHeaders.setHeader(IF_NONE_MATCH_HEADER, entry.etag);
+            }
+            if (entry.lastModified != null) {
+                requestHeaders.setHeader(IF_MODIFIED_SINCE_HEADER, entry.lastModified);
+            }
+            webRequest.setCacheRequest(new CacheRequest(userCache, key, entry));
+        } else {
+            webRequest.setCacheRequest(new CacheRequest(userCache, key, null));
+        }
+        return null;
+    }
+
+    /**
+     * Handle the app response to a revalidation: if it is a "304 Not Modified", refresh the stale entry with the
+     * headers of the 304, and return it, to send to the web client instead. Returns null for any other response.
+     */
+    public Entry revalidated(UserServerContext userServerContext, WebRequest webRequest, Headers responseHeaders) {
+        CacheRequest cacheRequest = webRequest.getCacheRequest();
+        if (cacheRequest == null || cacheRequest.staleEntry() == null) {
+            return null;
+        }
+        if (responseHeaders.getStatusCode() != 304) {
+            // Changed (or gone), the response itself is stored instead, if possible (see capture).
+            cacheRequest.userCache().missCount.incrementAndGet();
+            tunnelMetrics.countCacheResult(userServerContext, TunnelMetrics.CACHE_MISS);
+            return null;
+        }
+        Entry stale = cacheRequest.staleEntry();
+        Headers headers = stale.headers.copy();
+        for (String name : responseHeaders.getHeaderNames()) {
+            if (!UNSTORED_HEADERS.contains(name.toLowerCase()) && !name.equalsIgnoreCase(Constants.CONTENT_LENGTH_HEADER)) {
+                headers.setHeader(name, responseHeaders.getHeaderValue(name));
+            }
+        }
+        Entry refreshed = createEntry(headers, stale.body, stale.varyValues);
+        cacheRequest.userCache().put(cacheRequest.key(), refreshed, maxBytesPerUser);
+        cacheRequest.userCache().revalidatedCount.incrementAndGet();
+        tunnelMetrics.countCacheResult(userServerContext, TunnelMetrics.CACHE_REVALIDATED);
+        return refreshed;
+    }
+
+    /**
+     * Start capturing an app response for the cache. Returns null if the response can not be stored. The bodyLength
+     * is the number of body bytes which will be sent to the web client, or -1 if not known (chunked, or until close).
+     * An entry which was revalidated, but can not be replaced by this response, is dropped.
+     */
+    public Capture capture(UserServerContext userServerContext, WebRequest webRequest, Headers responseHeaders, int bodyLength) {
+        CacheRequest cacheRequest = webRequest.getCacheRequest();
+        if (cacheRequest == null) {
+            return null;
+        }
+        if (cacheRequest.staleEntry() == null) {
+            cacheRequest.userCache().missCount.incrementAndGet();
+            tunnelMetrics.countCacheResult(userServerContext, TunnelMetrics.CACHE_MISS);
+        }
+        if (!isStorable(responseHeaders, bodyLength)) {
+            if (cacheRequest.staleEntry() != null) {
+                cacheRequest.userCache().remove(cacheRequest.key());
+            }
+            return null;
+        }
+        Headers storedHeaders = responseHeaders.copy();
+        for (String name : responseHeaders.getHeaderNames()) {
+            if (UNSTORED_HEADERS.contains(name.toLowerCase())) {
+                storedHeaders.removeHeader(name);
+            }
+        }
+        return new Capture(cacheRequest, storedHeaders, getVaryValues(responseHeaders, webRequest.getHeaders()));
+    }
+
+    private boolean isStorable(Headers responseHeaders, int bodyLength) {
+        if (responseHeaders.getStatusCode() != 200 || bodyLength < 0 || bodyLength > maxEntryBytes
+                || responseHeaders.getHeaderValue("Set-Cookie") != null || responseHeaders.getHeaderValue(Constants.TRANSFER_ENCODING_HEADER) != null) {
+            return false;
+        }
+        String vary = responseHeaders.getHeaderValue("Vary");
+        if (vary != null && vary.contains("*")) {
+            return false;
+        }
+        Map<String, String> cacheControl = parseCacheControl(responseHeaders.getHeaderValue(CACHE_CONTROL_HEADER));
+        if (cacheControl.containsKey("no-store") || cacheControl.containsKey("private")) {
+            return false;
+        }
+        return freshnessLifetimeMs(responseHeaders, cacheControl) > 0
+                || responseHeaders.getHeaderValue(ETAG_HEADER) != null || responseHeaders.getHeaderValue(LAST_MODIFIED_HEADER) != null;
+    }
+
+    /**
+     * Drop the cache of a user, when the user is closed (or registers again).
+     */
+    public void removeUser(UserServerContext userServerContext) {
+        UserCache userCache = userCaches.remove(userServerContext.getUserId());
+        if (userCache != null && userCache.bytes > 0) {
+            log.info("Dropped response cache of user {}, {} entries, {} bytes", userServerContext.getUserId(), userCache.size(), userCache.bytes);
+        }
+    }
+
+    /**
+     * The cache of the user, for the current registration. A cache of an older registration is replaced by an empty one.
+     * Returns null if the user is not registered (anymore).
+     */
+    private UserCache cacheFor(UserServerContext userServerContext) {
+        long registrationNumber = userServerContext.getRegistrationNumber();
+        if (registrationNumber == 0) {
+            return null;
+        }
+        UserCache userCache = userCaches.get(userServerContext.getUserId());
+        if (userCache != null && userCache.registrationNumber == registrationNumber) {
+            return userCache;
+        }
+        return userCaches.compute(userServerContext.getUserId(),
+                (userId, existing) -> existing != null && existing.registrationNumber == registrationNumber ? existing : new UserCache(registrationNumber));
+    }
+
+    public long getTotalBytes() {
+        long total = 0;
+        for (UserCache userCache : userCaches.values()) {
+            total += userCache.bytes;
+        }
+        return total;
+    }
+
+    public List<Stats> getStats() {
+        List<Stats> stats = new ArrayList<>();
+        userCaches.forEach((userId, userCache) -> {
+            long hits = userCache.hitCount.get();
+            long revalidated = userCache.revalidatedCount.get();
+            long misses = userCache.missCount.get();
+            long lookups = hits + revalidated + misses;
+            stats.add(new Stats(userId, userCache.size(), userCache.bytes, hits, revalidated, misses, lookups == 0 ? 0 : (double) hits / lookups));
+        });
+        return stats;
+    }
+
+    private Entry createEntry(Headers headers, byte[] body, Map<String, String> varyValues) {
+        long nowMs = System.currentTimeMillis();
+        Map<String, String> cacheControl = parseCacheControl(headers.getHeaderValue(CACHE_CONTROL_HEADER));
+        long ageMs = 0;
+        String age = headers.getHeaderValue("Age");
+        if (age != null) {
+            ageMs = parseSeconds(age.trim()) * 1000;
+        }
+        long lifetimeMs = Math.max(0, freshnessLifetimeMs(headers, cacheControl));
+        return new Entry(headers, body, varyValues, headers.getHeaderValue(ETAG_HEADER), headers.getHeaderValue(LAST_MODIFIED_HEADER),
+                nowMs - ageMs, nowMs - ageMs + lifetimeMs);
+    }
+
+    /**
+     * The freshness lifetime in ms, from s-maxage, max-age or Expires. Returns 0 if the response must be revalidated
+     * before each use, and -1 if it does not say.
+     */
+    private static long freshnessLifetimeMs(Headers headers, Map<String, String> cacheControl) {
+        if (cacheControl.containsKey("no-cache")) {
+            return 0;
+        }
+        String maxAge = cacheControl.containsKey("s-maxage") ? cacheControl.get("s-maxage") : cacheControl.get("max-age");
+        if (maxAge != null) {
+            return parseSeconds(maxAge) * 1000;
+        }
+        String expires = headers.getHeaderValue("Expires");
+        if (expires != null) {
+            // An invalid date (like "0") means already expired.
+            long expiresMs = parseDate(expires);
+            long dateMs = parseDate(headers.getHeaderValue("Date"));
+            return expiresMs < 0 ? 0 : Math.max(0, expiresMs - (dateMs < 0 ? System.currentTimeMillis() : dateMs));
+        }
+        return -1;
+    }
+
+    private static Map<String, String> getVaryValues(Headers responseHeaders, Headers requestHeaders) {
+        String vary = responseHeaders.getHeaderValue("Vary");
+        if (vary == null) {
+            return Map.of();
+        }
+        Map<String, String> varyValues = new HashMap<>();
+        for (String name : vary.split(",")) {
+            if (!name.isBlank()) {
+                varyValues.put(name.trim(), requestHeaders.getHeaderValue(name.trim()));
+            }
+        }
+        return varyValues;
+    }
+
+    /**
+     * Parse a Cache-Control value into its directives (lower case names), with the value without quotes (or null).
+     */
+    static Map<String, String> parseCacheControl(String cacheControl) {
+        if (cacheControl == null) {
+            return Map.of();
+        }
+        Map<String, String> directives = new HashMap<>();
+        for (String directive : cacheControl.split(",")) {
+            int equals = directive.indexOf('=');
+            String name = (equals < 0 ? directive : directive.substring(0, equals)).trim().toLowerCase();
+            String value = equals < 0 ? null : directive.substring(equals + 1).trim().replace("\"", "");
+            if (!name.isEmpty()) {
+                directives.put(name, value);
+            }
+        }
+        return directives;
+    }
+
+    private static long parseSeconds(String seconds) {
+        try {
+            return Math.max(0, Long.parseLong(seconds));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Parse an HTTP date, returns -1 if missing or invalid.
+     */
+    private static long parseDate(String date) {
+        if (date == null) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static String getMethod(Headers requestHeaders) {
+        String firstLine = requestHeaders.getFirstLine();
+        int space = firstLine == null ? -1 : firstLine.indexOf(' ');
+        return space < 0 ? null : firstLine.substring(0, space);
+    }
+
+    static boolean isHead(Headers requestHeaders) {
+        return "HEAD".equals(getMethod(requestHeaders));
+    }
+
+    /**
+     * The cache key: the Host and the request target. The HTTP version at the end of the first line is left out.
+     */
+    private static String getKey(Headers requestHeaders) {
+        String firstLine = requestHeaders.getFirstLine();
+        int start = firstLine.indexOf(' ') + 1;
+        int end = firstLine.lastIndexOf(' ');
+        String target = end > start ? firstLine.substring(start, end) : firstLine.substring(start);
+        return requestHeaders.getHeaderValue("Host") + " " + target;
+    }
+
+    /**
+     * A stored response. Entries are never changed, a refresh after a 304 replaces the entry by a new one.
+     */
+    public static final class Entry {
+        private final Headers headers;
+        private final byte[] body;
+        /** Values of the request headers named in Vary, as they were on the request which got this response. */
+        private final Map<String, String> varyValues;
+        private final String etag;
+        private final String lastModified;
+        private final long responseMs;
+        private final long freshUntilMs;
+
+        private Entry(Headers headers, byte[] body, Map<String, String> varyValues, String etag, String lastModified, long responseMs, long freshUntilMs) {
+            this.headers = headers;
+            this.body = body;
+            this.varyValues = varyValues;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.responseMs = responseMs;
+            this.freshUntilMs = freshUntilMs;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() < freshUntilMs;
+        }
+
+        boolean hasValidator() {
+            return etag != null || lastModified != null;
+        }
+
+        boolean matchesVary(Headers requestHeaders) {
+            for (Map.Entry<String, String> vary : varyValues.entrySet()) {
+                if (!Objects.equals(vary.getValue(), requestHeaders.getHeaderValue(vary.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Does the web client have this version already (its own If-None-Match or If-Modified-Since matches)?
+         */
+        public boolean isNotModifiedFor(Headers requestHeaders) {
+            String ifNoneMatch = requestHeaders.getHeaderValue(IF_NONE_MATCH_HEADER);
+            if (ifNoneMatch != null) {
+                return etag != null && (ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(etag.replace("W/", "")));
+            }
+            String ifModifiedSince = requestHeaders.getHeaderValue(IF_MODIFIED_SINCE_HEADER);
+            return ifModifiedSince != null && lastModified != null && ifModifiedSince.trim().equals(lastModified.trim());
+        }
+
+        /**
+         * A copy of the headers to send to the web client, with the current Age. For notModified, only the headers
+         * which go with a "304 Not Modified" are included.
+         */
+        public Headers createResponseHeaders(boolean notModified) {
+            Headers responseHeaders;
+            if (notModified) {
+                responseHeaders = new Headers("304 Not Modified");
+                for (String name : NOT_MODIFIED_HEADERS) {
+                    String value = headers.getHeaderValue(name);
+                    if (value != null) {
+                        responseHeaders.addHeader(name, value);
+                    }
+                }
+            } else {
+                responseHeaders = headers.copy();
+            }
+            responseHeaders.setHeader("Age", String.valueOf(Math.max(0, (System.currentTimeMillis() - responseMs) / 1000)));
+            return responseHeaders;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        long getSize() {
+            return body.length + headers.sendHeaderLineByteCount();
+        }
+    }
+
+    /**
+     * The cache state of a web request which goes to the app: the key to store the response under, and the stale
+     * entry which is revalidated (null if none).
+     */
+    record CacheRequest(UserCache userCache, String key, Entry staleEntry) {
+    }
+
+    /**
+     * An app response which can be stored. Its body is copied while it is sent to the web client (see
+     * StreamHelper.CopyingOutputStream), and stored when it was sent completely.
+     */
+    public final class Capture {
+        private final CacheRequest cacheRequest;
+        private final Headers headers;
+        private final Map<String, String> varyValues;
+
+        private Capture(CacheRequest cacheRequest, Headers headers, Map<String, String> varyValues) {
+            this.cacheRequest = cacheRequest;
+            this.headers = headers;
+            this.varyValues = varyValues;
+        }
+
+        public void store(byte[] body) {
+            cacheRequest.userCache().put(cacheRequest.key(), createEntry(headers, body, varyValues), maxBytesPerUser);
+        }
+    }
+
+    /**
+     * The cache of one user (for one registration): least recently used order, bounded in bytes.
+     */
+    static final class UserCache {
+        private final long registrationNumber;
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private volatile long bytes = 0;
+        private final AtomicLong hitCount = new AtomicLong();
+        private final AtomicLong revalidatedCount = new AtomicLong();
+        private final AtomicLong missCount = new AtomicLong();
+
+        UserCache(long registrationNumber) {
+            this.registrationNumber = registrationNumber;
+        }
+
+        synchronized Entry get(String key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(String key, Entry entry, long maxBytes) {
+            Entry previous = entries.put(key, entry);
+            bytes += entry.getSize() - (previous == null ? 0 : previous.getSize());
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().getSize();
+                eldest.remove();
+            }
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized void remove(String key) {
+            Entry previous = entries.remove(key);
+            if (previous != null) {
+                bytes -= previous.getSize();
+            }
+        }
+    }
+
+    /**
+     * Cache statistics of one user, since its registration. The hitRatio is the part of the lookups answered without
+     * asking the app at all. Revalidated lookups did go to the app, but without getting the body again.
+     */
+    public record Stats(
+            String userId,
+            int entries,
+            long bytes,
+            long hits,
+            long revalidated,
+            long misses,
+            double hitRatio
+    ) {
+    }
+}
@@ -0,0 +1,172 @@
+package com.kaper.devtunnel;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import javax.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Optional shared web port. Next to the port per user, one shared port can be opened, on which the web requests of all
+ * users come in. Each registered user gets a route name, and a web request is sent to the user of which the route name
+ * is found in (first match wins):
+ * - the routing header (tunnel.sharedPort.header, default X-Tunnel-Route),
+ * - the routing cookie (tunnel.sharedPort.cookie, default tunnel-route),
+ * - the Host header: the sub-domain in front of tunnel.sharedPort.hostSuffix, e.g. "alice" for
+ *   alice.tunnel.your-domain with suffix tunnel.your-domain. Host routing is off if no suffix is set.
+ * The route names are kept in a map, so finding the user is a single lookup.
+ * With the shared port, the number of users is not limited by the port range anymore: a user who can not get a port of
+ * their own is still registered, and can only be reached using the shared port.
+ * Set tunnel.sharedPort.port to 0 (the default) to disable it.
+ */
+@Slf4j
+@Component
+public class SharedPortRouter {
+    private static final Pattern ROUTE_NAME_PATTERN = Pattern.compile("[a-z0-9]([a-z0-9-]{0,61}[a-z0-9])?");
+    private static final Pattern NOT_ROUTE_NAME_CHARS = Pattern.compile("[^a-z0-9]+");
+
+    private final WebSelectorEngine webSelectorEngine;
+    private final int port;
+    private final String hostSuffix;
+    private final String routeHeader;
+    private final String routeCookie;
+    /** Route name to user. */
+    private final Map<String, UserServerContext> routes = new ConcurrentHashMap<>();
+
+    public SharedPortRouter(WebSelectorEngine webSelectorEngine,
+                            @Value("${tunnel.sharedPort.port:0}") int port,
+                            @Value("${tunnel.sharedPort.hostSuffix:}") String hostSuffix,
+                            @Value("${tunnel.sharedPort.header:X-Tunnel-Route}") String routeHeader,
+                            @Value("${tunnel.sharedPort.cookie:tunnel-route}") String routeCookie) {
+        this.webSelectorEngine = webSelectorEngine;
+        this.port = port;
+        this.hostSuffix = hostSuffix == null || hostSuffix.isBlank() ? null : "." + hostSuffix.toLowerCase(Locale.ROOT).replaceFirst("^\\.", "");
+        this.routeHeader = routeHeader;
+        this.routeCookie = routeCookie;
+    }
+
+    @PostConstruct
+    public void startListening() throws IOException {
+        if (isEnabled()) {
+            webSelectorEngine.bindShared(port);
+            log.info("Listening on shared port {}", port);
+        }
+    }
+
+    public boolean isEnabled() {
+        return port > 0;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Give the user a route name. That is the requested name if it is valid and free, otherwise a name made from the
+     * userId. Keeps the current name of a re-registering user, if no other name is asked for.
+     * Returns the route name, or null if the shared port is disabled.
+     */
+    public String assignRoute(UserServerContext userServerContext, String requestedRouteName) {
+        if (!isEnabled()) {
+            return null;
+        }
+        String requested = requestedRouteName == null ? userServerContext.getRouteName() : requestedRouteName.trim().toLowerCase(Locale.ROOT);
+        if (requested != null && ROUTE_NAME_PATTERN.matcher(requested).matches() && claim(requested, userServerContext)) {
+            return requested;
+        }
+        String routeName = defaultRouteName(userServerContext.getUserId());
+        // Very unlikely, but the name can be taken (by a requested name, or two userIds with the same name and hash).
+        for (int count = 2; !claim(routeName, userServerContext); count++) {
+            routeName = defaultRouteName(userServerContext.getUserId()) + "-" + count;
+        }
+        return routeName;
+    }
+
+    private boolean claim(String routeName, UserServerContext userServerContext) {
+        UserServerContext owner = routes.putIfAbsent(routeName, userServerContext);
+        if (owner != null && owner != userServerContext) {
+            return false;
+        }
+        String previousRouteName = userServerContext.getRouteName();
+        if (previousRouteName != null && !previousRouteName.equals(routeName)) {
+            routes.remove(previousRouteName, userServerContext);
+        }
+        userServerContext.setRouteName(routeName);
+        return true;
+    }
+
+    /**
+     * Make a readable route name from the userId, with a short hash to keep different userIds apart.
+     * E.g. "thijs@fizzgig:3001#1666973349" becomes "thijs-fizzgig-3001-" followed by six hex digits.
+     */
+    static String defaultRouteName(String userId) {
+        // Drop the random part of the suggested userId format, the hash below does the same job.
+        String readable = userId.contains("#") ? userId.substring(0, userId.lastIndexOf('#')) : userId;
+        readable = NOT_ROUTE_NAME_CHARS.matcher(readable.toLowerCase(Locale.ROOT)).replaceAll("-").replaceAll("^-+|-+$", "");
+        if (readable.length() > 40) {
+            readable = readable.substring(0, 40).replaceAll("-+$", "");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(userId.getBytes());
+        String hash = String.format("%06x", crc.getValue() & 0xffffff);
+        return readable.isEmpty() ? "u" + hash : readable + "-" + hash;
+    }
+
+    public void removeRoute(UserServerContext userServerContext) {
+        if (userServerContext.getRouteName() != null) {
+            routes.remove(userServerContext.getRouteName(), userServerContext);
+        }
+    }
+
+    /**
+     * Find the user for a web request on the shared port. Returns null if no (registered) user matches.
+     * The routing header is removed, the app does not need to see it.
+     */
+    public UserServerContext route(Headers headers) {
+        String routeName = headers.getHeaderValue(routeHeader);
+        if (routeName != null) {
+            headers.removeHeader(routeHeader);
+        } else {
+            routeName = cookieValue(headers.getHeaderValue("Cookie"));
+        }
+        if (routeName == null) {
+            routeName = hostRouteName(headers.getHeaderValue("Host"));
+        }
+        return routeName == null ? null : routes.get(routeName.trim().toLowerCase(Locale.ROOT));
+    }
+
+    private String cookieValue(String cookieHeader) {
+        if (cookieHeader == null) {
+            return null;
+        }
+        for (String cookie : cookieHeader.split(";")) {
+            int equals = cookie.indexOf('=');
+            if (equals > 0 && cookie.substring(0, equals).trim().equals(routeCookie)) {
+                return cookie.substring(equals + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    private String hostRouteName(String host) {
+        if (host == null || hostSuffix == null) {
+            return null;
+        }
+        host = host.toLowerCase(Locale.ROOT);
+        int portIndex = host.lastIndexOf(':');
+        if (portIndex > 0 && host.indexOf(']') < portIndex) {
+            host = host.substring(0, portIndex);
+        }
+        if (!host.endsWith(hostSuffix)) {
+            return null;
+        }
+        String subDomain = host.substring(0, host.length() - hostSuffix.length());
+        // Only the label right in front of the suffix counts (so www.alice.tunnel.your-domain also works).
+        return subDomain.substring(subDomain.lastIndexOf('.') + 1);
+    }
+}
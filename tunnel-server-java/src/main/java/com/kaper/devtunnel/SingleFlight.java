@@ -0,0 +1,229 @@
+package com.kaper.devtunnel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Single-flight coalescing of identical GET requests (opt-in, tunnel.singleFlight.enabled). If several web clients ask
+ * the same thing at the same moment (a reload storm over multiple browser tabs, or health probes), only the first one
+ * (the leader) goes through the tunnel. The others (followers) wait for the response of the leader, and get a copy of
+ * it, sent from the one shared body buffer. So the app and the tunnel client only see one request.
+ * - Requests are identical if they have the same user, Host, target, and the same values for the request headers which
+ *   usually change a response (VARIANT_HEADERS). Only GET requests without a body take part.
+ * - The response of the leader is shared if it is complete, has a known length of at most maxBodyBytes, has no
+ *   Set-Cookie, and the followers have the same values for any other headers named in its Vary.
+ * - In all other cases (not shareable, leader got an error, timed out, or was refused), the followers are sent on as
+ *   separate requests after all. So coalescing never makes a request fail which would not have failed without it.
+ * A flight has at most maxFollowers followers, further identical requests are just queued on their own.
+ */
+@Slf4j
+@Component
+public class SingleFlight {
+    /** Request headers which take part in the request key, as responses often vary on them. */
+    private static final List<String> VARIANT_HEADERS = List.of("Host", "Accept", "Accept-Encoding", "Accept-Language", "Authorization", "Cookie",
+            "If-None-Match", "If-Modified-Since", "Range", "Origin");
+
+    private final boolean enabled;
+    private final int maxFollowers;
+    private final int maxBodyBytes;
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+    private final AtomicLong leaderCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong retriedCount = new AtomicLong();
+    /** Sends a follower on as a separate request, if the response of its leader can not be shared. */
+    private BiConsumer<UserServerContext, WebRequest> retryHandler;
+
+    public SingleFlight(TunnelMetrics tunnelMetrics,
+                        @Value("${tunnel.singleFlight.enabled:false}") boolean enabled,
+                        @Value("${tunnel.singleFlight.maxFollowers:100}") int maxFollowers,
+                        @Value("${tunnel.singleFlight.maxBodyBytes:2097152}") int maxBodyBytes) {
+        this.enabled = enabled;
+        this.maxFollowers = maxFollowers;
+        this.maxBodyBytes = maxBodyBytes;
+        tunnelMetrics.registerSingleFlightCounters(this);
+    }
+
+    public void setRetryHandler(BiConsumer<UserServerContext, WebRequest> retryHandler) {
+        this.retryHandler = retryHandler;
+    }
+
+    /**
+     * Let a web request join an identical request which is in flight. Returns true if it did: the request then waits
+     * for the response of the leader, and must not be queued. Otherwise, the request is queued as usual, and it might be
+     * the leader of a new flight (see WebRequest.takeFlight).
+     * This runs on a selector thread, it only takes a short lock on the flight.
+     */
+    public boolean join(UserServerContext userServerContext, WebRequest webRequest) {
+        Headers requestHeaders = webRequest.getHeaders();
+        if (!enabled || !requestHeaders.getFirstLine().startsWith("GET ") || requestHeaders.getHeaderValue(Constants.TRANSFER_ENCODING_HEADER) != null
+                || (requestHeaders.getContentLength() != null && requestHeaders.getContentLength() > 0)) {
+            return false;
+        }
+        String key = getKey(userServerContext, requestHeaders);
+        Flight flight = flights.get(key);
+        if (flight != null) {
+            if (flight.addFollower(webRequest)) {
+                return true;
+            }
+            if (!flight.isDone()) {
+                // Too many followers already, this one goes on its own.
+                return false;
+            }
+        }
+        Flight newFlight = new Flight(key, userServerContext);
+        flight = flights.putIfAbsent(key, newFlight);
+        if (flight != null) {
+            // Someone else just started a flight for the same request.
+            return flight.addFollower(webRequest);
+        }
+        webRequest.setFlight(newFlight);
+        leaderCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Can the response of a leader be shared with its followers? The bodyLength is -1 if not known.
+     */
+    public boolean isShareable(Headers responseHeaders, int bodyLength) {
+        return bodyLength >= 0 && bodyLength <= maxBodyBytes && responseHeaders.getHeaderValue("Set-Cookie") == null
+                && responseHeaders.getHeaderValue(Constants.TRANSFER_ENCODING_HEADER) == null;
+    }
+
+    /**
+     * The leader got a complete shareable response: end the flight, and return the followers which can get a copy of
+     * it. Followers which differ in a header named in the Vary of the response, are sent on as separate requests.
+     */
+    public List<WebRequest> complete(Flight flight, WebRequest leader, Headers responseHeaders) {
+        List<WebRequest> shared = new ArrayList<>();
+        List<WebRequest> followers = flight.finish();
+        String vary = responseHeaders.getHeaderValue("Vary");
+        for (WebRequest follower : followers) {
+            if (vary == null || sameVaryValues(vary, leader.getHeaders(), follower.getHeaders())) {
+                shared.add(follower);
+            } else {
+                retry(flight.userServerContext, follower);
+            }
+        }
+        coalescedCount.addAndGet(shared.size());
+        return shared;
+    }
+
+    private static boolean sameVaryValues(String vary, Headers leaderHeaders, Headers followerHeaders) {
+        if (vary.contains("*")) {
+            return false;
+        }
+        for (String name : vary.split(",")) {
+            if (!name.isBlank() && !Objects.equals(leaderHeaders.getHeaderValue(name.trim()), followerHeaders.getHeaderValue(name.trim()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void retry(UserServerContext userServerContext, WebRequest follower) {
+        retriedCount.incrementAndGet();
+        if (!userServerContext.isRegistered()) {
+            follower.close();
+            return;
+        }
+        retryHandler.accept(userServerContext, follower);
+    }
+
+    private String getKey(UserServerContext userServerContext, Headers requestHeaders) {
+        StringBuilder key = new StringBuilder(256).append(userServerContext.getUserId()).append('\n').append(requestHeaders.getFirstLine());
+        for (String name : VARIANT_HEADERS) {
+            key.append('\n').append(requestHeaders.getHeaderValue(name));
+        }
+        return key.toString();
+    }
+
+    public long getLeaderCount() {
+        return leaderCount.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public long getRetriedCount() {
+        return retriedCount.get();
+    }
+
+    public Stats getStats() {
+        long leaders = leaderCount.get();
+        long coalesced = coalescedCount.get();
+        return new Stats(enabled, flights.size(), leaders, coalesced, retriedCount.get(), leaders + coalesced == 0 ? 0 : (double) coalesced / (leaders + coalesced));
+    }
+
+    /**
+     * One request in flight, with the identical requests waiting for its response.
+     */
+    public final class Flight {
+        private final String key;
+        private final UserServerContext userServerContext;
+        private final List<WebRequest> followers = new ArrayList<>();
+        private boolean done = false;
+
+        private Flight(String key, UserServerContext userServerContext) {
+            this.key = key;
+            this.userServerContext = userServerContext;
+        }
+
+        private synchronized boolean addFollower(WebRequest webRequest) {
+            if (done || followers.size() >= maxFollowers) {
+                return false;
+            }
+            followers.add(webRequest);
+            return true;
+        }
+
+        private synchronized boolean isDone() {
+            return done;
+        }
+
+        /**
+         * End the flight: no followers can join anymore. Returns the followers.
+         */
+        private List<WebRequest> finish() {
+            flights.remove(key, this);
+            synchronized (this) {
+                done = true;
+                return new ArrayList<>(followers);
+            }
+        }
+
+        /**
+         * The leader is done without a response to share (error, timeout, refused, or not shareable): the followers
+         * are sent on as separate requests. Called when the leader request is done, see WebRequest.cancelExpiry.
+         */
+        void abandon() {
+            List<WebRequest> abandoned = finish();
+            if (!abandoned.isEmpty()) {
+                log.debug("Single-flight leader done without shared response, sending {} followers on their own", abandoned.size());
+            }
+            abandoned.forEach(follower -> retry(userServerContext, follower));
+        }
+    }
+
+    /**
+     * Single-flight statistics since the start. The coalescingRatio is the part of the identical requests which did not
+     * go through the tunnel themselves: coalesced / (leaders + coalesced).
+     */
+    public record Stats(
+            boolean enabled,
+            int flightsInProgress,
+            long leaders,
+            long coalesced,
+            long retried,
+            double coalescingRatio
+    ) {
+    }
+}
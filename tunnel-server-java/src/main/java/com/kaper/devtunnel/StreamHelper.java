@@ -16,20 +16,275 @@ public class StreamHelper {
 
     /**
      * Copy an exact number of bytes from in to out stream.
+     * The copy buffer is taken from the buffer pool, sized for the given length.
+     * Returns the number of bytes copied, which is less than length if the input stream ended too early.
      */
-    public static void streamCopy(InputStream in, int length, OutputStream out, String direction) throws IOException {
+    public static int streamCopy(InputStream in, int length, OutputStream out, String direction, BufferPool bufferPool) throws IOException {
         log.debug("streamCopy {} todo {}", direction, length);
+        if (length <= 0) {
+            return 0;
+        }
         int bytesToSend = length;
-        byte[] buffer = new byte[10 * 1024 * 1024]; // 10 MB buffer
-        int blockLength;
-        int copyLength = Math.min(buffer.length, bytesToSend);
-        while (bytesToSend > 0 && (blockLength = in.read(buffer, 0, copyLength)) > 0) {
-            log.debug("streamCopy {} bytes {}", direction, blockLength);
-            out.write(buffer, 0, blockLength);
-            bytesToSend = bytesToSend - blockLength;
-            copyLength = Math.min(buffer.length, bytesToSend);
+        byte[] buffer = bufferPool.acquire(length);
+        try {
+            int blockLength;
+            int copyLength = Math.min(buffer.length, bytesToSend);
+            while (bytesToSend > 0 && (blockLength = in.read(buffer, 0, copyLength)) > 0) {
+                log.debug("streamCopy {} bytes {}", direction, blockLength);
+                out.write(buffer, 0, blockLength);
+                bytesToSend = bytesToSend - blockLength;
+                copyLength = Math.min(buffer.length, bytesToSend);
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+        log.debug("streamCopy {} done {}", direction, length - bytesToSend);
+        return length - bytesToSend;
+    }
+
+    /**
+     * Copy all bytes from in to out stream, until the input stream ends. Used if we do not know the length up front.
+     * The output is flushed after each block, so the receiver gets the data as soon as we have it.
+     * Returns the number of bytes copied.
+     */
+    public static long streamCopyUntilEnd(InputStream in, OutputStream out, String direction, BufferPool bufferPool) throws IOException {
+        log.debug("streamCopyUntilEnd {} start", direction);
+        long bytesCopied = 0;
+        byte[] buffer = bufferPool.acquire(-1);
+        try {
+            int blockLength;
+            while ((blockLength = in.read(buffer, 0, buffer.length)) > 0) {
+                log.debug("streamCopyUntilEnd {} bytes {}", direction, blockLength);
+                out.write(buffer, 0, blockLength);
+                out.flush();
+                bytesCopied += blockLength;
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+        log.debug("streamCopyUntilEnd {} done {}", direction, bytesCopied);
+        return bytesCopied;
+    }
+
+    /**
+     * Copy a body in chunked transfer encoding from in to out stream, including the chunk framing (as-is).
+     * The chunk framing is followed to find the end of the body, so we do not need to know the length in advance.
+     * The output is flushed after each block, to pass on the data as it comes in. Bytes which were read beyond the
+     * end of the body are pushed back into the input stream (they belong to a next request).
+     * Returns the number of bytes copied, throws an IOException if the stream ends before the last chunk.
+     */
+    public static long chunkedStreamCopy(PrefixedInputStream in, OutputStream out, String direction, BufferPool bufferPool) throws IOException {
+        log.debug("chunkedStreamCopy {} start", direction);
+        ChunkScanner scanner = new ChunkScanner();
+        long bytesCopied = 0;
+        byte[] buffer = bufferPool.acquire(-1);
+        try {
+            int blockLength;
+            while (!scanner.isDone() && (blockLength = in.read(buffer, 0, buffer.length)) > 0) {
+                int used = scanner.scan(buffer, 0, blockLength);
+                log.debug("chunkedStreamCopy {} bytes {}", direction, used);
+                out.write(buffer, 0, used);
+                out.flush();
+                bytesCopied += used;
+                in.unread(buffer, used, blockLength - used);
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+        if (!scanner.isDone()) {
+            throw new IOException("Unexpected end of chunked body after " + bytesCopied + " bytes");
+        }
+        log.debug("chunkedStreamCopy {} done {}", direction, bytesCopied);
+        return bytesCopied;
+    }
+
+    /**
+     * Follows the chunked transfer encoding framing, to find the end of the body.
+     * Format: per chunk a hex size line (optionally with extensions), the data, and a CRLF. A zero size chunk
+     * ends the data, followed by optional trailer lines, and an empty line.
+     */
+    static class ChunkScanner {
+        private static final int MAX_LINE_LENGTH = 4096;
+
+        private enum State { SIZE_LINE, DATA, DATA_END, TRAILER_LINE, DONE }
+
+        private State state = State.SIZE_LINE;
+        private long chunkSize = 0;
+        private boolean sizeDigitsDone = false;
+        private long dataRemaining = 0;
+        private int lineLength = 0;
+
+        boolean isDone() {
+            return state == State.DONE;
+        }
+
+        /**
+         * Scan the data, returns the number of bytes which belong to the chunked body.
+         * That is all of them, unless the end of the body was found in this block.
+         */
+        int scan(byte[] data, int offset, int length) throws IOException {
+            int pos = offset;
+            int end = offset + length;
+            while (pos < end && state != State.DONE) {
+                switch (state) {
+                    case DATA -> {
+                        int skip = (int) Math.min(dataRemaining, end - pos);
+                        pos += skip;
+                        dataRemaining -= skip;
+                        if (dataRemaining == 0) {
+                            state = State.DATA_END;
+                            lineLength = 0;
+                        }
+                    }
+                    case SIZE_LINE -> {
+                        byte b = data[pos++];
+                        if (b == '\n') {
+                            if (lineLength == 0) {
+                                throw new IOException("Missing chunk size");
+                            }
+                            lineLength = 0;
+                            sizeDigitsDone = false;
+                            if (chunkSize == 0) {
+                                state = State.TRAILER_LINE;
+                            } else {
+                                dataRemaining = chunkSize;
+                                chunkSize = 0;
+                                state = State.DATA;
+                            }
+                        } else if (b != '\r') {
+                            checkLineLength();
+                            int digit = Character.digit(b, 16);
+                            if (digit < 0 || sizeDigitsDone) {
+                                // end of the hex digits, the rest are chunk extensions (or whitespace).
+                                sizeDigitsDone = true;
+                            } else if (chunkSize > (Long.MAX_VALUE >> 4)) {
+                                throw new IOException("Chunk size too large");
+                            } else {
+                                chunkSize = (chunkSize << 4) + digit;
+                            }
+                        }
+                    }
+                    case DATA_END -> {
+                        // The CRLF after the chunk data.
+                        if (data[pos++] == '\n') {
+                            state = State.SIZE_LINE;
+                        }
+                    }
+                    case TRAILER_LINE -> {
+                        byte b = data[pos++];
+                        if (b == '\n') {
+                            if (lineLength == 0) {
+                                state = State.DONE;
+                            }
+                            lineLength = 0;
+                        } else if (b != '\r') {
+                            checkLineLength();
+                        }
+                    }
+                    default -> throw new IllegalStateException("Unexpected state " + state);
+                }
+            }
+            return pos - offset;
+        }
+
+        private void checkLineLength() throws IOException {
+            if (++lineLength > MAX_LINE_LENGTH) {
+                throw new IOException("Chunk line too long");
+            }
+        }
+    }
+
+    /**
+     * Input stream which reads at most a given number of bytes from the wrapped stream, and then acts as if the stream ended.
+     * Used to read one entry of a batch, without reading into the next one. Closing it does not close the wrapped stream.
+     */
+    public static class LimitedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        public LimitedInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+            int count = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (count > 0) {
+                remaining -= count;
+            }
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        public long getRemaining() {
+            return remaining;
+        }
+    }
+
+    /**
+     * Output stream which passes everything on to the wrapped stream, and keeps a copy of it in the given array (as far
+     * as it fits). Used to keep an app response body for the ResponseCache and SingleFlight, while it is sent on.
+     */
+    public static class CopyingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[] copy;
+        private int copied = 0;
+
+        public CopyingOutputStream(OutputStream out, byte[] copy) {
+            this.out = out;
+            this.copy = copy;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (copied < copy.length) {
+                copy[copied++] = (byte) b;
+            }
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            int keep = Math.min(length, copy.length - copied);
+            System.arraycopy(buffer, offset, copy, copied, keep);
+            copied += keep;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        /**
+         * Is the copy array filled completely?
+         */
+        public boolean isComplete() {
+            return copied == copy.length;
         }
-        log.debug("streamCopy {} done {}", direction, length);
     }
 
     /**
@@ -40,5 +295,10 @@ public class StreamHelper {
         public void write(int b) {
             // just absorb input..
         }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            // just absorb input..
+        }
     }
 }
@@ -0,0 +1,243 @@
+package com.kaper.devtunnel;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Hierarchical timing wheel, to run tasks after a timeout. Used for request expiry and user liveness checks.
+ * Scheduling and cancelling are O(1), and the ticker thread only looks at the timeouts which are due (plus an
+ * occasional cascade of a higher level slot). So the idle cost does not depend on the number of open timeouts.
+ * Level 0 has one slot per tick. Each next level has slots which span a full turn of the level below it. When the
+ * lower level wraps around, the timeouts of the next slot of the level above are moved down (cascade).
+ * Other threads never touch the wheel itself: new and cancelled timeouts are handed over to the ticker thread in
+ * lock-free queues. The tasks run on the ticker thread, so they must be quick (hand off anything which can block).
+ */
+@Slf4j
+@Component
+public class TimingWheel implements AutoCloseable {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    /** Max number of ticks ahead we can put a timeout. Later ones are put at this max (and re-checked when due). */
+    private static final long MAX_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private final long tickMs;
+    private final long startMs;
+    private final Slot[][] wheel = new Slot[LEVELS][SLOTS];
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    /** The next tick to process. Only used by the ticker thread. */
+    private long currentTick = 0;
+    private volatile boolean closed = false;
+
+    public TimingWheel(@Value("${tunnel.timingWheel.tickMs:100}") long tickMs) {
+        this.tickMs = tickMs;
+        this.startMs = System.currentTimeMillis();
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                wheel[level][slot] = new Slot();
+            }
+        }
+        thread = new Thread(this::run);
+        thread.setName("Timing-Wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Run the task after the given delay. The delay is rounded up to whole ticks.
+     */
+    public Timeout schedule(long delayMs, Runnable task) {
+        Timeout timeout = new Timeout(System.currentTimeMillis() + Math.max(0, delayMs), task);
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stop the ticker thread. Open timeouts will not run anymore. Called by spring on shutdown, and by tests.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                long nextTickMs = startMs + (currentTick + 1) * tickMs;
+                long sleepMs = nextTickMs - System.currentTimeMillis();
+                if (sleepMs > 0) {
+                    Thread.sleep(sleepMs);
+                }
+                // Catch up if we were late (GC, busy machine).
+                long nowTick = (System.currentTimeMillis() - startMs) / tickMs;
+                while (currentTick < nowTick) {
+                    addScheduled();
+                    removeCancelled();
+                    processTick();
+                }
+            } catch (InterruptedException e) {
+                if (!closed) {
+                    log.warn("timing wheel interrupted - shut down");
+                }
+                return;
+            } catch (Exception e) {
+                // whatever happens, we never want to stop the timers, so just log and continue.
+                log.error("Error in timing wheel?", e);
+            }
+        }
+    }
+
+    private void addScheduled() {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (!timeout.isCancelled()) {
+                add(timeout);
+            }
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.slot != null) {
+                timeout.slot.remove(timeout);
+            }
+        }
+    }
+
+    /**
+     * Put the timeout in the slot matching its deadline. The further away, the higher the level.
+     */
+    private void add(Timeout timeout) {
+        long deadlineTick = (timeout.deadlineMs - startMs + tickMs - 1) / tickMs;
+        long ticks = Math.min(Math.max(deadlineTick, currentTick) - currentTick, MAX_TICKS);
+        long tick = currentTick + ticks;
+        int level = 0;
+        while (level < LEVELS - 1 && ticks >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        wheel[level][(int) ((tick >> (SLOT_BITS * level)) & SLOT_MASK)].add(timeout);
+    }
+
+    private void processTick() {
+        // When a level wraps around, bring down the timeouts of the next slot of the level above.
+        for (int level = 1; level < LEVELS; level++) {
+            if (((currentTick >> (SLOT_BITS * (level - 1))) & SLOT_MASK) != 0) {
+                break;
+            }
+            cascade(wheel[level][(int) ((currentTick >> (SLOT_BITS * level)) & SLOT_MASK)]);
+        }
+        Slot slot = wheel[0][(int) (currentTick & SLOT_MASK)];
+        currentTick++;
+        Timeout timeout;
+        while ((timeout = slot.poll()) != null) {
+            if (timeout.deadlineMs > System.currentTimeMillis() + tickMs) {
+                // Was further away than the wheel can hold, put it back.
+                add(timeout);
+            } else if (timeout.expire()) {
+                try {
+                    timeout.task.run();
+                } catch (Exception e) {
+                    log.error("Error in timeout task?", e);
+                }
+            }
+        }
+    }
+
+    private void cascade(Slot slot) {
+        Timeout timeout;
+        while ((timeout = slot.poll()) != null) {
+            add(timeout);
+        }
+    }
+
+    /**
+     * A scheduled task. Can be cancelled from any thread.
+     */
+    public final class Timeout {
+        private final long deadlineMs;
+        private final Runnable task;
+        /** Set once, when either cancelled or expired. */
+        private final AtomicBoolean done = new AtomicBoolean();
+        private volatile boolean cancelledFlag = false;
+        // Below fields are only used by the ticker thread.
+        private Slot slot;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(long deadlineMs, Runnable task) {
+            this.deadlineMs = deadlineMs;
+            this.task = task;
+        }
+
+        /**
+         * Cancel the timeout. Returns false if it already ran (or was cancelled before).
+         */
+        public boolean cancel() {
+            if (!done.compareAndSet(false, true)) {
+                return false;
+            }
+            cancelledFlag = true;
+            cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return cancelledFlag;
+        }
+
+        private boolean expire() {
+            return done.compareAndSet(false, true);
+        }
+    }
+
+    /**
+     * Doubly linked list of timeouts, so a cancelled timeout can be taken out in O(1).
+     */
+    private static final class Slot {
+        private Timeout head;
+
+        void add(Timeout timeout) {
+            timeout.slot = this;
+            timeout.previous = null;
+            timeout.next = head;
+            if (head != null) {
+                head.previous = timeout;
+            }
+            head = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.slot != this) {
+                return;
+            }
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            }
+            timeout.slot = null;
+            timeout.previous = null;
+            timeout.next = null;
+        }
+
+        Timeout poll() {
+            Timeout timeout = head;
+            if (timeout != null) {
+                remove(timeout);
+            }
+            return timeout;
+        }
+    }
+}
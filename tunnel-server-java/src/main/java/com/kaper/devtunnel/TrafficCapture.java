@@ -0,0 +1,299 @@
+package com.kaper.devtunnel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Capture of the real web traffic of some users (opt-in, tunnel.capture.file and tunnel.capture.users), to replay it
+ * later for benchmarks with production-shaped load (see TrafficReplay in src/perf/java).
+ * For each finished web request of a captured user, one record is appended: the request and response header blocks,
+ * the first maxBodyBytes of both bodies (and their real length), status, and the stage timestamps (see RequestTracer).
+ * The capture file is memory-mapped and append-only, with fileSizeBytes room. When it is full, capturing stops. An old
+ * capture file is moved to "{file}.previous" at startup.
+ * Each record is: [length:4][payload][crc32:4], like the RegistryJournal, and a length of 0 marks the end. Records are
+ * written without locks: a request thread reserves its space with one atomic add, writes the payload, and writes the
+ * length last. So a record which was not complete (server died during the write) ends the capture.
+ * On the request path, only the bodies are copied (while they are streamed anyway), and only for captured users.
+ */
+@Slf4j
+@Component
+public class TrafficCapture {
+    private static final int MAGIC = 0x54434131; // "TCA1"
+    /** Stages of which the time is kept, as micros after the first byte of the request, -1 if not reached. */
+    public static final int STAGE_HEADERS_READ = 0;
+    public static final int STAGE_QUEUED = 1;
+    public static final int STAGE_PICKED_UP = 2;
+    public static final int STAGE_REQUEST_SENT = 3;
+    public static final int STAGE_APP_RESPONSE = 4;
+    public static final int STAGE_DONE = 5;
+    private static final int STAGES = 6;
+
+    private final Path file;
+    private final Set<String> users;
+    private final long fileSizeBytes;
+    private final int maxBodyBytes;
+    private final AtomicLong nextPosition = new AtomicLong(4);
+    private final AtomicLong recordCount = new AtomicLong();
+    private final AtomicBoolean full = new AtomicBoolean();
+    private MappedByteBuffer buffer;
+
+    public TrafficCapture(@Value("${tunnel.capture.file:}") String file,
+                          @Value("${tunnel.capture.users:}") String users,
+                          @Value("${tunnel.capture.fileSizeBytes:268435456}") long fileSizeBytes,
+                          @Value("${tunnel.capture.maxBodyBytes:65536}") int maxBodyBytes) {
+        // Set.copyOf, as a user may be listed twice (Set.of refuses duplicates).
+        this.users = Set.copyOf(Arrays.asList(users == null || users.isBlank() ? new String[0] : users.trim().split("\\s*,\\s*")));
+        this.fileSizeBytes = Math.min(Integer.MAX_VALUE, fileSizeBytes);
+        this.maxBodyBytes = maxBodyBytes;
+        this.file = file == null || file.isBlank() || this.users.isEmpty() ? null : Path.of(file);
+        if (this.file != null) {
+            open();
+        }
+    }
+
+    private void open() {
+        try {
+            if (Files.exists(file)) {
+                Files.move(file, file.resolveSibling(file.getFileName() + ".previous"), StandardCopyOption.REPLACE_EXISTING);
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSizeBytes);
+            }
+            buffer.putInt(0, MAGIC);
+            log.info("Traffic capture to {} for users {}, max {} body bytes", file, users, maxBodyBytes);
+        } catch (IOException e) {
+            log.error("Can not create traffic capture file {} - capture disabled. {}", file, e.toString());
+            buffer = null;
+        }
+    }
+
+    private boolean isCaptured(UserServerContext userServerContext) {
+        return buffer != null && !full.get() && (users.contains("*") || users.contains(userServerContext.getUserId()));
+    }
+
+    /**
+     * Start capturing a web request of a captured user: keep its header block, and a copy of the first body bytes
+     * while the body is streamed. Called once, before the request is queued (with the headers as the web client sent them).
+     */
+    public void start(UserServerContext userServerContext, WebRequest webRequest) {
+        if (!isCaptured(userServerContext) || webRequest.getRecording() != null) {
+            return;
+        }
+        // No content length is no body, unless it is chunked.
+        Integer contentLength = webRequest.getHeaders().getContentLength();
+        int bodyLength = webRequest.getHeaders().getHeaderValue(Constants.TRANSFER_ENCODING_HEADER) != null ? maxBodyBytes
+                : contentLength == null ? 0 : Math.max(0, contentLength);
+        Recording recording = new Recording(webRequest.getHeaders().getSerialized(), new byte[Math.min(maxBodyBytes, bodyLength)],
+                webRequest.getInputStream());
+        webRequest.getInputStream().capture(recording.requestBody);
+        webRequest.setRecording(recording);
+    }
+
+    /**
+     * The app response for a captured request: keep its header block (as the app sent it), and a copy of the first
+     * body bytes while the body is read from the stream.
+     */
+    public void captureResponse(WebRequest webRequest, Headers responseHeaders, PrefixedInputStream bodyStream, int bodyLength) {
+        Recording recording = webRequest.getRecording();
+        if (recording != null) {
+            recording.responseHeaders = responseHeaders.getSerialized();
+            recording.responseBody = new byte[bodyLength < 0 ? maxBodyBytes : Math.min(maxBodyBytes, bodyLength)];
+            recording.responseStream = bodyStream;
+            bodyStream.capture(recording.responseBody);
+        }
+    }
+
+    /**
+     * A response for a captured request which did not come from the app (cached or shared).
+     */
+    public void captureResponse(WebRequest webRequest, Headers responseHeaders, byte[] body) {
+        Recording recording = webRequest.getRecording();
+        if (recording != null) {
+            recording.responseHeaders = responseHeaders.getSerialized();
+            recording.responseBody = Arrays.copyOf(body, Math.min(maxBodyBytes, body.length));
+        }
+    }
+
+    /**
+     * Append the record of a finished captured web request to the capture file.
+     */
+    public void record(UserServerContext userServerContext, WebRequest webRequest) {
+        Recording recording = webRequest.getRecording();
+        if (recording == null || buffer == null || full.get()) {
+            return;
+        }
+        byte[] record = frame(payload(userServerContext, webRequest, recording));
+        long position = nextPosition.getAndAdd(record.length);
+        if (position + record.length + 4 > fileSizeBytes) {
+            if (full.compareAndSet(false, true)) {
+                log.warn("Traffic capture file {} is full, {} records - capture stopped", file, recordCount.get());
+            }
+            return;
+        }
+        // Payload first, the length last: a record is only seen by a reader once it is complete.
+        buffer.put((int) position + 4, record, 4, record.length - 4);
+        buffer.putInt((int) position, record.length - 8);
+        recordCount.incrementAndGet();
+    }
+
+    private static byte[] payload(UserServerContext userServerContext, WebRequest webRequest, Recording recording) {
+        long firstByteNanos = webRequest.getFirstByteNanos();
+        long doneNanos = System.nanoTime();
+        long[] stageNanos = {webRequest.getCreatedNanos(), webRequest.getQueuedNanos(), webRequest.getPickedUpNanos(), webRequest.getRequestSentNanos(),
+                webRequest.getAppResponseNanos(), doneNanos};
+        byte[] userId = userServerContext.getUserId().getBytes(StandardCharsets.UTF_8);
+        int requestBodyCaptured = recording.requestStream.getCaptured();
+        int responseBodyCaptured = recording.responseStream != null ? recording.responseStream.getCaptured() : recording.responseBody.length;
+        ByteBuffer payload = ByteBuffer.allocate(8 + STAGES * 4 + 4 + 1 + 2 + userId.length
+                + 4 + recording.requestHeaders.length + 8 + 4 + requestBodyCaptured
+                + 4 + recording.responseHeaders.length + 8 + 4 + responseBodyCaptured);
+        payload.putLong(System.currentTimeMillis() - (doneNanos - firstByteNanos) / 1_000_000);
+        for (long nanos : stageNanos) {
+            payload.putInt(nanos == 0 ? -1 : (int) Math.min(Integer.MAX_VALUE, (nanos - firstByteNanos) / 1000));
+        }
+        payload.putInt(webRequest.getResponseStatus()).put((byte) webRequest.getResponseSource().ordinal());
+        payload.putShort((short) userId.length).put(userId);
+        payload.putInt(recording.requestHeaders.length).put(recording.requestHeaders);
+        payload.putLong(webRequest.getWebToAppBytes()).putInt(requestBodyCaptured).put(recording.requestBody, 0, requestBodyCaptured);
+        payload.putInt(recording.responseHeaders.length).put(recording.responseHeaders);
+        payload.putLong(webRequest.getAppToWebBytes()).putInt(responseBodyCaptured).put(recording.responseBody, 0, responseBodyCaptured);
+        return payload.array();
+    }
+
+    /**
+     * Add room for the length in front (written last, see record), and the checksum after the payload.
+     */
+    private static byte[] frame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return ByteBuffer.allocate(4 + payload.length + 4).putInt(0).put(payload).putInt((int) crc.getValue()).array();
+    }
+
+    /**
+     * Read all complete records of a capture file, in the order they were written.
+     */
+    public static List<Exchange> read(Path file) throws IOException {
+        List<Exchange> exchanges = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (data.remaining() < 4 || data.getInt() != MAGIC) {
+                throw new IOException("Not a traffic capture file: " + file);
+            }
+            while (data.remaining() >= 4) {
+                int length = data.getInt();
+                if (length <= 0 || length + 4 > data.remaining()) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                data.get(record);
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                if ((int) crc.getValue() != data.getInt()) {
+                    log.warn("Traffic capture {} has a broken record at {} - ignoring the rest", file, data.position());
+                    break;
+                }
+                exchanges.add(Exchange.of(ByteBuffer.wrap(record)));
+            }
+        }
+        return exchanges;
+    }
+
+    public Stats getStats() {
+        return new Stats(buffer != null, file == null ? null : file.toString(), users, recordCount.get(), Math.min(nextPosition.get(), fileSizeBytes),
+                fileSizeBytes, full.get());
+    }
+
+    /**
+     * The capture state of one web request, kept on the WebRequest until it is done.
+     */
+    static final class Recording {
+        private final byte[] requestHeaders;
+        private final byte[] requestBody;
+        private final PrefixedInputStream requestStream;
+        private byte[] responseHeaders = new byte[0];
+        private byte[] responseBody = new byte[0];
+        /** The stream of the app response body, which fills responseBody. Null if the response did not come from the app. */
+        private PrefixedInputStream responseStream;
+
+        private Recording(byte[] requestHeaders, byte[] requestBody, PrefixedInputStream requestStream) {
+            this.requestHeaders = requestHeaders;
+            this.requestBody = requestBody;
+            this.requestStream = requestStream;
+        }
+    }
+
+    /**
+     * One captured web request and its response. The stageMicros are the times after the first request byte (see the
+     * STAGE_ constants). The bodies hold (at most) the first maxBodyBytes, the bodyLengths are the real lengths.
+     */
+    public record Exchange(
+            long startTimestampMs,
+            int[] stageMicros,
+            int status,
+            RequestTracer.Source source,
+            String userId,
+            byte[] requestHeaders,
+            long requestBodyLength,
+            byte[] requestBody,
+            byte[] responseHeaders,
+            long responseBodyLength,
+            byte[] responseBody
+    ) {
+        private static Exchange of(ByteBuffer record) {
+            long startTimestampMs = record.getLong();
+            int[] stageMicros = new int[STAGES];
+            for (int i = 0; i < STAGES; i++) {
+                stageMicros[i] = record.getInt();
+            }
+            int status = record.getInt();
+            RequestTracer.Source source = RequestTracer.Source.values()[record.get()];
+            byte[] userId = new byte[record.getShort()];
+            record.get(userId);
+            byte[] requestHeaders = readBytes(record);
+            long requestBodyLength = record.getLong();
+            byte[] requestBody = readBytes(record);
+            byte[] responseHeaders = readBytes(record);
+            long responseBodyLength = record.getLong();
+            byte[] responseBody = readBytes(record);
+            return new Exchange(startTimestampMs, stageMicros, status, source, new String(userId, StandardCharsets.UTF_8), requestHeaders,
+                    requestBodyLength, requestBody, responseHeaders, responseBodyLength, responseBody);
+        }
+
+        private static byte[] readBytes(ByteBuffer record) {
+            byte[] bytes = new byte[record.getInt()];
+            record.get(bytes);
+            return bytes;
+        }
+    }
+
+    /**
+     * Capture state: the bytes used of the file, and if it is full (capture stopped).
+     */
+    public record Stats(
+            boolean enabled,
+            String file,
+            Set<String> users,
+            long records,
+            long bytesUsed,
+            long fileSizeBytes,
+            boolean full
+    ) {
+    }
+}
@@ -1,12 +1,20 @@
 package com.kaper.devtunnel;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RestController;
@@ -15,14 +23,31 @@ import org.springframework.web.bind.annotation.RestController;
  * Tunnel Data Controller.
  * This controller will be used by the tunnel client on the application side of the tunnel.
  * You can receive and send data using the GET and POST long-poll methods in here.
+ * Tunnel clients from version 3 get the web requests in batches, see sendWebToAppRequestBatch.
+ * Tunnel clients from version 4 can use compressed bodies, see BodyCompression.
  */
 @Slf4j
 @RestController
 public class TunnelDataController {
     private final TunnelServer tunnelServer;
+    private final BufferPool bufferPool;
+    private final TunnelMetrics tunnelMetrics;
+    private final BodyCompression bodyCompression;
+    private final int batchMaxRequests;
+    private final int batchMaxBytes;
+    private final int batchInlineBodyMaxBytes;
 
-    public TunnelDataController(TunnelServer tunnelServer) {
+    public TunnelDataController(TunnelServer tunnelServer, BufferPool bufferPool, TunnelMetrics tunnelMetrics, BodyCompression bodyCompression,
+                                @Value("${tunnel.batch.maxRequests:32}") int batchMaxRequests,
+                                @Value("${tunnel.batch.maxBytes:1048576}") int batchMaxBytes,
+                                @Value("${tunnel.batch.inlineBodyMaxBytes:65536}") int batchInlineBodyMaxBytes) {
         this.tunnelServer = tunnelServer;
+        this.bufferPool = bufferPool;
+        this.tunnelMetrics = tunnelMetrics;
+        this.bodyCompression = bodyCompression;
+        this.batchMaxRequests = batchMaxRequests;
+        this.batchMaxBytes = batchMaxBytes;
+        this.batchInlineBodyMaxBytes = batchInlineBodyMaxBytes;
     }
 
     /**
@@ -40,7 +65,7 @@ public class TunnelDataController {
         if (userServerContext == null) {
             return;
         }
-        if (userServerContext.getServerSocket() == null || userServerContext.getServerPort() == 0) {
+        if (!userServerContext.isRegistered()) {
             // no port/server? then a server restart has cleared the list...
             tunnelServer.closeUserServerContext(userServerContext);
             appResponse.addHeader(Constants.X_TUNNEL_STATUS, "Tunnel user not Found - Please restart tunnel client");
@@ -58,8 +83,21 @@ public class TunnelDataController {
                 appResponse.setStatus(204);
                 return;
             }
+            if (userServerContext.getClientVersion() >= Constants.CLIENT_VERSION_BATCH) {
+                sendWebToAppRequestBatch(userServerContext, webRequestId, appResponse);
+                userServerContext.setUserLastSeenNow();
+                return;
+            }
             MDC.put(Constants.MDC_WEB_REQUEST_ID, webRequestId);
             WebRequest webRequest = userServerContext.getRequestSocketMap().get(webRequestId);
+            if (webRequest == null) {
+                // Expired (or its user went offline) while we took it from the queue: the map entry is removed before the
+                // queue entry. Nothing to send, the tunnel client just polls again (like for a batch without entries).
+                log.debug("longPollerGetWebToAppRequest - request webRequestId: {} is gone already", webRequestId);
+                appResponse.setStatus(204);
+                return;
+            }
+            tunnelMetrics.recordPickup(userServerContext, webRequest);
             setMdcWebRequestContext(webRequest);
             log.debug("longPollerGetWebToAppRequest - request webRequestId: {}, picking up request: {}, request: {}",
                     webRequestId, webRequest.getRemoteSocketAddress(), webRequest.getHeaders().getFirstLine());
@@ -79,19 +117,23 @@ public class TunnelDataController {
             // To allow the tunnel client to log for which request something happens, we add this as extra header.
             appResponse.addHeader(Constants.X_TUNNEL_WEB_REQUEST, webRequestHeaders.getFirstLine());
 
-            // TODO add support for chunked transfer... When we do, check userServerContext.getClientVersion() for version >= 2, we start at 1 without chunking.
-            String transferEncoding = webRequestHeaders.getHeaderValue("Transfer-Encoding");
+            String transferEncoding = webRequestHeaders.getHeaderValue(Constants.TRANSFER_ENCODING_HEADER);
             if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
-                // Not yet, sorry...
-                tunnelServer.sendErrorResponseToWeb(userServerContext, webRequest, webRequestId, "400 ILLEGAL_REQUEST", "Transfer-Encoding chunked not yet supported");
-                userServerContext.getRequestSocketMap().remove(webRequestId);
-                sendErrorResponseToApp(appResponse, userServerContext, webRequestId, "Transfer-Encoding chunked not yet supported");
+                if (userServerContext.getClientVersion() < Constants.CLIENT_VERSION_CHUNKED_REQUEST) {
+                    // Old tunnel clients can not handle this, sorry...
+                    tunnelServer.sendErrorResponseToWeb(userServerContext, webRequest, webRequestId, "400 ILLEGAL_REQUEST", "Transfer-Encoding chunked not supported by tunnel client");
+                    userServerContext.getRequestSocketMap().remove(webRequestId);
+                    sendErrorResponseToApp(appResponse, userServerContext, webRequestId, "Transfer-Encoding chunked not supported by tunnel client");
+                    return;
+                }
+                sendChunkedWebToAppRequest(userServerContext, webRequest, appResponse);
+                userServerContext.setUserLastSeenNow();
                 return;
             }
 
             Integer webRequestBodyLength = webRequestHeaders.getContentLength();
             if (webRequestBodyLength == null) {
-                // For a GET request this is normal ;-) For a chunked post, I will need to change this a bit.
+                // For a GET request this is normal ;-)
                 log.debug("No content length, assuming 0. Request: {}", webRequestHeaders.getFirstLine());
                 webRequestBodyLength = 0;
             }
@@ -103,8 +145,12 @@ public class TunnelDataController {
             appResponse.setContentType("application/octet-stream");
             appResponse.setContentLength(webRequestHeaders.sendHeaderLineByteCount() + webRequestBodyLength);
             webRequestHeaders.sendHeaderLines(appResponse.getOutputStream(), Constants.DIRECTION_WEB_TO_APP_REQUEST);
-            StreamHelper.streamCopy(webRequest.getInputStream(), webRequestBodyLength, appResponse.getOutputStream(), Constants.DIRECTION_WEB_TO_APP_REQUEST);
-            log.info("Handled webToAppRequest: {}, body bytes: {}", webRequestHeaders.getFirstLine(), webRequestBodyLength);
+            long copyStartNanos = System.nanoTime();
+            int bodyBytesCopied = StreamHelper.streamCopy(webRequest.getInputStream(), webRequestBodyLength, appResponse.getOutputStream(),
+                    Constants.DIRECTION_WEB_TO_APP_REQUEST, bufferPool);
+            tunnelMetrics.recordWebToAppCopy(userServerContext, webRequest, copyStartNanos, bodyBytesCopied);
+            webRequest.setRequestBodyRead(bodyBytesCopied == webRequestBodyLength);
+            tunnelServer.getAccessLog().logHandled(log, "Handled webToAppRequest: {}, body bytes: {}", webRequestHeaders.getFirstLine(), webRequestBodyLength);
             userServerContext.setUserLastSeenNow();
         } finally {
             MDC.clear();
@@ -112,6 +158,217 @@ public class TunnelDataController {
         }
     }
 
+    /**
+     * Send a web request with a chunked body to the app. We do not know the total length, so the poll response to the
+     * tunnel client gets no content length (tomcat will send it chunked), and the body is streamed as it comes in.
+     * The chunk framing itself is passed on as-is, so the app sees the same chunked request.
+     */
+    private void sendChunkedWebToAppRequest(UserServerContext userServerContext, WebRequest webRequest, HttpServletResponse appResponse) throws IOException {
+        Headers webRequestHeaders = webRequest.getHeaders();
+        webRequestHeaders.removeHeader(Constants.CONTENT_LENGTH_HEADER);
+        webRequestHeaders.setHeader(Constants.CONNECTION_HEADER, Constants.CONNECTION_CLOSE_VALUE);
+
+        appResponse.setContentType("application/octet-stream");
+        webRequestHeaders.sendHeaderLines(appResponse.getOutputStream(), Constants.DIRECTION_WEB_TO_APP_REQUEST);
+        long copyStartNanos = System.nanoTime();
+        long bodyBytesCopied = StreamHelper.chunkedStreamCopy(webRequest.getInputStream(), appResponse.getOutputStream(),
+                Constants.DIRECTION_WEB_TO_APP_REQUEST, bufferPool);
+        tunnelMetrics.recordWebToAppCopy(userServerContext, webRequest, copyStartNanos, bodyBytesCopied);
+        webRequest.setRequestBodyRead(true);
+        MDC.put(Constants.MDC_WEB_TO_APP_BODY_BYTES, String.valueOf(bodyBytesCopied));
+        tunnelServer.getAccessLog().logHandled(log, "Handled chunked webToAppRequest: {}, body bytes: {}", webRequestHeaders.getFirstLine(), bodyBytesCopied);
+    }
+
+    /**
+     * Batch mode (client version 3 and up): send the web request we waited for, plus all other web requests which are
+     * queued right now, in one poll response. This saves a round-trip per request, when a browser fires many requests at once.
+     * The response has an X-Tunnel-Batch-Count header, and the body has per web request an entry:
+     * a line "webRequestId headerBytes bodyBytes" (CRLF), followed by the request header block, followed by the body.
+     * Small bodies which are received completely already are sent inline. For large or chunked bodies, or bodies
+     * which are still underway, bodyBytes is -1, and the tunnel client has to get the body using GET /data/body
+     * (body by reference).
+     * For client version 4, an inline body can be compressed. The line then ends with " deflate", and bodyBytes is the
+     * compressed size.
+     * The number of requests, and the total size of the response are limited by the tunnel.batch settings.
+     */
+    private void sendWebToAppRequestBatch(UserServerContext userServerContext, String firstWebRequestId, HttpServletResponse appResponse) throws IOException {
+        List<byte[]> entries = new ArrayList<>();
+        int totalBytes = 0;
+        String webRequestId = firstWebRequestId;
+        while (webRequestId != null) {
+            byte[] entry = createBatchEntry(userServerContext, webRequestId, batchMaxBytes - totalBytes);
+            if (entry != null) {
+                entries.add(entry);
+                totalBytes += entry.length;
+            }
+            if (entries.size() >= batchMaxRequests || totalBytes >= batchMaxBytes) {
+                break;
+            }
+            webRequestId = userServerContext.getRequestQueue().poll();
+        }
+        MDC.remove(Constants.MDC_WEB_REQUEST_ID);
+        MDC.remove(Constants.MDC_REQUESTER);
+        if (entries.isEmpty()) {
+            // All requests were gone already, just let the tunnel client poll again.
+            appResponse.setStatus(204);
+            return;
+        }
+        appResponse.addHeader(Constants.X_TUNNEL_BATCH_COUNT, String.valueOf(entries.size()));
+        appResponse.setContentType("application/octet-stream");
+        appResponse.setContentLength(totalBytes);
+        for (byte[] entry : entries) {
+            appResponse.getOutputStream().write(entry);
+        }
+        appResponse.getOutputStream().flush();
+        tunnelServer.getAccessLog().logHandled(log, "Handled webToAppRequest batch: {} requests, {} bytes", entries.size(), totalBytes);
+    }
+
+    /**
+     * Create the batch entry for one web request. A body is only sent inline if all of it is buffered already (read
+     * together with the headers, or waiting in the socket receive buffer). So reading it never waits for a slow web
+     * client, which would hold up all other requests of the batch. Returns null if the request can not be sent.
+     */
+    private byte[] createBatchEntry(UserServerContext userServerContext, String webRequestId, int bytesLeft) {
+        WebRequest webRequest = userServerContext.getRequestSocketMap().get(webRequestId);
+        if (webRequest == null) {
+            return null;
+        }
+        tunnelMetrics.recordPickup(userServerContext, webRequest);
+        MDC.put(Constants.MDC_WEB_REQUEST_ID, webRequestId);
+        setMdcWebRequestContext(webRequest);
+        Headers webRequestHeaders = webRequest.getHeaders();
+        if (!webRequestHeaders.hasHeaderLines()) {
+            log.info("createBatchEntry - no headers, just closing connection");
+            webRequest.close();
+            userServerContext.getRequestSocketMap().remove(webRequestId);
+            return null;
+        }
+
+        String transferEncoding = webRequestHeaders.getHeaderValue(Constants.TRANSFER_ENCODING_HEADER);
+        boolean chunked = transferEncoding != null && transferEncoding.toLowerCase().contains("chunked");
+        int webRequestBodyLength = 0;
+        if (chunked) {
+            webRequestHeaders.removeHeader(Constants.CONTENT_LENGTH_HEADER);
+        } else {
+            webRequestBodyLength = webRequestHeaders.getContentLength() == null ? 0 : webRequestHeaders.getContentLength();
+            webRequestHeaders.setContentLength(webRequestBodyLength);
+        }
+        webRequestHeaders.setHeader(Constants.CONNECTION_HEADER, Constants.CONNECTION_CLOSE_VALUE);
+        byte[] headerBlock = webRequestHeaders.getSerialized();
+
+        byte[] body = null;
+        if (!chunked && webRequestBodyLength <= batchInlineBodyMaxBytes && headerBlock.length + webRequestBodyLength <= bytesLeft
+                && isBodyBuffered(webRequest, webRequestBodyLength)) {
+            long copyStartNanos = System.nanoTime();
+            try {
+                body = webRequest.getInputStream().readNBytes(webRequestBodyLength);
+                tunnelMetrics.recordWebToAppCopy(userServerContext, webRequest, copyStartNanos, body.length);
+            } catch (IOException e) {
+                log.error("createBatchEntry - body read error: {}", e.getMessage());
+            }
+            if (body == null || body.length < webRequestBodyLength) {
+                tunnelServer.sendErrorResponseToWeb(userServerContext, webRequest, webRequestId, "400 ILLEGAL_REQUEST", "Incomplete request body");
+                userServerContext.getRequestSocketMap().remove(webRequestId);
+                return null;
+            }
+            webRequest.setRequestBodyRead(true);
+        }
+
+        String bodyEncoding = "";
+        if (body != null && bodyCompression.shouldCompress(userServerContext, webRequestHeaders, body.length)) {
+            byte[] deflated = bodyCompression.deflate(body);
+            if (deflated.length < body.length) {
+                log.debug("Compressed inline body from {} to {} bytes", body.length, deflated.length);
+                body = deflated;
+                bodyEncoding = " " + Constants.BODY_ENCODING_DEFLATE;
+            }
+        }
+
+        ByteArrayOutputStream entry = new ByteArrayOutputStream(128 + headerBlock.length + (body == null ? 0 : body.length));
+        entry.writeBytes((webRequestId + " " + headerBlock.length + " " + (body == null ? -1 : body.length) + bodyEncoding + "\r\n")
+                .getBytes(StandardCharsets.UTF_8));
+        entry.writeBytes(headerBlock);
+        if (body != null) {
+            entry.writeBytes(body);
+        }
+        log.info("Batched webToAppRequest: {}, body bytes: {}", webRequestHeaders.getFirstLine(), body == null ? "by reference" : body.length);
+        return entry.toByteArray();
+    }
+
+    private static boolean isBodyBuffered(WebRequest webRequest, int webRequestBodyLength) {
+        try {
+            return webRequest.getInputStream().available() >= webRequestBodyLength;
+        } catch (IOException e) {
+            // Leave it to the body by reference call, which will report the error.
+            return false;
+        }
+    }
+
+    /**
+     * Batch mode: the tunnel client gets a web request body which was not sent inline in the batch using this call.
+     * Passes the X-Tunnel-Request-Id header to tell which one. The body is streamed, chunked bodies include their chunk framing.
+     * For client version 4, the body can be sent compressed (without content length), this is marked with the
+     * "X-Tunnel-Body-Encoding: deflate" header. The compressed stream is flushed with every chunk of a chunked body.
+     */
+    @GetMapping("/data/body")
+    public void getWebToAppRequestBody(HttpServletRequest appRequest, HttpServletResponse appResponse) throws IOException {
+        UserServerContext userServerContext = tunnelServer.getUserServerContext(appRequest, appResponse);
+        if (userServerContext == null) {
+            return;
+        }
+        setMdcContext(userServerContext, Constants.STAGE_WEB_TO_APP_LISTEN, false);
+        try {
+            String webRequestId = appRequest.getHeader(Constants.X_TUNNEL_WEB_REQUEST_ID);
+            WebRequest webRequest = webRequestId == null ? null : userServerContext.getRequestSocketMap().get(webRequestId);
+            if (webRequest == null || webRequest.isRequestBodyRead()) {
+                sendIllegalRequestToApp(appResponse, "Unknown " + Constants.X_TUNNEL_WEB_REQUEST_ID + ", or body already sent");
+                return;
+            }
+            MDC.put(Constants.MDC_WEB_REQUEST_ID, webRequestId);
+            setMdcWebRequestContext(webRequest);
+            Headers webRequestHeaders = webRequest.getHeaders();
+            appResponse.addHeader(Constants.X_TUNNEL_WEB_REQUEST_ID, webRequestId);
+            appResponse.setContentType("application/octet-stream");
+            Integer webRequestBodyLength = webRequestHeaders.getContentLength();
+            boolean compress = bodyCompression.shouldCompress(userServerContext, webRequestHeaders, webRequestBodyLength == null ? -1 : webRequestBodyLength);
+            if (compress) {
+                appResponse.addHeader(Constants.X_TUNNEL_BODY_ENCODING, Constants.BODY_ENCODING_DEFLATE);
+            } else if (webRequestBodyLength != null) {
+                appResponse.setContentLength(webRequestBodyLength);
+            }
+            long bodyBytesCopied;
+            long copyStartNanos = System.nanoTime();
+            Deflater deflater = compress ? bodyCompression.newDeflater() : null;
+            try {
+                DeflaterOutputStream deflaterOutputStream = compress ? new DeflaterOutputStream(appResponse.getOutputStream(), deflater, 8192, true) : null;
+                OutputStream out = compress ? deflaterOutputStream : appResponse.getOutputStream();
+                if (webRequestBodyLength == null) {
+                    // Chunked body, the length is not known.
+                    bodyBytesCopied = StreamHelper.chunkedStreamCopy(webRequest.getInputStream(), out, Constants.DIRECTION_WEB_TO_APP_REQUEST, bufferPool);
+                    webRequest.setRequestBodyRead(true);
+                } else {
+                    bodyBytesCopied = StreamHelper.streamCopy(webRequest.getInputStream(), webRequestBodyLength, out,
+                            Constants.DIRECTION_WEB_TO_APP_REQUEST, bufferPool);
+                    webRequest.setRequestBodyRead(bodyBytesCopied == webRequestBodyLength);
+                }
+                if (compress) {
+                    deflaterOutputStream.finish();
+                    appResponse.getOutputStream().flush();
+                }
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+            tunnelMetrics.recordWebToAppCopy(userServerContext, webRequest, copyStartNanos, bodyBytesCopied);
+            MDC.put(Constants.MDC_WEB_TO_APP_BODY_BYTES, String.valueOf(bodyBytesCopied));
+            tunnelServer.getAccessLog().logHandled(log, "Handled webToAppRequest body: {}, body bytes: {}", webRequestHeaders.getFirstLine(), bodyBytesCopied);
+            userServerContext.setUserLastSeenNow();
+        } finally {
+            MDC.clear();
+        }
+    }
+
     /**
      * Setup generic MDC log context with all we know about the userServerContext.
      */
@@ -132,25 +389,18 @@ public class TunnelDataController {
         MDC.put(Constants.MDC_REQUESTER, webRequest.getRemoteSocketAddress().toString());
 
         // At work, we use some tracing/informational headers, all starting wih "X-" and ending in "-Id".
-        // Let's add those to the MDC log context, if the value is max 80 chars.
+        // Let's add those to the MDC log context, if the value is max 80 chars. The field names are cached.
         for (String headerName : webRequest.getHeaders().getHeaderNames()) {
-            String headerValue = webRequest.getHeaders().getHeaderValue(headerName);
-            if (headerName.toLowerCase().startsWith("x-") && headerName.toLowerCase().endsWith("-id")
-                    && headerValue != null && headerValue.length() <= 80) {
-                MDC.put(headerNameToCamelCase(headerName), headerValue);
+            String field = AccessLog.traceHeaderField(headerName);
+            if (field != null) {
+                String headerValue = webRequest.getHeaders().getHeaderValue(headerName);
+                if (headerValue != null && headerValue.length() <= 80) {
+                    MDC.put(field, headerValue);
+                }
             }
         }
     }
 
-    /**
-     * Change header like X-CorrelationId to camelcase correlationId, and X-Remote-Addr to remoteAddr.
-     */
-    private String headerNameToCamelCase(String headerName) {
-        return Pattern.compile("-([a-z])")
-                .matcher(headerName.toLowerCase().replaceFirst("^x-", ""))
-                .replaceAll(match -> match.group().toUpperCase().replaceFirst("^-", ""));
-    }
-
     /**
      * The poll-wait routine. This will wait for 30 seconds to get a fresh web request. On timeout, return null.
      */
@@ -179,6 +429,8 @@ public class TunnelDataController {
      * The POST data which is sent to this method from the tunnel client at app side, is actually the RESPONSE to be sent to web,
      * which belongs to the previous long-poller response (which was the web request). See also longPollerGetWebToAppRequest description.
      * Note: when this POST is done, it passes control on to longPollerGetWebToAppRequest to wait for a next web request.
+     * A tunnel client from version 4 can send the body of the app response compressed, marked with the
+     * "X-Tunnel-Body-Encoding: deflate" header (see BodyCompression).
      */
     @PostMapping(value = "/data", consumes = "application/octet-stream")
     public void longPollerPostAppToWebResponse(HttpServletRequest appRequest, HttpServletResponse appResponse) throws InterruptedException, IOException {
@@ -205,37 +457,75 @@ public class TunnelDataController {
             setMdcWebRequestContext(webRequest);
 
             // this first contentLength is the tunnel request size, so it does include the headers to be sent.
-            int appRequestBodyLength = appRequest.getContentLength();
-
-            Headers appToWebResponseHeaders = new Headers(appRequest.getInputStream());
-            if (!appToWebResponseHeaders.hasHeaderLines() | !appToWebResponseHeaders.getFirstLine().toLowerCase().startsWith("http/")) {
+            // It is -1 if the tunnel client streams the response to us (chunked POST), without knowing the length.
+            PrefixedInputStream appInputStream = new PrefixedInputStream(appRequest.getInputStream());
+            boolean deflatedBody = BodyCompression.isDeflate(appRequest.getHeader(Constants.X_TUNNEL_BODY_ENCODING));
+            if (!tunnelServer.relayAppResponseToWeb(userServerContext, webRequestId, webRequest, appInputStream, appRequest.getContentLength(), deflatedBody)) {
                 sendIllegalRequestToApp(appResponse, "Missing response headers?");
-                tunnelServer.sendErrorResponseToWeb(userServerContext, webRequest, webRequestId, "503 INVALID_RESPONSE", "Wrong application response, missing headers");
-                userServerContext.getRequestSocketMap().remove(webRequestId);
                 return;
             }
-            appToWebResponseHeaders.addHeader(Constants.X_TUNNEL_USER_ID, userServerContext.getUserId());
-            appToWebResponseHeaders.addHeader(Constants.X_TUNNEL_WEB_REQUEST_ID, webRequestId);
-            appToWebResponseHeaders.addHeader(Constants.X_TUNNEL_SERVER_PORT, String.valueOf(userServerContext.getServerPort()));
-            appToWebResponseHeaders.setHeader(Constants.CONNECTION_HEADER, Constants.CONNECTION_CLOSE_VALUE);
+        } finally {
+            MDC.clear();
+            userServerContext.setUserLastSeenNow();
+        }
 
-            // remove the header byte count, to just send on the body bytes.
-            int webResponseBodyLength = appRequestBodyLength - appToWebResponseHeaders.getHeaderBytesRead();
-            if (appToWebResponseHeaders.getContentLength() == null || webResponseBodyLength != appToWebResponseHeaders.getContentLength()) {
-                log.debug("Content length mismatch? {} / {} -> set to {}", webResponseBodyLength, appToWebResponseHeaders.getContentLength(), webResponseBodyLength);
-                appToWebResponseHeaders.setContentLength(webResponseBodyLength);
-            }
-            appToWebResponseHeaders.sendHeaderLines(webRequest.getOutputStream(), Constants.DIRECTION_APP_TO_WEB_RESPONSE);
-            MDC.put(Constants.MDC_APP_TO_WEB_BODY_BYTES, String.valueOf(webResponseBodyLength));
+        // End with the same code as in the GET... wait for a next "request" in a long-poll.
+        longPollerGetWebToAppRequest(appRequest, appResponse);
+    }
 
-            try {
-                StreamHelper.streamCopy(appRequest.getInputStream(), webResponseBodyLength, webRequest.getOutputStream(), Constants.DIRECTION_APP_TO_WEB_RESPONSE);
-            } catch (IOException e) {
-                log.error("appToWebResponse stream end? {} / {}", webRequestId, e.getMessage());
+    /**
+     * Batch mode: the tunnel client can send multiple app responses in one POST. It must pass the X-Tunnel-Batch-Count
+     * header (any value) to use this. The body has per app response an entry: a line "webRequestId length" (CRLF),
+     * followed by length bytes of app response (headers + body, same as a normal POST /data body).
+     * A tunnel client from version 4 can add a 3rd field " deflate" to the line, if the body is compressed. The
+     * length is then the number of bytes in the batch (headers + compressed body).
+     * Just like the single response POST, this continues with a long-poll wait for the next web request(s).
+     */
+    @PostMapping(value = "/data", consumes = "application/octet-stream", headers = Constants.X_TUNNEL_BATCH_COUNT)
+    public void longPollerPostAppToWebResponseBatch(HttpServletRequest appRequest, HttpServletResponse appResponse) throws InterruptedException, IOException {
+        UserServerContext userServerContext = tunnelServer.getUserServerContext(appRequest, appResponse);
+        if (userServerContext == null) {
+            return;
+        }
+        setMdcContext(userServerContext, Constants.STAGE_APP_TO_WEB_RESPONSE, false);
+
+        try {
+            PrefixedInputStream appInputStream = new PrefixedInputStream(appRequest.getInputStream());
+            int responseCount = 0;
+            String entryLine;
+            while ((entryLine = readBatchEntryLine(appInputStream)) != null) {
+                if (entryLine.isBlank()) {
+                    continue;
+                }
+                String[] parts = entryLine.trim().split(" ");
+                int length;
+                try {
+                    length = parts.length == 2 || parts.length == 3 ? Integer.parseInt(parts[1]) : -1;
+                } catch (NumberFormatException e) {
+                    length = -1;
+                }
+                if (length < 0) {
+                    sendIllegalRequestToApp(appResponse, "Invalid batch entry: " + entryLine);
+                    return;
+                }
+                String webRequestId = parts[0];
+                MDC.put(Constants.MDC_WEB_REQUEST_ID, webRequestId);
+                StreamHelper.LimitedInputStream entryInputStream = new StreamHelper.LimitedInputStream(appInputStream, length);
+                WebRequest webRequest = userServerContext.getRequestSocketMap().get(webRequestId);
+                if (webRequest == null) {
+                    log.warn("Batch response for unknown {}, skipping it", Constants.X_TUNNEL_WEB_REQUEST_ID);
+                } else {
+                    setMdcWebRequestContext(webRequest);
+                    tunnelServer.relayAppResponseToWeb(userServerContext, webRequestId, webRequest, new PrefixedInputStream(entryInputStream), length,
+                            parts.length == 3 && BodyCompression.isDeflate(parts[2]));
+                }
+                // Skip anything of this entry which was not used, to get to the start of the next entry.
+                StreamHelper.streamCopy(entryInputStream, (int) entryInputStream.getRemaining(), new StreamHelper.DevNullOutputStream(), "appToDevNull", bufferPool);
+                responseCount++;
+                MDC.remove(Constants.MDC_WEB_REQUEST_ID);
+                MDC.remove(Constants.MDC_REQUESTER);
             }
-            webRequest.close();
-            userServerContext.getRequestSocketMap().remove(webRequestId);
-            log.info("Handled appToWebResponse: {}, body bytes: {}", appToWebResponseHeaders.getFirstLine(), webResponseBodyLength);
+            log.debug("Handled appToWebResponse batch: {} responses", responseCount);
         } finally {
             MDC.clear();
             userServerContext.setUserLastSeenNow();
@@ -245,6 +535,23 @@ public class TunnelDataController {
         longPollerGetWebToAppRequest(appRequest, appResponse);
     }
 
+    /**
+     * Read the line in front of a batch entry. Returns null at the end of the stream.
+     */
+    private static String readBatchEntryLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.append((char) b);
+            }
+            if (line.length() > 256) {
+                throw new IOException("Batch entry line too long");
+            }
+        }
+        return b == -1 && line.length() == 0 ? null : line.toString();
+    }
+
     private static void sendIllegalRequestToApp(HttpServletResponse appResponse, String message) throws IOException {
         appResponse.setStatus(400);
         appResponse.getOutputStream().print(message);
@@ -0,0 +1,84 @@
+package com.kaper.devtunnel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.springframework.web.socket.BinaryMessage;
+
+/**
+ * A single binary frame of the WebSocket tunnel transport.
+ * Layout: 1 byte frame type, 4 bytes stream id (big endian), and the rest of the message is the payload.
+ * Each web request gets its own stream id (chosen by the tunnel-server), so the requests and responses of many
+ * streams can be mixed on one WebSocket connection.
+ * Frame types:
+ * - REQUEST (server to client): payload is the web request header block. Starts a new stream.
+ * - DATA (both ways): server to client it is the web request body, client to server it is the app response
+ *   (headers + body, same as the body of a POST /data).
+ * - END (both ways): no more DATA will follow for this stream in this direction.
+ * - WINDOW (both ways): payload is a 4 byte number of extra DATA bytes the other side may send on this stream.
+ * - RESET (both ways): abort the stream. Payload is an optional UTF-8 reason text.
+ * Flow control: both sides start with STREAM_WINDOW_BYTES of credit per stream, and give more using WINDOW frames
+ * when they have processed the received DATA.
+ */
+public record TunnelFrame(byte type, int streamId, byte[] payload) {
+    public static final byte REQUEST = 1;
+    public static final byte DATA = 2;
+    public static final byte END = 3;
+    public static final byte WINDOW = 4;
+    public static final byte RESET = 5;
+
+    public static final int HEADER_SIZE = 5;
+    /** Max payload of a single DATA frame. */
+    public static final int MAX_DATA_PAYLOAD = 32 * 1024;
+    /** Max payload of any frame we accept. The REQUEST frame can be bigger than a DATA frame (large headers). */
+    public static final int MAX_PAYLOAD = HeaderParser.MAX_HEADER_SIZE;
+    /** Initial flow control window per stream, for both directions. */
+    public static final int STREAM_WINDOW_BYTES = 256 * 1024;
+
+    /**
+     * Parse a received WebSocket binary message.
+     */
+    public static TunnelFrame parse(ByteBuffer message) throws IOException {
+        if (message.remaining() < HEADER_SIZE) {
+            throw new IOException("Tunnel frame too short: " + message.remaining());
+        }
+        byte type = message.get();
+        int streamId = message.getInt();
+        byte[] payload = new byte[message.remaining()];
+        message.get(payload);
+        return new TunnelFrame(type, streamId, payload);
+    }
+
+    public static BinaryMessage toMessage(byte type, int streamId, byte[] data, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + length);
+        buffer.put(type);
+        buffer.putInt(streamId);
+        buffer.put(data, offset, length);
+        buffer.flip();
+        return new BinaryMessage(buffer);
+    }
+
+    public static BinaryMessage toMessage(byte type, int streamId) {
+        return toMessage(type, streamId, new byte[0], 0, 0);
+    }
+
+    public static BinaryMessage window(int streamId, int increment) {
+        return toMessage(WINDOW, streamId, ByteBuffer.allocate(4).putInt(increment).array(), 0, 4);
+    }
+
+    public static BinaryMessage reset(int streamId, String reason) {
+        byte[] data = reason.getBytes(StandardCharsets.UTF_8);
+        return toMessage(RESET, streamId, data, 0, data.length);
+    }
+
+    public int windowIncrement() throws IOException {
+        if (payload.length != 4) {
+            throw new IOException("Invalid window frame length: " + payload.length);
+        }
+        return ByteBuffer.wrap(payload).getInt();
+    }
+
+    public String reason() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+}
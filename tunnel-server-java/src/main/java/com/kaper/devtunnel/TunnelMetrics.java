@@ -0,0 +1,242 @@
+package com.kaper.devtunnel;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Micrometer metrics of the tunnel hot paths, exported on /actuator/prometheus.
+ * - tunnel.queue.wait: time a web request waits in the queue, until a tunnel client picks it up.
+ * - tunnel.app.roundtrip: time from the pickup until the app response comes in (tunnel client + app time).
+ * - tunnel.stream.copy / tunnel.stream.bytes: duration and size of the body copies, per direction.
+ * - tunnel.web.errors: error responses to web clients, per status (503 TIMEOUT, 503 OFFLINE, 503 OVERFLOW, ...).
+ * - tunnel.users / tunnel.queue.depth / tunnel.sockets.open / tunnel.pollers.active: gauges over all users.
+ * - tunnel.inflight / tunnel.queue.saturation / tunnel.admission.rejected: admission control (see WebAdmission), the
+ *   web requests in flight, the fill ratio of the fullest user queue, and the refused requests per reason.
+ * - tunnel.cache.requests / tunnel.cache.bytes: cacheable web requests per result (hit, revalidated, miss), and the
+ *   memory used by the ResponseCache. The hit ratio per user is hit / (hit + revalidated + miss).
+ * - tunnel.singleflight.requests: identical GET requests per role (see SingleFlight): leader (went through the tunnel),
+ *   coalesced (got the response of a leader), retried (sent on their own after all). The coalescing ratio is
+ *   coalesced / (leader + coalesced).
+ * The timers exist twice: globally with a percentile histogram, and per user (tunnel.user.*, tag "user") without
+ * histogram. To keep the number of time series bounded, only the first tunnel.metrics.maxUserTags users get their own
+ * tag value, the others are counted as user "other". A user gives back its tag when it is closed.
+ */
+@Component
+public class TunnelMetrics {
+    static final String OTHER_USER = "other";
+    static final String CACHE_HIT = "hit";
+    static final String CACHE_REVALIDATED = "revalidated";
+    static final String CACHE_MISS = "miss";
+    private static final String NO_USER = "none";
+    private static final String DIRECTION_WEB_TO_APP = "webToApp";
+    private static final String DIRECTION_APP_TO_WEB = "appToWeb";
+
+    private final MeterRegistry meterRegistry;
+    private final int maxUserTags;
+    private final UserMeters globalMeters;
+    private final UserMeters otherUserMeters;
+    private final Map<String, UserMeters> userMeters = new ConcurrentHashMap<>();
+
+    public TunnelMetrics(MeterRegistry meterRegistry, @Value("${tunnel.metrics.maxUserTags:50}") int maxUserTags) {
+        this.meterRegistry = meterRegistry;
+        this.maxUserTags = maxUserTags;
+        this.globalMeters = new UserMeters(null);
+        this.otherUserMeters = new UserMeters(OTHER_USER);
+    }
+
+    /**
+     * Register the gauges, which are calculated from the user registry when the metrics are scraped.
+     */
+    public void registerGauges(Map<String, UserServerContext> userServerContextMap, WebAdmission webAdmission) {
+        Gauge.builder("tunnel.users", userServerContextMap, users -> users.values().stream().filter(UserServerContext::isRegistered).count())
+                .description("Registered users").register(meterRegistry);
+        gauge("tunnel.queue.depth", "Web requests waiting for a tunnel client", userServerContextMap, user -> user.getRequestQueue().size());
+        gauge("tunnel.sockets.open", "Open web requests (queued or in progress)", userServerContextMap, user -> user.getRequestSocketMap().size());
+        gauge("tunnel.pollers.active", "Waiting long-polls and tunnel connections", userServerContextMap, user -> user.getActivePollCount().get());
+        Gauge.builder("tunnel.inflight", webAdmission, WebAdmission::getInFlight).description("Web requests in flight, over all users").register(meterRegistry);
+        Gauge.builder("tunnel.queue.saturation", userServerContextMap, webAdmission::getQueueSaturation)
+                .description("Fill ratio of the fullest user request queue").register(meterRegistry);
+        FunctionCounter.builder("tunnel.admission.rejected", webAdmission, WebAdmission::getUserQueueFullCount).tag("reason", "userQueueFull")
+                .description("Web requests refused by admission control").register(meterRegistry);
+        FunctionCounter.builder("tunnel.admission.rejected", webAdmission, WebAdmission::getInFlightLimitCount).tag("reason", "inFlightLimit")
+                .description("Web requests refused by admission control").register(meterRegistry);
+    }
+
+    public void registerCacheGauges(ResponseCache responseCache) {
+        Gauge.builder("tunnel.cache.bytes", responseCache, ResponseCache::getTotalBytes).description("Memory used by the response cache, over all users")
+                .baseUnit("bytes").register(meterRegistry);
+    }
+
+    public void registerSingleFlightCounters(SingleFlight singleFlight) {
+        FunctionCounter.builder("tunnel.singleflight.requests", singleFlight, SingleFlight::getLeaderCount).tag("role", "leader")
+                .description("Identical GET requests, per single-flight role").register(meterRegistry);
+        FunctionCounter.builder("tunnel.singleflight.requests", singleFlight, SingleFlight::getCoalescedCount).tag("role", "coalesced")
+                .description("Identical GET requests, per single-flight role").register(meterRegistry);
+        FunctionCounter.builder("tunnel.singleflight.requests", singleFlight, SingleFlight::getRetriedCount).tag("role", "retried")
+                .description("Identical GET requests, per single-flight role").register(meterRegistry);
+    }
+
+    public void registerAccessLogCounters(AccessLog accessLog) {
+        FunctionCounter.builder("tunnel.accesslog.records", accessLog, AccessLog::getWrittenCount).tag("result", "written")
+                .description("Access log records, written or dropped because the queue was full").register(meterRegistry);
+        FunctionCounter.builder("tunnel.accesslog.records", accessLog, AccessLog::getDroppedCount).tag("result", "dropped")
+                .description("Access log records, written or dropped because the queue was full").register(meterRegistry);
+    }
+
+    private void gauge(String name, String description, Map<String, UserServerContext> userServerContextMap, ToDoubleFunction<UserServerContext> perUser) {
+        Gauge.builder(name, userServerContextMap, users -> users.values().stream().mapToDouble(perUser).sum())
+                .description(description).register(meterRegistry);
+    }
+
+    /**
+     * The web request was taken from the queue by a tunnel client.
+     */
+    public void recordPickup(UserServerContext userServerContext, WebRequest webRequest) {
+        long queueWaitNanos = webRequest.markPickedUp();
+        if (queueWaitNanos >= 0) {
+            globalMeters.queueWait.record(queueWaitNanos, TimeUnit.NANOSECONDS);
+            metersFor(userServerContext).queueWait.record(queueWaitNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * The app response for the web request starts coming in.
+     */
+    public void recordAppResponse(UserServerContext userServerContext, WebRequest webRequest) {
+        long appResponseNanos = webRequest.markAppResponse();
+        long pickedUpNanos = webRequest.getPickedUpNanos();
+        if (pickedUpNanos != 0) {
+            long roundTripNanos = appResponseNanos - pickedUpNanos;
+            globalMeters.appRoundTrip.record(roundTripNanos, TimeUnit.NANOSECONDS);
+            metersFor(userServerContext).appRoundTrip.record(roundTripNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * The web request (headers and body) was sent to the tunnel client.
+     */
+    public void recordWebToAppCopy(UserServerContext userServerContext, WebRequest webRequest, long startNanos, long bytes) {
+        webRequest.markRequestSent(bytes);
+        long durationNanos = webRequest.getRequestSentNanos() - startNanos;
+        globalMeters.recordWebToAppCopy(durationNanos, bytes);
+        metersFor(userServerContext).recordWebToAppCopy(durationNanos, bytes);
+    }
+
+    public void recordAppToWebCopy(UserServerContext userServerContext, long startNanos, long bytes) {
+        long durationNanos = System.nanoTime() - startNanos;
+        globalMeters.recordAppToWebCopy(durationNanos, bytes);
+        metersFor(userServerContext).recordAppToWebCopy(durationNanos, bytes);
+    }
+
+    /**
+     * A cacheable web request was answered from the ResponseCache (hit), from the cache after a 304 from the app
+     * (revalidated), or by the app (miss).
+     */
+    public void countCacheResult(UserServerContext userServerContext, String result) {
+        globalMeters.cacheRequests.get(result).increment();
+        metersFor(userServerContext).cacheRequests.get(result).increment();
+    }
+
+    /**
+     * An error response was sent to a web client. The userServerContext is null if no user was found.
+     */
+    public void countWebError(UserServerContext userServerContext, String statusCode) {
+        String user = userServerContext == null ? NO_USER : metersFor(userServerContext).user;
+        meterRegistry.counter("tunnel.web.errors", "status", statusCode, "user", user).increment();
+    }
+
+    /**
+     * The user is closed, remove its meters, so the tag can be given to another user.
+     */
+    public void removeUser(UserServerContext userServerContext) {
+        UserMeters meters = userMeters.remove(userServerContext.getUserId());
+        if (meters != null) {
+            meters.meters.forEach(meterRegistry::remove);
+            meterRegistry.find("tunnel.web.errors").tag("user", meters.user).counters().forEach(meterRegistry::remove);
+        }
+    }
+
+    private UserMeters metersFor(UserServerContext userServerContext) {
+        UserMeters meters = userMeters.get(userServerContext.getUserId());
+        if (meters != null) {
+            return meters;
+        }
+        // Not exact under concurrent registrations, but it can only go over by a few. A late error for a closed user
+        // should not take a tag again.
+        if (userMeters.size() >= maxUserTags || !userServerContext.isRegistered()) {
+            return otherUserMeters;
+        }
+        return userMeters.computeIfAbsent(userServerContext.getUserId(), UserMeters::new);
+    }
+
+    /**
+     * The meters for one user tag value. Without user (null), these are the global meters.
+     */
+    private class UserMeters {
+        private final String user;
+        private final List<Meter> meters = new ArrayList<>();
+        private final Timer queueWait;
+        private final Timer appRoundTrip;
+        private final Timer webToAppCopy;
+        private final Timer appToWebCopy;
+        private final DistributionSummary webToAppBytes;
+        private final DistributionSummary appToWebBytes;
+        private final Map<String, Counter> cacheRequests = new HashMap<>();
+
+        UserMeters(String user) {
+            this.user = user;
+            String prefix = user == null ? "tunnel." : "tunnel.user.";
+            Tags tags = user == null ? Tags.empty() : Tags.of("user", user);
+            queueWait = timer(prefix + "queue.wait", "Time a web request waits for a tunnel client", tags);
+            appRoundTrip = timer(prefix + "app.roundtrip", "Time from pickup by the tunnel client until the app response", tags);
+            webToAppCopy = timer(prefix + "stream.copy", "Duration of a body copy", tags.and("direction", DIRECTION_WEB_TO_APP));
+            appToWebCopy = timer(prefix + "stream.copy", "Duration of a body copy", tags.and("direction", DIRECTION_APP_TO_WEB));
+            webToAppBytes = summary(prefix + "stream.bytes", tags.and("direction", DIRECTION_WEB_TO_APP));
+            appToWebBytes = summary(prefix + "stream.bytes", tags.and("direction", DIRECTION_APP_TO_WEB));
+            for (String result : List.of(CACHE_HIT, CACHE_REVALIDATED, CACHE_MISS)) {
+                Counter counter = Counter.builder(prefix + "cache.requests").description("Cacheable web requests per cache result")
+                        .tags(tags.and("result", result)).register(meterRegistry);
+                meters.add(counter);
+                cacheRequests.put(result, counter);
+            }
+        }
+
+        private Timer timer(String name, String description, Tags tags) {
+            Timer timer = Timer.builder(name).description(description).tags(tags).publishPercentileHistogram(user == null).register(meterRegistry);
+            meters.add(timer);
+            return timer;
+        }
+
+        private DistributionSummary summary(String name, Tags tags) {
+            DistributionSummary summary = DistributionSummary.builder(name).description("Size of a body copy").baseUnit("bytes").tags(tags)
+                    .register(meterRegistry);
+            meters.add(summary);
+            return summary;
+        }
+
+        void recordWebToAppCopy(long durationNanos, long bytes) {
+            webToAppCopy.record(durationNanos, TimeUnit.NANOSECONDS);
+            webToAppBytes.record(bytes);
+        }
+
+        void recordAppToWebCopy(long durationNanos, long bytes) {
+            appToWebCopy.record(durationNanos, TimeUnit.NANOSECONDS);
+            appToWebBytes.record(bytes);
+        }
+    }
+}
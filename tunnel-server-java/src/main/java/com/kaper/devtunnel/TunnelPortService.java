@@ -1,11 +1,5 @@
 package com.kaper.devtunnel;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Random;
-import java.util.Set;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 /**
@@ -14,76 +8,57 @@ import org.springframework.stereotype.Service;
  * If not, then a random port will be used.
  * When all ports are in use, the system will check if we can free up the port which was used
  * the longest time ago, if it is not active anymore.
- * The possible port range is configured in the application.yml; tunnel.startPort and tunnel.endPort.
+ * The bookkeeping of free and used ports is done by the PortAllocator.
  */
 @Service
 public class TunnelPortService {
-    private final TunnelServer tunnelServer;
+    /** How many reclaimable users to try, if the ones found turn out to be active again when we want to close them. */
+    private static final int MAX_RECLAIM_ATTEMPTS = 3;
 
-    private final int startPort;
-    private final int endPort;
+    private final TunnelServer tunnelServer;
+    private final PortAllocator portAllocator;
 
-    public TunnelPortService(TunnelServer tunnelServer, @Value("${tunnel.startPort}") int startPort, @Value("${tunnel.endPort}") int endPort) {
+    public TunnelPortService(TunnelServer tunnelServer, PortAllocator portAllocator) {
         this.tunnelServer = tunnelServer;
-        this.startPort = startPort;
-        this.endPort = endPort;
+        this.portAllocator = portAllocator;
     }
 
     /**
-     * Get a port to be used for the new tunnel to listen on.
+     * Get a port to be used for the new tunnel to listen on. The port is claimed for the given user right away.
      * A user can pass in the port he/she used the last time, to see if they can get the same one again.
+     * Returns -1 if no port is available.
      */
-    public int requestNewPort(Integer preferredPort) {
-        // Get current list of open ports.
-        Map<String, UserServerContext> activeMappings = tunnelServer.getCopyOfUserServerContextMap();
-
-        // Collect which ports are free. Start by adding all possible ports, and then remove the ones from the active list.
-        Set<Integer> ports = new HashSet<>();
-        for (int i = startPort; i <= endPort; i++) {
-            ports.add(i);
-        }
-
-        // Remove active ones, and while we are at it, also memorize the oldest entry in case there are no ports left to use.
-        // Also see if we encounter a context with the preferred port number. If that one is not active, and no ports are free,
-        // we will terminate that one. If any ports are free, you will not get the preferred port, as it now is someone else's
+    public int requestNewPort(Integer preferredPort, UserServerContext userServerContext) {
+        // If any ports are free, you will not get the preferred port if it is in use, as it now is someone else's
         // preferred port ;-)
-        UserServerContext oldestContext = null;
-        UserServerContext preferredContext = null;
-        for (Map.Entry<String, UserServerContext> entry : activeMappings.entrySet()) {
-            UserServerContext context = entry.getValue();
-            // Mark entry as not free.
-            ports.remove(context.getServerPort());
-            if (oldestContext == null || oldestContext.getUserLastSeenTimestampMs() > context.getUserLastSeenTimestampMs()) {
-                // Memorize the oldest entry.
-                oldestContext = context;
-            }
-            if (context.getServerPort() == (preferredPort != null ? preferredPort : -1)) {
-                // Memorize the one we preferred to use.
-                preferredContext = context;
-            }
+        int port = portAllocator.claimFreePort(preferredPort, userServerContext);
+        if (port > 0) {
+            return port;
         }
 
-        // All in use?
-        if (ports.size() == 0) {
-            // oops, we need to kick out one of the existing users, if not active.
-            if (preferredContext != null && !preferredContext.wasUserRecentlySeen()) {
-                tunnelServer.closeUserServerContext(preferredContext);
-                return preferredContext.getServerPort();
+        // All in use? oops, we need to kick out one of the existing users, if not active.
+        // The owner of the preferred port goes first, otherwise the one we did not see for the longest time.
+        for (int attempt = 0; attempt < MAX_RECLAIM_ATTEMPTS; attempt++) {
+            UserServerContext reclaimableContext = portAllocator.findReclaimable(preferredPort);
+            if (reclaimableContext == null) {
+                // No ports available.
+                return -1;
             }
-            if (oldestContext != null && !oldestContext.wasUserRecentlySeen()) {
-                tunnelServer.closeUserServerContext(oldestContext);
-                return oldestContext.getServerPort();
+            port = reclaimableContext.getServerPort();
+            // Checked again under the lock of that user, it might just have polled or registered again.
+            if (tunnelServer.closeReclaimableUserServerContext(reclaimableContext, port) && portAllocator.claim(port, userServerContext)) {
+                return port;
+            }
+            // Registrations of different users run in parallel, another one can have reclaimed or freed a port just now.
+            port = portAllocator.claimFreePort(preferredPort, userServerContext);
+            if (port > 0) {
+                return port;
             }
-            // No ports available.
-            return -1;
-        }
-
-        // If the user passed on a preferred port, use it if it is still available.
-        if (preferredPort != null && ports.contains(preferredPort)) {
-            return preferredPort;
         }
+        return -1;
+    }
 
-        // Take a random left-over port.
-        return new ArrayList<>(ports).get(new Random().nextInt(ports.size()));
+    public PortAllocator.Stats getPortStats() {
+        return portAllocator.getStats();
     }
 }
@@ -1,9 +1,8 @@
 package com.kaper.devtunnel;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.util.HashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
@@ -19,19 +18,33 @@ import org.springframework.web.bind.annotation.GetMapping;
 @Slf4j
 @Controller
 public class TunnelRegistrationController {
+    private static final int REGISTRATION_LOCKS = 64;
+
     private final TunnelServer tunnelServer;
     private final TunnelPortService tunnelPortService;
+    private final SharedPortRouter sharedPortRouter;
+    private final WebAdmission webAdmission;
+    private final BodyCompression bodyCompression;
+    private final Object[] registrationLocks = new Object[REGISTRATION_LOCKS];
 
-    public TunnelRegistrationController(TunnelServer tunnelServer, TunnelPortService tunnelPortService) {
+    public TunnelRegistrationController(TunnelServer tunnelServer, TunnelPortService tunnelPortService, SharedPortRouter sharedPortRouter,
+                                        WebAdmission webAdmission, BodyCompression bodyCompression) {
         this.tunnelServer = tunnelServer;
         this.tunnelPortService = tunnelPortService;
+        this.sharedPortRouter = sharedPortRouter;
+        this.webAdmission = webAdmission;
+        this.bodyCompression = bodyCompression;
+        for (int i = 0; i < registrationLocks.length; i++) {
+            registrationLocks[i] = new Object();
+        }
     }
 
     /**
      * Register tunnel client (app side) user. This will start listening on a local server port, and pass back the port number to the tunnel client.
      * The tunnel client user needs to know that port number, to forward his/her web traffic on to. So the tunnel-client should show this
      * server port in a nice visible way.
-     * If a user tries to register for a second time using the same userId, then the server listener is terminated, and restarted.
+     * If a user tries to register for a second time using the same userId, then the existing registration is ended, and a new one is
+     * started, which takes over the open server port.
      * If a user needs more than one tunnel, he/she should use multiple userId's.
      * Suggested userId format to use: "[system-userid]@[users-hostname]:[app-target-port]#[random-but-fixed-code]".
      * Example for my machine: "thijs@fizzgig:3001#1666973349". Where the 1666973349 would be stored in ~/.web-app-tunnel.conf for re-use on next start.
@@ -39,9 +52,24 @@ public class TunnelRegistrationController {
      * A user must pass in the userId via request header: "X-Tunnel-User-Id", and you can optionally also pass in the
      * port number you did use the last time for this userId, to see if it is still available for re-use by sending header:
      * "X-Tunnel-Preferred-Port" with the preferred port number.
+     * If the app has slow requests, the tunnel client can ask for a longer request timeout using header
+     * "X-Tunnel-Request-Timeout-Ms" (capped by the server's tunnel.timeouts.maxRequestMs).
+     * If the shared port is enabled, the user also gets a route name for it (see SharedPortRouter), passed back in the
+     * "X-Tunnel-Route" header. A name can be asked for using that same header. If all ports are in use, the user is
+     * still registered, but only reachable using the shared port (server port 0).
+     * Tunnel clients from version 4 get the "X-Tunnel-Body-Encoding: deflate" header if body compression is on (see
+     * BodyCompression).
+     * Registrations are only serialized per user (see registrationLock), so a restarting tunnel client never holds up
+     * the registration of other users.
      */
     @GetMapping("/register")
-    public synchronized ResponseEntity<String> registerUserServerContext(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    public ResponseEntity<String> registerUserServerContext(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        synchronized (registrationLock(request)) {
+            return register(request, response);
+        }
+    }
+
+    private ResponseEntity<String> register(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
             MDC.put(Constants.MDC_REQUEST_STAGE, Constants.STAGE_REGISTER);
             UserServerContext userServerContext = tunnelServer.getUserServerContext(request, response);
@@ -54,25 +82,37 @@ public class TunnelRegistrationController {
             MDC.put(Constants.MDC_USER_ID, userServerContext.getUserId());
             response.addHeader(Constants.X_TUNNEL_USER_ID, userServerContext.getUserId());
 
-            if (userServerContext.getServerPort() != 0) {
-                // Already registered, kill existing one, and re-register.
-                tunnelServer.closeUserServerContext(userServerContext);
-                tunnelServer.registerUserServerContext(userServerContext);
-            } else {
+            boolean reregistering = userServerContext.isRegistered();
+            if (reregistering) {
+                // Already registered, end the existing one, and re-register. The server port stays open.
+                tunnelServer.endRegistration(userServerContext);
+            }
+            if (userServerContext.getServerPort() <= 0) {
+                // New user, or a user which was only reachable by the shared port so far.
                 Integer preferredPort = request.getHeader(Constants.X_TUNNEL_PREFERRED_PORT) != null
                         ? Integer.valueOf(request.getHeader(Constants.X_TUNNEL_PREFERRED_PORT)) : null;
-                userServerContext.setServerPort(tunnelPortService.requestNewPort(preferredPort));
+                userServerContext.setServerPort(tunnelPortService.requestNewPort(preferredPort, userServerContext));
             }
+            String routeName = sharedPortRouter.assignRoute(userServerContext, request.getHeader(Constants.X_TUNNEL_ROUTE));
             if (userServerContext.getServerPort() <= 0) {
-                log.error("No free ports available - all connections in use");
-                tunnelServer.closeUserServerContext(userServerContext);
-                return ResponseEntity.status(500).body("No free ports available - all connections in use\n");
+                if (routeName == null) {
+                    log.error("No free ports available - all connections in use");
+                    tunnelServer.closeUserServerContext(userServerContext);
+                    return ResponseEntity.status(500).body("No free ports available - all connections in use\n");
+                }
+                log.info("No free ports available - user {} only reachable by shared port route {}", userServerContext.getUserId(), routeName);
+                userServerContext.setServerPort(0);
             }
 
-            userServerContext.setRequestQueue(new LinkedBlockingQueue<>(200));
-            userServerContext.setRequestSocketMap(new HashMap<>());
+            if (!reregistering) {
+                // A re-registering user keeps its (emptied) queue and map: requests which came in during the
+                // re-registration are in there, and are picked up by the new registration.
+                userServerContext.setRequestQueue(webAdmission.newRequestQueue());
+                userServerContext.setRequestSocketMap(new ConcurrentHashMap<>());
+            }
+            tunnelServer.applyTimeouts(userServerContext, request.getHeader(Constants.X_TUNNEL_REQUEST_TIMEOUT_MS));
             try {
-                userServerContext.setServerSocket(new ServerSocket(userServerContext.getServerPort()));
+                tunnelServer.startListening(userServerContext);
             } catch (IOException e) {
                 log.error("Error listening on port {}", userServerContext.getServerPort());
                 tunnelServer.closeUserServerContext(userServerContext);
@@ -80,13 +120,18 @@ public class TunnelRegistrationController {
             }
             MDC.put(Constants.MDC_TUNNEL_SERVER_PORT, String.valueOf(userServerContext.getServerPort()));
 
-            userServerContext.setServerThread(new Thread(() -> tunnelServer.userServerContextListener(userServerContext)));
-            userServerContext.getServerThread().setName("Listener-" + userServerContext.getServerPort());
-            userServerContext.getServerThread().start();
-
-            log.info("Registered user {}, Listening on {}", userServerContext.getUserId(), userServerContext.getServerPort());
+            log.info("Registered user {}, Listening on {}, route {}", userServerContext.getUserId(), userServerContext.getServerPort(), routeName);
             response.addHeader(Constants.X_TUNNEL_SERVER_PORT, String.valueOf(userServerContext.getServerPort()));
-            return ResponseEntity.ok("server-port=" + userServerContext.getServerSocket().getLocalPort() + "\n");
+            if (bodyCompression.isEnabledFor(userServerContext)) {
+                // Tells a tunnel client from version 4 that it may send compressed bodies, and can get them.
+                response.addHeader(Constants.X_TUNNEL_BODY_ENCODING, Constants.BODY_ENCODING_DEFLATE);
+            }
+            if (routeName == null) {
+                return ResponseEntity.ok("server-port=" + userServerContext.getServerPort() + "\n");
+            }
+            response.addHeader(Constants.X_TUNNEL_ROUTE, routeName);
+            return ResponseEntity.ok("server-port=" + userServerContext.getServerPort() + "\n"
+                    + "shared-port=" + sharedPortRouter.getPort() + "\n" + "route=" + routeName + "\n");
         } finally {
             MDC.clear();
         }
@@ -94,10 +139,19 @@ public class TunnelRegistrationController {
 
     /**
      * Stop listening for the given userId.
+     * Returns "server-port-closed=port", or "server-port-closed=shared" for a user which was only reachable by the
+     * shared port. A 404 if the user was not registered.
      */
     @GetMapping("/close")
     public ResponseEntity<String> closeUserServerContext(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        synchronized (registrationLock(request)) {
+            return close(request, response);
+        }
+    }
+
+    private ResponseEntity<String> close(HttpServletRequest request, HttpServletResponse response) throws IOException {
         int port;
+        boolean registered;
         try {
             MDC.put(Constants.MDC_REQUEST_STAGE, Constants.STAGE_CLOSE);
             UserServerContext userServerContext = tunnelServer.getUserServerContext(request, response);
@@ -106,14 +160,27 @@ public class TunnelRegistrationController {
             }
             MDC.put(Constants.MDC_USER_ID, userServerContext.getUserId());
             port = userServerContext.getServerPort();
+            registered = userServerContext.isRegistered();
             log.info("Closed server for user {}, was listening on {}", userServerContext.getUserId(), userServerContext.getServerPort());
             tunnelServer.closeUserServerContext(userServerContext);
         } finally {
             MDC.clear();
         }
-        if (port == 0) {
+        if (!registered && port == 0) {
             return ResponseEntity.status(404).body("server-port-closed=not-found\n");
         }
+        if (port == 0) {
+            return ResponseEntity.ok("server-port-closed=shared\n");
+        }
         return ResponseEntity.ok("server-port-closed=" + port + "\n");
     }
+
+    /**
+     * The lock for the registration (and close) of the user of the request. One of a fixed set of locks, picked by
+     * userId, so concurrent registrations of the same userId are done one by one, and those of others in parallel.
+     */
+    private Object registrationLock(HttpServletRequest request) {
+        int hash = Objects.hashCode(request.getHeader(Constants.X_TUNNEL_USER_ID));
+        return registrationLocks[Math.floorMod(hash ^ (hash >>> 16), registrationLocks.length)];
+    }
 }
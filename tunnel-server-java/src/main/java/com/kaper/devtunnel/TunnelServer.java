@@ -1,100 +1,214 @@
 package com.kaper.devtunnel;
 
 import java.io.IOException;
-import java.net.Socket;
-import java.util.HashMap;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 /**
  * This class maintains the list of active connections on the web/server side.
  * It also handles listening on the server, and queueing the web requests for processing by the tunnel-client via the TunnelDataController.
- * For each incoming web request, the HTTP headers are already read when the connection is made.
+ * The actual listening is done by the WebSelectorEngine. For each incoming web request, the HTTP headers are already read
+ * by that engine, before the request is queued.
  * The transfer of the body data is left to the TunnelDataController to not have to read all in memory, but use streaming where possible.
- * The TunnelServer has a cleanup thread, which looks for expired requests, to terminate them.
+ * Expired requests are terminated using the TimingWheel: each queued request gets a timeout, which is cancelled when
+ * the request is finished. Each listening user gets a liveness check, which terminates the open requests of a user
+ * who has not been seen for too long. So there is no periodic scan over all open requests.
  */
 @Slf4j
 @Component
 public class TunnelServer {
-    /** Map of connected users. */
-    private final Map<String, UserServerContext> userServerContextMap = new HashMap<>();
+    /** Map of connected users. Read by many threads without locking, iteration is weakly consistent (no copies needed). */
+    private final Map<String, UserServerContext> userServerContextMap = new ConcurrentHashMap<>();
+    private final WebSelectorEngine webSelectorEngine;
+    private final BufferPool bufferPool;
+    private final PortAllocator portAllocator;
+    private final TimingWheel timingWheel;
+    private final RegistryJournal registryJournal;
+    private final SharedPortRouter sharedPortRouter;
+    private final TunnelMetrics tunnelMetrics;
+    private final WebAdmission webAdmission;
+    private final ResponseCache responseCache;
+    private final SingleFlight singleFlight;
+    private final RequestTracer requestTracer;
+    private final AccessLog accessLog;
+    private final TrafficCapture trafficCapture;
+    private final AtomicLong registrationCounter = new AtomicLong();
+    private final long requestTimeoutMs;
+    private final long maxRequestTimeoutMs;
+    private final long lastSeenTimeoutMs;
+    private final ExecutorService errorResponseExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setName("Web-Error-Response");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /** Sends responses which do not come through the tunnel: cache hits, and shared single-flight responses. */
+    private final ExecutorService localResponseExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setName("Web-Local-Response");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    public TunnelServer() {
-        startCleanupThread();
+    public TunnelServer(WebSelectorEngine webSelectorEngine, BufferPool bufferPool, PortAllocator portAllocator, TimingWheel timingWheel,
+                        RegistryJournal registryJournal, SharedPortRouter sharedPortRouter, TunnelMetrics tunnelMetrics, WebAdmission webAdmission,
+                        ResponseCache responseCache, SingleFlight singleFlight, RequestTracer requestTracer, AccessLog accessLog,
+                        TrafficCapture trafficCapture,
+                        @Value("${tunnel.timeouts.requestMs:30000}") long requestTimeoutMs,
+                        @Value("${tunnel.timeouts.maxRequestMs:300000}") long maxRequestTimeoutMs,
+                        @Value("${tunnel.timeouts.lastSeenMs:30000}") long lastSeenTimeoutMs) {
+        this.webSelectorEngine = webSelectorEngine;
+        this.bufferPool = bufferPool;
+        this.portAllocator = portAllocator;
+        this.timingWheel = timingWheel;
+        this.registryJournal = registryJournal;
+        this.sharedPortRouter = sharedPortRouter;
+        this.tunnelMetrics = tunnelMetrics;
+        this.webAdmission = webAdmission;
+        this.responseCache = responseCache;
+        this.singleFlight = singleFlight;
+        this.requestTracer = requestTracer;
+        this.accessLog = accessLog;
+        this.trafficCapture = trafficCapture;
+        this.requestTimeoutMs = requestTimeoutMs;
+        this.maxRequestTimeoutMs = maxRequestTimeoutMs;
+        this.lastSeenTimeoutMs = lastSeenTimeoutMs;
+        webSelectorEngine.setWebRequestHandler(this::routeWebRequest);
+        // A follower which is sent on by itself does not join a flight again, it would only wait for the next one.
+        singleFlight.setRetryHandler((userServerContext, webRequest) -> queueWebRequest(userServerContext, webRequest, false));
+        tunnelMetrics.registerGauges(userServerContextMap, webAdmission);
     }
 
     public void registerUserServerContext(UserServerContext userServerContext) {
         userServerContextMap.put(userServerContext.getUserId(), userServerContext);
     }
 
+    /**
+     * Rebuild the registry from the journal, after a restart. The ports are opened again in parallel, so the tunnel
+     * clients can just continue with their next poll, and the web side users with the same port as before.
+     * This runs before Tomcat starts serving requests.
+     */
+    @PostConstruct
+    public void restoreRegistry() throws InterruptedException {
+        List<RegistryJournal.Entry> entries = registryJournal.replay();
+        List<UserServerContext> restored = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService restoreExecutor = Executors.newFixedThreadPool(Math.max(1, Math.min(entries.size(), 8)), runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setName("Registry-Restore");
+            return thread;
+        });
+        for (RegistryJournal.Entry entry : entries) {
+            restoreExecutor.execute(() -> {
+                UserServerContext userServerContext = new UserServerContext();
+                userServerContext.setUserId(entry.userId());
+                userServerContext.setRequestQueue(webAdmission.newRequestQueue());
+                userServerContext.setServerPort(entry.serverPort());
+                userServerContext.setClientVersion(entry.clientVersion());
+                userServerContext.setRequestTimeoutMs(entry.requestTimeoutMs());
+                userServerContext.setLastSeenTimeoutMs(lastSeenTimeoutMs);
+                userServerContext.setUserRegisteredTimestampMs(entry.registeredMs());
+                userServerContext.setUserLastSeenTimestampMs(entry.lastSeenMs());
+                sharedPortRouter.assignRoute(userServerContext, entry.routeName());
+                try {
+                    MDC.put(Constants.MDC_REQUEST_STAGE, Constants.STAGE_RESTORE);
+                    MDC.put(Constants.MDC_USER_ID, entry.userId());
+                    MDC.put(Constants.MDC_TUNNEL_SERVER_PORT, String.valueOf(entry.serverPort()));
+                    listen(userServerContext);
+                    userServerContextMap.put(userServerContext.getUserId(), userServerContext);
+                    restored.add(userServerContext);
+                    log.info("Restored user {}, Listening on {}", entry.userId(), entry.serverPort());
+                } catch (IOException e) {
+                    log.warn("Could not restore user {} on port {} - {}", entry.userId(), entry.serverPort(), e.getMessage());
+                    portAllocator.release(entry.serverPort(), userServerContext);
+                    sharedPortRouter.removeRoute(userServerContext);
+                } finally {
+                    MDC.clear();
+                }
+            });
+        }
+        restoreExecutor.shutdown();
+        if (!restoreExecutor.awaitTermination(60, TimeUnit.SECONDS)) {
+            log.warn("Registry restore not finished in time, continuing");
+        }
+        registryJournal.start(new ArrayList<>(restored));
+    }
+
     public void closeUserServerContext(UserServerContext userServerContext) {
-        if (userServerContext.getServerSocket() != null) {
-            userServerContext.terminate();
-            try {
-                // The cleanup job will close any open ongoing web requests
-                // Also give some time to the operating system to stop listening on the server socket.
-                Thread.sleep(2000);
-            } catch (InterruptedException e) {
-                // ignore
+        synchronized (userServerContext) {
+            if (userServerContext.getLivenessTimeout() != null) {
+                userServerContext.getLivenessTimeout().cancel();
+            }
+            sharedPortRouter.removeRoute(userServerContext);
+            if (userServerContext.isRegistered()) {
+                registryJournal.recordClosed(userServerContext);
+                // Returns when the port is really released, so it can be bound again right away.
+                webSelectorEngine.unbind(userServerContext);
+                userServerContext.terminate();
             }
+            portAllocator.release(userServerContext.getServerPort(), userServerContext);
+            userServerContextMap.remove(userServerContext.getUserId());
+            removeUserData(userServerContext);
         }
-        userServerContextMap.remove(userServerContext.getUserId());
     }
 
     /**
-     * Check all open connections to see if the user on the app-side is gone, or if the connection was open for too long.
-     * In that case, close the connection.
+     * Close a user which PortAllocator.findReclaimable picked, to give its port to another user. The caller only holds
+     * the registration lock of that other user, so the victim may have been seen, registered again, or closed since it
+     * was picked. That is checked again under the lock of the victim, which closeUserServerContext and endRegistration
+     * also take. Returns false (and leaves the user alone) if it is not reclaimable anymore.
      */
-    private void startCleanupThread() {
-        Thread cleanupThread = new Thread(() -> {
-            while (true) {
-                try {
-                    MDC.put(Constants.MDC_REQUEST_STAGE, "cleanup");
-                    // Check once per second
-                    Thread.sleep(1000);
-
-                    // Check if we have any users with open requests who appear to be gone... close them.
-                    userServerContextMap.forEach((user, userServerContext) -> {
-                        MDC.put(Constants.MDC_USER_ID, userServerContext.getUserId());
-                        MDC.put(Constants.MDC_TUNNEL_SERVER_PORT, String.valueOf(userServerContext.getServerPort()));
-                        new HashMap<>(userServerContext.getRequestSocketMap()).forEach((webRequestId, webRequest) -> {
-                            if (webRequest.wasStartedTooLongAgo() || !userServerContext.wasUserRecentlySeen()) {
-                                // If the request is getting old, or we have not seen the user for over some time, just send back an error response to the caller.
-                                userServerContext.getRequestQueue().remove(webRequestId);
-                                userServerContext.getRequestSocketMap().remove(webRequestId);
-                                MDC.put(Constants.MDC_WEB_REQUEST_ID, webRequestId);
-                                MDC.put(Constants.MDC_REQUESTER, webRequest.getRemoteSocketAddress().toString());
-                                log.info("Cleanup {} waiting request {}", userServerContext.getUserId(), webRequest.getRemoteSocketAddress().toString());
-                                if (webRequest.wasStartedTooLongAgo()) {
-                                    sendErrorResponseToWeb(userServerContext, webRequest, webRequestId, "503 TIMEOUT",
-                                            "User " + userServerContext.getUserId() + " took too long to respond");
-                                } else {
-                                    sendErrorResponseToWeb(userServerContext, webRequest, webRequestId, "503 OFFLINE", "User " + userServerContext.getUserId() + " is offline");
-                                }
-                                MDC.remove(Constants.MDC_WEB_REQUEST_ID);
-                                MDC.remove(Constants.MDC_REQUESTER);
-                            }
-                        });
-                    });
-                } catch (InterruptedException ie) {
-                    log.warn("cleanup interrupted - shut down");
-                } catch (Exception e) {
-                    // whatever happens, we never want to stop the cleanup, so just log and continue.
-                    // I'm guessing we might run into concurrent modification exceptions, or some other concurrent issue here sometimes.
-                    log.error("Error in cleanup thread?", e);
-                } finally {
-                    MDC.clear();
-                }
+    public boolean closeReclaimableUserServerContext(UserServerContext userServerContext, int port) {
+        synchronized (userServerContext) {
+            if (!userServerContext.isRegistered() || userServerContext.getServerPort() != port || userServerContext.wasUserRecentlySeen()) {
+                return false;
             }
-        });
-        cleanupThread.setName("Cleanup-Thread");
-        cleanupThread.start();
+            log.info("Reclaiming port {} of inactive user {}", port, userServerContext.getUserId());
+            closeUserServerContext(userServerContext);
+            return true;
+        }
+    }
+
+    /**
+     * End the current registration of a user which registers again (the tunnel client restarted), after which the new
+     * registration is started with startListening. Unlike closeUserServerContext, the user keeps its port and route,
+     * and the server channel is not closed, but handed over to the new registration (see listen). So there is no
+     * rebind, and web clients are not refused in between: requests coming in meanwhile wait for the new registration.
+     */
+    public void endRegistration(UserServerContext userServerContext) {
+        synchronized (userServerContext) {
+            if (userServerContext.getLivenessTimeout() != null) {
+                userServerContext.getLivenessTimeout().cancel();
+            }
+            if (userServerContext.isRegistered()) {
+                registryJournal.recordClosed(userServerContext);
+                userServerContext.terminateRequests();
+            }
+            removeUserData(userServerContext);
+        }
+    }
+
+    private void removeUserData(UserServerContext userServerContext) {
+        tunnelMetrics.removeUser(userServerContext);
+        responseCache.removeUser(userServerContext);
+        requestTracer.removeUser(userServerContext);
     }
 
     /**
@@ -108,116 +222,620 @@ public class TunnelServer {
             appResponse.getOutputStream().println("Missing " + Constants.X_TUNNEL_USER_ID);
             return null;
         }
-        if (!userServerContextMap.containsKey(userId)) {
+        UserServerContext userServerContext = userServerContextMap.computeIfAbsent(userId, id -> {
             UserServerContext newUserServerContext = new UserServerContext();
-            newUserServerContext.setUserId(userId);
-            userServerContextMap.put(userId, newUserServerContext);
+            newUserServerContext.setUserId(id);
+            newUserServerContext.setRequestQueue(webAdmission.newRequestQueue());
+            return newUserServerContext;
+        });
+        userServerContext.setUserLastSeenNow();
+        return userServerContext;
+    }
+
+    /**
+     * Find the UserServerContext of a registered user. Returns null if not found.
+     * This is called when a tunnel client connects using the WebSocket transport.
+     */
+    public UserServerContext findRegisteredUserServerContext(String userId) {
+        UserServerContext userServerContext = userId == null ? null : userServerContextMap.get(userId);
+        if (userServerContext == null || !userServerContext.isRegistered()) {
+            return null;
         }
-        UserServerContext userServerContext = userServerContextMap.get(userId);
         userServerContext.setUserLastSeenNow();
         return userServerContext;
     }
 
     /**
-     * The listener thread for the server port for a single userId tunnel.
+     * Open the server port for a single userId tunnel. Incoming connections are handled by the WebSelectorEngine.
+     * With the shared port enabled, a user can be registered without a port of its own (server port 0). Such a user
+     * is only reachable through the shared port.
      */
-    public void userServerContextListener(UserServerContext userServerContext) {
-        MDC.put(Constants.MDC_USER_ID, userServerContext.getUserId());
-        MDC.put(Constants.MDC_TUNNEL_SERVER_PORT, String.valueOf(userServerContext.getServerPort()));
+    public void startListening(UserServerContext userServerContext) throws IOException {
+        listen(userServerContext);
+        registryJournal.recordRegistered(userServerContext);
+    }
 
-        // Keep listening for incoming requests, and put them in a socketMap and FIFO queue pointing to the map.
-        while (userServerContext.getServerPort() != 0) {
-            MDC.remove(Constants.MDC_REQUESTER);
-            WebRequest webRequest;
-            String webRequestId = UUID.randomUUID().toString();
+    private void listen(UserServerContext userServerContext) throws IOException {
+        if (userServerContext.getServerPort() > 0) {
+            if (!portAllocator.claim(userServerContext.getServerPort(), userServerContext)) {
+                throw new IOException("Port " + userServerContext.getServerPort() + " is in use by another user");
+            }
+            if (userServerContext.getServerChannel() == null || !userServerContext.getServerChannel().isOpen()) {
+                webSelectorEngine.bind(userServerContext);
+            }
+            // Otherwise, the channel is still open from the previous registration of this user (see endRegistration).
+        } else if (userServerContext.getRouteName() == null) {
+            throw new IOException("No server port, and no shared port route");
+        }
+        long registrationNumber = registrationCounter.incrementAndGet();
+        userServerContext.setRegistrationNumber(registrationNumber);
+        userServerContext.setLivenessTimeout(timingWheel.schedule(userServerContext.getLastSeenTimeoutMs(),
+                () -> checkUserLiveness(userServerContext, registrationNumber)));
+    }
+
+    /**
+     * Set the timeouts for a (re-)registering user. The tunnel client can ask for a longer request timeout, for apps
+     * with slow requests, using the X-Tunnel-Request-Timeout-Ms header. This is capped by the configured max.
+     */
+    public void applyTimeouts(UserServerContext userServerContext, String requestedRequestTimeoutMs) {
+        long timeoutMs = requestTimeoutMs;
+        if (requestedRequestTimeoutMs != null) {
             try {
-                Socket socket = userServerContext.getServerSocket().accept();
-                webRequestId = webRequestId + "-" + userServerContext.getRequestCount().incrementAndGet();
-                MDC.put(Constants.MDC_WEB_REQUEST_ID, webRequestId);
-                MDC.put(Constants.MDC_REQUESTER, socket.getRemoteSocketAddress().toString());
-                webRequest = new WebRequest(socket);
-                log.debug("Got connection: {}, webRequestId: {}, user: {}, request: {}", socket.getRemoteSocketAddress(), webRequestId, userServerContext.getUserId(),
-                        webRequest.getHeaders().getFirstLine());
-                if (!userServerContext.wasUserRecentlySeen()) {
-                    // If we have not seen the user for over some time, just send back an error response to the caller.
-                    sendErrorResponseToWeb(userServerContext, webRequest, webRequestId, "503 OFFLINE", "User " + userServerContext.getUserId() + " is offline...");
-                    continue;
-                }
-            } catch (Exception e) {
-                // From "accept", should never happen?
-                log.warn("Error in accept() - terminating listener (for possible tunnel restart): {}", e.getMessage());
-                // Close server, terminate all open connections, and remove from registration.
-                userServerContext.getRequestSocketMap().forEach(
-                        (webRequestIdToClose, socketToClose) -> sendErrorResponseToWeb(userServerContext, socketToClose, webRequestIdToClose, "503 ERROR",
-                                "Unexpected accept error - terminating connections"));
-                try {
-                    userServerContext.getServerSocket().close();
-                } catch (IOException ex) {
-                    // ignore
-                }
-                userServerContextMap.remove(userServerContext.getUserId(), userServerContext);
-                break;
+                timeoutMs = Math.max(1, Math.min(Long.parseLong(requestedRequestTimeoutMs.trim()), maxRequestTimeoutMs));
+            } catch (NumberFormatException e) {
+                log.warn("Invalid {}: {}, using {}", Constants.X_TUNNEL_REQUEST_TIMEOUT_MS, requestedRequestTimeoutMs, timeoutMs);
             }
+        }
+        userServerContext.setRequestTimeoutMs(timeoutMs);
+        userServerContext.setLastSeenTimeoutMs(lastSeenTimeoutMs);
+    }
 
-            userServerContext.getRequestSocketMap().put(webRequestId, webRequest);
+    /**
+     * Runs on the timing wheel when we might not have seen the user for lastSeenTimeoutMs. If the user was seen since,
+     * just check again at the new deadline. Otherwise, the user is gone: terminate the open requests of the user.
+     * Stops if the user was closed or registered again (a new check was started for that).
+     */
+    private void checkUserLiveness(UserServerContext userServerContext, long registrationNumber) {
+        if (userServerContext.getRegistrationNumber() != registrationNumber) {
+            return;
+        }
+        long nextCheckMs = userServerContext.getUserLastSeenTimestampMs() + userServerContext.getLastSeenTimeoutMs() - System.currentTimeMillis();
+        if (!userServerContext.wasUserRecentlySeen()) {
             try {
-                boolean offered = userServerContext.getRequestQueue().offer(webRequestId, 5000, TimeUnit.SECONDS);
-                if (!offered) {
-                    sendErrorResponseToWeb(userServerContext, webRequest, webRequestId, "503 OVERFLOW",
-                            "User " + userServerContext.getUserId() + " request queue full...");
-                    userServerContext.getRequestSocketMap().remove(webRequestId);
-                    continue;
-                }
-            } catch (InterruptedException e) {
-                // from the queue offer, won't happen (maybe only on shutdown)
-                sendErrorResponseToWeb(userServerContext, webRequest, webRequestId, "503 ERROR", "User " + userServerContext.getUserId() + " request queue issue...");
+                MDC.put(Constants.MDC_REQUEST_STAGE, Constants.STAGE_EXPIRE);
+                MDC.put(Constants.MDC_USER_ID, userServerContext.getUserId());
+                MDC.put(Constants.MDC_TUNNEL_SERVER_PORT, String.valueOf(userServerContext.getServerPort()));
+                userServerContext.getRequestSocketMap().forEach((webRequestId, webRequest) -> {
+                    // Only if we are the one removing it from the map, otherwise someone else is already finishing it.
+                    if (userServerContext.getRequestSocketMap().remove(webRequestId, webRequest)) {
+                        userServerContext.getRequestQueue().remove(webRequestId);
+                        MDC.put(Constants.MDC_WEB_REQUEST_ID, webRequestId);
+                        MDC.put(Constants.MDC_REQUESTER, String.valueOf(webRequest.getRemoteSocketAddress()));
+                        log.info("User {} offline, terminate waiting request", userServerContext.getUserId());
+                        sendErrorResponseToWebAsync(userServerContext, webRequest, webRequestId, "503 OFFLINE", "User " + userServerContext.getUserId() + " is offline");
+                    }
+                });
+            } finally {
+                MDC.clear();
+            }
+            // Any new requests are refused right away while offline, so no need to look again very soon.
+            nextCheckMs = userServerContext.getLastSeenTimeoutMs();
+        }
+        userServerContext.setLivenessTimeout(timingWheel.schedule(nextCheckMs, () -> checkUserLiveness(userServerContext, registrationNumber)));
+    }
+
+    /**
+     * Runs on the timing wheel when the request timeout of a web request has passed. If the request is still open,
+     * and the app response did not start yet, send the web client an error.
+     */
+    private void expireWebRequest(UserServerContext userServerContext, String webRequestId, WebRequest webRequest) {
+        if (webRequest.isResponseStarted()) {
+            // Just started, the timeout was cancelled right after it fired. The request timeout ends at the response.
+            return;
+        }
+        // Only if we are the one removing it from the map, otherwise someone else is already finishing it.
+        if (!userServerContext.getRequestSocketMap().remove(webRequestId, webRequest)) {
+            return;
+        }
+        userServerContext.getRequestQueue().remove(webRequestId);
+        try {
+            MDC.put(Constants.MDC_REQUEST_STAGE, Constants.STAGE_EXPIRE);
+            MDC.put(Constants.MDC_USER_ID, userServerContext.getUserId());
+            MDC.put(Constants.MDC_TUNNEL_SERVER_PORT, String.valueOf(userServerContext.getServerPort()));
+            MDC.put(Constants.MDC_WEB_REQUEST_ID, webRequestId);
+            MDC.put(Constants.MDC_REQUESTER, String.valueOf(webRequest.getRemoteSocketAddress()));
+            log.info("Expired {} waiting request {}", userServerContext.getUserId(), webRequest.getRemoteSocketAddress());
+            Runnable expiredListener = webRequest.getExpiredListener();
+            if (expiredListener != null) {
+                errorResponseExecutor.execute(expiredListener);
+            }
+            sendErrorResponseToWebAsync(userServerContext, webRequest, webRequestId, "503 TIMEOUT",
+                    "User " + userServerContext.getUserId() + " took too long to respond");
+        } finally {
+            MDC.clear();
+        }
+    }
+
+    /**
+     * Called by the WebSelectorEngine for each web request of which the headers are read.
+     * Requests from the shared port have no user yet, those are looked up by the SharedPortRouter first.
+     * This runs on a selector thread, so it must never block.
+     */
+    private void routeWebRequest(UserServerContext userServerContext, WebRequest webRequest) {
+        if (!webRequest.getHeaders().isContentLengthValid()) {
+            // We would not know where the body ends, so also not where a next request on the connection starts.
+            rejectWebRequest(userServerContext, webRequest, "-", "400 BAD_REQUEST", "Invalid Content-Length", false);
+            return;
+        }
+        if (userServerContext == null) {
+            userServerContext = sharedPortRouter.route(webRequest.getHeaders());
+            if (userServerContext == null) {
+                log.debug("No route for shared port request: {}, Host: {}", webRequest.getHeaders().getFirstLine(), webRequest.getHeaders().getHeaderValue("Host"));
+                rejectWebRequest(null, webRequest, "-", "404 UNKNOWN_ROUTE", "No tunnel user found for this request", false);
+                return;
+            }
+        }
+        queueWebRequest(userServerContext, webRequest, true);
+    }
+
+    /**
+     * Puts the request in a socketMap and FIFO queue pointing to the map, for pickup by the tunnel client.
+     * This runs on a selector thread, so it must never block. Requests which can not be queued (user offline, too many
+     * requests in flight, user queue full) are refused right away, see rejectWebRequest.
+     * Requests for which the ResponseCache has a fresh response are answered from the cache, without queueing. And
+     * requests which are identical to one in flight wait for the response of that one, see SingleFlight (if joinFlight).
+     */
+    private void queueWebRequest(UserServerContext userServerContext, WebRequest webRequest, boolean joinFlight) {
+        String webRequestId = UUID.randomUUID() + "-" + userServerContext.getRequestCount().incrementAndGet();
+        try {
+            MDC.put(Constants.MDC_REQUEST_STAGE, Constants.STAGE_WEB_TO_APP_LISTEN);
+            MDC.put(Constants.MDC_USER_ID, userServerContext.getUserId());
+            MDC.put(Constants.MDC_TUNNEL_SERVER_PORT, String.valueOf(userServerContext.getServerPort()));
+            MDC.put(Constants.MDC_WEB_REQUEST_ID, webRequestId);
+            MDC.put(Constants.MDC_REQUESTER, String.valueOf(webRequest.getRemoteSocketAddress()));
+            log.debug("Got connection: {}, webRequestId: {}, user: {}, request: {}", webRequest.getRemoteSocketAddress(), webRequestId, userServerContext.getUserId(),
+                    webRequest.getHeaders().getFirstLine());
+            trafficCapture.start(userServerContext, webRequest);
+            if (!userServerContext.wasUserRecentlySeen()) {
+                // If we have not seen the user for over some time, just send back an error response to the caller.
+                rejectWebRequest(userServerContext, webRequest, webRequestId, "503 OFFLINE", "User " + userServerContext.getUserId() + " is offline...", false);
+                return;
+            }
+            ResponseCache.Entry cachedEntry = responseCache.lookup(userServerContext, webRequest);
+            if (cachedEntry != null) {
+                sendCachedResponseAsync(userServerContext, webRequestId, webRequest, cachedEntry);
+                return;
+            }
+            if (joinFlight && singleFlight.join(userServerContext, webRequest)) {
+                log.debug("Waiting for identical request in flight: {}", webRequest.getHeaders().getFirstLine());
+                return;
+            }
+            if (!webAdmission.admit(webRequest)) {
+                rejectWebRequest(userServerContext, webRequest, webRequestId, "503 OVERLOADED", "Too many web requests in progress, try again later", true);
+                return;
+            }
+
+            webRequest.markQueued();
+            userServerContext.getRequestSocketMap().put(webRequestId, webRequest);
+            webRequest.setExpiry(timingWheel.schedule(userServerContext.getRequestTimeoutMs(),
+                    () -> expireWebRequest(userServerContext, webRequestId, webRequest)));
+            if (!userServerContext.getRequestQueue().offer(webRequestId)) {
                 userServerContext.getRequestSocketMap().remove(webRequestId);
+                webAdmission.countUserQueueFull();
+                rejectWebRequest(userServerContext, webRequest, webRequestId, "503 OVERFLOW",
+                        "User " + userServerContext.getUserId() + " request queue full...", true);
+                return;
             }
             log.debug("map size: {}, queue size: {}, user: {}", userServerContext.getRequestSocketMap().size(), userServerContext.getRequestQueue().size(),
                     userServerContext.getUserId());
+        } finally {
+            MDC.clear();
         }
     }
 
+    public boolean isKeepAliveAllowed(WebRequest webRequest) {
+        return webSelectorEngine.isKeepAliveAllowed(webRequest);
+    }
+
+    public long getKeepAliveIdleTimeoutMs() {
+        return webSelectorEngine.getKeepAliveIdleTimeoutMs();
+    }
+
+    /**
+     * The response for a web request was sent. Either close the connection, or give it back to the WebSelectorEngine
+     * to wait for a next request on the same (keep-alive) connection.
+     */
+    public void finishWebRequest(UserServerContext userServerContext, String webRequestId, WebRequest webRequest, boolean keepAlive) {
+        userServerContext.getRequestSocketMap().remove(webRequestId);
+        recordFinishedRequest(userServerContext, webRequestId, webRequest);
+        webRequest.cancelExpiry();
+        if (keepAlive) {
+            webSelectorEngine.resume(userServerContext, webRequest);
+        } else {
+            webRequest.close();
+        }
+    }
+
+    /**
+     * Send an uncompressed app response on to the web client, see the method below.
+     */
+    public boolean relayAppResponseToWeb(UserServerContext userServerContext, String webRequestId, WebRequest webRequest,
+                                         PrefixedInputStream appInputStream, int tunnelBodyLength) {
+        return relayAppResponseToWeb(userServerContext, webRequestId, webRequest, appInputStream, tunnelBodyLength, false);
+    }
+
+    /**
+     * Send the app response, as read from the tunnel client, on to the web client. The app response consists of the
+     * response headers followed by the body. The tunnelBodyLength is the total number of bytes the tunnel client
+     * sends us (headers + body), or -1 if the tunnel client streams the response without knowing the length.
+     * Used by both the long-poll POST and the WebSocket tunnel transport.
+     * If deflatedBody is set, the tunnel client compressed the body (not the headers), see BodyCompression. It is
+     * inflated again here, and handled as a streamed response, as the tunnel length says nothing about the real length.
+     * Returns false if the app response was invalid (no response headers). In that case an error was sent to web.
+     */
+    public boolean relayAppResponseToWeb(UserServerContext userServerContext, String webRequestId, WebRequest webRequest,
+                                         PrefixedInputStream appInputStream, int tunnelBodyLength, boolean deflatedBody) {
+        tunnelMetrics.recordAppResponse(userServerContext, webRequest);
+        // The header parser reads in blocks, and pushes back any body bytes it read too far into this stream.
+        Headers appToWebResponseHeaders = HeaderParser.read(appInputStream, bufferPool);
+        if (!appToWebResponseHeaders.hasHeaderLines() || !appToWebResponseHeaders.getFirstLine().toLowerCase().startsWith("http/")) {
+            sendErrorResponseToWeb(userServerContext, webRequest, webRequestId, "503 INVALID_RESPONSE", "Wrong application response, missing headers");
+            userServerContext.getRequestSocketMap().remove(webRequestId);
+            return false;
+        }
+        if (!webRequest.startResponse()) {
+            // Too late: the request expired, or the user was seen as offline, and the web client got an error already.
+            log.info("App response too late for webRequestId: {}, an error response was sent already", webRequestId);
+            return true;
+        }
+        if (!deflatedBody) {
+            return relayAppResponseBodyToWeb(userServerContext, webRequestId, webRequest, appToWebResponseHeaders, appInputStream, tunnelBodyLength);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            PrefixedInputStream inflatedInputStream = new PrefixedInputStream(new InflaterInputStream(appInputStream, inflater, 8192));
+            return relayAppResponseBodyToWeb(userServerContext, webRequestId, webRequest, appToWebResponseHeaders, inflatedInputStream, -1);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private boolean relayAppResponseBodyToWeb(UserServerContext userServerContext, String webRequestId, WebRequest webRequest,
+                                              Headers appToWebResponseHeaders, PrefixedInputStream appInputStream, int tunnelBodyLength) {
+        ResponseCache.Entry revalidatedEntry = responseCache.revalidated(userServerContext, webRequest, appToWebResponseHeaders);
+        if (revalidatedEntry != null) {
+            // The app says our stale copy is still good (304), the web client gets the full cached response.
+            sendCachedResponse(userServerContext, webRequestId, webRequest, revalidatedEntry, Constants.CACHE_STATUS_REVALIDATED);
+            return true;
+        }
+        Integer appContentLength = appToWebResponseHeaders.getContentLength();
+        trafficCapture.captureResponse(webRequest, appToWebResponseHeaders, appInputStream, appContentLength == null ? -1 : appContentLength);
+        appToWebResponseHeaders.addHeader(Constants.X_TUNNEL_USER_ID, userServerContext.getUserId());
+        appToWebResponseHeaders.addHeader(Constants.X_TUNNEL_WEB_REQUEST_ID, webRequestId);
+        appToWebResponseHeaders.addHeader(Constants.X_TUNNEL_SERVER_PORT, String.valueOf(userServerContext.getServerPort()));
+
+        // Find out how the web client will see the end of the response body.
+        String transferEncoding = appToWebResponseHeaders.getHeaderValue(Constants.TRANSFER_ENCODING_HEADER);
+        boolean chunked = transferEncoding != null && transferEncoding.toLowerCase().contains("chunked");
+        boolean streamed = tunnelBodyLength < 0;
+        // remove the header byte count, to just send on the body bytes. Stays -1 if we do not know the length.
+        int webResponseBodyLength = -1;
+        if (chunked) {
+            // The body contains the chunk framing of the app, which marks the end of the response. A content length
+            // next to it would conflict with that on a keep-alive connection.
+            appToWebResponseHeaders.removeHeader(Constants.CONTENT_LENGTH_HEADER);
+        } else if (!streamed) {
+            webResponseBodyLength = tunnelBodyLength - appToWebResponseHeaders.getHeaderBytesRead();
+            if (appToWebResponseHeaders.getContentLength() == null || webResponseBodyLength != appToWebResponseHeaders.getContentLength()) {
+                log.debug("Content length mismatch? {} / {} -> set to {}", webResponseBodyLength, appToWebResponseHeaders.getContentLength(), webResponseBodyLength);
+                appToWebResponseHeaders.setContentLength(webResponseBodyLength);
+            }
+        } else if (appToWebResponseHeaders.getContentLength() != null) {
+            // Streamed, but the app did tell us the length. Trust it.
+            webResponseBodyLength = appToWebResponseHeaders.getContentLength();
+        }
+        // If we have no length and no chunks, the end of the response is marked by closing the connection.
+        boolean closeDelimited = !chunked && webResponseBodyLength < 0;
+        ResponseCache.Capture cacheCapture = responseCache.capture(userServerContext, webRequest, appToWebResponseHeaders, chunked ? -1 : webResponseBodyLength);
+        SingleFlight.Flight flight = webRequest.takeFlight();
+        boolean shareResponse = flight != null && singleFlight.isShareable(appToWebResponseHeaders, chunked ? -1 : webResponseBodyLength);
+
+        // The connection to the app is always closed after the response (by the tunnel client), but the web side
+        // connection can be kept open for a next request, if the web client wants that.
+        boolean keepAlive = !closeDelimited && isKeepAliveAllowed(webRequest);
+        if (keepAlive) {
+            appToWebResponseHeaders.setHeader(Constants.CONNECTION_HEADER, Constants.CONNECTION_KEEP_ALIVE_VALUE);
+            appToWebResponseHeaders.setHeader(Constants.KEEP_ALIVE_HEADER, "timeout=" + getKeepAliveIdleTimeoutMs() / 1000);
+        } else {
+            appToWebResponseHeaders.removeHeader(Constants.KEEP_ALIVE_HEADER);
+            appToWebResponseHeaders.setHeader(Constants.CONNECTION_HEADER, Constants.CONNECTION_CLOSE_VALUE);
+        }
+        boolean responseComplete = false;
+        byte[] body = null;
+        long bodyBytesCopied = 0;
+        long copyStartNanos = System.nanoTime();
+        try {
+            // The header block goes out together with the first block of the body.
+            appToWebResponseHeaders.logHeaderLines(Constants.DIRECTION_APP_TO_WEB_RESPONSE);
+            OutputStream webOutputStream = webRequest.getResponseOutputStream(appToWebResponseHeaders.getSerialized());
+            if (chunked) {
+                // Passes on each chunk as soon as it comes in, this is what server-sent-events and the like need.
+                bodyBytesCopied = StreamHelper.chunkedStreamCopy(appInputStream, webOutputStream,
+                        Constants.DIRECTION_APP_TO_WEB_RESPONSE, bufferPool);
+                responseComplete = true;
+            } else if (closeDelimited) {
+                bodyBytesCopied = StreamHelper.streamCopyUntilEnd(appInputStream, webOutputStream,
+                        Constants.DIRECTION_APP_TO_WEB_RESPONSE, bufferPool);
+            } else if (cacheCapture != null || shareResponse) {
+                // The body is also kept (once) while it is sent on, for the cache and/or the single-flight followers.
+                body = new byte[webResponseBodyLength];
+                StreamHelper.CopyingOutputStream copyingOutputStream = new StreamHelper.CopyingOutputStream(webOutputStream, body);
+                bodyBytesCopied = StreamHelper.streamCopy(appInputStream, webResponseBodyLength, copyingOutputStream,
+                        Constants.DIRECTION_APP_TO_WEB_RESPONSE, bufferPool);
+                responseComplete = bodyBytesCopied == webResponseBodyLength && copyingOutputStream.isComplete();
+            } else {
+                bodyBytesCopied = StreamHelper.streamCopy(appInputStream, webResponseBodyLength, webOutputStream,
+                        Constants.DIRECTION_APP_TO_WEB_RESPONSE, bufferPool);
+                responseComplete = bodyBytesCopied == Math.max(0, webResponseBodyLength);
+            }
+            webOutputStream.flush();
+        } catch (IOException e) {
+            log.error("appToWebResponse stream end? {} / {}", webRequestId, e.getMessage());
+            responseComplete = false;
+        }
+        tunnelMetrics.recordAppToWebCopy(userServerContext, copyStartNanos, bodyBytesCopied);
+        MDC.put(Constants.MDC_APP_TO_WEB_BODY_BYTES, String.valueOf(bodyBytesCopied));
+        if (body != null && responseComplete) {
+            if (cacheCapture != null) {
+                cacheCapture.store(body);
+            }
+            if (shareResponse) {
+                shareResponseAsync(userServerContext, flight, webRequest, appToWebResponseHeaders, body);
+            }
+        } else if (flight != null) {
+            // No response to share, the followers are sent on by themselves.
+            flight.abandon();
+        }
+        webRequest.setResponse(appToWebResponseHeaders.getStatusCode(), RequestTracer.Source.TUNNEL, bodyBytesCopied);
+        finishWebRequest(userServerContext, webRequestId, webRequest, keepAlive && responseComplete);
+        accessLog.logHandled(log, "Handled appToWebResponse: {}, body bytes: {}{}", appToWebResponseHeaders.getFirstLine(), bodyBytesCopied,
+                streamed ? " (streamed)" : "");
+        return true;
+    }
+
+    /**
+     * Same as sendCachedResponse, but executed on a separate thread, as the selector thread must not block on the write.
+     */
+    private void sendCachedResponseAsync(UserServerContext userServerContext, String webRequestId, WebRequest webRequest, ResponseCache.Entry entry) {
+        Map<String, String> mdcContext = MDC.getCopyOfContextMap();
+        localResponseExecutor.execute(() -> {
+            try {
+                if (mdcContext != null) {
+                    MDC.setContextMap(mdcContext);
+                }
+                MDC.put(Constants.MDC_REQUEST_STAGE, Constants.STAGE_APP_TO_WEB_RESPONSE);
+                // Only requests without a body are looked up in the cache, so the connection is ready for a next request.
+                webRequest.setRequestBodyRead(true);
+                sendCachedResponse(userServerContext, webRequestId, webRequest, entry, Constants.CACHE_STATUS_HIT);
+            } finally {
+                MDC.clear();
+            }
+        });
+    }
+
+    /**
+     * Send a response from the ResponseCache to the web client. If the web client has this version already (its own
+     * conditional headers match), it gets a "304 Not Modified" instead. A HEAD request only gets the headers.
+     */
+    private void sendCachedResponse(UserServerContext userServerContext, String webRequestId, WebRequest webRequest, ResponseCache.Entry entry,
+                                    String cacheStatus) {
+        // A revalidated request carries our own conditional headers (the web client had none), those do not count.
+        boolean notModified = cacheStatus.equals(Constants.CACHE_STATUS_HIT) && entry.isNotModifiedFor(webRequest.getHeaders());
+        Headers responseHeaders = entry.createResponseHeaders(notModified);
+        byte[] body = notModified || ResponseCache.isHead(webRequest.getHeaders()) ? new byte[0] : entry.getBody();
+        responseHeaders.addHeader(Constants.X_TUNNEL_CACHE, cacheStatus);
+        responseHeaders.addHeader(Constants.X_TUNNEL_USER_ID, userServerContext.getUserId());
+        responseHeaders.addHeader(Constants.X_TUNNEL_WEB_REQUEST_ID, webRequestId);
+        responseHeaders.addHeader(Constants.X_TUNNEL_SERVER_PORT, String.valueOf(userServerContext.getServerPort()));
+        sendLocalResponse(userServerContext, webRequestId, webRequest, responseHeaders, body, RequestTracer.Source.CACHE, "from cache (" + cacheStatus + ")");
+    }
+
+    /**
+     * Give the response of a single-flight leader to its followers, each on its own connection. Runs on a separate
+     * thread, so the leader (and its tunnel client) does not wait for slow followers.
+     */
+    private void shareResponseAsync(UserServerContext userServerContext, SingleFlight.Flight flight, WebRequest leader, Headers leaderResponseHeaders, byte[] body) {
+        List<WebRequest> followers = singleFlight.complete(flight, leader, leaderResponseHeaders);
+        if (followers.isEmpty()) {
+            return;
+        }
+        Headers sharedHeaders = leaderResponseHeaders.copy();
+        sharedHeaders.removeHeader(Constants.X_TUNNEL_WEB_REQUEST_ID);
+        sharedHeaders.removeHeader(Constants.KEEP_ALIVE_HEADER);
+        Map<String, String> mdcContext = MDC.getCopyOfContextMap();
+        for (WebRequest follower : followers) {
+            localResponseExecutor.execute(() -> {
+                String webRequestId = UUID.randomUUID() + "-" + userServerContext.getRequestCount().incrementAndGet();
+                try {
+                    if (mdcContext != null) {
+                        MDC.setContextMap(mdcContext);
+                    }
+                    MDC.put(Constants.MDC_WEB_REQUEST_ID, webRequestId);
+                    MDC.put(Constants.MDC_REQUESTER, String.valueOf(follower.getRemoteSocketAddress()));
+                    follower.setRequestBodyRead(true);
+                    Headers responseHeaders = sharedHeaders.copy();
+                    responseHeaders.addHeader(Constants.X_TUNNEL_WEB_REQUEST_ID, webRequestId);
+                    sendLocalResponse(userServerContext, webRequestId, follower, responseHeaders, body, RequestTracer.Source.SHARED, "shared by single-flight");
+                } finally {
+                    MDC.clear();
+                }
+            });
+        }
+    }
+
+    /**
+     * Send a complete response which did not come through the tunnel (cached or shared) to the web client, in one write.
+     * Then keep the connection open for a next request if possible, or close it.
+     */
+    private void sendLocalResponse(UserServerContext userServerContext, String webRequestId, WebRequest webRequest, Headers responseHeaders, byte[] body,
+                                   RequestTracer.Source traceSource, String source) {
+        boolean keepAlive = isKeepAliveAllowed(webRequest);
+        if (keepAlive) {
+            responseHeaders.setHeader(Constants.CONNECTION_HEADER, Constants.CONNECTION_KEEP_ALIVE_VALUE);
+            responseHeaders.setHeader(Constants.KEEP_ALIVE_HEADER, "timeout=" + getKeepAliveIdleTimeoutMs() / 1000);
+        } else {
+            responseHeaders.setHeader(Constants.CONNECTION_HEADER, Constants.CONNECTION_CLOSE_VALUE);
+        }
+        trafficCapture.captureResponse(webRequest, responseHeaders, body);
+        boolean responseComplete = false;
+        try {
+            webRequest.writeResponse(responseHeaders.getSerialized(), body);
+            responseComplete = true;
+        } catch (IOException e) {
+            log.error("localResponse stream end? {} / {}", webRequestId, e.getMessage());
+        }
+        MDC.put(Constants.MDC_APP_TO_WEB_BODY_BYTES, String.valueOf(body.length));
+        webRequest.setResponse(responseHeaders.getStatusCode(), traceSource, body.length);
+        finishWebRequest(userServerContext, webRequestId, webRequest, keepAlive && responseComplete);
+        accessLog.logHandled(log, "Handled appToWebResponse {}: {}, body bytes: {}", source, responseHeaders.getFirstLine(), body.length);
+    }
+
+    /**
+     * Refuse a web request before it is queued, with an error response. This does not block, and does not use a
+     * thread: the WebSelectorEngine sends the response and closes the connection. If retryAfter is set, the web client
+     * is told to try again after tunnel.admission.retryAfterSeconds (for refusals because of load).
+     */
+    private void rejectWebRequest(UserServerContext userServerContext, WebRequest webRequest, String webRequestId, String statusCode, String errorMessage,
+                                  boolean retryAfter) {
+        if (userServerContext != null) {
+            MDC.put(Constants.MDC_TUNNEL_ERROR_COUNT, String.valueOf(userServerContext.getTunnelErrorCount().incrementAndGet()));
+        }
+        tunnelMetrics.countWebError(userServerContext, statusCode);
+        log.warn("Refused Web Request: {} {}, request: {}", statusCode, errorMessage, webRequest.getHeaders().getFirstLine());
+        recordErrorResponse(userServerContext, webRequestId, webRequest, statusCode);
+        webSelectorEngine.reject(webRequest, createErrorResponse(userServerContext, webRequestId, statusCode, errorMessage,
+                retryAfter ? webAdmission.getRetryAfterSeconds() : 0));
+    }
+
+    /**
+     * Same as sendErrorResponseToWeb, but executed on a separate thread, as reading the request body can block.
+     */
+    public void sendErrorResponseToWebAsync(UserServerContext userServerContext, WebRequest webRequest, String webRequestId, String statusCode, String errorMessage) {
+        Map<String, String> mdcContext = MDC.getCopyOfContextMap();
+        errorResponseExecutor.execute(() -> {
+            try {
+                if (mdcContext != null) {
+                    MDC.setContextMap(mdcContext);
+                }
+                sendErrorResponseToWeb(userServerContext, webRequest, webRequestId, statusCode, errorMessage);
+            } finally {
+                MDC.clear();
+            }
+        });
+    }
+
     /**
      * Send an error response to the web end of the connection. And close the WebRequest.
+     * The userServerContext is null for a request on the shared port, for which no user was found.
+     * If the app response is being sent already, an error response would end up in the middle of its body: then the
+     * connection is only closed, and the relay of the app response ends (and records) the request.
      */
     public void sendErrorResponseToWeb(UserServerContext userServerContext, WebRequest webRequest, String webRequestId, String statusCode, String errorMessage) {
-        MDC.put(Constants.MDC_TUNNEL_ERROR_COUNT, String.valueOf(userServerContext.getTunnelErrorCount().incrementAndGet()));
+        if (!webRequest.startResponse()) {
+            log.warn("Close Web Request: {} {}, response was started already, request: {}", statusCode, errorMessage, webRequest.getHeaders().getFirstLine());
+            webRequest.close();
+            return;
+        }
+        if (userServerContext != null) {
+            MDC.put(Constants.MDC_TUNNEL_ERROR_COUNT, String.valueOf(userServerContext.getTunnelErrorCount().incrementAndGet()));
+        }
+        tunnelMetrics.countWebError(userServerContext, statusCode);
         Headers headers = webRequest.getHeaders();
         try {
             if (headers.getContentLength() != null) {
                 try {
                     webRequest.setSoTimeout(2000);
-                    StreamHelper.streamCopy(webRequest.getInputStream(), headers.getContentLength(), new StreamHelper.DevNullOutputStream(), "webToDevNull");
+                    StreamHelper.streamCopy(webRequest.getInputStream(), headers.getContentLength(), new StreamHelper.DevNullOutputStream(), "webToDevNull", bufferPool);
                 } catch (Exception e) {
                     log.error("sendErrorResponseToWeb, issue reading body: {}", e.getMessage());
                 }
             }
             log.warn("Send Web Error: {} {}, request: {}", statusCode, errorMessage, headers.getFirstLine());
-            byte[] body = (errorMessage + "\n").getBytes();
-
-            Headers responseHeaders = new Headers(statusCode);
-            responseHeaders.setHeader(Constants.CONNECTION_HEADER, "Close");
-            responseHeaders.setContentLength(body.length);
-            responseHeaders.setHeader("Content-Type", "text/plain");
-            responseHeaders.addHeader(Constants.X_TUNNEL_USER_ID, userServerContext.getUserId());
-            responseHeaders.addHeader(Constants.X_TUNNEL_WEB_REQUEST_ID, webRequestId);
-            responseHeaders.addHeader(Constants.X_TUNNEL_SERVER_PORT, String.valueOf(userServerContext.getServerPort()));
-
-            responseHeaders.sendHeaderLines(webRequest.getOutputStream(), "toWeb");
-            webRequest.getOutputStream().write(body);
+            webRequest.getOutputStream().write(createErrorResponse(userServerContext, webRequestId, statusCode, errorMessage, 0));
             webRequest.getOutputStream().flush();
         } catch (IOException e) {
             log.error("Error in sendErrorResponseToWeb: {} - to send: {} {}", e.getMessage(), statusCode, errorMessage);
         } finally {
+            recordErrorResponse(userServerContext, webRequestId, webRequest, statusCode);
             webRequest.close();
         }
     }
 
     /**
-     * Return shallow copy of userServerContextMap, for reporting purposes.
+     * Record a web request which ended with an error response. The statusCode is like "503 TIMEOUT".
+     */
+    private void recordErrorResponse(UserServerContext userServerContext, String webRequestId, WebRequest webRequest, String statusCode) {
+        int status;
+        try {
+            status = Integer.parseInt(statusCode.substring(0, statusCode.indexOf(' ')));
+        } catch (RuntimeException e) {
+            status = -1;
+        }
+        webRequest.setResponse(status, RequestTracer.Source.ERROR, 0);
+        recordFinishedRequest(userServerContext, webRequestId, webRequest);
+    }
+
+    /**
+     * Put a finished web request in the RequestTracer and the AccessLog. Only the first call for a request counts, so
+     * all paths which end a request can call this (an error can come in while the response is being relayed).
+     */
+    private void recordFinishedRequest(UserServerContext userServerContext, String webRequestId, WebRequest webRequest) {
+        if (webRequest.markFinished()) {
+            requestTracer.record(userServerContext, webRequest);
+            accessLog.log(userServerContext, webRequestId, webRequest);
+            if (userServerContext != null) {
+                trafficCapture.record(userServerContext, webRequest);
+            }
+        }
+    }
+
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    /**
+     * The full error response (headers and body) for the web client. The retryAfterSeconds is left out if 0.
+     */
+    private static byte[] createErrorResponse(UserServerContext userServerContext, String webRequestId, String statusCode, String errorMessage,
+                                              int retryAfterSeconds) {
+        byte[] body = (errorMessage + "\n").getBytes();
+        Headers responseHeaders = new Headers(statusCode);
+        responseHeaders.setHeader(Constants.CONNECTION_HEADER, "Close");
+        responseHeaders.setContentLength(body.length);
+        responseHeaders.setHeader("Content-Type", "text/plain");
+        if (retryAfterSeconds > 0) {
+            responseHeaders.setHeader(Constants.RETRY_AFTER_HEADER, String.valueOf(retryAfterSeconds));
+        }
+        if (userServerContext != null) {
+            responseHeaders.addHeader(Constants.X_TUNNEL_USER_ID, userServerContext.getUserId());
+            responseHeaders.addHeader(Constants.X_TUNNEL_WEB_REQUEST_ID, webRequestId);
+            responseHeaders.addHeader(Constants.X_TUNNEL_SERVER_PORT, String.valueOf(userServerContext.getServerPort()));
+        }
+        byte[] headerBlock = responseHeaders.getSerialized();
+        byte[] response = new byte[headerBlock.length + body.length];
+        System.arraycopy(headerBlock, 0, response, 0, headerBlock.length);
+        System.arraycopy(body, 0, response, headerBlock.length, body.length);
+        return response;
+    }
+
+    public WebAdmission.Stats getAdmissionStats() {
+        return webAdmission.getStats(userServerContextMap);
+    }
+
+    /**
+     * Return read-only view of the userServerContextMap. It can be iterated while it changes, without any locking or copying.
      */
-    public HashMap<String, UserServerContext> getCopyOfUserServerContextMap() {
-        return new HashMap<>(userServerContextMap);
+    public Map<String, UserServerContext> getUserServerContextMap() {
+        return Collections.unmodifiableMap(userServerContextMap);
     }
 }
@@ -0,0 +1,380 @@
+package com.kaper.devtunnel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.MDC;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * One WebSocket tunnel connection of a tunnel client. This is the WebSocket alternative for the GET/POST /data
+ * long-poll requests of the TunnelDataController.
+ * A dispatcher takes the web requests from the same request queue as the long-poll requests do, and starts
+ * a TunnelStream for each of them. All streams share the one WebSocket connection, so there is no extra round-trip
+ * per request. The request and response bodies of each stream are copied on a stream worker thread.
+ * The dispatcher and the stream workers run on the bounded executors of the TunnelWebSocketHandler. If there is no
+ * room for a stream, the web client gets an error response right away.
+ * The stream worker pool is shared by all connections, and a streamed response holds a worker for as long as it
+ * runs. So one connection can have at most maxStreams streams: while it has that many, the dispatcher leaves the
+ * web requests in the request queue (for a long-poll request of the same user, or until a stream is done).
+ */
+@Slf4j
+class TunnelSocketConnection {
+    /** Send a ping if nothing was sent for this long, to keep the connection open on networks which drop idle connections. */
+    private static final long PING_INTERVAL_MS = 25000;
+
+    private final WebSocketSession session;
+    private final UserServerContext userServerContext;
+    /** The registration at connect time. If that changes, the user has registered again. */
+    private final long registrationNumber;
+    private final TunnelServer tunnelServer;
+    private final BufferPool bufferPool;
+    private final TunnelMetrics tunnelMetrics;
+    private final Executor streamExecutor;
+    private final Map<Integer, TunnelStream> streams = new ConcurrentHashMap<>();
+    /** One permit for each stream this connection may still start. Taken by the dispatcher, given back in removeStream. */
+    private final Semaphore streamPermits;
+    private final AtomicInteger lastStreamId = new AtomicInteger();
+    private volatile boolean open = true;
+    private volatile long lastSendMs = System.currentTimeMillis();
+    /** The thread running dispatchWebRequests, only set while it runs. Guarded by this. */
+    private Thread dispatcherThread;
+
+    /**
+     * The session must be safe for sending from multiple threads (see ConcurrentWebSocketSessionDecorator).
+     */
+    TunnelSocketConnection(WebSocketSession session, UserServerContext userServerContext, TunnelServer tunnelServer,
+                           BufferPool bufferPool, TunnelMetrics tunnelMetrics, Executor streamExecutor, int maxStreams) {
+        this.session = session;
+        this.userServerContext = userServerContext;
+        this.registrationNumber = userServerContext.getRegistrationNumber();
+        this.tunnelServer = tunnelServer;
+        this.bufferPool = bufferPool;
+        this.tunnelMetrics = tunnelMetrics;
+        this.streamExecutor = streamExecutor;
+        this.streamPermits = new Semaphore(Math.max(1, maxStreams));
+    }
+
+    UserServerContext getUserServerContext() {
+        return userServerContext;
+    }
+
+    /**
+     * Start the dispatcher. Returns false if the dispatch executor has no room for another connection.
+     */
+    boolean start(Executor dispatchExecutor) {
+        try {
+            dispatchExecutor.execute(this::dispatchWebRequests);
+            return true;
+        } catch (RejectedExecutionException e) {
+            open = false;
+            return false;
+        }
+    }
+
+    /**
+     * Number of streams which are busy right now.
+     */
+    int getActiveStreamCount() {
+        return streams.size();
+    }
+
+    void send(WebSocketMessage<?> message) throws IOException {
+        if (!open) {
+            throw new IOException("Tunnel connection closed");
+        }
+        session.sendMessage(message);
+        lastSendMs = System.currentTimeMillis();
+    }
+
+    /**
+     * Wait for web requests, and start a stream for each of them. While this runs, the user counts as online.
+     */
+    private void dispatchWebRequests() {
+        synchronized (this) {
+            if (!open) {
+                return;
+            }
+            dispatcherThread = Thread.currentThread();
+        }
+        userServerContext.getActivePollCount().incrementAndGet();
+        try {
+            while (open) {
+                if (userServerContext.getRegistrationNumber() != registrationNumber) {
+                    // The user was closed or registered again, this connection belongs to the old registration.
+                    session.close(CloseStatus.GOING_AWAY.withReason("Tunnel closed - Please restart tunnel client"));
+                    break;
+                }
+                userServerContext.setUserLastSeenNow();
+                if (!streamPermits.tryAcquire(5, TimeUnit.SECONDS)) {
+                    // All streams of this connection are busy. The requests wait in the queue.
+                    pingIfIdle();
+                    continue;
+                }
+                String webRequestId = userServerContext.getRequestQueue().poll(5, TimeUnit.SECONDS);
+                if (webRequestId == null) {
+                    streamPermits.release();
+                    pingIfIdle();
+                    continue;
+                }
+                if (!open) {
+                    // Closed while waiting, leave the request for a next tunnel connection or long-poll.
+                    streamPermits.release();
+                    userServerContext.getRequestQueue().offer(webRequestId);
+                    break;
+                }
+                WebRequest webRequest = userServerContext.getRequestSocketMap().get(webRequestId);
+                if (webRequest == null) {
+                    streamPermits.release();
+                } else {
+                    tunnelMetrics.recordPickup(userServerContext, webRequest);
+                    TunnelStream stream = new TunnelStream(lastStreamId.incrementAndGet(), webRequestId, webRequest, this);
+                    streams.put(stream.getStreamId(), stream);
+                    webRequest.setExpiredListener(() -> expireStream(stream));
+                    try {
+                        streamExecutor.execute(() -> sendWebRequest(stream));
+                    } catch (RejectedExecutionException e) {
+                        // Not sent to the tunnel client yet, so no need to reset it there.
+                        abortStream(stream, "Too many tunnel streams busy");
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            log.debug("Tunnel dispatcher interrupted for {}", userServerContext.getUserId());
+        } catch (IOException e) {
+            log.info("Tunnel dispatcher send error for {} - {}", userServerContext.getUserId(), e.getMessage());
+        } finally {
+            userServerContext.getActivePollCount().decrementAndGet();
+            synchronized (this) {
+                dispatcherThread = null;
+                // Do not leave an interrupt of close() behind for the next task on this executor thread.
+                Thread.interrupted();
+            }
+        }
+    }
+
+    private void pingIfIdle() throws IOException {
+        if (System.currentTimeMillis() - lastSendMs > PING_INTERVAL_MS) {
+            send(new PingMessage());
+        }
+    }
+
+    /**
+     * The stream is done (or aborted): remove it, and give back its permit. Returns false if it was removed already.
+     */
+    private boolean removeStream(TunnelStream stream) {
+        if (streams.remove(stream.getStreamId()) == null) {
+            return false;
+        }
+        streamPermits.release();
+        return true;
+    }
+
+    /**
+     * Send the web request headers and body to the tunnel client. Runs on a stream worker thread.
+     */
+    private void sendWebRequest(TunnelStream stream) {
+        WebRequest webRequest = stream.getWebRequest();
+        Headers webRequestHeaders = webRequest.getHeaders();
+        try {
+            setMdcContext(stream, Constants.STAGE_WEB_TO_APP_LISTEN);
+            String transferEncoding = webRequestHeaders.getHeaderValue(Constants.TRANSFER_ENCODING_HEADER);
+            boolean chunked = transferEncoding != null && transferEncoding.toLowerCase().contains("chunked");
+            if (chunked && userServerContext.getClientVersion() < Constants.CLIENT_VERSION_CHUNKED_REQUEST) {
+                // Old tunnel clients can not handle this, sorry...
+                removeStream(stream);
+                tunnelServer.sendErrorResponseToWeb(userServerContext, webRequest, stream.getWebRequestId(), "400 ILLEGAL_REQUEST", "Transfer-Encoding chunked not supported by tunnel client");
+                userServerContext.getRequestSocketMap().remove(stream.getWebRequestId());
+                return;
+            }
+            Integer webRequestBodyLength = webRequestHeaders.getContentLength();
+            if (chunked) {
+                webRequestHeaders.removeHeader(Constants.CONTENT_LENGTH_HEADER);
+            } else {
+                webRequestBodyLength = webRequestBodyLength == null ? 0 : webRequestBodyLength;
+                webRequestHeaders.setContentLength(webRequestBodyLength);
+            }
+            webRequestHeaders.setHeader(Constants.CONNECTION_HEADER, Constants.CONNECTION_CLOSE_VALUE);
+
+            byte[] headerBlock = webRequestHeaders.getSerialized();
+            send(TunnelFrame.toMessage(TunnelFrame.REQUEST, stream.getStreamId(), headerBlock, 0, headerBlock.length));
+            long bodyBytesCopied;
+            long copyStartNanos = System.nanoTime();
+            if (chunked) {
+                bodyBytesCopied = StreamHelper.chunkedStreamCopy(webRequest.getInputStream(), stream.getOutputStream(),
+                        Constants.DIRECTION_WEB_TO_APP_REQUEST, bufferPool);
+                webRequest.setRequestBodyRead(true);
+            } else {
+                bodyBytesCopied = StreamHelper.streamCopy(webRequest.getInputStream(), webRequestBodyLength, stream.getOutputStream(),
+                        Constants.DIRECTION_WEB_TO_APP_REQUEST, bufferPool);
+                webRequest.setRequestBodyRead(bodyBytesCopied == webRequestBodyLength);
+            }
+            send(TunnelFrame.toMessage(TunnelFrame.END, stream.getStreamId()));
+            tunnelMetrics.recordWebToAppCopy(userServerContext, webRequest, copyStartNanos, bodyBytesCopied);
+            MDC.put(Constants.MDC_WEB_TO_APP_BODY_BYTES, String.valueOf(bodyBytesCopied));
+            tunnelServer.getAccessLog().logHandled(log, "Handled webToAppRequest (websocket): {}, body bytes: {}", webRequestHeaders.getFirstLine(), bodyBytesCopied);
+        } catch (IOException e) {
+            log.error("webToAppRequest (websocket) error? {} / {}", stream.getWebRequestId(), e.getMessage());
+            resetStream(stream, "Web request error: " + e.getMessage());
+        } finally {
+            MDC.clear();
+        }
+    }
+
+    /**
+     * Send the app response from the tunnel client on to the web client. Runs on a stream worker thread.
+     */
+    private void relayAppResponse(TunnelStream stream) {
+        try {
+            setMdcContext(stream, Constants.STAGE_APP_TO_WEB_RESPONSE);
+            if (!tunnelServer.relayAppResponseToWeb(userServerContext, stream.getWebRequestId(), stream.getWebRequest(),
+                    new PrefixedInputStream(stream.getInputStream()), -1)) {
+                sendQuietly(TunnelFrame.reset(stream.getStreamId(), "Missing response headers?"));
+            }
+        } finally {
+            removeStream(stream);
+            userServerContext.setUserLastSeenNow();
+            MDC.clear();
+        }
+    }
+
+    /**
+     * Handle a frame from the tunnel client. This runs on the WebSocket receive thread, so it must not block.
+     */
+    void onFrame(TunnelFrame frame) throws IOException {
+        TunnelStream stream = streams.get(frame.streamId());
+        if (stream == null) {
+            // Stream was finished or aborted already, just ignore what's still underway.
+            log.debug("Frame type {} for unknown stream {}", frame.type(), frame.streamId());
+            return;
+        }
+        switch (frame.type()) {
+            case TunnelFrame.DATA -> {
+                try {
+                    stream.receive(frame.payload());
+                } catch (IOException e) {
+                    resetStream(stream, e.getMessage());
+                    return;
+                }
+                startAppResponse(stream);
+            }
+            case TunnelFrame.END -> {
+                stream.receiveEnd();
+                startAppResponse(stream);
+            }
+            case TunnelFrame.WINDOW -> stream.addSendWindow(frame.windowIncrement());
+            case TunnelFrame.RESET -> abortStream(stream, "Reset by tunnel client: " + frame.reason());
+            default -> throw new IOException("Unknown tunnel frame type " + frame.type());
+        }
+    }
+
+    private void startAppResponse(TunnelStream stream) {
+        if (stream.startResponse()) {
+            try {
+                streamExecutor.execute(() -> relayAppResponse(stream));
+            } catch (RejectedExecutionException e) {
+                sendQuietly(TunnelFrame.reset(stream.getStreamId(), "Too many tunnel streams busy"));
+                if (removeStream(stream)) {
+                    stream.reset("Too many tunnel streams busy");
+                    sendErrorResponse(stream, "Too many tunnel streams busy");
+                }
+            }
+        }
+    }
+
+    /**
+     * Abort the stream on both sides.
+     */
+    private void resetStream(TunnelStream stream, String reason) {
+        sendQuietly(TunnelFrame.reset(stream.getStreamId(), reason));
+        abortStream(stream, reason);
+    }
+
+    /**
+     * Abort the stream on our side. If the app response was not started yet, the web client gets an error response.
+     * Otherwise, the relay thread will notice the reset, and close the web connection.
+     */
+    private void abortStream(TunnelStream stream, String reason) {
+        if (!removeStream(stream)) {
+            return;
+        }
+        stream.reset(reason);
+        if (stream.startResponse()) {
+            sendErrorResponse(stream, reason);
+        }
+    }
+
+    /**
+     * Send the web client an error response. This is done async, the caller can be the WebSocket receive thread.
+     */
+    private void sendErrorResponse(TunnelStream stream, String reason) {
+        Map<String, String> callerMdcContext = MDC.getCopyOfContextMap();
+        try {
+            setMdcContext(stream, Constants.STAGE_APP_TO_WEB_RESPONSE);
+            userServerContext.getRequestSocketMap().remove(stream.getWebRequestId());
+            tunnelServer.sendErrorResponseToWebAsync(userServerContext, stream.getWebRequest(), stream.getWebRequestId(), "503 TUNNEL_RESET", reason);
+        } finally {
+            if (callerMdcContext == null) {
+                MDC.clear();
+            } else {
+                MDC.setContextMap(callerMdcContext);
+            }
+        }
+    }
+
+    /**
+     * The web request of the stream expired (see TunnelServer.expireWebRequest), and the web client gets a timeout
+     * error for it. Tell the tunnel client to stop working on it.
+     * Not if the app response has started already: the request timeout ends there, a streamed response may take as
+     * long as it needs (see WebRequest.startResponse).
+     */
+    private void expireStream(TunnelStream stream) {
+        if (!stream.startResponse()) {
+            return;
+        }
+        if (!removeStream(stream)) {
+            return;
+        }
+        sendQuietly(TunnelFrame.reset(stream.getStreamId(), "Request timeout"));
+        stream.reset("Request timeout");
+    }
+
+    private void sendQuietly(WebSocketMessage<?> message) {
+        try {
+            send(message);
+        } catch (IOException e) {
+            log.debug("Tunnel send error - {}", e.getMessage());
+        }
+    }
+
+    /**
+     * The WebSocket connection is gone. Abort all streams which are still busy, and stop the dispatcher.
+     */
+    void close() {
+        synchronized (this) {
+            open = false;
+            if (dispatcherThread != null) {
+                dispatcherThread.interrupt();
+            }
+        }
+        new ArrayList<>(streams.values()).forEach(stream -> abortStream(stream, "Tunnel connection closed"));
+    }
+
+    private void setMdcContext(TunnelStream stream, String stage) {
+        MDC.put(Constants.MDC_REQUEST_STAGE, stage);
+        MDC.put(Constants.MDC_USER_ID, userServerContext.getUserId());
+        MDC.put(Constants.MDC_TUNNEL_SERVER_PORT, String.valueOf(userServerContext.getServerPort()));
+        MDC.put(Constants.MDC_WEB_REQUEST_ID, stream.getWebRequestId());
+        MDC.put(Constants.MDC_REQUESTER, String.valueOf(stream.getWebRequest().getRemoteSocketAddress()));
+    }
+}
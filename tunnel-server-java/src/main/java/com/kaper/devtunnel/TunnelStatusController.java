@@ -3,13 +3,17 @@ package com.kaper.devtunnel;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import javax.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.servlet.ModelAndView;
 
 /**
@@ -19,9 +23,22 @@ import org.springframework.web.servlet.ModelAndView;
 @Controller
 public class TunnelStatusController {
     private final TunnelServer tunnelServer;
+    private final BufferPool bufferPool;
+    private final TunnelPortService tunnelPortService;
+    private final ResponseCache responseCache;
+    private final SingleFlight singleFlight;
+    private final RequestTracer requestTracer;
+    private final TrafficCapture trafficCapture;
 
-    public TunnelStatusController(TunnelServer tunnelServer) {
+    public TunnelStatusController(TunnelServer tunnelServer, BufferPool bufferPool, TunnelPortService tunnelPortService, ResponseCache responseCache,
+                                  SingleFlight singleFlight, RequestTracer requestTracer, TrafficCapture trafficCapture) {
         this.tunnelServer = tunnelServer;
+        this.bufferPool = bufferPool;
+        this.tunnelPortService = tunnelPortService;
+        this.responseCache = responseCache;
+        this.singleFlight = singleFlight;
+        this.requestTracer = requestTracer;
+        this.trafficCapture = trafficCapture;
     }
 
     @RequestMapping("/")
@@ -35,10 +52,10 @@ public class TunnelStatusController {
     @GetMapping("/status")
     public ModelAndView tunnelStatus() {
         List<ReportLine> report = new ArrayList<>();
-        HashMap<String, UserServerContext> mapCopy = tunnelServer.getCopyOfUserServerContextMap();
-        mapCopy.forEach((userId, userServerContext) -> report.add(
+        Map<String, UserServerContext> userServerContextMap = tunnelServer.getUserServerContextMap();
+        userServerContextMap.forEach((userId, userServerContext) -> report.add(
                 new ReportLine(
-                        userId, userServerContext.getServerPort(), userServerContext.getRequestQueue().size(), userServerContext.getRequestSocketMap().size(),
+                        userId, userServerContext.getServerPort(), userServerContext.getRouteName(), userServerContext.getRequestQueue().size(), userServerContext.getRequestSocketMap().size(),
                         userServerContext.getActivePollCount().get(), userServerContext.getRequestCount().get(), userServerContext.getTunnelErrorCount().get(),
                         new Date(userServerContext.getUserRegisteredTimestampMs()),
                         new Date(userServerContext.getUserLastSeenTimestampMs()),
@@ -56,12 +73,80 @@ public class TunnelStatusController {
             }
             return line2.lastSeenDate.compareTo(line1.lastSeenDate);
         });
-        return new ModelAndView("report").addObject("userCount", mapCopy.size()).addObject("report", report);
+        return new ModelAndView("report").addObject("userCount", report.size()).addObject("report", report)
+                .addObject("bufferStats", bufferPool.getStats()).addObject("portStats", tunnelPortService.getPortStats());
+    }
+
+    /**
+     * Copy buffer pool statistics (hit/miss/occupancy), to be able to size the heap.
+     */
+    @GetMapping("/status/buffers")
+    @ResponseBody
+    public BufferPool.Stats bufferPoolStatus() {
+        return bufferPool.getStats();
+    }
+
+    /**
+     * Port range usage: free ports, used ports, and used ports which can be reclaimed (users not seen recently).
+     */
+    @GetMapping("/status/ports")
+    @ResponseBody
+    public PortAllocator.Stats portStatus() {
+        return tunnelPortService.getPortStats();
+    }
+
+    /**
+     * Admission control: web requests in flight, how full the user queues are, and the number of refused requests.
+     */
+    @GetMapping("/status/admission")
+    @ResponseBody
+    public WebAdmission.Stats admissionStatus() {
+        return tunnelServer.getAdmissionStats();
+    }
+
+    /**
+     * Response cache per user: entries, bytes, and the hits / revalidations / misses since the user registered.
+     */
+    @GetMapping("/status/cache")
+    @ResponseBody
+    public List<ResponseCache.Stats> cacheStatus() {
+        return responseCache.getStats();
+    }
+
+    /**
+     * Single-flight coalescing of identical GET requests: leaders, coalesced and retried requests, coalescing ratio.
+     */
+    @GetMapping("/status/singleflight")
+    @ResponseBody
+    public SingleFlight.Stats singleFlightStatus() {
+        return singleFlight.getStats();
+    }
+
+    /**
+     * Drill-down for one user: where the time of its last web requests went (see RequestTracer.Stage). Percentiles per
+     * stage over all traced requests, and the last requests (newest first, at most limit). 404 if nothing was traced.
+     * Note: the "#" in a userId must be sent as "%23" in the url.
+     */
+    @GetMapping("/status/{userId}/requests")
+    @ResponseBody
+    public ResponseEntity<RequestTracer.UserTrace> userRequestTrace(@PathVariable String userId, @RequestParam(defaultValue = "50") int limit) {
+        RequestTracer.UserTrace userTrace = requestTracer.getUserTrace(userId, limit);
+        return userTrace == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(userTrace);
+    }
+
+    /**
+     * Traffic capture: the captured users, number of records, and how full the capture file is.
+     */
+    @GetMapping("/status/capture")
+    @ResponseBody
+    public TrafficCapture.Stats captureStatus() {
+        return trafficCapture.getStats();
     }
 
     public record ReportLine(
             String userId,
             int serverPort,
+            String routeName,
             int openRequests,
             int openConnections,
             int activePollCount,
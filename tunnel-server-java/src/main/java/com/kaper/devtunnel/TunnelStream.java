@@ -0,0 +1,203 @@
+package com.kaper.devtunnel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single web request which is handled over a WebSocket tunnel connection (see TunnelFrame).
+ * Keeps track of the flow control windows for both directions. The received app response data is buffered in here,
+ * until the relay thread reads it using getInputStream(). The web request body is sent using getOutputStream(),
+ * which blocks if the tunnel client did not give us enough window to send more.
+ */
+class TunnelStream {
+    /** Queue markers, for end of data, and for an aborted stream. */
+    private static final byte[] END_MARKER = new byte[0];
+    private static final byte[] RESET_MARKER = new byte[0];
+    /**
+     * Max time to wait for the tunnel client to give us window to send data, until the app response has started. After
+     * that, there is no max: a streamed response (server-sent-events, long-poll) can be quiet for a long time. Those
+     * waits end when the stream is reset (also when the tunnel connection closes), or when the web connection was closed.
+     */
+    private static final long WAIT_TIMEOUT_MS = 30000;
+    /** How often a wait looks if the web connection is still open. */
+    private static final long WAIT_CHECK_MS = 1000;
+
+    private final int streamId;
+    private final String webRequestId;
+    private final WebRequest webRequest;
+    private final TunnelSocketConnection connection;
+
+    private final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+    private final AtomicLong receiveWindow = new AtomicLong(TunnelFrame.STREAM_WINDOW_BYTES);
+    private final AtomicBoolean responseStarted = new AtomicBoolean();
+    private int sendWindow = TunnelFrame.STREAM_WINDOW_BYTES;
+    private volatile String resetReason;
+
+    TunnelStream(int streamId, String webRequestId, WebRequest webRequest, TunnelSocketConnection connection) {
+        this.streamId = streamId;
+        this.webRequestId = webRequestId;
+        this.webRequest = webRequest;
+        this.connection = connection;
+    }
+
+    int getStreamId() {
+        return streamId;
+    }
+
+    String getWebRequestId() {
+        return webRequestId;
+    }
+
+    WebRequest getWebRequest() {
+        return webRequest;
+    }
+
+    /**
+     * Mark the app response as started. Returns true only for the first call.
+     */
+    boolean startResponse() {
+        return responseStarted.compareAndSet(false, true);
+    }
+
+    /**
+     * Called for each DATA frame from the tunnel client. The client must stay within the window we gave it.
+     */
+    void receive(byte[] data) throws IOException {
+        if (receiveWindow.addAndGet(-data.length) < 0) {
+            throw new IOException("Tunnel client exceeded stream window");
+        }
+        if (data.length > 0) {
+            received.add(data);
+        }
+    }
+
+    void receiveEnd() {
+        received.add(END_MARKER);
+    }
+
+    /**
+     * Abort the stream. Any thread waiting for data or window on this stream will get an IOException.
+     */
+    void reset(String reason) {
+        synchronized (this) {
+            resetReason = reason;
+            notifyAll();
+        }
+        received.add(RESET_MARKER);
+    }
+
+    synchronized void addSendWindow(int increment) {
+        sendWindow += increment;
+        notifyAll();
+    }
+
+    /**
+     * Wait until we may send some bytes, and take up to the wanted number of bytes from the send window.
+     */
+    private synchronized int takeSendWindow(int wanted) throws IOException {
+        long deadline = System.currentTimeMillis() + WAIT_TIMEOUT_MS;
+        while (sendWindow <= 0 && resetReason == null) {
+            if (!responseStarted.get() && System.currentTimeMillis() >= deadline) {
+                throw new IOException("Timeout waiting for stream window");
+            }
+            if (!webRequest.getChannel().isOpen()) {
+                throw new IOException("Web connection closed while waiting for stream window");
+            }
+            try {
+                wait(WAIT_CHECK_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for stream window");
+            }
+        }
+        if (resetReason != null) {
+            throw new IOException("Stream reset: " + resetReason);
+        }
+        int count = Math.min(wanted, sendWindow);
+        sendWindow -= count;
+        return count;
+    }
+
+    InputStream getInputStream() {
+        return new ReceiveInputStream();
+    }
+
+    OutputStream getOutputStream() {
+        return new SendOutputStream();
+    }
+
+    /**
+     * Reads the DATA which was received from the tunnel client. After a DATA frame is read completely, the
+     * tunnel client gets a WINDOW frame to allow it to send the same amount again.
+     */
+    private class ReceiveInputStream extends InputStream {
+        private byte[] current = null;
+        private int position = 0;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (current == null || position >= current.length) {
+                if (current == END_MARKER) {
+                    return -1;
+                }
+                if (current == RESET_MARKER) {
+                    throw new IOException("Stream reset: " + resetReason);
+                }
+                if (current != null) {
+                    receiveWindow.addAndGet(current.length);
+                    connection.send(TunnelFrame.window(streamId, current.length));
+                }
+                try {
+                    // Only read once the app response has started, so no timeout here, see WAIT_TIMEOUT_MS.
+                    current = received.poll(WAIT_CHECK_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for stream data");
+                }
+                if (current == null && !webRequest.getChannel().isOpen()) {
+                    throw new IOException("Web connection closed while waiting for stream data");
+                }
+                position = 0;
+            }
+            int count = Math.min(length, current.length - position);
+            System.arraycopy(current, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+    }
+
+    /**
+     * Sends the written bytes as DATA frames to the tunnel client, within the window the client gave us.
+     */
+    private class SendOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                int count = takeSendWindow(Math.min(length, TunnelFrame.MAX_DATA_PAYLOAD));
+                connection.send(TunnelFrame.toMessage(TunnelFrame.DATA, streamId, buffer, offset, count));
+                offset += count;
+                length -= count;
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.kaper.devtunnel;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+
+/**
+ * Registers the WebSocket tunnel transport endpoint.
+ */
+@Configuration
+@EnableWebSocket
+public class TunnelWebSocketConfig implements WebSocketConfigurer {
+    private final TunnelWebSocketHandler tunnelWebSocketHandler;
+
+    public TunnelWebSocketConfig(TunnelWebSocketHandler tunnelWebSocketHandler) {
+        this.tunnelWebSocketHandler = tunnelWebSocketHandler;
+    }
+
+    @Override
+    public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+        registry.addHandler(tunnelWebSocketHandler, "/tunnel");
+    }
+}
@@ -0,0 +1,131 @@
+package com.kaper.devtunnel;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.BinaryWebSocketHandler;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+
+/**
+ * WebSocket tunnel transport endpoint. The tunnel client can use this instead of the GET/POST /data long-poll requests.
+ * The client first registers as usual (GET /register), and then opens a WebSocket on /tunnel, passing the same
+ * X-Tunnel-User-Id header. From then on, all web requests for that user are sent over the WebSocket as binary
+ * frames (see TunnelFrame), and the app responses are sent back over the same connection.
+ * The long-poll requests keep working next to this, as a fallback.
+ * The threads are bounded: each connection takes one dispatcher thread (max tunnel.websocket.maxConnections, more
+ * connections are refused), and the bodies of all streams are copied by a shared pool of
+ * tunnel.websocket.streamThreads threads, with a queue of tunnel.websocket.streamQueueSize waiting stream tasks.
+ * A streamed response holds its thread for as long as it runs, so one connection can have at most
+ * tunnel.websocket.maxStreamsPerConnection streams at a time. Otherwise a few users with many open event streams
+ * could take all threads, and stall the streams of everyone else.
+ */
+@Slf4j
+@Component
+public class TunnelWebSocketHandler extends BinaryWebSocketHandler {
+    private static final String CONNECTION_ATTRIBUTE = "tunnelConnection";
+    /** Max time one send may take, and max bytes buffered while another thread is sending. Above that, the connection is closed. */
+    private static final int SEND_TIME_LIMIT_MS = 30000;
+    private static final int SEND_BUFFER_SIZE_LIMIT = 16 * 1024 * 1024;
+
+    private final TunnelServer tunnelServer;
+    private final BufferPool bufferPool;
+    private final TunnelMetrics tunnelMetrics;
+    private final ThreadPoolExecutor dispatchExecutor;
+    private final ThreadPoolExecutor streamExecutor;
+    private final int maxStreamsPerConnection;
+
+    public TunnelWebSocketHandler(TunnelServer tunnelServer, BufferPool bufferPool, TunnelMetrics tunnelMetrics,
+                                  @Value("${tunnel.websocket.maxConnections:200}") int maxConnections,
+                                  @Value("${tunnel.websocket.streamThreads:64}") int streamThreads,
+                                  @Value("${tunnel.websocket.streamQueueSize:1000}") int streamQueueSize,
+                                  @Value("${tunnel.websocket.maxStreamsPerConnection:16}") int maxStreamsPerConnection) {
+        this.tunnelServer = tunnelServer;
+        this.bufferPool = bufferPool;
+        this.tunnelMetrics = tunnelMetrics;
+        this.dispatchExecutor = new ThreadPoolExecutor(0, maxConnections, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                runnable -> daemonThread(runnable, "Tunnel-WS-Dispatch"));
+        this.streamExecutor = new ThreadPoolExecutor(streamThreads, streamThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(streamQueueSize),
+                runnable -> daemonThread(runnable, "Tunnel-WS-Stream"));
+        this.streamExecutor.allowCoreThreadTimeOut(true);
+        this.maxStreamsPerConnection = maxStreamsPerConnection;
+    }
+
+    private static Thread daemonThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable);
+        thread.setName(name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) throws IOException {
+        String userId = session.getHandshakeHeaders().getFirst(Constants.X_TUNNEL_USER_ID);
+        UserServerContext userServerContext = tunnelServer.findRegisteredUserServerContext(userId);
+        if (userServerContext == null) {
+            log.info("WebSocket tunnel for unknown user {}", userId);
+            session.close(CloseStatus.POLICY_VIOLATION.withReason("Tunnel user not Found - Please restart tunnel client"));
+            return;
+        }
+        session.setBinaryMessageSizeLimit(TunnelFrame.HEADER_SIZE + TunnelFrame.MAX_PAYLOAD);
+        TunnelSocketConnection connection = new TunnelSocketConnection(
+                new ConcurrentWebSocketSessionDecorator(session, SEND_TIME_LIMIT_MS, SEND_BUFFER_SIZE_LIMIT),
+                userServerContext, tunnelServer, bufferPool, tunnelMetrics, streamExecutor, maxStreamsPerConnection);
+        session.getAttributes().put(CONNECTION_ATTRIBUTE, connection);
+        if (!connection.start(dispatchExecutor)) {
+            session.getAttributes().remove(CONNECTION_ATTRIBUTE);
+            log.warn("WebSocket tunnel refused for {}, already {} connections", userId, dispatchExecutor.getActiveCount());
+            session.close(CloseStatus.SERVICE_OVERLOAD.withReason("Too many tunnel connections - Use the long-poll requests"));
+            return;
+        }
+        try {
+            MDC.put(Constants.MDC_USER_ID, userId);
+            MDC.put(Constants.MDC_TUNNEL_SERVER_PORT, String.valueOf(userServerContext.getServerPort()));
+            log.info("WebSocket tunnel connected from {}", session.getRemoteAddress());
+        } finally {
+            MDC.clear();
+        }
+    }
+
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws IOException {
+        TunnelSocketConnection connection = (TunnelSocketConnection) session.getAttributes().get(CONNECTION_ATTRIBUTE);
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.onFrame(TunnelFrame.parse(message.getPayload()));
+        } catch (IOException e) {
+            log.warn("Invalid tunnel frame from {} - {}", connection.getUserServerContext().getUserId(), e.getMessage());
+            session.close(CloseStatus.BAD_DATA.withReason(e.getMessage()));
+        }
+    }
+
+    @Override
+    public void handleTransportError(WebSocketSession session, Throwable exception) {
+        log.info("WebSocket tunnel transport error - {}", exception.toString());
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        TunnelSocketConnection connection = (TunnelSocketConnection) session.getAttributes().remove(CONNECTION_ATTRIBUTE);
+        if (connection != null) {
+            connection.close();
+            try {
+                MDC.put(Constants.MDC_USER_ID, connection.getUserServerContext().getUserId());
+                MDC.put(Constants.MDC_TUNNEL_SERVER_PORT, String.valueOf(connection.getUserServerContext().getServerPort()));
+                log.info("WebSocket tunnel closed: {}", status);
+            } finally {
+                MDC.clear();
+            }
+        }
+    }
+}
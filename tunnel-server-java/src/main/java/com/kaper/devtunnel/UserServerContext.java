@@ -1,10 +1,10 @@
 package com.kaper.devtunnel;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.util.HashMap;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -12,25 +12,37 @@ import lombok.Data;
 
 /**
  * For each port we listen on, we will make an instance of this object.
+ * The request map and queue are used by many threads at the same time (selector, tomcat, timing wheel), so they are concurrent collections.
  */
 @Data
 public class UserServerContext {
     private String userId = null;
     private int clientVersion;
     private int serverPort = 0;
-    private ServerSocket serverSocket = null;
-    private Thread serverThread = null;
+    private ServerSocketChannel serverChannel = null;
+    /** Name to reach this user on the shared port (see SharedPortRouter), null if not used. */
+    private String routeName = null;
+    /**
+     * Changes on every registration (startListening), and is 0 when not registered. Used to find out if a running
+     * poller or liveness check still belongs to the current registration. The user might not have a server port of
+     * its own (only reachable by the shared port), so the serverChannel can not be used for that.
+     */
+    private volatile long registrationNumber = 0;
 
     private AtomicLong requestCount = new AtomicLong();
     private AtomicInteger activePollCount = new AtomicInteger();
     private AtomicInteger tunnelErrorCount = new AtomicInteger();
 
-    private Map<String, WebRequest> requestSocketMap = new HashMap<>();
+    private Map<String, WebRequest> requestSocketMap = new ConcurrentHashMap<>();
     private BlockingQueue<String> requestQueue = new LinkedBlockingQueue<>(200);
 
     private long userRegisteredTimestampMs = System.currentTimeMillis();
-    private long userLastSeenTimestampMs = System.currentTimeMillis();
+    private volatile long userLastSeenTimestampMs = System.currentTimeMillis();
     private long lastSeenTimeoutMs = 1000 * 30;
+    /** Max time a web request may wait for the app response. Set on registration, see TunnelServer.applyTimeouts. */
+    private long requestTimeoutMs = 1000 * 30;
+    /** The pending liveness check of this user on the TimingWheel. */
+    private volatile TimingWheel.Timeout livenessTimeout;
 
     public void setUserLastSeenNow() {
         userLastSeenTimestampMs = System.currentTimeMillis();
@@ -40,14 +52,29 @@ public class UserServerContext {
         return (System.currentTimeMillis() - userLastSeenTimestampMs <= lastSeenTimeoutMs);
     }
 
+    public boolean isRegistered() {
+        return registrationNumber != 0;
+    }
+
     public void terminate() {
+        terminateRequests();
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * End the registration, and drop the open requests. Leaves the server channel open, so it can be handed over to
+     * the next registration of this user (see TunnelServer.endRegistration).
+     */
+    public void terminateRequests() {
+        registrationNumber = 0;
         requestQueue.clear();
         getRequestSocketMap().forEach((userId, socket) -> socket.close());
         requestSocketMap.clear();
-        try {
-            serverSocket.close();
-        } catch (IOException ex) {
-            // ignore
-        }
     }
 }
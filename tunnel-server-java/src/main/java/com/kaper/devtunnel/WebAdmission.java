@@ -0,0 +1,117 @@
+package com.kaper.devtunnel;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Admission control for web requests. There are two limits:
+ * - per user, the number of web requests waiting for pickup by a tunnel client (the size of the request queue).
+ * - over all users, the number of web requests in flight (queued, or busy being handled by a tunnel client).
+ * A web request over either limit is refused right away with a "503" and a "Retry-After" header, without waiting for
+ * room in the queue, and without using a thread for it (see WebSelectorEngine.reject). So a user with a stuck or slow
+ * app can not fill up the server, and a burst can not make the server run out of threads or memory.
+ * An admitted web request gives back its in-flight slot when it is done (see WebRequest.cancelExpiry).
+ */
+@Component
+public class WebAdmission {
+    private final int maxQueuedPerUser;
+    private final int maxInFlight;
+    private final int retryAfterSeconds;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong userQueueFullCount = new AtomicLong();
+    private final AtomicLong inFlightLimitCount = new AtomicLong();
+
+    public WebAdmission(@Value("${tunnel.admission.maxQueuedPerUser:200}") int maxQueuedPerUser,
+                        @Value("${tunnel.admission.maxInFlight:10000}") int maxInFlight,
+                        @Value("${tunnel.admission.retryAfterSeconds:1}") int retryAfterSeconds) {
+        this.maxQueuedPerUser = Math.max(1, maxQueuedPerUser);
+        this.maxInFlight = maxInFlight;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * A new (empty) request queue for a user, bounded by tunnel.admission.maxQueuedPerUser.
+     */
+    public BlockingQueue<String> newRequestQueue() {
+        return new LinkedBlockingQueue<>(maxQueuedPerUser);
+    }
+
+    /**
+     * Take an in-flight slot for the web request. Returns false if the global limit is reached (0 = no limit).
+     * The slot is given back when the web request is done.
+     */
+    public boolean admit(WebRequest webRequest) {
+        if (inFlight.incrementAndGet() > maxInFlight && maxInFlight > 0) {
+            inFlight.decrementAndGet();
+            inFlightLimitCount.incrementAndGet();
+            return false;
+        }
+        webRequest.setAdmissionRelease(inFlight::decrementAndGet);
+        return true;
+    }
+
+    /**
+     * A web request was refused, as the queue of its user was full.
+     */
+    public void countUserQueueFull() {
+        userQueueFullCount.incrementAndGet();
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getUserQueueFullCount() {
+        return userQueueFullCount.get();
+    }
+
+    public long getInFlightLimitCount() {
+        return inFlightLimitCount.get();
+    }
+
+    /**
+     * How full the fullest user queue is, from 0 (all empty) to 1 (at least one user refuses requests).
+     */
+    public double getQueueSaturation(Map<String, UserServerContext> userServerContextMap) {
+        int fullest = 0;
+        for (UserServerContext userServerContext : userServerContextMap.values()) {
+            fullest = Math.max(fullest, userServerContext.getRequestQueue().size());
+        }
+        return (double) fullest / maxQueuedPerUser;
+    }
+
+    public Stats getStats(Map<String, UserServerContext> userServerContextMap) {
+        int saturatedUsers = 0;
+        for (UserServerContext userServerContext : userServerContextMap.values()) {
+            if (userServerContext.getRequestQueue().remainingCapacity() == 0) {
+                saturatedUsers++;
+            }
+        }
+        return new Stats(inFlight.get(), maxInFlight, maxQueuedPerUser, getQueueSaturation(userServerContextMap), saturatedUsers,
+                userQueueFullCount.get(), inFlightLimitCount.get());
+    }
+
+    /**
+     * Admission statistics. queueSaturation is the fill ratio of the fullest user queue, saturatedUsers the number of
+     * users of which the queue is full right now. The rejected counts are totals since the start.
+     */
+    public record Stats(
+            int inFlight,
+            int maxInFlight,
+            int maxQueuedPerUser,
+            double queueSaturation,
+            int saturatedUsers,
+            long rejectedUserQueueFull,
+            long rejectedInFlightLimit
+    ) {
+    }
+}
@@ -1,49 +1,353 @@
 package com.kaper.devtunnel;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Container class for having the web request communication Socket, it's headers, and a start timestamp (to allow us to clean-up expired requests).
+ * Container class for having the web request communication Socket, it's headers, and the expiry timeout (to allow us to clean-up expired requests).
  */
 public class WebRequest {
-    private final Socket socket;
+    private final SocketChannel channel;
     private final Headers headers;
-    private final long requestStartedMs = System.currentTimeMillis();
+    private final PrefixedInputStream inputStream;
+    private final SocketAddress remoteSocketAddress;
+    private final int connectionRequestNumber;
+    private final boolean keepAliveRequested;
+    private final boolean sharedPort;
+    private volatile TimingWheel.Timeout expiry;
+    private volatile Runnable expiredListener;
+    /** Gives back the in-flight slot of this request (see WebAdmission), run once when the request is done. */
+    private final AtomicReference<Runnable> admissionRelease = new AtomicReference<>();
+    /** System.nanoTime() of queueing and of pickup by a tunnel client (0 if not yet), for the metrics. */
+    private volatile long queuedNanos;
+    private volatile long pickedUpNanos;
+    /** System.nanoTime() of the first request byte, of the complete header block, of the request sent to the tunnel client,
+     * and of the start of the app response (0 if not yet), for the RequestTracer. */
+    private final long firstByteNanos;
+    private final long createdNanos;
+    private volatile long requestSentNanos;
+    private volatile long appResponseNanos;
+    private volatile long webToAppBytes;
+    /** The response as sent to the web client, and how it was made, for the RequestTracer and AccessLog. */
+    private volatile int responseStatus;
+    private volatile RequestTracer.Source responseSource = RequestTracer.Source.ERROR;
+    private volatile long appToWebBytes;
+    private final AtomicBoolean finished = new AtomicBoolean();
+    /** Set by the one who sends the response: the app response relay, or an error response. See startResponse. */
+    private final AtomicBoolean responseStarted = new AtomicBoolean();
+    private boolean requestBodyRead = false;
+    /** The single-flight of which this request is the leader (see SingleFlight), null if none. */
+    private final AtomicReference<SingleFlight.Flight> flight = new AtomicReference<>();
+    /** Set if the response can be stored in the ResponseCache (and the stale entry it revalidates, if any). */
+    private volatile ResponseCache.CacheRequest cacheRequest;
+    /** Set if the request is captured (see TrafficCapture). */
+    private volatile TrafficCapture.Recording recording;
 
     /**
-     * Constructor, will read the header lines from the input stream, but will not read the body.
+     * Constructor, gets the header lines as read by the WebSelectorEngine, but does not read the body.
+     * Any body bytes which were read together with the headers are kept as prefix for the input stream.
      * The body will be left to the TunnelDataController to stream from/to the tunnel-client.
+     * The channel must be in blocking mode already.
+     * The connectionRequestNumber tells how many requests were done on this connection (keep-alive), starting at 1.
+     * The sharedPort flag tells if the request came in on the shared port (see SharedPortRouter).
+     * The firstByteNanos is the System.nanoTime() at which the first byte of the request came in (0 if not known).
      */
-    public WebRequest(Socket socket) throws IOException {
-        this.socket = socket;
-        socket.setSoTimeout(10000);
-        this.headers = new Headers(socket.getInputStream());
-        socket.setSoTimeout(30000);
-        // If we see an "Expect: 100-continue" line, handle it now (saying "OK"), and remove it.
-        // We are not going to ask the application, as that would need an extra request/response round-trip.
+    public WebRequest(SocketChannel channel, Headers headers, byte[] overread, int overreadOffset, int overreadLength, int connectionRequestNumber,
+                      boolean sharedPort, long firstByteNanos) throws IOException {
+        this.createdNanos = System.nanoTime();
+        this.firstByteNanos = firstByteNanos != 0 ? firstByteNanos : createdNanos;
+        this.channel = channel;
+        this.headers = headers;
+        this.connectionRequestNumber = connectionRequestNumber;
+        this.sharedPort = sharedPort;
+        // Check this now, as the Connection header is changed before the request is sent to the app.
+        this.keepAliveRequested = checkKeepAliveRequested(headers);
+        this.remoteSocketAddress = channel.socket().getRemoteSocketAddress();
+        channel.socket().setSoTimeout(30000);
+        // If we see an "Expect: 100-continue" line, we say "OK" ourselves, and remove it. We are not going to ask the
+        // application, as that would need an extra request/response round-trip.
+        // The "OK" is only sent on the first read of the body from the socket. That is done by the thread which streams
+        // the body, and not by the selector thread which creates this object (a blocking write there, to a client which
+        // does not read, would hold up all connections of that selector).
+        InputStream socketInputStream = channel.socket().getInputStream();
         String expect = headers.getHeaderValue("Expect");
         if (expect != null && expect.equalsIgnoreCase("100-continue")) {
             headers.removeHeader("Expect");
-            socket.getOutputStream().write("HTTP/1.1 100 Continue\n\n".getBytes());
-            socket.getOutputStream().flush();
+            socketInputStream = new ContinueInputStream(socketInputStream);
         }
+        this.inputStream = new PrefixedInputStream(overread, overreadOffset, overreadLength, socketInputStream);
     }
 
     public void setSoTimeout(int timeoutMs) {
         try {
-            socket.setSoTimeout(timeoutMs);
+            channel.socket().setSoTimeout(timeoutMs);
         } catch (SocketException e) {
             // ignore
         }
     }
 
-    public boolean wasStartedTooLongAgo() {
-        return (System.currentTimeMillis() - requestStartedMs > (1000 * 30));
+    /**
+     * The timeout which terminates this request if it takes too long. Cancelled when the response starts (see
+     * startResponse), or when the request is finished.
+     */
+    public void setExpiry(TimingWheel.Timeout expiry) {
+        this.expiry = expiry;
+    }
+
+    /**
+     * Called (async) when the expiry timeout fires, next to the timeout error response to the web client. Used to stop
+     * the work on a request which is still busy in a WebSocket tunnel stream.
+     */
+    public void setExpiredListener(Runnable expiredListener) {
+        this.expiredListener = expiredListener;
+    }
+
+    public Runnable getExpiredListener() {
+        return expiredListener;
+    }
+
+    /**
+     * Called when the request is done: the response was sent (or an error), or the connection is closed.
+     * This also gives back the in-flight slot of the request, and sends on the followers of a single-flight which did
+     * not get the response of this request.
+     */
+    public void cancelExpiry() {
+        TimingWheel.Timeout timeout = expiry;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        Runnable release = admissionRelease.getAndSet(null);
+        if (release != null) {
+            release.run();
+        }
+        SingleFlight.Flight abandonedFlight = flight.getAndSet(null);
+        if (abandonedFlight != null) {
+            abandonedFlight.abandon();
+        }
+    }
+
+    /**
+     * Claim the sending of the response: only one of the app response and an error response (timeout, user offline)
+     * may go out, as the web client could get an error in the middle of the response body otherwise.
+     * This also stops the request timeout. Once the app response is on its way, a streamed response (chunked,
+     * server-sent-events, long-poll) may take as long as the app needs. The in-flight slot is still held until the
+     * request is done (see cancelExpiry).
+     * Returns false if the response was started already by someone else.
+     */
+    public boolean startResponse() {
+        if (!responseStarted.compareAndSet(false, true)) {
+            return false;
+        }
+        TimingWheel.Timeout timeout = expiry;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        return true;
+    }
+
+    public boolean isResponseStarted() {
+        return responseStarted.get();
+    }
+
+    public void setAdmissionRelease(Runnable release) {
+        admissionRelease.set(release);
+    }
+
+    public void markQueued() {
+        queuedNanos = System.nanoTime();
+        pickedUpNanos = 0;
+    }
+
+    /**
+     * Mark the pickup by a tunnel client. Returns the time spent in the queue, or -1 if it was picked up already.
+     */
+    public long markPickedUp() {
+        if (pickedUpNanos != 0 || queuedNanos == 0) {
+            return -1;
+        }
+        pickedUpNanos = System.nanoTime();
+        return pickedUpNanos - queuedNanos;
+    }
+
+    public long getPickedUpNanos() {
+        return pickedUpNanos;
+    }
+
+    public long getQueuedNanos() {
+        return queuedNanos;
+    }
+
+    public long getFirstByteNanos() {
+        return firstByteNanos;
+    }
+
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    /**
+     * Mark the request (headers and body) as sent to the tunnel client.
+     */
+    public void markRequestSent(long bodyBytes) {
+        webToAppBytes = bodyBytes;
+        requestSentNanos = System.nanoTime();
+    }
+
+    public long getRequestSentNanos() {
+        return requestSentNanos;
+    }
+
+    public long getWebToAppBytes() {
+        return webToAppBytes;
+    }
+
+    /**
+     * Mark the start of the app response. Returns the System.nanoTime() of it.
+     */
+    public long markAppResponse() {
+        appResponseNanos = System.nanoTime();
+        return appResponseNanos;
+    }
+
+    public long getAppResponseNanos() {
+        return appResponseNanos;
+    }
+
+    /**
+     * Keep the response status, how the response was made, and the number of body bytes sent, for the RequestTracer.
+     */
+    public void setResponse(int status, RequestTracer.Source source, long bodyBytes) {
+        this.responseStatus = status;
+        this.responseSource = source;
+        this.appToWebBytes = bodyBytes;
+    }
+
+    public int getResponseStatus() {
+        return responseStatus;
+    }
+
+    public RequestTracer.Source getResponseSource() {
+        return responseSource;
+    }
+
+    public long getAppToWebBytes() {
+        return appToWebBytes;
+    }
+
+    /**
+     * Returns true only the first time, so a request is traced and logged once, whichever way it ends.
+     */
+    boolean markFinished() {
+        return finished.compareAndSet(false, true);
+    }
+
+    /**
+     * Did the web client ask to keep the connection open after this request?
+     */
+    public boolean isKeepAliveRequested() {
+        return keepAliveRequested;
+    }
+
+    /**
+     * HTTP/1.1 is persistent by default, unless it says "Connection: close". Older versions are not kept open.
+     */
+    private static boolean checkKeepAliveRequested(Headers headers) {
+        String firstLine = headers.getFirstLine();
+        if (firstLine == null || !firstLine.endsWith("HTTP/1.1")) {
+            return false;
+        }
+        String connection = headers.getHeaderValue(Constants.CONNECTION_HEADER);
+        return connection == null || !connection.toLowerCase().contains(Constants.CONNECTION_CLOSE_VALUE);
+    }
+
+    public boolean isSharedPort() {
+        return sharedPort;
+    }
+
+    public int getConnectionRequestNumber() {
+        return connectionRequestNumber;
+    }
+
+    /**
+     * Mark the request body as fully read. Only then the connection can be re-used for a next request.
+     */
+    public void setRequestBodyRead(boolean requestBodyRead) {
+        this.requestBodyRead = requestBodyRead;
+    }
+
+    public boolean isRequestBodyRead() {
+        return requestBodyRead;
+    }
+
+    void setFlight(SingleFlight.Flight flight) {
+        this.flight.set(flight);
+    }
+
+    /**
+     * Take the single-flight of which this request is the leader, to share its response. Null if none.
+     */
+    SingleFlight.Flight takeFlight() {
+        return flight.getAndSet(null);
+    }
+
+    void setCacheRequest(ResponseCache.CacheRequest cacheRequest) {
+        this.cacheRequest = cacheRequest;
+    }
+
+    ResponseCache.CacheRequest getCacheRequest() {
+        return cacheRequest;
+    }
+
+    void setRecording(TrafficCapture.Recording recording) {
+        this.recording = recording;
+    }
+
+    TrafficCapture.Recording getRecording() {
+        return recording;
+    }
+
+    /**
+     * Write a complete response (header block and body) using one gathering write, so a small response leaves in one
+     * packet, instead of a header packet followed by a body packet which waits for the ack of the first one.
+     */
+    public void writeResponse(byte[] headerBlock, byte[] body) throws IOException {
+        writeResponse(headerBlock, body, 0, body.length);
+    }
+
+    private void writeResponse(byte[] headerBlock, byte[] body, int offset, int length) throws IOException {
+        ByteBuffer[] buffers = {ByteBuffer.wrap(headerBlock), ByteBuffer.wrap(body, offset, length)};
+        while (buffers[0].hasRemaining() || buffers[1].hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    /**
+     * Output stream for a streamed response: the header block is sent together with the first block of the body, in
+     * one gathering write (like writeResponse). If there is no body, the header block is sent on flush.
+     */
+    public OutputStream getResponseOutputStream(byte[] headerBlock) throws IOException {
+        return new ResponseOutputStream(headerBlock, getOutputStream());
+    }
+
+    /**
+     * Get the connection of this request, together with any bytes already read after this request, so the next
+     * request on the same (keep-alive) connection can be read. Do not use this WebRequest anymore after calling this.
+     */
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    byte[] takeUnreadBytes() {
+        return inputStream.takePrefix();
     }
 
     public Headers getHeaders() {
@@ -51,22 +355,90 @@ public class WebRequest {
     }
 
     public SocketAddress getRemoteSocketAddress() {
-        return socket.getRemoteSocketAddress();
+        return remoteSocketAddress;
     }
 
-    public InputStream getInputStream() throws IOException {
-        return socket.getInputStream();
+    public PrefixedInputStream getInputStream() {
+        return inputStream;
     }
 
     public OutputStream getOutputStream() throws IOException {
-        return socket.getOutputStream();
+        return channel.socket().getOutputStream();
     }
 
     public void close() {
+        cancelExpiry();
         try {
-            socket.close();
+            channel.close();
         } catch (IOException e) {
             // ignore close issues
         }
     }
+
+    /**
+     * Sends the "100 Continue" interim response to the web client right before the first read of the request body.
+     */
+    private class ContinueInputStream extends FilterInputStream {
+        private boolean continueSent = false;
+
+        ContinueInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            sendContinue();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            sendContinue();
+            return super.read(buffer, offset, length);
+        }
+
+        private void sendContinue() throws IOException {
+            if (!continueSent) {
+                continueSent = true;
+                OutputStream outputStream = getOutputStream();
+                outputStream.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                outputStream.flush();
+            }
+        }
+    }
+
+    private class ResponseOutputStream extends OutputStream {
+        private final OutputStream out;
+        /** The header block, until it is sent. */
+        private byte[] headerBlock;
+
+        ResponseOutputStream(byte[] headerBlock, OutputStream out) {
+            this.headerBlock = headerBlock;
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            if (headerBlock != null) {
+                byte[] headers = headerBlock;
+                headerBlock = null;
+                writeResponse(headers, buffer, offset, length);
+                return;
+            }
+            out.write(buffer, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (headerBlock != null) {
+                write(new byte[0], 0, 0);
+            }
+            out.flush();
+        }
+    }
 }
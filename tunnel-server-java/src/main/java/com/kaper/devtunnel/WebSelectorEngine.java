@@ -0,0 +1,585 @@
+package com.kaper.devtunnel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Non-blocking listener for all user server ports.
+ * A small fixed set of selector threads accepts the web connections for all ports, and reads the request headers
+ * when data is available. A slow (or idle) web client therefore does not hold up any other request.
+ * As soon as the full header block is in, the connection is switched to blocking mode, and handed over to the
+ * WebRequestHandler (the TunnelServer), which queues it for pickup by the tunnel client.
+ * After a response is sent, a keep-alive connection is given back to the engine using resume(), to wait for the
+ * next request on it. Pipelined requests, which were already read, are handed over again right away.
+ * Requests which are refused (see WebAdmission) are also given back to the engine, to send the error response and
+ * close the connection without blocking a thread (see reject).
+ * Next to the user ports, there can be one shared port (see SharedPortRouter). Requests from that port are handed
+ * over without a UserServerContext, the handler has to find the user from the request headers.
+ * In cluster mode, the ports of other replicas can be opened as forwarded ports: their connections are passed on right
+ * after the accept, without reading anything (see ClusterPortRelay).
+ */
+@Slf4j
+@Component
+public class WebSelectorEngine {
+    private static final int INITIAL_HEADER_BUFFER_SIZE = 4096;
+    /** Max number of request body bytes we read and drop for a rejected request, before just closing the connection. */
+    private static final int MAX_REJECT_DRAIN_BYTES = 1024 * 1024;
+    /** Max time unbind waits for the selector to release the port. A select never takes long after a wakeup. */
+    private static final long UNBIND_WAIT_MS = 1000;
+
+    private final SelectorLoop[] selectorLoops;
+    private final long headerReadTimeoutMs;
+    private final long keepAliveIdleTimeoutMs;
+    private final int keepAliveMaxRequests;
+    private volatile WebRequestHandler webRequestHandler;
+
+    /**
+     * Callback for fully read web request headers. The userServerContext is null for requests from the shared port.
+     */
+    public interface WebRequestHandler {
+        void handle(UserServerContext userServerContext, WebRequest webRequest);
+    }
+
+    /**
+     * Callback for accepted connections on a forwarded port (see bindForward).
+     */
+    public interface ConnectionForwarder {
+        void forward(SocketChannel channel);
+    }
+
+    public WebSelectorEngine(@Value("${tunnel.selectorThreads:2}") int selectorThreads,
+            @Value("${tunnel.headerReadTimeoutMs:10000}") long headerReadTimeoutMs,
+            @Value("${tunnel.keepAlive.idleTimeoutMs:15000}") long keepAliveIdleTimeoutMs,
+            @Value("${tunnel.keepAlive.maxRequests:100}") int keepAliveMaxRequests) throws IOException {
+        this.headerReadTimeoutMs = headerReadTimeoutMs;
+        this.keepAliveIdleTimeoutMs = keepAliveIdleTimeoutMs;
+        this.keepAliveMaxRequests = keepAliveMaxRequests;
+        this.selectorLoops = new SelectorLoop[Math.max(1, selectorThreads)];
+        for (int i = 0; i < selectorLoops.length; i++) {
+            selectorLoops[i] = new SelectorLoop(Selector.open());
+            Thread thread = new Thread(selectorLoops[i]);
+            thread.setName("Selector-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void setWebRequestHandler(WebRequestHandler webRequestHandler) {
+        this.webRequestHandler = webRequestHandler;
+    }
+
+    /**
+     * Open the server port of the user, and start accepting connections on it.
+     * Binding is done on the calling thread, so bind errors can be reported back to the registration.
+     */
+    public void bind(UserServerContext userServerContext) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(userServerContext.getServerPort()));
+            serverChannel.configureBlocking(false);
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        userServerContext.setServerChannel(serverChannel);
+        SelectorLoop loop = loopFor(userServerContext.getServerPort());
+        loop.execute(() -> {
+            try {
+                serverChannel.register(loop.selector, SelectionKey.OP_ACCEPT, userServerContext);
+            } catch (ClosedChannelException e) {
+                log.debug("Server channel for port {} closed before it was registered", userServerContext.getServerPort());
+            }
+        });
+    }
+
+    /**
+     * Open the shared port, on which the web requests for all users can come in.
+     */
+    public void bindShared(int port) throws IOException {
+        bindPort(port, null);
+    }
+
+    /**
+     * Open a port of which the connections are not handled here, but passed on as they are to the connection forwarder.
+     * Used in cluster mode, for the ports of other replicas. The forwarder is called on the selector thread, with the
+     * accepted channel in blocking mode, and must hand it off to another thread.
+     */
+    public void bindForward(int port, ConnectionForwarder connectionForwarder) throws IOException {
+        bindPort(port, connectionForwarder);
+    }
+
+    private void bindPort(int port, Object attachment) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        SelectorLoop loop = loopFor(port);
+        loop.execute(() -> {
+            try {
+                serverChannel.register(loop.selector, SelectionKey.OP_ACCEPT, attachment);
+            } catch (ClosedChannelException e) {
+                log.debug("Server channel for port {} closed before it was registered", port);
+            }
+        });
+    }
+
+    /**
+     * Stop accepting connections on the server port of the user.
+     * A channel registered with a selector is only really closed (and the port released by the operating system) on
+     * the next select of that selector. So we wait for that select (normally a few ms), after which the port can be
+     * bound again right away (SO_REUSEADDR), by the next owner of the port, or by the same user registering again.
+     */
+    public void unbind(UserServerContext userServerContext) {
+        ServerSocketChannel serverChannel = userServerContext.getServerChannel();
+        if (serverChannel == null) {
+            return;
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        SelectorLoop loop = loopFor(userServerContext.getServerPort());
+        if (Thread.currentThread() == loop.thread) {
+            // Can not wait for ourselves, the port is released on our next select.
+            return;
+        }
+        CountDownLatch released = new CountDownLatch(1);
+        loop.execute(() -> loop.afterSelect.add(released::countDown));
+        try {
+            if (!released.await(UNBIND_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                log.warn("Selector did not release port {} within {} ms", userServerContext.getServerPort(), UNBIND_WAIT_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Responses are written as a few large writes (see WebRequest.getResponseOutputStream), so we do not want Nagle's
+     * algorithm to hold back the last small part of a response until the web client acks the previous one. On a
+     * kept-alive connection, that would cost a delayed-ack timeout (40ms+) per request.
+     */
+    private static void setNoDelay(SocketChannel channel) {
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            log.debug("Could not set TCP_NODELAY: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Can the connection of this request be kept open after the response? Set tunnel.keepAlive.maxRequests to 0 to disable keep-alive.
+     */
+    public boolean isKeepAliveAllowed(WebRequest webRequest) {
+        return webRequest.getConnectionRequestNumber() < keepAliveMaxRequests && webRequest.isKeepAliveRequested() && webRequest.isRequestBodyRead();
+    }
+
+    public long getKeepAliveIdleTimeoutMs() {
+        return keepAliveIdleTimeoutMs;
+    }
+
+    /**
+     * Give a keep-alive connection back, after its response was sent completely. We start waiting for the next request
+     * on it. Any bytes which were already read after the previous request are the start of that next request.
+     */
+    public void resume(UserServerContext userServerContext, WebRequest previousRequest) {
+        if (previousRequest.isSharedPort()) {
+            // The next request on this connection can be for another user, it will be routed again.
+            userServerContext = null;
+        }
+        UserServerContext nextUserServerContext = userServerContext;
+        SocketChannel channel = previousRequest.getChannel();
+        byte[] unreadBytes = previousRequest.takeUnreadBytes();
+        int requestNumber = previousRequest.getConnectionRequestNumber() + 1;
+        try {
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            log.debug("Could not resume keep-alive connection: {}", e.getMessage());
+            previousRequest.close();
+            return;
+        }
+        SelectorLoop loop = loopFor(channel.socket().getLocalPort());
+        loop.execute(() -> loop.resume(nextUserServerContext, channel, unreadBytes, requestNumber));
+    }
+
+    /**
+     * Refuse a web request, without using a thread for it: the (small) error response is written in non-blocking
+     * mode, after which the connection is closed. Nobody reads the request body, so before closing, we read and drop
+     * what the web client still sends (up to a limit, and at most headerReadTimeoutMs long) until it closes its side.
+     * Otherwise, the unread data would make the close a connection reset, and the client might not see the response.
+     */
+    public void reject(WebRequest webRequest, byte[] response) {
+        webRequest.cancelExpiry();
+        SocketChannel channel = webRequest.getChannel();
+        SelectorLoop loop = loopFor(channel.socket().getLocalPort());
+        loop.execute(() -> loop.reject(channel, ByteBuffer.wrap(response)));
+    }
+
+    private SelectorLoop loopFor(int port) {
+        return selectorLoops[Math.floorMod(port, selectorLoops.length)];
+    }
+
+    /**
+     * State of a web connection for which we are still collecting the header block.
+     */
+    private static class PendingConnection {
+        /** The user of the port, null for the shared port. */
+        private final UserServerContext userServerContext;
+        private final SocketChannel channel;
+        private final long deadlineMs;
+        private final int requestNumber;
+        /** System.nanoTime() of the first byte of the request, 0 if none came in yet. */
+        private long firstByteNanos;
+        private ByteBuffer buffer;
+        private int scanPosition = 0;
+        private int headerEnd = -1;
+        private boolean done = false;
+
+        PendingConnection(UserServerContext userServerContext, SocketChannel channel, long deadlineMs, int requestNumber, byte[] unreadBytes) {
+            this.userServerContext = userServerContext;
+            this.channel = channel;
+            this.deadlineMs = deadlineMs;
+            this.requestNumber = requestNumber;
+            this.buffer = ByteBuffer.allocate(Math.max(INITIAL_HEADER_BUFFER_SIZE, Integer.highestOneBit(unreadBytes.length) * 2));
+            this.buffer.put(unreadBytes);
+            if (unreadBytes.length > 0) {
+                this.firstByteNanos = System.nanoTime();
+            }
+        }
+
+        /**
+         * Look for the "\r\n\r\n" end of header marker in the newly read data.
+         */
+        boolean findHeaderEnd() {
+            headerEnd = HeaderParser.findHeaderEnd(buffer.array(), scanPosition, buffer.position());
+            scanPosition = buffer.position();
+            return headerEnd > 0;
+        }
+
+        void close() {
+            done = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * State of a refused web connection: first the error response is written, then the rest of the request is
+     * dropped until the client closes the connection.
+     */
+    private static class RejectedConnection {
+        private final SocketChannel channel;
+        private final ByteBuffer response;
+        private final long deadlineMs;
+        private long drainedBytes = 0;
+        private boolean done = false;
+
+        RejectedConnection(SocketChannel channel, ByteBuffer response, long deadlineMs) {
+            this.channel = channel;
+            this.response = response;
+            this.deadlineMs = deadlineMs;
+        }
+
+        /**
+         * Continue writing the response, or reading and dropping the request data. Returns true when the response is
+         * written, and we only wait for data to drop.
+         */
+        boolean proceed(ByteBuffer dropBuffer) {
+            try {
+                if (response.hasRemaining()) {
+                    channel.write(response);
+                    if (response.hasRemaining()) {
+                        return false;
+                    }
+                    channel.shutdownOutput();
+                }
+                int bytesRead;
+                while ((bytesRead = channel.read(dropBuffer.clear())) > 0) {
+                    drainedBytes += bytesRead;
+                    if (drainedBytes > MAX_REJECT_DRAIN_BYTES) {
+                        close();
+                        return true;
+                    }
+                }
+                if (bytesRead < 0) {
+                    close();
+                }
+            } catch (IOException e) {
+                close();
+            }
+            return true;
+        }
+
+        void close() {
+            done = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * A single selector thread, handling accept and header reads for a subset of the ports.
+     */
+    private class SelectorLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        /** Connections waiting for headers, in order of arrival, so also in order of deadline. */
+        private final ArrayDeque<PendingConnection> pendingConnections = new ArrayDeque<>();
+        /** Same, but for kept-alive connections, which have their own (idle) timeout. */
+        private final ArrayDeque<PendingConnection> idleConnections = new ArrayDeque<>();
+        /** Connections with a full header block, of which the key is cancelled, waiting to be switched to blocking mode. */
+        private final List<PendingConnection> handoffs = new ArrayList<>();
+        /** Refused connections, in order of deadline. */
+        private final ArrayDeque<RejectedConnection> rejectedConnections = new ArrayDeque<>();
+        /** Where the data of refused connections is read into, and dropped. Only used on this thread. */
+        private final ByteBuffer dropBuffer = ByteBuffer.allocate(16384);
+
+        /** Runs the tasks in afterSelect, after the next select (so after the closed channels are really closed). */
+        private final List<Runnable> afterSelect = new ArrayList<>();
+        private volatile Thread thread;
+
+        SelectorLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (true) {
+                try {
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    // A cancelled key is only really removed from the selector on the next select. So if we have any
+                    // hand-offs waiting, do a non-blocking select first, to be able to switch those to blocking mode.
+                    if (handoffs.isEmpty() && afterSelect.isEmpty()) {
+                        selector.select(Math.min(1000, headerReadTimeoutMs));
+                    } else {
+                        selector.selectNow();
+                        completeHandoffs();
+                        afterSelect.forEach(Runnable::run);
+                        afterSelect.clear();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.attachment() instanceof RejectedConnection rejected) {
+                            if (rejected.proceed(dropBuffer) && !rejected.done) {
+                                key.interestOps(SelectionKey.OP_READ);
+                            }
+                        } else if (key.isAcceptable()) {
+                            accept(key);
+                        } else if (key.isReadable()) {
+                            read(key);
+                        }
+                    }
+                    expirePendingConnections();
+                } catch (Exception e) {
+                    // whatever happens, we never want to stop the selector, so just log and continue.
+                    log.error("Error in selector loop?", e);
+                }
+            }
+        }
+
+        private void accept(SelectionKey key) {
+            if (key.attachment() instanceof ConnectionForwarder connectionForwarder) {
+                forward(key, connectionForwarder);
+                return;
+            }
+            UserServerContext userServerContext = (UserServerContext) key.attachment();
+            ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+            SocketChannel channel;
+            try {
+                // Accept a limited batch, to not starve the other ports on this selector.
+                for (int i = 0; i < 64 && (channel = serverChannel.accept()) != null; i++) {
+                    setNoDelay(channel);
+                    channel.configureBlocking(false);
+                    PendingConnection pending = new PendingConnection(userServerContext, channel, System.currentTimeMillis() + headerReadTimeoutMs, 1, new byte[0]);
+                    channel.register(selector, SelectionKey.OP_READ, pending);
+                    pendingConnections.add(pending);
+                }
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    log.warn("Error in accept() on port {}: {}", serverChannel.socket().getLocalPort(), e.getMessage());
+                }
+            }
+        }
+
+        private void forward(SelectionKey key, ConnectionForwarder connectionForwarder) {
+            ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+            SocketChannel channel;
+            try {
+                for (int i = 0; i < 64 && (channel = serverChannel.accept()) != null; i++) {
+                    setNoDelay(channel);
+                    connectionForwarder.forward(channel);
+                }
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    log.warn("Error in accept() on forwarded port {}: {}", serverChannel.socket().getLocalPort(), e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Start waiting for the next request on a kept-alive connection. If the already read bytes contain a full
+         * header block (pipelining), it is handed over directly.
+         */
+        void resume(UserServerContext userServerContext, SocketChannel channel, byte[] unreadBytes, int requestNumber) {
+            PendingConnection pending = new PendingConnection(userServerContext, channel, System.currentTimeMillis() + keepAliveIdleTimeoutMs, requestNumber, unreadBytes);
+            if (userServerContext != null && !userServerContext.isRegistered()) {
+                // The tunnel was closed in the mean time.
+                pending.close();
+                return;
+            }
+            if (pending.findHeaderEnd()) {
+                handoffs.add(pending);
+                return;
+            }
+            try {
+                channel.register(selector, SelectionKey.OP_READ, pending);
+                idleConnections.add(pending);
+            } catch (ClosedChannelException e) {
+                pending.close();
+            }
+        }
+
+        /**
+         * Start refusing a connection (see WebSelectorEngine.reject). The channel has no key on this selector anymore.
+         */
+        void reject(SocketChannel channel, ByteBuffer response) {
+            RejectedConnection rejected = new RejectedConnection(channel, response, System.currentTimeMillis() + headerReadTimeoutMs);
+            try {
+                channel.configureBlocking(false);
+                // Mostly, the response fits in the socket buffer right away, and we only need to wait for data to drop.
+                boolean responseWritten = rejected.proceed(dropBuffer);
+                if (!rejected.done) {
+                    channel.register(selector, responseWritten ? SelectionKey.OP_READ : SelectionKey.OP_WRITE, rejected);
+                    rejectedConnections.add(rejected);
+                }
+            } catch (IOException e) {
+                rejected.close();
+            }
+        }
+
+        private void read(SelectionKey key) {
+            PendingConnection pending = (PendingConnection) key.attachment();
+            try {
+                int bytesRead;
+                while ((bytesRead = pending.channel.read(pending.buffer)) > 0) {
+                    if (pending.firstByteNanos == 0) {
+                        pending.firstByteNanos = System.nanoTime();
+                    }
+                    if (pending.findHeaderEnd()) {
+                        key.cancel();
+                        handoffs.add(pending);
+                        return;
+                    }
+                    if (!pending.buffer.hasRemaining()) {
+                        if (pending.buffer.capacity() >= HeaderParser.MAX_HEADER_SIZE) {
+                            log.warn("Request headers too large, closing connection from {}", pending.channel.getRemoteAddress());
+                            pending.close();
+                            return;
+                        }
+                        ByteBuffer larger = ByteBuffer.allocate(Math.min(HeaderParser.MAX_HEADER_SIZE, pending.buffer.capacity() * 2));
+                        pending.buffer.flip();
+                        larger.put(pending.buffer);
+                        pending.buffer = larger;
+                    }
+                }
+                if (bytesRead < 0) {
+                    // this happens when a browser keeps an open connection, but does not send data, and closes it unused.
+                    log.debug("Connection closed before request headers were complete ({} bytes)", pending.buffer.position());
+                    pending.close();
+                }
+            } catch (IOException e) {
+                log.debug("Error reading request headers: {}", e.getMessage());
+                pending.close();
+            }
+        }
+
+        /**
+         * Switch the connections with a complete header block to blocking mode, and pass them on.
+         */
+        private void completeHandoffs() {
+            for (PendingConnection pending : handoffs) {
+                pending.done = true;
+                try {
+                    pending.channel.configureBlocking(true);
+                    byte[] data = pending.buffer.array();
+                    Headers headers = HeaderParser.parse(data, 0, pending.headerEnd);
+                    WebRequest webRequest = new WebRequest(pending.channel, headers, data, pending.headerEnd, pending.buffer.position() - pending.headerEnd,
+                            pending.requestNumber, pending.userServerContext == null, pending.firstByteNanos);
+                    pending.buffer = null;
+                    webRequestHandler.handle(pending.userServerContext, webRequest);
+                } catch (Exception e) {
+                    log.warn("Error handing off web request: {}", e.getMessage());
+                    pending.close();
+                }
+            }
+            handoffs.clear();
+        }
+
+        /**
+         * Close connections which did not send their headers in time (slow or idle clients).
+         */
+        private void expirePendingConnections() {
+            long now = System.currentTimeMillis();
+            expire(pendingConnections, now, "Request header read timeout");
+            expire(idleConnections, now, "Keep-alive idle timeout");
+            while (!rejectedConnections.isEmpty() && (rejectedConnections.peek().done || rejectedConnections.peek().deadlineMs <= now)) {
+                rejectedConnections.poll().close();
+            }
+        }
+
+        private void expire(ArrayDeque<PendingConnection> connections, long now, String reason) {
+            while (!connections.isEmpty() && (connections.peek().done || connections.peek().deadlineMs <= now)) {
+                PendingConnection pending = connections.poll();
+                if (!pending.done) {
+                    log.debug("{} for port {}", reason, pending.channel.socket().getLocalPort());
+                    pending.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.kaper.devtunnel;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared bits for the benchmarks: realistic header blocks, and quiet logging.
+ */
+final class BenchmarkSupport {
+    private BenchmarkSupport() {
+        // no instances, just a helper class.
+    }
+
+    /**
+     * The benchmarks run outside of spring, so logback would log everything at debug level. We only want errors.
+     */
+    static void quietLogging() {
+        ((Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).setLevel(Level.ERROR);
+    }
+
+    /**
+     * A request header block as a browser sends it.
+     * - small: a plain GET, like for a static resource.
+     * - cookies: a GET with a few kB of cookies, like on an app with tracking and session cookies.
+     * - many-x: a POST with many X- headers, like between services behind a gateway (tracing, correlation, auth).
+     */
+    static byte[] requestHeaders(String headerSet) {
+        StringBuilder headers = new StringBuilder();
+        switch (headerSet) {
+            case "small" -> headers.append("GET /static/js/main.3f2a9c.js HTTP/1.1\r\n")
+                    .append("Host: localhost:9000\r\n")
+                    .append("User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:106.0) Gecko/20100101 Firefox/106.0\r\n")
+                    .append("Accept: */*\r\n")
+                    .append("Accept-Encoding: gzip, deflate, br\r\n")
+                    .append("Connection: keep-alive\r\n");
+            case "cookies" -> {
+                headers.append("GET /api/customer/orders?page=2&size=50 HTTP/1.1\r\n")
+                        .append("Host: localhost:9000\r\n")
+                        .append("User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/107.0.0.0 Safari/537.36\r\n")
+                        .append("Accept: application/json, text/plain, */*\r\n")
+                        .append("Accept-Language: nl-NL,nl;q=0.9,en-US;q=0.8,en;q=0.7\r\n")
+                        .append("Referer: http://localhost:9000/customer/orders\r\n")
+                        .append("Cookie: ");
+                for (int i = 0; i < 24; i++) {
+                    headers.append(i == 0 ? "" : "; ").append("cookie_").append(i).append('=').append(randomText(160));
+                }
+                headers.append("\r\n").append("Connection: keep-alive\r\n");
+            }
+            case "many-x" -> {
+                headers.append("POST /api/v2/shipments/12345/labels HTTP/1.1\r\n")
+                        .append("Host: localhost:9000\r\n")
+                        .append("Content-Type: application/json\r\n")
+                        .append("Content-Length: 0\r\n")
+                        .append("Authorization: Bearer ").append(randomText(800)).append("\r\n");
+                for (int i = 0; i < 40; i++) {
+                    headers.append("X-Gateway-Info-").append(i).append(": ").append(randomText(40)).append("\r\n");
+                }
+                headers.append("X-Correlation-Id: ").append(randomText(36)).append("\r\n")
+                        .append("X-Request-Id: ").append(randomText(36)).append("\r\n")
+                        .append("X-B3-TraceId: ").append(randomText(32)).append("\r\n")
+                        .append("X-Forwarded-For: 10.1.2.3, 10.4.5.6\r\n");
+            }
+            default -> throw new IllegalArgumentException("Unknown header set " + headerSet);
+        }
+        return headers.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String randomText(int length) {
+        String chars = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append(chars.charAt(ThreadLocalRandom.current().nextInt(chars.length())));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,79 @@
+package com.kaper.devtunnel;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Header handling as done for every web request and app response: parse a header block (from bytes, and from a
+ * stream like the app response), change some headers like the tunnel does, and serialize the result again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeadersBenchmark {
+    @Param({"small", "cookies", "many-x"})
+    private String headerSet;
+
+    private byte[] headerBlock;
+    private Headers parsedHeaders;
+    private BufferPool bufferPool;
+
+    @Setup
+    public void setup() {
+        BenchmarkSupport.quietLogging();
+        headerBlock = BenchmarkSupport.requestHeaders(headerSet);
+        parsedHeaders = HeaderParser.parse(headerBlock, 0, headerBlock.length);
+        bufferPool = new BufferPool(16 * 1024 * 1024);
+    }
+
+    @Benchmark
+    public Headers parse() {
+        return HeaderParser.parse(headerBlock, 0, headerBlock.length);
+    }
+
+    @Benchmark
+    public Headers readFromStream() {
+        return HeaderParser.read(new PrefixedInputStream(new ByteArrayInputStream(headerBlock)), bufferPool);
+    }
+
+    @Benchmark
+    public String lookup() {
+        return parsedHeaders.getHeaderValue(Constants.TRANSFER_ENCODING_HEADER);
+    }
+
+    /**
+     * Parse, change the headers like we do before sending a request to the app, and serialize.
+     */
+    @Benchmark
+    public byte[] parseModifySerialize() {
+        Headers headers = HeaderParser.parse(headerBlock, 0, headerBlock.length);
+        Integer contentLength = headers.getContentLength();
+        headers.setContentLength(contentLength == null ? 0 : contentLength);
+        headers.setHeader(Constants.CONNECTION_HEADER, Constants.CONNECTION_CLOSE_VALUE);
+        return headers.getSerialized();
+    }
+
+    /**
+     * Serialize headers which were not changed since parsing (the raw block is re-used).
+     */
+    @Benchmark
+    public int sendUnchanged() {
+        Headers headers = HeaderParser.parse(headerBlock, 0, headerBlock.length);
+        headers.sendHeaderLines(new StreamHelper.DevNullOutputStream(), Constants.DIRECTION_WEB_TO_APP_REQUEST);
+        return headers.sendHeaderLineByteCount();
+    }
+}
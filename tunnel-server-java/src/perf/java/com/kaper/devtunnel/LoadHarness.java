@@ -0,0 +1,436 @@
+package com.kaper.devtunnel;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * End-to-end load test: boots the real tunnel server on loopback, registers a number of simulated tunnel clients
+ * (speaking the /register + /data long-poll protocol, client version 1), each with its own in-process echo app (like
+ * test-servers/echo-service.py, but it just echoes the request body), and drives web traffic at the assigned ports.
+ * All scenarios (the combinations of keepAlive and wanLatencyMs) run one after the other on the same server, and per
+ * scenario you get the throughput, latency percentiles, and the errors per kind.
+ * Run it with: ./mvnw -Pperf test-compile exec:exec@load-test -Dload.args="users=20 webClients=64"
+ * Settings (key=value arguments, defaults between brackets):
+ * - users (10): number of simulated tunnel users, each gets a port from startPort (19000) onwards.
+ * - pollersPerUser (2): number of parallel long-polls per tunnel client.
+ * - webClients (32): number of concurrent web clients, spread over the users. Each sends its next request as soon as
+ *   it has the previous response (closed loop), so this is the concurrency, not a rate.
+ * - bodySizes (0:70,4096:25,262144:5): request body size mix, as size:weight. The echo app returns the same size.
+ * - keepAlive (true,false): web connections re-used or not, a scenario for each value.
+ * - wanLatencyMs (0,40): round trip time between tunnel client and server, which we add as delay in the simulated
+ *   tunnel client (half before forwarding a request to the app, half before posting the response), a scenario for each.
+ * - warmupSeconds (3) / durationSeconds (10): per scenario, only the requests after the warmup are counted.
+ */
+public final class LoadHarness {
+    private final Map<String, String> settings = new LinkedHashMap<>();
+    private final HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5)).build();
+    private final List<TunnelUser> tunnelUsers = new ArrayList<>();
+    private String serverUrl;
+    private volatile boolean pollersRunning = true;
+    private volatile int wanLatencyMs;
+
+    private LoadHarness(String[] args) {
+        settings.put("users", "10");
+        settings.put("pollersPerUser", "2");
+        settings.put("webClients", "32");
+        settings.put("bodySizes", "0:70,4096:25,262144:5");
+        settings.put("keepAlive", "true,false");
+        settings.put("wanLatencyMs", "0,40");
+        settings.put("warmupSeconds", "3");
+        settings.put("durationSeconds", "10");
+        settings.put("startPort", "19000");
+        for (String arg : args) {
+            String[] keyValue = arg.split("=", 2);
+            if (keyValue.length != 2 || !settings.containsKey(keyValue[0])) {
+                throw new IllegalArgumentException("Unknown setting " + arg + ", known settings: " + settings.keySet());
+            }
+            settings.put(keyValue[0], keyValue[1]);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadHarness(args).run();
+        // The spring context and the (daemon) pollers are gone, but make sure nothing keeps the JVM alive.
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        System.out.println("Settings: " + settings);
+        int users = intSetting("users");
+        int startPort = intSetting("startPort");
+        ConfigurableApplicationContext context = SpringApplication.run(DevtunnelApplication.class,
+                "--server.port=0",
+                "--spring.profiles.active=tst",
+                "--logging.level.root=WARN",
+                "--logging.level.com.kaper=WARN",
+                // Long-polls which are still waiting get interrupted at shutdown, which tomcat logs as errors and leaks.
+                "--logging.level.org.apache.catalina=OFF",
+                "--tunnel.startPort=" + startPort,
+                "--tunnel.endPort=" + (startPort + users - 1));
+        try {
+            serverUrl = "http://localhost:" + ((ServletWebServerApplicationContext) context).getWebServer().getPort();
+            for (int i = 0; i < users; i++) {
+                tunnelUsers.add(startTunnelUser("load-" + i + "@localhost:8888#" + i));
+            }
+            List<String> results = new ArrayList<>();
+            for (String keepAlive : settings.get("keepAlive").split(",")) {
+                for (String latency : settings.get("wanLatencyMs").split(",")) {
+                    wanLatencyMs = Integer.parseInt(latency.trim());
+                    results.add(runScenario(Boolean.parseBoolean(keepAlive.trim())));
+                }
+            }
+            System.out.println();
+            results.forEach(System.out::println);
+        } finally {
+            pollersRunning = false;
+            for (TunnelUser tunnelUser : tunnelUsers) {
+                send(HttpRequest.newBuilder(URI.create(serverUrl + "/close")).header(Constants.X_TUNNEL_USER_ID, tunnelUser.userId).GET());
+                tunnelUser.app.stop(0);
+                tunnelUser.appExecutor.shutdownNow();
+            }
+            context.close();
+        }
+    }
+
+    /**
+     * Run the web clients for one scenario, and return the report.
+     */
+    private String runScenario(boolean keepAlive) throws InterruptedException {
+        String name = "keepAlive=" + keepAlive + " wanLatencyMs=" + wanLatencyMs;
+        System.out.println("Running scenario " + name + "...");
+        long warmupEndNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(intSetting("warmupSeconds"));
+        long endNanos = warmupEndNanos + TimeUnit.SECONDS.toNanos(intSetting("durationSeconds"));
+        int[] bodySizes = bodySizeMix();
+        List<WebClient> webClients = new ArrayList<>();
+        for (int i = 0; i < intSetting("webClients"); i++) {
+            WebClient webClient = new WebClient(tunnelUsers.get(i % tunnelUsers.size()).serverPort, keepAlive, bodySizes, warmupEndNanos, endNanos);
+            webClient.setName("Load-Web-Client-" + i);
+            webClient.start();
+            webClients.add(webClient);
+        }
+        Stats total = new Stats();
+        for (WebClient webClient : webClients) {
+            webClient.join();
+            total.add(webClient.stats);
+        }
+        return total.report(name, intSetting("durationSeconds"));
+    }
+
+    private TunnelUser startTunnelUser(String userId) throws IOException, InterruptedException {
+        TunnelUser tunnelUser = new TunnelUser(userId);
+        HttpResponse<byte[]> response = send(HttpRequest.newBuilder(URI.create(serverUrl + "/register"))
+                .header(Constants.X_TUNNEL_USER_ID, userId)
+                .header(Constants.X_TUNNEL_CLIENT_VERSION, "1")
+                .GET());
+        String serverPort = response.headers().firstValue(Constants.X_TUNNEL_SERVER_PORT).orElse(null);
+        if (response.statusCode() != 200 || serverPort == null) {
+            throw new IllegalStateException("Register of " + userId + " failed: " + response.statusCode() + " " + new String(response.body()));
+        }
+        tunnelUser.serverPort = Integer.parseInt(serverPort);
+        for (int i = 0; i < intSetting("pollersPerUser"); i++) {
+            Thread poller = new Thread(() -> poll(tunnelUser));
+            poller.setName("Load-Poller-" + tunnelUser.serverPort + "-" + i);
+            poller.setDaemon(true);
+            poller.start();
+        }
+        return tunnelUser;
+    }
+
+    /**
+     * The simulated tunnel client: long-poll for a web request, forward it to the app, and post the app response
+     * (which returns the next web request).
+     */
+    private void poll(TunnelUser tunnelUser) {
+        HttpResponse<byte[]> pollResponse = null;
+        while (pollersRunning) {
+            try {
+                String webRequestId = pollResponse == null ? null : pollResponse.headers().firstValue(Constants.X_TUNNEL_WEB_REQUEST_ID).orElse(null);
+                if (webRequestId == null) {
+                    if (pollResponse != null && pollResponse.statusCode() != 204) {
+                        Thread.sleep(100);
+                    }
+                    pollResponse = send(HttpRequest.newBuilder(URI.create(serverUrl + "/data"))
+                            .header(Constants.X_TUNNEL_USER_ID, tunnelUser.userId)
+                            .GET());
+                    continue;
+                }
+                sleep(wanLatencyMs / 2);
+                byte[] appResponse = forwardToApp(tunnelUser.app.getAddress().getPort(), pollResponse.body());
+                sleep(wanLatencyMs - wanLatencyMs / 2);
+                pollResponse = send(HttpRequest.newBuilder(URI.create(serverUrl + "/data"))
+                        .header(Constants.X_TUNNEL_USER_ID, tunnelUser.userId)
+                        .header(Constants.X_TUNNEL_WEB_REQUEST_ID, webRequestId)
+                        .header("Content-Type", "application/octet-stream")
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(appResponse)));
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                // Server side error, or shutting down. Start a new poll.
+                pollResponse = null;
+            }
+        }
+    }
+
+    /**
+     * Send the raw web request to the app, and read the raw response. The server did set "Connection: close", so the
+     * app closes the connection after the response.
+     */
+    private static byte[] forwardToApp(int appPort, byte[] webRequest) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), appPort)) {
+            socket.getOutputStream().write(webRequest);
+            socket.getOutputStream().flush();
+            return socket.getInputStream().readAllBytes();
+        }
+    }
+
+    private HttpResponse<byte[]> send(HttpRequest.Builder request) throws IOException, InterruptedException {
+        return httpClient.send(request.timeout(Duration.ofSeconds(90)).build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private static void sleep(int millis) throws InterruptedException {
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    private int intSetting(String key) {
+        return Integer.parseInt(settings.get(key).trim());
+    }
+
+    /**
+     * The body size mix, as a table of 100 sizes to pick from at random.
+     */
+    private int[] bodySizeMix() {
+        List<int[]> sizeWeights = new ArrayList<>();
+        int totalWeight = 0;
+        for (String sizeWeight : settings.get("bodySizes").split(",")) {
+            String[] parts = sizeWeight.trim().split(":");
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+            sizeWeights.add(new int[]{Integer.parseInt(parts[0]), weight});
+            totalWeight += weight;
+        }
+        int[] table = new int[100];
+        int index = 0;
+        for (int[] sizeWeight : sizeWeights) {
+            int count = Math.max(1, sizeWeight[1] * table.length / totalWeight);
+            for (int i = 0; i < count && index < table.length; i++) {
+                table[index++] = sizeWeight[0];
+            }
+        }
+        // Rounding leftovers go to the last size.
+        Arrays.fill(table, index, table.length, sizeWeights.get(sizeWeights.size() - 1)[0]);
+        return table;
+    }
+
+    /**
+     * One simulated tunnel user: the registration, and its echo app.
+     */
+    private static class TunnelUser {
+        private final String userId;
+        private final HttpServer app;
+        private final ExecutorService appExecutor = Executors.newFixedThreadPool(8);
+        private int serverPort;
+
+        TunnelUser(String userId) throws IOException {
+            this.userId = userId;
+            this.app = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 64);
+            app.createContext("/", exchange -> {
+                byte[] body = exchange.getRequestBody().readAllBytes();
+                exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+                exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            app.setExecutor(appExecutor);
+            app.start();
+        }
+    }
+
+    /**
+     * A web client, which keeps sending requests to one user port, until the end of the scenario.
+     */
+    private static class WebClient extends Thread {
+        private final int port;
+        private final boolean keepAlive;
+        private final int[] bodySizes;
+        private final long warmupEndNanos;
+        private final long endNanos;
+        private final Stats stats = new Stats();
+        private Socket socket;
+        private InputStream in;
+
+        WebClient(int port, boolean keepAlive, int[] bodySizes, long warmupEndNanos, long endNanos) {
+            this.port = port;
+            this.keepAlive = keepAlive;
+            this.bodySizes = bodySizes;
+            this.warmupEndNanos = warmupEndNanos;
+            this.endNanos = endNanos;
+        }
+
+        @Override
+        public void run() {
+            byte[] body = new byte[Arrays.stream(bodySizes).max().orElse(0)];
+            ThreadLocalRandom.current().nextBytes(body);
+            long startNanos;
+            while ((startNanos = System.nanoTime()) < endNanos) {
+                int bodySize = bodySizes[ThreadLocalRandom.current().nextInt(bodySizes.length)];
+                String error = null;
+                try {
+                    error = sendRequest(body, bodySize);
+                } catch (ConnectException e) {
+                    error = "connect failed";
+                } catch (SocketTimeoutException e) {
+                    error = "read timeout";
+                } catch (IOException e) {
+                    error = e.getClass().getSimpleName() + ": " + e.getMessage();
+                }
+                if (error != null) {
+                    closeSocket();
+                }
+                if (startNanos >= warmupEndNanos) {
+                    stats.record(System.nanoTime() - startNanos, error);
+                }
+            }
+            closeSocket();
+        }
+
+        /**
+         * Send one request, and read the response. Returns null if all is fine, or else the kind of error.
+         */
+        private String sendRequest(byte[] body, int bodySize) throws IOException {
+            if (socket == null) {
+                socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(60000);
+                in = new BufferedInputStream(socket.getInputStream(), 65536);
+            }
+            OutputStream out = socket.getOutputStream();
+            out.write(("POST /echo HTTP/1.1\r\nHost: localhost:" + port + "\r\nContent-Type: application/octet-stream\r\nContent-Length: "
+                    + bodySize + "\r\nConnection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(body, 0, bodySize);
+            out.flush();
+
+            String[] headerLines = readHeaderBlock().split("\r\n");
+            Integer contentLength = null;
+            boolean closing = !keepAlive;
+            for (String line : headerLines) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Length")) {
+                    contentLength = Integer.parseInt(line.substring(colon + 1).trim());
+                } else if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Connection")) {
+                    closing |= line.substring(colon + 1).trim().equalsIgnoreCase("close");
+                }
+            }
+            long received = contentLength == null ? in.transferTo(OutputStream.nullOutputStream()) : contentLength;
+            if (contentLength != null) {
+                in.skipNBytes(contentLength);
+            }
+            if (closing || contentLength == null) {
+                closeSocket();
+            }
+            // "HTTP/1.1 503 TIMEOUT" -> "503 TIMEOUT"
+            String status = headerLines[0].substring(headerLines[0].indexOf(' ') + 1);
+            if (!status.startsWith("200")) {
+                return status;
+            }
+            return received == bodySize ? null : "wrong body size";
+        }
+
+        private String readHeaderBlock() throws IOException {
+            StringBuilder headers = new StringBuilder();
+            int matched = 0;
+            while (matched < 4) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new IOException(headers.length() == 0 ? "connection closed" : "connection closed in headers");
+                }
+                headers.append((char) b);
+                matched = (b == '\r' && (matched == 0 || matched == 2)) || (b == '\n' && (matched == 1 || matched == 3)) ? matched + 1 : 0;
+            }
+            return headers.toString();
+        }
+
+        private void closeSocket() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore, we are done with it.
+                }
+                socket = null;
+            }
+        }
+    }
+
+    /**
+     * Latencies (nanos) of all counted requests, and the errors per kind.
+     */
+    private static class Stats {
+        private long[] latencies = new long[1024];
+        private int count;
+        private final Map<String, Integer> errors = new TreeMap<>();
+
+        void record(long latencyNanos, String error) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latencyNanos;
+            if (error != null) {
+                errors.merge(error, 1, Integer::sum);
+            }
+        }
+
+        void add(Stats other) {
+            for (int i = 0; i < other.count; i++) {
+                record(other.latencies[i], null);
+            }
+            other.errors.forEach((error, errorCount) -> errors.merge(error, errorCount, Integer::sum));
+        }
+
+        String report(String name, int durationSeconds) {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            int errorCount = errors.values().stream().mapToInt(Integer::intValue).sum();
+            return String.format("%-35s requests: %7d  req/s: %8.1f  p50: %8.2f ms  p99: %8.2f ms  p999: %8.2f ms  max: %8.2f ms  errors: %d %s",
+                    name, count, (double) count / durationSeconds, percentile(sorted, 0.50), percentile(sorted, 0.99),
+                    percentile(sorted, 0.999), percentile(sorted, 1.0), errorCount, errors.isEmpty() ? "" : errors);
+        }
+
+        private static double percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+            return sorted[Math.max(0, index)] / 1_000_000.0;
+        }
+    }
+}
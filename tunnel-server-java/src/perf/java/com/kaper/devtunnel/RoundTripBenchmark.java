@@ -0,0 +1,180 @@
+package com.kaper.devtunnel;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * One web request through the whole tunnel, in-process: a web client sends a request on a keep-alive connection to the
+ * user port, the WebSelectorEngine and TunnelServer queue it, a fake tunnel client picks it up using the
+ * TunnelDataController long-poll (GET /data), and posts the fake app response (POST /data), which is relayed back to
+ * the web client. The web side uses a real loopback socket, the tunnel client side calls the controller directly with
+ * mock servlet requests (so no tomcat in between).
+ * Reports throughput and latency percentiles (sample mode). Run with "-prof gc" for the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Threads(1)
+@Fork(1)
+public class RoundTripBenchmark {
+    private static final String USER_ID = "bench@localhost:3000#1";
+    private static final int APP_RESPONSE_BODY_SIZE = 2048;
+
+    @Param({"0", "65536"})
+    private int requestBodySize;
+
+    private TunnelServerFixture fixture;
+    private TunnelServer tunnelServer;
+    private TunnelDataController tunnelDataController;
+    private UserServerContext userServerContext;
+    private Thread tunnelClientThread;
+    private volatile boolean running = true;
+    private byte[] appResponse;
+    private byte[] webRequest;
+    private Socket webSocket;
+    private OutputStream webOut;
+    private InputStream webIn;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchmarkSupport.quietLogging();
+        fixture = new TunnelServerFixture()
+                .bufferPool(64 * 1024 * 1024)
+                .webSelectorEngine(new WebSelectorEngine(2, 10000, 60000, Integer.MAX_VALUE))
+                .responseCache(true, 33554432, 2097152)
+                .singleFlight(false, 2097152)
+                .bodyCompression(true, 1024);
+        tunnelServer = fixture.tunnelServer();
+        tunnelDataController = fixture.tunnelDataController();
+        userServerContext = fixture.startUser(USER_ID);
+        userServerContext.setClientVersion(1);
+
+        byte[] appBody = new byte[APP_RESPONSE_BODY_SIZE];
+        appResponse = concat(("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nContent-Length: " + appBody.length + "\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1), appBody);
+        webRequest = concat(("POST /api/orders HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/octet-stream\r\nContent-Length: "
+                + requestBodySize + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1), new byte[requestBodySize]);
+
+        tunnelClientThread = new Thread(this::runTunnelClient);
+        tunnelClientThread.setName("Fake-Tunnel-Client");
+        tunnelClientThread.setDaemon(true);
+        tunnelClientThread.start();
+
+        webSocket = new Socket("localhost", userServerContext.getServerPort());
+        webSocket.setTcpNoDelay(true);
+        webSocket.setSoTimeout(10000);
+        webOut = webSocket.getOutputStream();
+        webIn = new BufferedInputStream(webSocket.getInputStream(), 65536);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        running = false;
+        webSocket.close();
+        tunnelClientThread.interrupt();
+        tunnelClientThread.join(5000);
+        tunnelServer.closeUserServerContext(userServerContext);
+        fixture.close();
+    }
+
+    @Benchmark
+    public int roundTrip() throws IOException {
+        webOut.write(webRequest);
+        webOut.flush();
+        return readResponse();
+    }
+
+    /**
+     * Read one response from the keep-alive connection: the headers, and a body of Content-Length bytes.
+     */
+    private int readResponse() throws IOException {
+        StringBuilder headers = new StringBuilder();
+        int matched = 0;
+        while (matched < 4) {
+            int b = webIn.read();
+            if (b < 0) {
+                throw new IOException("Web connection closed, got: " + headers);
+            }
+            headers.append((char) b);
+            matched = (b == '\r' && (matched == 0 || matched == 2)) || (b == '\n' && (matched == 1 || matched == 3)) ? matched + 1 : 0;
+        }
+        if (!headers.toString().startsWith("HTTP/1.1 200")) {
+            throw new IOException("Unexpected response: " + headers);
+        }
+        int contentLength = 0;
+        for (String line : headers.toString().split("\r\n")) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                contentLength = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        webIn.skipNBytes(contentLength);
+        return contentLength;
+    }
+
+    /**
+     * The fake tunnel client and app: poll for a web request, and post the same app response for each of them. Just
+     * like a real tunnel client, the POST returns the next web request.
+     */
+    private void runTunnelClient() {
+        try {
+            MockHttpServletResponse pollResponse = new MockHttpServletResponse();
+            tunnelDataController.longPollerGetWebToAppRequest(tunnelClientRequest("GET"), pollResponse);
+            while (running) {
+                String webRequestId = pollResponse.getHeader(Constants.X_TUNNEL_WEB_REQUEST_ID);
+                if (webRequestId == null) {
+                    pollResponse = new MockHttpServletResponse();
+                    tunnelDataController.longPollerGetWebToAppRequest(tunnelClientRequest("GET"), pollResponse);
+                    continue;
+                }
+                MockHttpServletRequest post = tunnelClientRequest("POST");
+                post.addHeader(Constants.X_TUNNEL_WEB_REQUEST_ID, webRequestId);
+                post.setContentType("application/octet-stream");
+                post.setContent(appResponse);
+                pollResponse = new MockHttpServletResponse();
+                tunnelDataController.longPollerPostAppToWebResponse(post, pollResponse);
+            }
+        } catch (InterruptedException e) {
+            // Stopped by the tear down.
+        } catch (IOException e) {
+            if (running) {
+                throw new IllegalStateException("Fake tunnel client failed", e);
+            }
+        }
+    }
+
+    private static MockHttpServletRequest tunnelClientRequest(String method) {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, "/data");
+        request.addHeader(Constants.X_TUNNEL_USER_ID, USER_ID);
+        return request;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
@@ -0,0 +1,77 @@
+package com.kaper.devtunnel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Body copies between the web and the tunnel client streams, at several body sizes. The streams are in memory, so
+ * this measures our own copy overhead (buffer pool, loop, flushes), not the network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamHelperBenchmark {
+    @Param({"0", "1024", "65536", "1048576", "16777216"})
+    private int bodySize;
+
+    private byte[] body;
+    private byte[] chunkedBody;
+    private BufferPool bufferPool;
+
+    @Setup
+    public void setup() {
+        BenchmarkSupport.quietLogging();
+        body = new byte[bodySize];
+        ThreadLocalRandom.current().nextBytes(body);
+        chunkedBody = chunked(body, 8192);
+        bufferPool = new BufferPool(64 * 1024 * 1024);
+    }
+
+    @Benchmark
+    public int streamCopy() throws IOException {
+        return StreamHelper.streamCopy(new ByteArrayInputStream(body), bodySize, new StreamHelper.DevNullOutputStream(), "bench", bufferPool);
+    }
+
+    @Benchmark
+    public long streamCopyUntilEnd() throws IOException {
+        return StreamHelper.streamCopyUntilEnd(new ByteArrayInputStream(body), new StreamHelper.DevNullOutputStream(), "bench", bufferPool);
+    }
+
+    @Benchmark
+    public long chunkedStreamCopy() throws IOException {
+        return StreamHelper.chunkedStreamCopy(new PrefixedInputStream(new ByteArrayInputStream(chunkedBody)), new StreamHelper.DevNullOutputStream(),
+                "bench", bufferPool);
+    }
+
+    /**
+     * The body in chunked transfer encoding, with chunks of the given size.
+     */
+    private static byte[] chunked(byte[] body, int chunkSize) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + body.length / chunkSize * 12 + 16);
+        for (int offset = 0; offset < body.length; offset += chunkSize) {
+            int length = Math.min(chunkSize, body.length - offset);
+            out.writeBytes((Integer.toHexString(length) + "\r\n").getBytes());
+            out.write(body, offset, length);
+            out.writeBytes("\r\n".getBytes());
+        }
+        out.writeBytes("0\r\n\r\n".getBytes());
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,391 @@
+package com.kaper.devtunnel;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Replay of a traffic capture (see TrafficCapture): the captured web requests are sent again, at their original
+ * moments (scaled by speed), to a tunnel server, and the captured responses are given back by a local stand-in app.
+ * So a change can be benchmarked with production-shaped load (request mix, sizes, bursts, app latencies).
+ * - For each captured user, a simulated tunnel client (client version 1, long-poll) is registered. It is also the
+ *   stand-in app: it answers each web request with the captured response for the same request line (in capture order),
+ *   after the captured app time (divided by speed, if appLatency). Bodies get their original size (the captured bytes,
+ *   filled up if the capture was truncated). Requests which are not in the capture get a 404.
+ * - Web requests are sent on a new connection each, with their captured headers and body size.
+ * - Requests which ended with an error in the capture (no app response) are not replayed.
+ * At the end, you get the latency percentiles of the replay next to those of the capture, the errors per kind, and the
+ * number of responses with another status than in the capture.
+ * Run it with: ./mvnw -Pperf test-compile exec:exec@replay -Dreplay.args="capture=/tmp/capture.bin speed=2"
+ * Settings (key=value arguments, defaults between brackets):
+ * - capture (required): the capture file, as written by the tunnel server with tunnel.capture.file.
+ * - speed (1): 2 is twice as fast as captured, 0 sends all requests as fast as webClients allows.
+ * - appLatency (true): let the stand-in app wait the captured app time, or answer right away.
+ * - server (empty): url of a running tunnel server (like http://localhost:8080), or empty to start one in-process,
+ *   with its user ports from startPort (19000) onwards.
+ * - pollersPerUser (4): number of parallel long-polls per simulated tunnel client.
+ * - webClients (64): maximum number of web requests in progress at the same time.
+ */
+public final class TrafficReplay {
+    private final Map<String, String> settings = new LinkedHashMap<>();
+    private final HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5)).build();
+    private final Map<String, ReplayUser> replayUsers = new LinkedHashMap<>();
+    private String serverUrl;
+    private double speed;
+    private boolean appLatency;
+    private volatile boolean pollersRunning = true;
+
+    private TrafficReplay(String[] args) {
+        settings.put("capture", "");
+        settings.put("speed", "1");
+        settings.put("appLatency", "true");
+        settings.put("server", "");
+        settings.put("startPort", "19000");
+        settings.put("pollersPerUser", "4");
+        settings.put("webClients", "64");
+        for (String arg : args) {
+            String[] keyValue = arg.split("=", 2);
+            if (keyValue.length != 2 || !settings.containsKey(keyValue[0])) {
+                throw new IllegalArgumentException("Unknown setting " + arg + ", known settings: " + settings.keySet());
+            }
+            settings.put(keyValue[0], keyValue[1]);
+        }
+        if (settings.get("capture").isBlank()) {
+            throw new IllegalArgumentException("Missing setting capture=<file>");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new TrafficReplay(args).run();
+        // The spring context and the (daemon) pollers are gone, but make sure nothing keeps the JVM alive.
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        System.out.println("Settings: " + settings);
+        speed = Double.parseDouble(settings.get("speed"));
+        appLatency = Boolean.parseBoolean(settings.get("appLatency"));
+        List<TrafficCapture.Exchange> exchanges = new ArrayList<>();
+        int skipped = 0;
+        for (TrafficCapture.Exchange exchange : TrafficCapture.read(Path.of(settings.get("capture")))) {
+            if (exchange.source() == RequestTracer.Source.ERROR || exchange.responseHeaders().length == 0) {
+                skipped++;
+            } else {
+                exchanges.add(exchange);
+            }
+        }
+        exchanges.sort((a, b) -> Long.compare(a.startTimestampMs(), b.startTimestampMs()));
+        System.out.println("Capture: " + (exchanges.size() + skipped) + " requests, " + skipped + " with an error are not replayed");
+        if (exchanges.isEmpty()) {
+            return;
+        }
+        for (TrafficCapture.Exchange exchange : exchanges) {
+            replayUsers.computeIfAbsent(exchange.userId(), userId -> new ReplayUser("replay-" + replayUsers.size() + "@localhost:8888#" + replayUsers.size()))
+                    .add(exchange);
+        }
+        ConfigurableApplicationContext context = null;
+        serverUrl = settings.get("server");
+        if (serverUrl.isBlank()) {
+            int startPort = Integer.parseInt(settings.get("startPort"));
+            context = SpringApplication.run(DevtunnelApplication.class,
+                    "--server.port=0",
+                    "--spring.profiles.active=tst",
+                    "--logging.level.root=WARN",
+                    "--logging.level.com.kaper=WARN",
+                    // Long-polls which are still waiting get interrupted at shutdown, which tomcat logs as errors and leaks.
+                    "--logging.level.org.apache.catalina=OFF",
+                    "--tunnel.startPort=" + startPort,
+                    "--tunnel.endPort=" + (startPort + replayUsers.size() - 1));
+            serverUrl = "http://localhost:" + ((ServletWebServerApplicationContext) context).getWebServer().getPort();
+        }
+        try {
+            for (ReplayUser replayUser : replayUsers.values()) {
+                startReplayUser(replayUser);
+            }
+            System.out.println(replay(exchanges));
+        } finally {
+            pollersRunning = false;
+            for (ReplayUser replayUser : replayUsers.values()) {
+                send(HttpRequest.newBuilder(URI.create(serverUrl + "/close")).header(Constants.X_TUNNEL_USER_ID, replayUser.userId).GET());
+            }
+            if (context != null) {
+                context.close();
+            }
+        }
+    }
+
+    /**
+     * Send all web requests at their (scaled) moments, and return the report.
+     */
+    private String replay(List<TrafficCapture.Exchange> exchanges) throws InterruptedException {
+        int webClients = Integer.parseInt(settings.get("webClients"));
+        ExecutorService executor = Executors.newFixedThreadPool(webClients);
+        Stats replayed = new Stats();
+        Stats captured = new Stats();
+        long firstTimestampMs = exchanges.get(0).startTimestampMs();
+        long startNanos = System.nanoTime();
+        long maxLagNanos = 0;
+        for (TrafficCapture.Exchange exchange : exchanges) {
+            if (speed > 0) {
+                long dueNanos = startNanos + (long) ((exchange.startTimestampMs() - firstTimestampMs) * 1_000_000 / speed);
+                long waitNanos = dueNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } else {
+                    maxLagNanos = Math.max(maxLagNanos, -waitNanos);
+                }
+            }
+            ReplayUser replayUser = replayUsers.get(exchange.userId());
+            captured.record(exchange.stageMicros()[TrafficCapture.STAGE_DONE] * 1000L, null);
+            executor.execute(() -> {
+                long requestStartNanos = System.nanoTime();
+                String error;
+                try {
+                    error = sendRequest(replayUser.serverPort, exchange);
+                } catch (ConnectException e) {
+                    error = "connect failed";
+                } catch (SocketTimeoutException e) {
+                    error = "read timeout";
+                } catch (IOException e) {
+                    error = e.getClass().getSimpleName() + ": " + e.getMessage();
+                }
+                synchronized (replayed) {
+                    replayed.record(System.nanoTime() - requestStartNanos, error);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.MINUTES);
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        double capturedSeconds = (exchanges.get(exchanges.size() - 1).startTimestampMs() - firstTimestampMs) / 1000.0;
+        return String.format("Captured %.1f s, replayed in %.1f s (speed %s, max %.1f ms late)%n%s%n%s", capturedSeconds, seconds, settings.get("speed"),
+                maxLagNanos / 1e6, captured.report("capture"), replayed.report("replay"));
+    }
+
+    /**
+     * Send one captured web request, and read the response. Returns null if all is fine, or else the kind of error.
+     */
+    private static String sendRequest(int port, TrafficCapture.Exchange exchange) throws IOException {
+        Headers requestHeaders = HeaderParser.parse(exchange.requestHeaders(), 0, exchange.requestHeaders().length);
+        requestHeaders.setHeader(Constants.CONNECTION_HEADER, Constants.CONNECTION_CLOSE_VALUE);
+        byte[] body = fill(exchange.requestBody(), exchange.requestBodyLength());
+        if (requestHeaders.getHeaderValue(Constants.TRANSFER_ENCODING_HEADER) != null && body.length > exchange.requestBody().length) {
+            // The chunk framing was cut off by the capture, send it as a plain body of the same size.
+            requestHeaders.removeHeader(Constants.TRANSFER_ENCODING_HEADER);
+            requestHeaders.setContentLength(body.length);
+        }
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(60000);
+            OutputStream out = socket.getOutputStream();
+            out.write(requestHeaders.getSerialized());
+            out.write(body);
+            out.flush();
+            InputStream in = new BufferedInputStream(socket.getInputStream(), 65536);
+            String statusLine = readStatusLine(in);
+            in.transferTo(OutputStream.nullOutputStream());
+            // "HTTP/1.1 503 TIMEOUT" -> "503 TIMEOUT"
+            String status = statusLine.substring(statusLine.indexOf(' ') + 1);
+            if (!status.startsWith(String.valueOf(exchange.status()))) {
+                return "status " + status + " (captured " + exchange.status() + ")";
+            }
+            return null;
+        }
+    }
+
+    private static String readStatusLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("connection closed");
+            }
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.ISO_8859_1).trim();
+    }
+
+    /**
+     * The captured body bytes, filled up to the real length if the capture was truncated.
+     */
+    private static byte[] fill(byte[] captured, long length) {
+        byte[] body = Arrays.copyOf(captured, (int) Math.max(captured.length, length));
+        Arrays.fill(body, captured.length, body.length, (byte) 'x');
+        return body;
+    }
+
+    private void startReplayUser(ReplayUser replayUser) throws IOException, InterruptedException {
+        HttpResponse<byte[]> response = send(HttpRequest.newBuilder(URI.create(serverUrl + "/register"))
+                .header(Constants.X_TUNNEL_USER_ID, replayUser.userId)
+                .header(Constants.X_TUNNEL_CLIENT_VERSION, "1")
+                .GET());
+        String serverPort = response.headers().firstValue(Constants.X_TUNNEL_SERVER_PORT).orElse(null);
+        if (response.statusCode() != 200 || serverPort == null) {
+            throw new IllegalStateException("Register of " + replayUser.userId + " failed: " + response.statusCode() + " " + new String(response.body()));
+        }
+        replayUser.serverPort = Integer.parseInt(serverPort);
+        for (int i = 0; i < Integer.parseInt(settings.get("pollersPerUser")); i++) {
+            Thread poller = new Thread(() -> poll(replayUser));
+            poller.setName("Replay-Poller-" + replayUser.serverPort + "-" + i);
+            poller.setDaemon(true);
+            poller.start();
+        }
+    }
+
+    /**
+     * The simulated tunnel client and stand-in app: long-poll for a web request, and post the captured response for
+     * it (which returns the next web request).
+     */
+    private void poll(ReplayUser replayUser) {
+        HttpResponse<byte[]> pollResponse = null;
+        while (pollersRunning) {
+            try {
+                String webRequestId = pollResponse == null ? null : pollResponse.headers().firstValue(Constants.X_TUNNEL_WEB_REQUEST_ID).orElse(null);
+                if (webRequestId == null) {
+                    if (pollResponse != null && pollResponse.statusCode() != 204) {
+                        Thread.sleep(100);
+                    }
+                    pollResponse = send(HttpRequest.newBuilder(URI.create(serverUrl + "/data"))
+                            .header(Constants.X_TUNNEL_USER_ID, replayUser.userId)
+                            .GET());
+                    continue;
+                }
+                byte[] appResponse = replayUser.respond(pollResponse.body());
+                pollResponse = send(HttpRequest.newBuilder(URI.create(serverUrl + "/data"))
+                        .header(Constants.X_TUNNEL_USER_ID, replayUser.userId)
+                        .header(Constants.X_TUNNEL_WEB_REQUEST_ID, webRequestId)
+                        .header("Content-Type", "application/octet-stream")
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(appResponse)));
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                // Server side error, or shutting down. Start a new poll.
+                pollResponse = null;
+            }
+        }
+    }
+
+    private HttpResponse<byte[]> send(HttpRequest.Builder request) throws IOException, InterruptedException {
+        return httpClient.send(request.timeout(Duration.ofSeconds(90)).build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    /**
+     * One captured user: its registration for the replay, and the captured responses per request line.
+     */
+    private final class ReplayUser {
+        private final String userId;
+        private final Map<String, Queue<TrafficCapture.Exchange>> responses = new ConcurrentHashMap<>();
+        private int serverPort;
+
+        ReplayUser(String userId) {
+            this.userId = userId;
+        }
+
+        void add(TrafficCapture.Exchange exchange) {
+            responses.computeIfAbsent(firstLine(exchange.requestHeaders()), line -> new ConcurrentLinkedQueue<>()).add(exchange);
+        }
+
+        /**
+         * The stand-in app: the raw response for a raw web request (as the tunnel server sends it to the client).
+         */
+        byte[] respond(byte[] webRequest) throws InterruptedException {
+            Queue<TrafficCapture.Exchange> queue = responses.get(firstLine(webRequest));
+            TrafficCapture.Exchange exchange = queue == null ? null : queue.poll();
+            if (exchange == null) {
+                return "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+            }
+            int[] stageMicros = exchange.stageMicros();
+            if (appLatency && speed > 0 && stageMicros[TrafficCapture.STAGE_REQUEST_SENT] >= 0 && stageMicros[TrafficCapture.STAGE_APP_RESPONSE] >= 0) {
+                long appMicros = stageMicros[TrafficCapture.STAGE_APP_RESPONSE] - stageMicros[TrafficCapture.STAGE_REQUEST_SENT];
+                TimeUnit.MICROSECONDS.sleep((long) (appMicros / speed));
+            }
+            Headers responseHeaders = HeaderParser.parse(exchange.responseHeaders(), 0, exchange.responseHeaders().length);
+            for (String headerName : responseHeaders.getHeaderNames()) {
+                if (headerName.toLowerCase().startsWith("x-tunnel-")) {
+                    responseHeaders.removeHeader(headerName);
+                }
+            }
+            // Always sent with a length, the chunk framing of a truncated body would be broken.
+            byte[] body = fill(exchange.responseBody(), exchange.responseBodyLength());
+            responseHeaders.removeHeader(Constants.TRANSFER_ENCODING_HEADER);
+            responseHeaders.setContentLength(body.length);
+            byte[] headerBlock = responseHeaders.getSerialized();
+            byte[] response = Arrays.copyOf(headerBlock, headerBlock.length + body.length);
+            System.arraycopy(body, 0, response, headerBlock.length, body.length);
+            return response;
+        }
+
+        private static String firstLine(byte[] data) {
+            int end = 0;
+            while (end < data.length && data[end] != '\r' && data[end] != '\n') {
+                end++;
+            }
+            return new String(data, 0, end, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * Latencies (nanos) of all requests, and the errors per kind.
+     */
+    private static class Stats {
+        private long[] latencies = new long[1024];
+        private int count;
+        private final Map<String, Integer> errors = new TreeMap<>();
+
+        void record(long latencyNanos, String error) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latencyNanos;
+            if (error != null) {
+                errors.merge(error, 1, Integer::sum);
+            }
+        }
+
+        String report(String name) {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            int errorCount = errors.values().stream().mapToInt(Integer::intValue).sum();
+            return String.format("%-8s requests: %7d  p50: %8.2f ms  p99: %8.2f ms  p999: %8.2f ms  max: %8.2f ms  errors: %d %s",
+                    name, count, percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 0.999), percentile(sorted, 1.0),
+                    errorCount, errors.isEmpty() ? "" : errors);
+        }
+
+        private static double percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+            return sorted[Math.max(0, index)] / 1_000_000.0;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.kaper.devtunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The access log line must be valid JSON, whatever tracing headers a web client sends, and those headers must not
+ * overwrite our own fields.
+ */
+class AccessLogTests {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void traceHeaderFieldNames() {
+        assertEquals("correlationId", AccessLog.traceHeaderField("X-Correlation-Id"));
+        assertEquals("requestId", AccessLog.traceHeaderField("x-request-id"));
+        assertNull(AccessLog.traceHeaderField("Content-Type"));
+        assertNull(AccessLog.traceHeaderField("X-Identity"));
+        // Our own field names get a prefix.
+        assertEquals("header.userId", AccessLog.traceHeaderField("X-User-Id"));
+        assertEquals("header.userId", AccessLog.traceHeaderField("x-USER-id"));
+    }
+
+    @Test
+    void logLineIsValidJsonWithTraceHeaders() throws Exception {
+        Path file = tempDir.resolve("access.log");
+        AccessLog accessLog = new AccessLog(new TunnelMetrics(new SimpleMeterRegistry(), 50), true, file.toString(), 104857600, 5, 100, 10, 10);
+        UserServerContext userServerContext = new UserServerContext();
+        userServerContext.setUserId("real@localhost:3000#1");
+        userServerContext.setServerPort(9001);
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+             SocketChannel webClient = SocketChannel.open(serverChannel.getLocalAddress());
+             SocketChannel channel = serverChannel.accept()) {
+            byte[] request = ("GET /quote\"me HTTP/1.1\r\nHost: localhost\r\nX-User-Id: spoofed\r\nX-Correlation-Id: abc-123\r\n"
+                    + "X-Odd\"Name\\-Id: odd\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            WebRequest webRequest = new WebRequest(channel, HeaderParser.parse(request, 0, request.length), new byte[0], 0, 0, 1, false, 0);
+            webRequest.setResponse(200, RequestTracer.Source.TUNNEL, 2);
+            accessLog.log(userServerContext, "request-1", webRequest);
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (accessLog.getWrittenCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(1, lines.size());
+        @SuppressWarnings("unchecked")
+        Map<String, Object> line = new ObjectMapper().readValue(lines.get(0), Map.class);
+        assertEquals("real@localhost:3000#1", line.get(Constants.MDC_USER_ID));
+        assertEquals("spoofed", line.get("header.userId"));
+        assertEquals("abc-123", line.get("correlationId"));
+        assertEquals("odd", line.get("odd\"name\\Id"));
+        assertEquals("GET /quote\"me HTTP/1.1", line.get("request"));
+        assertEquals(9001, line.get(Constants.MDC_TUNNEL_SERVER_PORT));
+        assertEquals(200, line.get("status"));
+        assertTrue(line.containsKey("durationMs"));
+    }
+}
@@ -0,0 +1,96 @@
+package com.kaper.devtunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Consistent hashing of users over the peers: an even spread, the same answer on every replica, and only the users
+ * of a removed peer move.
+ */
+class ClusterRingTests {
+    private static final String THREE_PEERS = "a=http://tunnel-0:8080,b=http://tunnel-1:8080/,c=http://tunnel-2:8080";
+    private static final int USERS = 30000;
+
+    private static ClusterRing ring(String peers, String self) {
+        return new ClusterRing(peers, self, 128, 9000, 9899);
+    }
+
+    private static String userId(int i) {
+        return "user" + i + "@host-" + (i % 97) + ":3000#" + (i * 7919);
+    }
+
+    @Test
+    void usersAreSpreadEvenlyOverThePeers() {
+        ClusterRing ring = ring(THREE_PEERS, "a");
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < USERS; i++) {
+            counts.merge(ring.ownerOf(userId(i)).name(), 1, Integer::sum);
+        }
+        assertEquals(3, counts.size());
+        // With 128 virtual nodes per peer, each one gets its third of the users give or take a few percent.
+        counts.forEach((peer, count) -> assertTrue(count > USERS * 0.25 && count < USERS * 0.42, peer + " owns " + count + " users"));
+    }
+
+    @Test
+    void allReplicasAgreeOnTheOwner() {
+        ClusterRing ringOfA = ring(THREE_PEERS, "a");
+        ClusterRing ringOfC = ring(THREE_PEERS, "c");
+        for (int i = 0; i < 1000; i++) {
+            String userId = userId(i);
+            assertEquals(ringOfA.ownerOf(userId).name(), ringOfC.ownerOf(userId).name());
+            assertEquals(ringOfA.ownerOf(userId).name().equals("a"), ringOfA.isOwnedBySelf(userId));
+        }
+    }
+
+    @Test
+    void onlyTheUsersOfARemovedPeerMove() {
+        ClusterRing before = ring(THREE_PEERS, "a");
+        ClusterRing after = ring("a=http://tunnel-0:8080,b=http://tunnel-1:8080", "a");
+        int moved = 0;
+        for (int i = 0; i < USERS; i++) {
+            String userId = userId(i);
+            String ownerBefore = before.ownerOf(userId).name();
+            String ownerAfter = after.ownerOf(userId).name();
+            if (ownerBefore.equals("c")) {
+                moved++;
+            } else {
+                assertEquals(ownerBefore, ownerAfter, "User " + userId + " moved, but its peer is still there");
+            }
+        }
+        assertTrue(moved > 0);
+    }
+
+    @Test
+    void portRangeIsSplitInPeerOrder() {
+        ClusterRing ring = ring(THREE_PEERS, "b");
+        assertEquals(3, ring.getPeers().size());
+        assertEquals(9000, ring.getPeers().get(0).startPort());
+        assertEquals(9299, ring.getPeers().get(0).endPort());
+        assertEquals(9300, ring.getSelf().startPort());
+        assertEquals(9599, ring.getSelf().endPort());
+        assertEquals(9899, ring.getPeers().get(2).endPort());
+        assertEquals("http://tunnel-1:8080", ring.getSelf().url().toString());
+        assertEquals("tunnel-1", ring.getSelf().host());
+    }
+
+    @Test
+    void clusterModeIsOffWithoutPeers() {
+        ClusterRing ring = ring("", "");
+        assertFalse(ring.isEnabled());
+        assertNull(ring.ownerOf("anyone"));
+        assertTrue(ring.isOwnedBySelf("anyone"));
+    }
+
+    @Test
+    void invalidConfigIsRefused() {
+        assertThrows(IllegalArgumentException.class, () -> ring(THREE_PEERS, "d"));
+        assertThrows(IllegalArgumentException.class, () -> ring("a=http://tunnel-0:8080,http://tunnel-1:8080", "a"));
+    }
+}
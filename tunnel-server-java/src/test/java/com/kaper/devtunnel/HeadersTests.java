@@ -0,0 +1,71 @@
+package com.kaper.devtunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Header lookups through the name index, also after the headers are changed, and Content-Length checks.
+ */
+class HeadersTests {
+
+    private static Headers parse(String headerBlock) {
+        byte[] data = headerBlock.getBytes(StandardCharsets.UTF_8);
+        return HeaderParser.parse(data, 0, data.length);
+    }
+
+    @Test
+    void lookupIsCaseInsensitiveAndReturnsTheFirstValue() {
+        Headers headers = parse("GET / HTTP/1.1\r\nHost: a\r\nX-Thing: one\r\nx-thing: two\r\n\r\n");
+        assertEquals("a", headers.getHeaderValue("HOST"));
+        assertEquals("one", headers.getHeaderValue("x-THING"));
+        assertNull(headers.getHeaderValue("Missing"));
+    }
+
+    @Test
+    void indexFollowsAddSetAndRemove() {
+        Headers headers = parse("GET / HTTP/1.1\r\nHost: a\r\nX-Thing: one\r\nX-Thing: two\r\n\r\n");
+        assertEquals("one", headers.getHeaderValue("X-Thing"));
+
+        headers.removeHeader("x-thing");
+        assertNull(headers.getHeaderValue("X-Thing"));
+        assertEquals(1, headers.getHeaderNames().size());
+
+        headers.addHeader("X-Thing", "three");
+        headers.addHeader("X-Thing", "four");
+        assertEquals("three", headers.getHeaderValue("X-Thing"));
+
+        headers.setHeader("Host", "b");
+        assertEquals("b", headers.getHeaderValue("host"));
+        String serialized = new String(headers.getSerialized(), StandardCharsets.UTF_8);
+        assertTrue(serialized.contains("Host: b\r\n"));
+        assertFalse(serialized.contains("Host: a"));
+    }
+
+    @Test
+    void copyHasItsOwnIndex() {
+        Headers headers = parse("HTTP/1.1 200 OK\r\nETag: \"v1\"\r\n\r\n");
+        assertEquals("\"v1\"", headers.getHeaderValue("ETag"));
+        Headers copy = headers.copy();
+        copy.setHeader("ETag", "\"v2\"");
+        assertEquals("\"v2\"", copy.getHeaderValue("etag"));
+        assertEquals("\"v1\"", headers.getHeaderValue("etag"));
+    }
+
+    @Test
+    void contentLength() {
+        assertEquals(12, parse("POST / HTTP/1.1\r\nContent-Length: 12\r\n\r\n").getContentLength());
+        assertTrue(parse("POST / HTTP/1.1\r\nContent-Length: 12\r\n\r\n").isContentLengthValid());
+        assertNull(parse("GET / HTTP/1.1\r\n\r\n").getContentLength());
+        assertTrue(parse("GET / HTTP/1.1\r\n\r\n").isContentLengthValid());
+        for (String invalid : new String[]{"abc", "-1", "99999999999", ""}) {
+            Headers headers = parse("POST / HTTP/1.1\r\nContent-Length: " + invalid + "\r\n\r\n");
+            assertNull(headers.getContentLength(), invalid);
+            assertFalse(headers.isContentLengthValid(), invalid);
+        }
+    }
+}
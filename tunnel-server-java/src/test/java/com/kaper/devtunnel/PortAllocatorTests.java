@@ -0,0 +1,102 @@
+package com.kaper.devtunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Free port bookkeeping, and the order in which ports of users which were not seen recently are reclaimed.
+ */
+class PortAllocatorTests {
+
+    private static UserServerContext user(String userId, long lastSeenAgoMs) {
+        UserServerContext userServerContext = new UserServerContext();
+        userServerContext.setUserId(userId);
+        userServerContext.setUserLastSeenTimestampMs(System.currentTimeMillis() - lastSeenAgoMs);
+        return userServerContext;
+    }
+
+    @Test
+    void claimAndReleasePorts() {
+        PortAllocator portAllocator = new PortAllocator(9000, 9002);
+        UserServerContext first = user("first", 0);
+        assertEquals(9001, portAllocator.claimFreePort(9001, first));
+        assertFalse(portAllocator.claim(9001, user("other", 0)));
+        assertTrue(portAllocator.claim(9001, first), "Claiming your own port again is fine");
+        assertTrue(portAllocator.claim(12345, first), "Ports outside the range are not tracked");
+
+        Set<Integer> ports = new HashSet<>();
+        ports.add(portAllocator.claimFreePort(9001, user("second", 0)));
+        ports.add(portAllocator.claimFreePort(null, user("third", 0)));
+        assertEquals(Set.of(9000, 9002), ports);
+        assertEquals(-1, portAllocator.claimFreePort(null, user("fourth", 0)));
+
+        portAllocator.release(9001, user("not-the-owner", 0));
+        assertEquals(0, portAllocator.getStats().free());
+        portAllocator.release(9001, first);
+        assertEquals(1, portAllocator.getStats().free());
+        assertEquals(9001, portAllocator.claimFreePort(null, user("fifth", 0)));
+    }
+
+    @Test
+    void reclaimLeastRecentlySeenFirst() {
+        PortAllocator portAllocator = new PortAllocator(9000, 9009);
+        UserServerContext active = user("active", 0);
+        UserServerContext old = user("old", 100_000);
+        UserServerContext older = user("older", 200_000);
+        UserServerContext oldest = user("oldest", 300_000);
+        for (UserServerContext owner : new UserServerContext[] {active, old, oldest, older}) {
+            owner.setServerPort(portAllocator.claimFreePort(null, owner));
+        }
+        // Claimed with an old last seen time, but active since: the allocator only has an outdated snapshot.
+        UserServerContext revived = user("revived", 400_000);
+        int revivedPort = portAllocator.claimFreePort(null, revived);
+        revived.setUserLastSeenNow();
+        assertEquals(3, portAllocator.getStats().reclaimable());
+
+        for (UserServerContext expected : new UserServerContext[] {oldest, older, old}) {
+            UserServerContext reclaimable = portAllocator.findReclaimable(null);
+            assertSame(expected, reclaimable, reclaimable == null ? "null" : reclaimable.getUserId());
+            portAllocator.release(reclaimable.getServerPort(), reclaimable);
+        }
+        assertNull(portAllocator.findReclaimable(null), "All remaining users are active");
+        assertNull(portAllocator.findReclaimable(revivedPort), "The owner of the preferred port is active");
+    }
+
+    @Test
+    void preferredPortOwnerGoesFirst() {
+        PortAllocator portAllocator = new PortAllocator(9000, 9009);
+        UserServerContext oldest = user("oldest", 300_000);
+        UserServerContext old = user("old", 100_000);
+        portAllocator.claimFreePort(9000, oldest);
+        portAllocator.claimFreePort(9005, old);
+        assertSame(old, portAllocator.findReclaimable(9005));
+        assertSame(oldest, portAllocator.findReclaimable(9001), "A free preferred port has no owner to reclaim");
+    }
+
+    @Test
+    void reclaimableUserIsFoundBehindManyActiveUsers() {
+        PortAllocator portAllocator = new PortAllocator(10000, 10999);
+        // 500 users with an outdated snapshot in front of the one inactive user.
+        for (int i = 0; i < 500; i++) {
+            UserServerContext active = user("active-" + i, 200_000);
+            portAllocator.claimFreePort(null, active);
+            active.setUserLastSeenNow();
+        }
+        UserServerContext inactive = user("inactive", 100_000);
+        portAllocator.claimFreePort(null, inactive);
+
+        // Each call moves a limited number of outdated entries, the inactive user must still show up after a few calls.
+        UserServerContext reclaimable = null;
+        for (int call = 0; call < 10 && reclaimable == null; call++) {
+            reclaimable = portAllocator.findReclaimable(null);
+        }
+        assertSame(inactive, reclaimable);
+    }
+}
@@ -0,0 +1,134 @@
+package com.kaper.devtunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The journal must give back the registered users after a restart, also when the last records were torn by a crash,
+ * and also when there are more users than fit in the configured file size.
+ */
+class RegistryJournalTests {
+    private static final int FILE_SIZE_BYTES = 4096;
+    private static final long WRITE_INTERVAL_MS = 10;
+
+    @TempDir
+    Path tempDir;
+
+    private static UserServerContext user(String userId, int serverPort) {
+        UserServerContext userServerContext = new UserServerContext();
+        userServerContext.setUserId(userId);
+        userServerContext.setServerPort(serverPort);
+        userServerContext.setClientVersion(Constants.CLIENT_VERSION_BATCH);
+        return userServerContext;
+    }
+
+    private static List<String> replayedUserIds(Path file) {
+        return new RegistryJournal(file.toString(), FILE_SIZE_BYTES, WRITE_INTERVAL_MS).replay().stream()
+                .map(RegistryJournal.Entry::userId).sorted().collect(Collectors.toList());
+    }
+
+    /**
+     * Wait for the writer thread, until a restart would see the expected users.
+     */
+    private static void waitForJournal(Path file, List<String> expectedUserIds) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!replayedUserIds(file).equals(expectedUserIds) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(WRITE_INTERVAL_MS);
+        }
+        assertEquals(expectedUserIds, replayedUserIds(file));
+    }
+
+    @Test
+    void replayRestoresRegisteredUsers() throws Exception {
+        Path file = tempDir.resolve("journal");
+        RegistryJournal journal = new RegistryJournal(file.toString(), FILE_SIZE_BYTES, WRITE_INTERVAL_MS);
+        journal.start(List.of(user("restored", 9000)));
+        UserServerContext closed = user("closed", 9002);
+        UserServerContext open = user("open", 9001);
+        open.setRouteName("open-route");
+        journal.recordRegistered(closed);
+        journal.recordRegistered(open);
+        journal.recordClosed(closed);
+        waitForJournal(file, List.of("open", "restored"));
+
+        RegistryJournal.Entry entry = new RegistryJournal(file.toString(), FILE_SIZE_BYTES, WRITE_INTERVAL_MS).replay().stream()
+                .filter(e -> e.userId().equals("open")).findFirst().orElseThrow();
+        assertEquals(9001, entry.serverPort());
+        assertEquals(Constants.CLIENT_VERSION_BATCH, entry.clientVersion());
+        assertEquals("open-route", entry.routeName());
+        assertEquals(open.getUserLastSeenTimestampMs(), entry.lastSeenMs());
+    }
+
+    @Test
+    void replayStopsAtATornRecord() throws Exception {
+        Path file = tempDir.resolve("journal");
+        RegistryJournal journal = new RegistryJournal(file.toString(), FILE_SIZE_BYTES, WRITE_INTERVAL_MS);
+        journal.start(List.of());
+        for (String userId : new String[] {"first", "second", "third"}) {
+            journal.recordRegistered(user(userId, 0));
+            waitForJournal(file, replayedUserIdsWith(file, userId));
+        }
+
+        // Break one byte of the second record, like a write which was cut off by a crash. The checksum does not match
+        // anymore, so that record and everything after it (also the valid third record) must be ignored.
+        List<Integer> recordOffsets = recordOffsets(file);
+        assertEquals(3, recordOffsets.size());
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            long position = recordOffsets.get(1) + 4 + 3;
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0x55);
+        }
+        assertEquals(List.of("first"), replayedUserIds(file));
+    }
+
+    @Test
+    void fileGrowsWhenTheUsersDoNotFit() throws Exception {
+        Path file = tempDir.resolve("journal");
+        RegistryJournal journal = new RegistryJournal(file.toString(), FILE_SIZE_BYTES, WRITE_INTERVAL_MS);
+        journal.start(List.of());
+        // About 60 bytes per user, so 200 users need far more than 75% of the 4 KiB file.
+        List<String> userIds = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String userId = String.format("user-%03d@host:3000#1", i);
+            userIds.add(userId);
+            journal.recordRegistered(user(userId, 10000 + i));
+        }
+        waitForJournal(file, userIds);
+        assertTrue(Files.size(file) > FILE_SIZE_BYTES, "Journal file was not made bigger: " + Files.size(file));
+    }
+
+    private static List<String> replayedUserIdsWith(Path file, String userId) {
+        List<String> userIds = new ArrayList<>(replayedUserIds(file));
+        userIds.add(userId);
+        userIds.sort(null);
+        return userIds;
+    }
+
+    /**
+     * The start offsets of the records in the file: after the 4 byte header, records are [length:4][payload][crc32:4].
+     */
+    private static List<Integer> recordOffsets(Path file) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+        data.getInt();
+        List<Integer> offsets = new ArrayList<>();
+        int length;
+        while (data.remaining() >= 4 && (length = data.getInt(data.position())) > 0) {
+            offsets.add(data.position());
+            data.position(data.position() + 4 + length + 4);
+        }
+        return offsets;
+    }
+}
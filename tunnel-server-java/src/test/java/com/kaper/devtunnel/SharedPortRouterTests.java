@@ -0,0 +1,79 @@
+package com.kaper.devtunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Route names on the shared port: handing them out, and finding the user of a web request by header, cookie or host.
+ * The router is not started, so no port is opened.
+ */
+class SharedPortRouterTests {
+    private final SharedPortRouter router = new SharedPortRouter(null, 8100, "tunnel.example.com", "X-Tunnel-Route", "tunnel-route");
+
+    private static UserServerContext user(String userId) {
+        UserServerContext userServerContext = new UserServerContext();
+        userServerContext.setUserId(userId);
+        return userServerContext;
+    }
+
+    private static Headers request(String headerLines) {
+        byte[] data = ("GET / HTTP/1.1\r\n" + headerLines + "\r\n").getBytes(StandardCharsets.UTF_8);
+        return HeaderParser.parse(data, 0, data.length);
+    }
+
+    @Test
+    void routeNamesAreAssignedOnce() {
+        UserServerContext alice = user("alice@laptop:3000#123");
+        UserServerContext bob = user("bob@laptop:3000#456");
+        assertEquals("alice", router.assignRoute(alice, "Alice"));
+        assertNotEquals("alice", router.assignRoute(bob, "alice"), "A taken name must not be handed out twice");
+        assertTrue(bob.getRouteName().startsWith("bob-laptop-3000-"), bob.getRouteName());
+        assertEquals("alice", router.assignRoute(alice, null), "Re-registering keeps the current name");
+        assertTrue(router.assignRoute(user("carol#1"), "not a valid name!").startsWith("carol-"));
+    }
+
+    @Test
+    void routeByHeaderCookieOrHost() {
+        UserServerContext alice = user("alice@laptop:3000#123");
+        router.assignRoute(alice, "alice");
+
+        Headers byHeader = request("Host: other\r\nX-Tunnel-Route: ALICE\r\n");
+        assertSame(alice, router.route(byHeader));
+        assertNull(byHeader.getHeaderValue("X-Tunnel-Route"), "The routing header is not passed on to the app");
+
+        assertSame(alice, router.route(request("Cookie: theme=dark; tunnel-route=alice; x=1\r\n")));
+        assertSame(alice, router.route(request("Host: alice.tunnel.example.com:8100\r\n")));
+        assertSame(alice, router.route(request("Host: www.alice.tunnel.example.com\r\n")));
+        assertNull(router.route(request("Host: alice.example.com\r\n")));
+        assertNull(router.route(request("Host: nobody.tunnel.example.com\r\n")));
+    }
+
+    @Test
+    void removedAndRenamedRoutesAreGone() {
+        UserServerContext alice = user("alice@laptop:3000#123");
+        router.assignRoute(alice, "alice");
+        router.assignRoute(alice, "alice2");
+        assertNull(router.route(request("X-Tunnel-Route: alice\r\n")), "The old name is given up on a rename");
+        assertSame(alice, router.route(request("X-Tunnel-Route: alice2\r\n")));
+
+        router.removeRoute(alice);
+        assertNull(router.route(request("X-Tunnel-Route: alice2\r\n")));
+        UserServerContext bob = user("bob");
+        assertEquals("alice2", router.assignRoute(bob, "alice2"), "A removed name is free again");
+    }
+
+    @Test
+    void defaultRouteNameIsReadableAndStable() {
+        String routeName = SharedPortRouter.defaultRouteName("thijs@fizzgig:3001#1666973349");
+        assertTrue(routeName.matches("thijs-fizzgig-3001-[0-9a-f]{6}"), routeName);
+        assertEquals(routeName, SharedPortRouter.defaultRouteName("thijs@fizzgig:3001#1666973349"));
+        assertNotEquals(routeName, SharedPortRouter.defaultRouteName("thijs@fizzgig:3001#1666973350"));
+        assertTrue(SharedPortRouter.defaultRouteName("###").matches("u[0-9a-f]{6}"));
+    }
+}
@@ -0,0 +1,149 @@
+package com.kaper.devtunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Joining identical GET requests, and what happens to the followers when the leader ends: a copy of a shareable
+ * response, or else they are sent on as separate requests (retried), so coalescing never makes a request fail.
+ * The web requests are on real loopback connections, but no TunnelServer is involved: the retry handler only collects.
+ */
+class SingleFlightTests {
+    private static final int MAX_FOLLOWERS = 2;
+
+    private final List<WebRequest> retried = new CopyOnWriteArrayList<>();
+    /** Both ends of the loopback connections, closed after each test. */
+    private final List<SocketChannel> channels = new ArrayList<>();
+    private ServerSocketChannel serverChannel;
+    private SingleFlight singleFlight;
+    private UserServerContext userServerContext;
+
+    @BeforeEach
+    void setup() throws IOException {
+        serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        singleFlight = new SingleFlight(new TunnelMetrics(new SimpleMeterRegistry(), 50), true, MAX_FOLLOWERS, 65536);
+        singleFlight.setRetryHandler((user, webRequest) -> retried.add(webRequest));
+        userServerContext = new UserServerContext();
+        userServerContext.setUserId("flight@localhost:3000#1");
+        userServerContext.setRegistrationNumber(1);
+    }
+
+    @AfterEach
+    void cleanup() throws IOException {
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        serverChannel.close();
+    }
+
+    @Test
+    void abandonedFlightSendsTheFollowersOnTheirOwn() throws IOException {
+        WebRequest leader = webRequest("GET /app.js HTTP/1.1\r\nHost: localhost\r\n");
+        assertFalse(singleFlight.join(userServerContext, leader), "The first request is queued as the leader");
+        WebRequest follower1 = webRequest("GET /app.js HTTP/1.1\r\nHost: localhost\r\n");
+        WebRequest follower2 = webRequest("GET /app.js HTTP/1.1\r\nHost: localhost\r\n");
+        assertTrue(singleFlight.join(userServerContext, follower1));
+        assertTrue(singleFlight.join(userServerContext, follower2));
+        assertEquals(1, singleFlight.getStats().flightsInProgress());
+
+        // The leader ends without a shared response (error, timeout, refused).
+        leader.cancelExpiry();
+        assertEquals(List.of(follower1, follower2), retried);
+        assertEquals(2, singleFlight.getRetriedCount());
+        assertEquals(0, singleFlight.getStats().flightsInProgress());
+        leader.cancelExpiry();
+        assertEquals(2, retried.size(), "The followers are sent on only once");
+
+        // A retried follower is queued without joining. A new identical request starts a new flight.
+        WebRequest newLeader = webRequest("GET /app.js HTTP/1.1\r\nHost: localhost\r\n");
+        assertFalse(singleFlight.join(userServerContext, newLeader));
+        assertEquals(2, singleFlight.getLeaderCount());
+        assertTrue(singleFlight.join(userServerContext, webRequest("GET /app.js HTTP/1.1\r\nHost: localhost\r\n")));
+        assertEquals(0, singleFlight.getCoalescedCount());
+    }
+
+    @Test
+    void followersOfAClosedUserAreClosed() throws IOException {
+        WebRequest leader = webRequest("GET / HTTP/1.1\r\nHost: localhost\r\n");
+        singleFlight.join(userServerContext, leader);
+        WebRequest follower = webRequest("GET / HTTP/1.1\r\nHost: localhost\r\n");
+        assertTrue(singleFlight.join(userServerContext, follower));
+
+        userServerContext.setRegistrationNumber(0);
+        leader.cancelExpiry();
+        assertEquals(List.of(), retried, "Nobody to send the follower to");
+        assertFalse(follower.getChannel().isOpen());
+        assertEquals(1, singleFlight.getRetriedCount());
+    }
+
+    @Test
+    void completedFlightSharesWithFollowersOfTheSameVariant() throws IOException {
+        WebRequest leader = webRequest("GET /logo.svg HTTP/1.1\r\nHost: localhost\r\nX-Theme: dark\r\n");
+        singleFlight.join(userServerContext, leader);
+        WebRequest sameTheme = webRequest("GET /logo.svg HTTP/1.1\r\nHost: localhost\r\nX-Theme: dark\r\n");
+        WebRequest otherTheme = webRequest("GET /logo.svg HTTP/1.1\r\nHost: localhost\r\nX-Theme: light\r\n");
+        assertTrue(singleFlight.join(userServerContext, sameTheme));
+        assertTrue(singleFlight.join(userServerContext, otherTheme));
+
+        SingleFlight.Flight flight = leader.takeFlight();
+        assertNotNull(flight);
+        List<WebRequest> shared = singleFlight.complete(flight, leader, headers("HTTP/1.1 200 OK\r\nContent-Length: 4\r\nVary: X-Theme\r\n"));
+        assertEquals(List.of(sameTheme), shared);
+        assertEquals(List.of(otherTheme), retried);
+        assertEquals(1, singleFlight.getCoalescedCount());
+
+        // The flight was taken to share the response, the end of the leader does not send anyone on again.
+        leader.cancelExpiry();
+        assertEquals(1, retried.size());
+    }
+
+    @Test
+    void onlyIdenticalGetRequestsJoinUpToMaxFollowers() throws IOException {
+        WebRequest leader = webRequest("GET /api HTTP/1.1\r\nHost: localhost\r\nAccept: application/json\r\n");
+        assertFalse(singleFlight.join(userServerContext, leader));
+        assertFalse(singleFlight.join(userServerContext, webRequest("GET /api HTTP/1.1\r\nHost: localhost\r\nAccept: text/html\r\n")),
+                "Another Accept value is another request");
+        WebRequest post = webRequest("POST /api HTTP/1.1\r\nHost: localhost\r\nContent-Length: 2\r\n");
+        assertFalse(singleFlight.join(userServerContext, post));
+        assertNull(post.takeFlight(), "A POST never leads a flight");
+
+        for (int i = 0; i < MAX_FOLLOWERS; i++) {
+            assertTrue(singleFlight.join(userServerContext, webRequest("GET /api HTTP/1.1\r\nHost: localhost\r\nAccept: application/json\r\n")));
+        }
+        WebRequest tooMany = webRequest("GET /api HTTP/1.1\r\nHost: localhost\r\nAccept: application/json\r\n");
+        assertFalse(singleFlight.join(userServerContext, tooMany), "The flight is full, this one goes on its own");
+        assertNull(tooMany.takeFlight());
+    }
+
+    private static Headers headers(String headerLines) {
+        byte[] data = (headerLines + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        return HeaderParser.parse(data, 0, data.length);
+    }
+
+    /**
+     * A web request on a new loopback connection, of which the headers were read already.
+     */
+    private WebRequest webRequest(String headerLines) throws IOException {
+        channels.add(SocketChannel.open(serverChannel.getLocalAddress()));
+        SocketChannel channel = serverChannel.accept();
+        channels.add(channel);
+        return new WebRequest(channel, headers(headerLines), new byte[0], 0, 0, 1, false, 0);
+    }
+}
@@ -0,0 +1,117 @@
+package com.kaper.devtunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The chunked body framing: finding the end of a chunked body, no matter how the bytes are split up in reads.
+ */
+class StreamHelperTests {
+    private static final String BODY = "5\r\nhello\r\n7;name=value\r\n, world\r\n0\r\n\r\n";
+    private static final String BODY_WITH_TRAILERS = "3\r\nabc\r\n0\r\nX-Checksum: 12\r\nX-Other: 3\r\n\r\n";
+
+    private final BufferPool bufferPool = new BufferPool(1024 * 1024);
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    void scanFindsTheEndInOneBlock() throws IOException {
+        byte[] data = bytes(BODY + "GET /next HTTP/1.1\r\n");
+        StreamHelper.ChunkScanner scanner = new StreamHelper.ChunkScanner();
+        assertEquals(BODY.length(), scanner.scan(data, 0, data.length));
+        assertTrue(scanner.isDone());
+    }
+
+    @Test
+    void scanFindsTheEndWhenFedOneByteAtATime() throws IOException {
+        // Every CRLF, size line and extension is split over two scan calls this way.
+        for (String body : new String[]{BODY, BODY_WITH_TRAILERS}) {
+            byte[] data = bytes(body);
+            StreamHelper.ChunkScanner scanner = new StreamHelper.ChunkScanner();
+            for (int i = 0; i < data.length; i++) {
+                assertFalse(scanner.isDone(), body + " done too early at " + i);
+                assertEquals(1, scanner.scan(data, i, 1));
+            }
+            assertTrue(scanner.isDone(), body);
+        }
+    }
+
+    @Test
+    void scanSkipsExtensionsAndTrailers() throws IOException {
+        byte[] data = bytes("a;first=1;second=\"x y\"\r\n0123456789\r\n0;last\r\nX-Trailer: yes\r\n\r\nextra");
+        StreamHelper.ChunkScanner scanner = new StreamHelper.ChunkScanner();
+        assertEquals(data.length - 5, scanner.scan(data, 0, data.length));
+        assertTrue(scanner.isDone());
+    }
+
+    @Test
+    void scanRefusesBrokenFraming() {
+        assertThrows(IOException.class, () -> scan("\r\nhello\r\n0\r\n\r\n"), "Missing chunk size");
+        assertThrows(IOException.class, () -> scan("ffffffffffffffffff\r\n"), "Chunk size too large");
+        assertThrows(IOException.class, () -> scan("1;" + "x".repeat(5000) + "\r\n"), "Chunk line too long");
+    }
+
+    private static void scan(String text) throws IOException {
+        byte[] data = bytes(text);
+        new StreamHelper.ChunkScanner().scan(data, 0, data.length);
+    }
+
+    @Test
+    void chunkedCopyPushesBackTheBytesOfTheNextRequest() throws IOException {
+        String next = "GET /next HTTP/1.1\r\n\r\n";
+        PrefixedInputStream in = new PrefixedInputStream(new ByteArrayInputStream(bytes(BODY_WITH_TRAILERS + next)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(BODY_WITH_TRAILERS.length(), StreamHelper.chunkedStreamCopy(in, out, "test", bufferPool));
+        assertEquals(BODY_WITH_TRAILERS, out.toString(StandardCharsets.ISO_8859_1));
+        assertEquals(next, new String(in.readAllBytes(), StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void chunkedCopyFollowsSmallReads() throws IOException {
+        PrefixedInputStream in = new PrefixedInputStream(new TrickleInputStream(bytes(BODY + "rest"), 3));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(BODY.length(), StreamHelper.chunkedStreamCopy(in, out, "test", bufferPool));
+        assertEquals(BODY, out.toString(StandardCharsets.ISO_8859_1));
+        assertEquals("rest", new String(in.readAllBytes(), StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void chunkedCopyFailsOnATruncatedBody() {
+        PrefixedInputStream in = new PrefixedInputStream(new ByteArrayInputStream(bytes("5\r\nhello\r\n7\r\n, wo")));
+        assertThrows(IOException.class, () -> StreamHelper.chunkedStreamCopy(in, new ByteArrayOutputStream(), "test", bufferPool));
+    }
+
+    /**
+     * Returns at most a few bytes per read, like a slow network connection.
+     */
+    private static class TrickleInputStream extends InputStream {
+        private final ByteArrayInputStream in;
+        private final int maxRead;
+
+        TrickleInputStream(byte[] data, int maxRead) {
+            this.in = new ByteArrayInputStream(data);
+            this.maxRead = maxRead;
+        }
+
+        @Override
+        public int read() {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            return in.read(buffer, offset, Math.min(length, maxRead));
+        }
+    }
+}
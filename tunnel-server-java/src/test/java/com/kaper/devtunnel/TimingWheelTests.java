@@ -0,0 +1,89 @@
+package com.kaper.devtunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Timeouts must run once, in deadline order, not early, and not much late. Also the ones which start on a higher
+ * level of the wheel, and have to cascade down level by level.
+ */
+class TimingWheelTests {
+    /** With 1 ms ticks, level 1 starts at 64 ms, and level 2 at 4096 ms. */
+    private static final long TICK_MS = 1;
+    /** Allowed lateness. The ticker is a plain sleeping thread, so leave some room for a busy build machine. */
+    private static final long MAX_LATE_MS = 250;
+
+    @Test
+    void timeoutsCascadeDownAllLevels() throws Exception {
+        TimingWheel timingWheel = new TimingWheel(TICK_MS);
+        // level 0, level 1 (several slots), and level 2.
+        long[] delays = {5, 40, 70, 130, 1000, 2500, 4200};
+        CountDownLatch allDone = new CountDownLatch(delays.length);
+        List<Long> order = new CopyOnWriteArrayList<>();
+        Map<Long, Long> lateness = new ConcurrentHashMap<>();
+        long startMs = System.currentTimeMillis();
+        for (int i = delays.length - 1; i >= 0; i--) {
+            long delay = delays[i];
+            timingWheel.schedule(delay, () -> {
+                lateness.put(delay, System.currentTimeMillis() - startMs - delay);
+                order.add(delay);
+                allDone.countDown();
+            });
+        }
+
+        assertTrue(allDone.await(10, TimeUnit.SECONDS), "Ran only: " + order);
+        assertEquals(List.of(5L, 40L, 70L, 130L, 1000L, 2500L, 4200L), order);
+        lateness.forEach((delay, lateMs) -> {
+            assertTrue(lateMs >= 0, "Timeout of " + delay + " ms ran " + (-lateMs) + " ms early");
+            assertTrue(lateMs <= MAX_LATE_MS, "Timeout of " + delay + " ms ran " + lateMs + " ms late");
+        });
+    }
+
+    @Test
+    void cancelledTimeoutsDoNotRun() throws Exception {
+        TimingWheel timingWheel = new TimingWheel(TICK_MS);
+        List<String> ran = new CopyOnWriteArrayList<>();
+        // Cancelled before the ticker thread has put it on the wheel.
+        TimingWheel.Timeout early = timingWheel.schedule(100, () -> ran.add("early"));
+        assertTrue(early.cancel());
+        TimingWheel.Timeout onWheel = timingWheel.schedule(200, () -> ran.add("onWheel"));
+        TimingWheel.Timeout higherLevel = timingWheel.schedule(5000, () -> ran.add("higherLevel"));
+        CountDownLatch marker = new CountDownLatch(1);
+        timingWheel.schedule(300, marker::countDown);
+        Thread.sleep(50);
+        // These are on level 1 and level 2 of the wheel by now.
+        assertTrue(onWheel.cancel());
+        assertTrue(higherLevel.cancel());
+        assertFalse(higherLevel.cancel(), "A second cancel must report it was done already");
+
+        assertTrue(marker.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(), ran);
+    }
+
+    @Test
+    void expiredTimeoutCanNotBeCancelled() throws Exception {
+        TimingWheel timingWheel = new TimingWheel(TICK_MS);
+        CountDownLatch ran = new CountDownLatch(1);
+        TimingWheel.Timeout timeout = timingWheel.schedule(0, ran::countDown);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    void closedWheelRunsNothing() throws Exception {
+        TimingWheel timingWheel = new TimingWheel(TICK_MS);
+        CountDownLatch ran = new CountDownLatch(1);
+        timingWheel.schedule(100, ran::countDown);
+        timingWheel.close();
+        assertFalse(ran.await(300, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,203 @@
+package com.kaper.devtunnel;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Records must come back from the capture file as they were captured, and the reader must stop at a record which is
+ * not complete: one of which the length was not written yet (the writer writes it last), or which is broken.
+ */
+class TrafficCaptureTests {
+    private static final int FILE_SIZE_BYTES = 64 * 1024;
+
+    @TempDir
+    Path tempDir;
+    private final List<SocketChannel> channels = new ArrayList<>();
+    private ServerSocketChannel serverChannel;
+    private UserServerContext userServerContext;
+
+    @BeforeEach
+    void setup() throws IOException {
+        serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        userServerContext = new UserServerContext();
+        userServerContext.setUserId("captured@localhost:3000#1");
+    }
+
+    @AfterEach
+    void cleanup() throws IOException {
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        serverChannel.close();
+    }
+
+    @Test
+    void capturedExchangeIsReadBack() throws IOException {
+        Path file = tempDir.resolve("capture");
+        TrafficCapture trafficCapture = new TrafficCapture(file.toString(), userServerContext.getUserId(), FILE_SIZE_BYTES, 4);
+        captureExchange(trafficCapture, "/orders", "hello", "created!");
+        UserServerContext other = new UserServerContext();
+        other.setUserId("other@localhost:3000#1");
+        trafficCapture.start(other, webRequest("/other", ""));
+
+        List<TrafficCapture.Exchange> exchanges = TrafficCapture.read(file);
+        assertEquals(1, exchanges.size());
+        TrafficCapture.Exchange exchange = exchanges.get(0);
+        assertEquals(userServerContext.getUserId(), exchange.userId());
+        assertEquals(201, exchange.status());
+        assertEquals(RequestTracer.Source.TUNNEL, exchange.source());
+        assertTrue(new String(exchange.requestHeaders(), StandardCharsets.ISO_8859_1).startsWith("POST /orders HTTP/1.1\r\n"));
+        assertArrayEquals("hell".getBytes(StandardCharsets.ISO_8859_1), exchange.requestBody(), "Only the first maxBodyBytes are kept");
+        assertTrue(new String(exchange.responseHeaders(), StandardCharsets.ISO_8859_1).startsWith("HTTP/1.1 201 Created\r\n"));
+        assertArrayEquals("crea".getBytes(StandardCharsets.ISO_8859_1), exchange.responseBody());
+        assertTrue(exchange.stageMicros()[TrafficCapture.STAGE_DONE] >= 0);
+        assertEquals(-1, exchange.stageMicros()[TrafficCapture.STAGE_QUEUED], "Not queued, so no time for that stage");
+        assertEquals(1, trafficCapture.getStats().records());
+    }
+
+    @Test
+    void readerStopsAtARecordWithoutLength() throws IOException {
+        Path file = tempDir.resolve("capture");
+        TrafficCapture trafficCapture = new TrafficCapture(file.toString(), "*", FILE_SIZE_BYTES, 1024);
+        for (String path : new String[] {"/first", "/second", "/third"}) {
+            captureExchange(trafficCapture, path, "", "ok");
+        }
+        assertEquals(List.of("/first", "/second", "/third"), readPaths(file));
+
+        // The writer of the second record reserved its space, but did not write the length yet, while the third one
+        // is complete already. A reader does not know where the third one starts, so it stops there.
+        List<Integer> recordOffsets = recordOffsets(file);
+        assertEquals(3, recordOffsets.size());
+        writeInt(file, recordOffsets.get(1), 0);
+        assertEquals(List.of("/first"), readPaths(file));
+    }
+
+    @Test
+    void readerStopsAtABrokenRecord() throws IOException {
+        Path file = tempDir.resolve("capture");
+        TrafficCapture trafficCapture = new TrafficCapture(file.toString(), "*", FILE_SIZE_BYTES, 1024);
+        for (String path : new String[] {"/first", "/second", "/third"}) {
+            captureExchange(trafficCapture, path, "", "ok");
+        }
+        List<Integer> recordOffsets = recordOffsets(file);
+        // Length written, but the payload is not (all) there: the checksum does not match.
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(recordOffsets.get(1) + 4 + 10);
+            int b = raf.read();
+            raf.seek(recordOffsets.get(1) + 4 + 10);
+            raf.write(b ^ 0x55);
+        }
+        assertEquals(List.of("/first"), readPaths(file));
+
+        // A length which points past the end of the file.
+        writeInt(file, recordOffsets.get(0), FILE_SIZE_BYTES);
+        assertEquals(List.of(), readPaths(file));
+    }
+
+    @Test
+    void captureStopsWhenTheFileIsFull() throws IOException {
+        Path file = tempDir.resolve("capture");
+        TrafficCapture trafficCapture = new TrafficCapture(file.toString(), "*", 1024, 1024);
+        for (int i = 0; i < 20; i++) {
+            captureExchange(trafficCapture, "/request-" + i, "", "ok");
+        }
+        assertTrue(trafficCapture.getStats().full());
+        long records = trafficCapture.getStats().records();
+        assertTrue(records > 0 && records < 20, records + " records");
+        assertEquals(records, TrafficCapture.read(file).size());
+    }
+
+    @Test
+    void userListedTwiceIsCaptured() throws IOException {
+        Path file = tempDir.resolve("capture");
+        TrafficCapture trafficCapture = new TrafficCapture(file.toString(),
+                userServerContext.getUserId() + ", " + userServerContext.getUserId(), FILE_SIZE_BYTES, 1024);
+        captureExchange(trafficCapture, "/twice", "", "ok");
+        assertEquals(List.of("/twice"), readPaths(file));
+    }
+
+    @Test
+    void otherFilesAreRefused() throws IOException {
+        Path file = tempDir.resolve("not-a-capture");
+        Files.write(file, new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        assertThrows(IOException.class, () -> TrafficCapture.read(file));
+    }
+
+    /**
+     * Capture one POST and its 201 response, like TunnelServer does: start, the request body is streamed to the app,
+     * the app response is streamed to the web client, and the record is written when the request is done.
+     */
+    private void captureExchange(TrafficCapture trafficCapture, String path, String requestBody, String responseBody) throws IOException {
+        WebRequest webRequest = webRequest(path, requestBody);
+        trafficCapture.start(userServerContext, webRequest);
+        assertArrayEquals(requestBody.getBytes(StandardCharsets.ISO_8859_1), webRequest.getInputStream().readNBytes(requestBody.length()));
+
+        byte[] response = ("HTTP/1.1 201 Created\r\nContent-Length: " + responseBody.length() + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        PrefixedInputStream bodyStream = new PrefixedInputStream(new ByteArrayInputStream(responseBody.getBytes(StandardCharsets.ISO_8859_1)));
+        trafficCapture.captureResponse(webRequest, HeaderParser.parse(response, 0, response.length), bodyStream, responseBody.length());
+        bodyStream.readAllBytes();
+        webRequest.setResponse(201, RequestTracer.Source.TUNNEL, responseBody.length());
+        trafficCapture.record(userServerContext, webRequest);
+    }
+
+    /**
+     * A web request on a new loopback connection, of which the headers and the body were read already.
+     */
+    private WebRequest webRequest(String path, String body) throws IOException {
+        channels.add(SocketChannel.open(serverChannel.getLocalAddress()));
+        SocketChannel channel = serverChannel.accept();
+        channels.add(channel);
+        byte[] headers = ("POST " + path + " HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + body.length() + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] bodyBytes = body.getBytes(StandardCharsets.ISO_8859_1);
+        return new WebRequest(channel, HeaderParser.parse(headers, 0, headers.length), bodyBytes, 0, bodyBytes.length, 1, false, 0);
+    }
+
+    private static List<String> readPaths(Path file) throws IOException {
+        return TrafficCapture.read(file).stream()
+                .map(exchange -> new String(exchange.requestHeaders(), StandardCharsets.ISO_8859_1).split(" ")[1])
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * The start offsets of the records in the file: after the 4 byte header, records are [length:4][payload][crc32:4].
+     */
+    private static List<Integer> recordOffsets(Path file) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+        data.getInt();
+        List<Integer> offsets = new ArrayList<>();
+        int length;
+        while (data.remaining() >= 4 && (length = data.getInt(data.position())) > 0) {
+            offsets.add(data.position());
+            data.position(data.position() + 4 + length + 4);
+        }
+        return offsets;
+    }
+
+    private static void writeInt(Path file, long position, int value) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(position);
+            raf.writeInt(value);
+        }
+    }
+}
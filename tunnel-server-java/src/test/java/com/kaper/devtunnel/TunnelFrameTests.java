@@ -0,0 +1,65 @@
+package com.kaper.devtunnel;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.BinaryMessage;
+
+/**
+ * The binary frame layout of the WebSocket tunnel transport: what we send must parse back to the same frame.
+ */
+class TunnelFrameTests {
+
+    private static TunnelFrame roundTrip(BinaryMessage message) throws IOException {
+        return TunnelFrame.parse(message.getPayload());
+    }
+
+    @Test
+    void dataFrameUsesOnlyTheGivenPartOfTheBuffer() throws IOException {
+        byte[] data = "..hello..".getBytes(StandardCharsets.UTF_8);
+        BinaryMessage message = TunnelFrame.toMessage(TunnelFrame.DATA, 0x01020304, data, 2, 5);
+        assertEquals(TunnelFrame.HEADER_SIZE + 5, message.getPayloadLength());
+
+        ByteBuffer raw = message.getPayload().duplicate();
+        assertEquals(TunnelFrame.DATA, raw.get());
+        assertEquals(0x01020304, raw.getInt());
+
+        TunnelFrame frame = roundTrip(message);
+        assertEquals(TunnelFrame.DATA, frame.type());
+        assertEquals(0x01020304, frame.streamId());
+        assertArrayEquals("hello".getBytes(StandardCharsets.UTF_8), frame.payload());
+    }
+
+    @Test
+    void frameWithoutPayload() throws IOException {
+        TunnelFrame frame = roundTrip(TunnelFrame.toMessage(TunnelFrame.END, Integer.MAX_VALUE));
+        assertEquals(TunnelFrame.END, frame.type());
+        assertEquals(Integer.MAX_VALUE, frame.streamId());
+        assertEquals(0, frame.payload().length);
+    }
+
+    @Test
+    void windowAndResetFrames() throws IOException {
+        TunnelFrame window = roundTrip(TunnelFrame.window(7, TunnelFrame.STREAM_WINDOW_BYTES));
+        assertEquals(TunnelFrame.WINDOW, window.type());
+        assertEquals(7, window.streamId());
+        assertEquals(TunnelFrame.STREAM_WINDOW_BYTES, window.windowIncrement());
+
+        TunnelFrame reset = roundTrip(TunnelFrame.reset(8, "Request timeout – gone"));
+        assertEquals(TunnelFrame.RESET, reset.type());
+        assertEquals(8, reset.streamId());
+        assertEquals("Request timeout – gone", reset.reason());
+    }
+
+    @Test
+    void invalidFramesAreRefused() {
+        assertThrows(IOException.class, () -> TunnelFrame.parse(ByteBuffer.wrap(new byte[] {TunnelFrame.DATA, 0, 0, 1})));
+        TunnelFrame shortWindow = new TunnelFrame(TunnelFrame.WINDOW, 1, new byte[] {0, 1});
+        assertThrows(IOException.class, shortWindow::windowIncrement);
+    }
+}
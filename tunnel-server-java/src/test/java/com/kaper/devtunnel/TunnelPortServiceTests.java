@@ -0,0 +1,92 @@
+package com.kaper.devtunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ServerSocket;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * Reclaiming the port of an inactive user, when all ports are in use. There is only one port, and it is owned by the
+ * victim. The victim must only be closed if it is still inactive (and still the same registration) at that moment,
+ * as the registration which reclaims does not hold the registration lock of the victim.
+ */
+class TunnelPortServiceTests {
+    private TunnelServerFixture fixture;
+    private TunnelServer tunnelServer;
+    private TunnelPortService tunnelPortService;
+    private int port;
+
+    @BeforeEach
+    void setup() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            port = serverSocket.getLocalPort();
+        }
+        PortAllocator portAllocator = new PortAllocator(port, port);
+        fixture = new TunnelServerFixture().portAllocator(portAllocator);
+        tunnelServer = fixture.tunnelServer();
+        tunnelPortService = new TunnelPortService(tunnelServer, portAllocator);
+    }
+
+    @AfterEach
+    void cleanup() {
+        tunnelServer.getUserServerContextMap().values().forEach(tunnelServer::closeUserServerContext);
+        fixture.close();
+    }
+
+    private UserServerContext register(String userId) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/register");
+        request.addHeader(Constants.X_TUNNEL_USER_ID, userId);
+        UserServerContext userServerContext = tunnelServer.getUserServerContext(request, new MockHttpServletResponse());
+        userServerContext.setServerPort(tunnelPortService.requestNewPort(null, userServerContext));
+        if (userServerContext.getServerPort() > 0) {
+            tunnelServer.startListening(userServerContext);
+        }
+        return userServerContext;
+    }
+
+    @Test
+    void portOfAnInactiveUserIsReclaimed() throws Exception {
+        UserServerContext victim = register("victim");
+        assertEquals(port, victim.getServerPort());
+        assertEquals(-1, register("too-early").getServerPort(), "The victim was seen just now");
+
+        victim.setUserLastSeenTimestampMs(System.currentTimeMillis() - 60_000);
+        UserServerContext newcomer = register("newcomer");
+        assertEquals(port, newcomer.getServerPort());
+        assertFalse(victim.isRegistered());
+        assertFalse(tunnelServer.getUserServerContextMap().containsKey("victim"));
+    }
+
+    @Test
+    void victimWhichIsActiveAgainIsLeftAlone() throws Exception {
+        UserServerContext victim = register("victim");
+        victim.setUserLastSeenTimestampMs(System.currentTimeMillis() - 60_000);
+
+        // Picked as reclaimable, but it polls before it is closed.
+        victim.setUserLastSeenNow();
+        assertFalse(tunnelServer.closeReclaimableUserServerContext(victim, port));
+        assertTrue(victim.isRegistered());
+        assertSame(victim, tunnelServer.getUserServerContextMap().get("victim"));
+    }
+
+    @Test
+    void victimWhichWasClosedAndRegisteredAgainIsLeftAlone() throws Exception {
+        UserServerContext victim = register("victim");
+        victim.setUserLastSeenTimestampMs(System.currentTimeMillis() - 60_000);
+
+        // Picked as reclaimable, but its tunnel client closed and registered again meanwhile: a new context.
+        tunnelServer.closeUserServerContext(victim);
+        UserServerContext again = register("victim");
+        again.setUserLastSeenTimestampMs(System.currentTimeMillis() - 60_000);
+        assertFalse(tunnelServer.closeReclaimableUserServerContext(victim, port));
+        assertSame(again, tunnelServer.getUserServerContextMap().get("victim"), "The new registration must not be removed");
+        assertTrue(again.isRegistered());
+    }
+}
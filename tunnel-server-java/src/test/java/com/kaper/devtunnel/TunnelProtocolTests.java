@@ -0,0 +1,588 @@
+package com.kaper.devtunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * One web request through the tunnel for each tunnel client protocol version. A browser is simulated with a socket on
+ * the user port, and the tunnel client calls the TunnelDataController directly with mock servlet requests, like in
+ * TunnelServerConcurrencyTests. For the WebSocket transport, the tunnel client side is a fake WebSocket session
+ * which collects the frames we send, and the frames of the tunnel client are passed to the connection directly.
+ */
+class TunnelProtocolTests {
+    private static final String USER_ID = "protocol@localhost:3000#1";
+
+    private TunnelServerFixture fixture;
+    private TunnelServer tunnelServer;
+    private TunnelDataController tunnelDataController;
+    private UserServerContext userServerContext;
+    private final ExecutorService webClientExecutor = Executors.newCachedThreadPool();
+
+    @BeforeEach
+    void setup() throws Exception {
+        fixture = new TunnelServerFixture();
+        tunnelServer = fixture.tunnelServer();
+        tunnelDataController = fixture.tunnelDataController();
+        userServerContext = fixture.startUser(USER_ID);
+    }
+
+    @AfterEach
+    void cleanup() {
+        fixture.close();
+        webClientExecutor.shutdownNow();
+    }
+
+    @Test
+    void version1ContentLengthRequest() throws Exception {
+        userServerContext.setClientVersion(1);
+        CompletableFuture<String> webResponse = sendWebRequest("POST /orders HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\nhello");
+
+        MockHttpServletResponse poll = poll();
+        String webRequestId = poll.getHeader(Constants.X_TUNNEL_WEB_REQUEST_ID);
+        assertNotNull(webRequestId);
+        assertEquals("POST /orders HTTP/1.1", poll.getHeader(Constants.X_TUNNEL_WEB_REQUEST));
+        String appRequest = poll.getContentAsString();
+        assertTrue(appRequest.startsWith("POST /orders HTTP/1.1\r\n"), appRequest);
+        assertTrue(appRequest.endsWith("\r\n\r\nhello"), appRequest);
+
+        answer(webRequestId, "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+        assertWebResponse(webResponse, "200 OK", "ok");
+    }
+
+    @Test
+    void version2ChunkedRequest() throws Exception {
+        userServerContext.setClientVersion(Constants.CLIENT_VERSION_CHUNKED_REQUEST);
+        String chunkedBody = "5\r\nhello\r\n6;ext=1\r\n world\r\n0\r\nX-Trailer: 1\r\n\r\n";
+        CompletableFuture<String> webResponse = sendWebRequest("POST /upload HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n" + chunkedBody);
+
+        MockHttpServletResponse poll = poll();
+        String webRequestId = poll.getHeader(Constants.X_TUNNEL_WEB_REQUEST_ID);
+        assertNotNull(webRequestId);
+        String appRequest = poll.getContentAsString();
+        assertTrue(appRequest.startsWith("POST /upload HTTP/1.1\r\n"), appRequest);
+        // The chunk framing is passed on as-is.
+        assertTrue(appRequest.endsWith("\r\n\r\n" + chunkedBody), appRequest);
+
+        answer(webRequestId, "HTTP/1.1 201 Created\r\nContent-Length: 7\r\n\r\nstored!");
+        assertWebResponse(webResponse, "201 Created", "stored!");
+    }
+
+    @Test
+    void version1RefusesChunkedRequest() throws Exception {
+        userServerContext.setClientVersion(1);
+        CompletableFuture<String> webResponse = sendWebRequest("POST /upload HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n0\r\n\r\n");
+
+        MockHttpServletResponse poll = poll();
+        assertEquals(204, poll.getStatus());
+        assertTrue(webResponse.get(10, TimeUnit.SECONDS).startsWith("HTTP/1.1 400"));
+    }
+
+    @Test
+    void expiredQueueEntryIsNotSent() throws Exception {
+        userServerContext.setClientVersion(1);
+        // Expired: already removed from the request map, but not yet from the queue.
+        userServerContext.getRequestQueue().offer("expired-request-id");
+        CompletableFuture<String> webResponse = sendWebRequest("GET /after HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        waitForQueuedRequests(2);
+
+        assertEquals(204, poll().getStatus(), "Nothing to send for the expired one");
+        MockHttpServletResponse poll = poll();
+        String webRequestId = poll.getHeader(Constants.X_TUNNEL_WEB_REQUEST_ID);
+        assertEquals("GET /after HTTP/1.1", poll.getHeader(Constants.X_TUNNEL_WEB_REQUEST));
+        answer(webRequestId, "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+        assertWebResponse(webResponse, "200 OK", "ok");
+    }
+
+    @Test
+    void streamedResponseOutlivesTheRequestTimeout() throws Exception {
+        userServerContext.setClientVersion(1);
+        userServerContext.setRequestTimeoutMs(300);
+        CompletableFuture<String> webResponse = sendWebRequest("GET /events HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        String webRequestId = poll().getHeader(Constants.X_TUNNEL_WEB_REQUEST_ID);
+        WebRequest webRequest = userServerContext.getRequestSocketMap().get(webRequestId);
+
+        // The app sends a chunk every 200 ms, for well over the request timeout.
+        PipedOutputStream app = new PipedOutputStream();
+        PrefixedInputStream appInputStream = new PrefixedInputStream(new PipedInputStream(app, 65536));
+        CompletableFuture<Boolean> relayed = CompletableFuture.supplyAsync(() ->
+                tunnelServer.relayAppResponseToWeb(userServerContext, webRequestId, webRequest, appInputStream, -1), webClientExecutor);
+        StringBuilder chunkedBody = new StringBuilder();
+        app.write("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        for (int i = 0; i < 5; i++) {
+            String chunk = "7\r\nevent-" + i + "\r\n";
+            chunkedBody.append(chunk);
+            app.write(chunk.getBytes(StandardCharsets.ISO_8859_1));
+            app.flush();
+            Thread.sleep(200);
+        }
+        app.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        app.close();
+        chunkedBody.append("0\r\n\r\n");
+
+        assertTrue(relayed.get(10, TimeUnit.SECONDS));
+        assertWebResponse(webResponse, "200 OK", chunkedBody.toString());
+        assertFalse(webResponse.get().contains("TIMEOUT"));
+    }
+
+    @Test
+    void version3Batch() throws Exception {
+        userServerContext.setClientVersion(Constants.CLIENT_VERSION_BATCH);
+        CompletableFuture<String> webResponse1 = sendWebRequest("POST /small HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\nhello");
+        // A slow web client: the body is not there yet when the batch is made.
+        CompletableFuture<String> slowBody = new CompletableFuture<>();
+        CompletableFuture<String> webResponse2 = sendWebRequest("POST /slow HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\n", slowBody);
+        waitForQueuedRequests(2);
+
+        MockHttpServletResponse poll = poll();
+        assertEquals("2", poll.getHeader(Constants.X_TUNNEL_BATCH_COUNT));
+        List<BatchEntry> entries = parseBatch(poll.getContentAsByteArray());
+        assertEquals(2, entries.size());
+        BatchEntry small = entries.stream().filter(entry -> entry.headers().startsWith("POST /small ")).findFirst().orElseThrow();
+        BatchEntry slow = entries.stream().filter(entry -> entry.headers().startsWith("POST /slow ")).findFirst().orElseThrow();
+        assertEquals("hello", new String(small.body(), StandardCharsets.ISO_8859_1));
+        assertNull(slow.body(), "A body which is still underway must be sent by reference");
+
+        slowBody.complete("world");
+        MockHttpServletRequest bodyRequest = tunnelClientRequest("GET");
+        bodyRequest.addHeader(Constants.X_TUNNEL_WEB_REQUEST_ID, slow.webRequestId());
+        MockHttpServletResponse body = new MockHttpServletResponse();
+        tunnelDataController.getWebToAppRequestBody(bodyRequest, body);
+        assertEquals("world", body.getContentAsString());
+
+        ByteArrayOutputStream appResponses = new ByteArrayOutputStream();
+        for (BatchEntry entry : entries) {
+            byte[] appResponse = ("HTTP/1.1 200 OK\r\nContent-Length: 4\r\n\r\n" + entry.headers().substring(6, 10))
+                    .getBytes(StandardCharsets.ISO_8859_1);
+            appResponses.writeBytes((entry.webRequestId() + " " + appResponse.length + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            appResponses.writeBytes(appResponse);
+        }
+        postBatch(appResponses.toByteArray());
+        assertWebResponse(webResponse1, "200 OK", "smal");
+        assertWebResponse(webResponse2, "200 OK", "slow");
+    }
+
+    @Test
+    void version4CompressedBatch() throws Exception {
+        userServerContext.setClientVersion(Constants.CLIENT_VERSION_COMPRESSION);
+        String json = "{\"items\":[" + "\"item\",".repeat(40) + "\"last\"]}";
+        String text = "line of text\n".repeat(10);
+        CompletableFuture<String> webResponse1 = sendWebRequest("POST /json HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\n"
+                + "Content-Length: " + json.length() + "\r\n\r\n" + json);
+        CompletableFuture<String> webResponse2 = sendWebRequest("POST /tiny HTTP/1.1\r\nHost: localhost\r\nContent-Type: text/plain\r\nContent-Length: 2\r\n\r\nhi");
+        CompletableFuture<String> slowBody = new CompletableFuture<>();
+        CompletableFuture<String> webResponse3 = sendWebRequest("POST /slow HTTP/1.1\r\nHost: localhost\r\nContent-Type: text/plain; charset=utf-8\r\n"
+                + "Content-Length: " + text.length() + "\r\n\r\n", slowBody);
+        waitForQueuedRequests(3);
+
+        List<BatchEntry> entries = parseBatch(poll().getContentAsByteArray());
+        assertEquals(3, entries.size());
+        BatchEntry jsonEntry = entries.stream().filter(entry -> entry.headers().startsWith("POST /json ")).findFirst().orElseThrow();
+        BatchEntry tinyEntry = entries.stream().filter(entry -> entry.headers().startsWith("POST /tiny ")).findFirst().orElseThrow();
+        BatchEntry slowEntry = entries.stream().filter(entry -> entry.headers().startsWith("POST /slow ")).findFirst().orElseThrow();
+        assertTrue(jsonEntry.deflated());
+        assertTrue(jsonEntry.body().length < json.length(), "Compressed body of " + jsonEntry.body().length + " bytes");
+        assertEquals(json, new String(inflate(jsonEntry.body()), StandardCharsets.ISO_8859_1));
+        // The headers keep the real length, for the app.
+        assertTrue(jsonEntry.headers().contains("Content-Length: " + json.length() + "\r\n"), jsonEntry.headers());
+        assertFalse(tinyEntry.deflated(), "A body under the minimum size is sent as-is");
+        assertEquals("hi", new String(tinyEntry.body(), StandardCharsets.ISO_8859_1));
+        assertNull(slowEntry.body());
+
+        // The body by reference is compressed as well, without a content length.
+        slowBody.complete(text);
+        MockHttpServletRequest bodyRequest = tunnelClientRequest("GET");
+        bodyRequest.addHeader(Constants.X_TUNNEL_WEB_REQUEST_ID, slowEntry.webRequestId());
+        MockHttpServletResponse body = new MockHttpServletResponse();
+        tunnelDataController.getWebToAppRequestBody(bodyRequest, body);
+        assertEquals(Constants.BODY_ENCODING_DEFLATE, body.getHeader(Constants.X_TUNNEL_BODY_ENCODING));
+        assertEquals(text, new String(inflate(body.getContentAsByteArray()), StandardCharsets.ISO_8859_1));
+
+        // App responses: a compressed one, and a plain one, in the same batch.
+        ByteArrayOutputStream appResponses = new ByteArrayOutputStream();
+        String jsonResponse = "{\"stored\":[" + "\"ok\",".repeat(50) + "\"done\"]}";
+        byte[] deflatedResponse = appResponse("Content-Type: application/json\r\nContent-Length: " + jsonResponse.length(), deflate(jsonResponse));
+        appResponses.writeBytes((jsonEntry.webRequestId() + " " + deflatedResponse.length + " deflate\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        appResponses.writeBytes(deflatedResponse);
+        byte[] plainResponse = appResponse("Content-Length: 4", "tiny".getBytes(StandardCharsets.ISO_8859_1));
+        appResponses.writeBytes((tinyEntry.webRequestId() + " " + plainResponse.length + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        appResponses.writeBytes(plainResponse);
+        postBatch(appResponses.toByteArray());
+        assertWebResponse(webResponse1, "200 OK", jsonResponse);
+        assertWebResponse(webResponse2, "200 OK", "tiny");
+
+        // A single POST /data with a compressed body.
+        String textResponse = "stored line\n".repeat(20);
+        MockHttpServletRequest post = tunnelClientRequest("POST");
+        post.addHeader(Constants.X_TUNNEL_WEB_REQUEST_ID, slowEntry.webRequestId());
+        post.addHeader(Constants.X_TUNNEL_BODY_ENCODING, Constants.BODY_ENCODING_DEFLATE);
+        post.setContentType("application/octet-stream");
+        post.setContent(appResponse("Content-Type: text/plain\r\nContent-Length: " + textResponse.length(), deflate(textResponse)));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        CompletableFuture<Void> done = CompletableFuture.runAsync(() -> {
+            try {
+                tunnelDataController.longPollerPostAppToWebResponse(post, response);
+            } catch (Exception e) {
+                throw new IllegalStateException("POST failed", e);
+            }
+        }, webClientExecutor);
+        assertWebResponse(webResponse3, "200 OK", textResponse);
+        userServerContext.getRequestQueue().offer("no-such-request");
+        done.get(10, TimeUnit.SECONDS);
+        assertEquals(204, response.getStatus());
+    }
+
+    @Test
+    void version3BatchRefusesAnInvalidEntryLine() throws Exception {
+        userServerContext.setClientVersion(Constants.CLIENT_VERSION_BATCH);
+        MockHttpServletRequest post = tunnelClientRequest("POST");
+        post.addHeader(Constants.X_TUNNEL_BATCH_COUNT, "1");
+        post.setContentType("application/octet-stream");
+        post.setContent("some-id many\r\nHTTP/1.1 200 OK\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        tunnelDataController.longPollerPostAppToWebResponseBatch(post, response);
+        assertEquals(400, response.getStatus());
+        assertTrue(response.getContentAsString().startsWith("Invalid batch entry"));
+    }
+
+    @Test
+    void webSocketStream() throws Exception {
+        userServerContext.setClientVersion(Constants.CLIENT_VERSION_CHUNKED_REQUEST);
+        BlockingQueue<TunnelFrame> sentFrames = new LinkedBlockingQueue<>();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        TunnelSocketConnection connection = webSocketConnection(sentFrames, executor);
+        try {
+            CompletableFuture<String> webResponse = sendWebRequest("POST /orders HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\nhello");
+
+            TunnelFrame request = nextFrame(sentFrames, TunnelFrame.REQUEST);
+            assertTrue(new String(request.payload(), StandardCharsets.ISO_8859_1).startsWith("POST /orders HTTP/1.1\r\n"));
+            assertEquals("hello", new String(nextFrame(sentFrames, TunnelFrame.DATA).payload(), StandardCharsets.ISO_8859_1));
+            assertEquals(request.streamId(), nextFrame(sentFrames, TunnelFrame.END).streamId());
+
+            byte[] appResponse = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes(StandardCharsets.ISO_8859_1);
+            connection.onFrame(new TunnelFrame(TunnelFrame.DATA, request.streamId(), appResponse));
+            connection.onFrame(new TunnelFrame(TunnelFrame.END, request.streamId(), new byte[0]));
+            assertWebResponse(webResponse, "200 OK", "ok");
+            waitForNoStreams(connection);
+        } finally {
+            connection.close();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void webSocketStreamIsResetWhenTheRequestExpires() throws Exception {
+        userServerContext.setClientVersion(Constants.CLIENT_VERSION_CHUNKED_REQUEST);
+        userServerContext.setRequestTimeoutMs(300);
+        BlockingQueue<TunnelFrame> sentFrames = new LinkedBlockingQueue<>();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        TunnelSocketConnection connection = webSocketConnection(sentFrames, executor);
+        try {
+            CompletableFuture<String> webResponse = sendWebRequest("GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            TunnelFrame request = nextFrame(sentFrames, TunnelFrame.REQUEST);
+            nextFrame(sentFrames, TunnelFrame.END);
+
+            // The app does not answer in time.
+            TunnelFrame reset = nextFrame(sentFrames, TunnelFrame.RESET);
+            assertEquals(request.streamId(), reset.streamId());
+            assertTrue(webResponse.get(10, TimeUnit.SECONDS).startsWith("HTTP/1.1 503 TIMEOUT"));
+            waitForNoStreams(connection);
+
+            // A late app response is ignored.
+            connection.onFrame(new TunnelFrame(TunnelFrame.DATA, request.streamId(), "HTTP/1.1 200 OK\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+            assertEquals(0, connection.getActiveStreamCount());
+        } finally {
+            connection.close();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void webSocketStreamOutlivesTheRequestTimeout() throws Exception {
+        userServerContext.setClientVersion(Constants.CLIENT_VERSION_CHUNKED_REQUEST);
+        userServerContext.setRequestTimeoutMs(300);
+        BlockingQueue<TunnelFrame> sentFrames = new LinkedBlockingQueue<>();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        TunnelSocketConnection connection = webSocketConnection(sentFrames, executor);
+        try {
+            CompletableFuture<String> webResponse = sendWebRequest("GET /events HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            TunnelFrame request = nextFrame(sentFrames, TunnelFrame.REQUEST);
+            nextFrame(sentFrames, TunnelFrame.END);
+
+            // The response starts in time, and then is quiet for longer than the request timeout.
+            connection.onFrame(new TunnelFrame(TunnelFrame.DATA, request.streamId(),
+                    "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nfirst\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+            Thread.sleep(1000);
+            connection.onFrame(new TunnelFrame(TunnelFrame.DATA, request.streamId(), "4\r\nlast\r\n0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+            connection.onFrame(new TunnelFrame(TunnelFrame.END, request.streamId(), new byte[0]));
+            assertWebResponse(webResponse, "200 OK", "5\r\nfirst\r\n4\r\nlast\r\n0\r\n\r\n");
+            waitForNoStreams(connection);
+            assertTrue(sentFrames.stream().noneMatch(frame -> frame.type() == TunnelFrame.RESET), "The stream must not be reset");
+        } finally {
+            connection.close();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void webSocketConnectionStartsAtMostMaxStreams() throws Exception {
+        userServerContext.setClientVersion(Constants.CLIENT_VERSION_CHUNKED_REQUEST);
+        BlockingQueue<TunnelFrame> sentFrames = new LinkedBlockingQueue<>();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        TunnelSocketConnection connection = webSocketConnection(sentFrames, executor, 1);
+        try {
+            CompletableFuture<String> firstResponse = sendWebRequest("GET /first HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            TunnelFrame first = nextFrame(sentFrames, TunnelFrame.REQUEST);
+            nextFrame(sentFrames, TunnelFrame.END);
+            CompletableFuture<String> secondResponse = sendWebRequest("GET /second HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            waitForQueuedRequests(1);
+            Thread.sleep(200);
+            assertEquals(1, userServerContext.getRequestQueue().size(), "The second request must wait until the first stream is done");
+            assertEquals(1, connection.getActiveStreamCount());
+
+            connection.onFrame(new TunnelFrame(TunnelFrame.DATA, first.streamId(), "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nfirst".getBytes(StandardCharsets.ISO_8859_1)));
+            connection.onFrame(new TunnelFrame(TunnelFrame.END, first.streamId(), new byte[0]));
+            assertWebResponse(firstResponse, "200 OK", "first");
+            TunnelFrame second = nextFrame(sentFrames, TunnelFrame.REQUEST);
+            assertTrue(new String(second.payload(), StandardCharsets.ISO_8859_1).startsWith("GET /second HTTP/1.1\r\n"));
+            nextFrame(sentFrames, TunnelFrame.END);
+            connection.onFrame(new TunnelFrame(TunnelFrame.DATA, second.streamId(), "HTTP/1.1 200 OK\r\nContent-Length: 6\r\n\r\nsecond".getBytes(StandardCharsets.ISO_8859_1)));
+            connection.onFrame(new TunnelFrame(TunnelFrame.END, second.streamId(), new byte[0]));
+            assertWebResponse(secondResponse, "200 OK", "second");
+            waitForNoStreams(connection);
+        } finally {
+            connection.close();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A WebSocket tunnel connection, of which the session puts all binary frames we send in the sentFrames queue.
+     */
+    private TunnelSocketConnection webSocketConnection(BlockingQueue<TunnelFrame> sentFrames, ExecutorService executor) {
+        return webSocketConnection(sentFrames, executor, 16);
+    }
+
+    private TunnelSocketConnection webSocketConnection(BlockingQueue<TunnelFrame> sentFrames, ExecutorService executor, int maxStreams) {
+        WebSocketSession session = (WebSocketSession) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {WebSocketSession.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("sendMessage") && args[0] instanceof BinaryMessage message) {
+                        sentFrames.add(TunnelFrame.parse(message.getPayload()));
+                    }
+                    return method.getName().equals("isOpen") ? Boolean.TRUE : null;
+                });
+        TunnelSocketConnection connection = new TunnelSocketConnection(session, userServerContext, tunnelServer,
+                new BufferPool(1024 * 1024), new TunnelMetrics(new SimpleMeterRegistry(), 50), executor, maxStreams);
+        assertTrue(connection.start(executor));
+        return connection;
+    }
+
+    /**
+     * The next frame we sent to the tunnel client, skipping the WINDOW frames.
+     */
+    private static TunnelFrame nextFrame(BlockingQueue<TunnelFrame> sentFrames, byte expectedType) throws InterruptedException {
+        TunnelFrame frame;
+        do {
+            frame = sentFrames.poll(10, TimeUnit.SECONDS);
+            assertNotNull(frame, "No frame of type " + expectedType);
+        } while (frame.type() == TunnelFrame.WINDOW && expectedType != TunnelFrame.WINDOW);
+        assertEquals(expectedType, frame.type());
+        return frame;
+    }
+
+    private static void waitForNoStreams(TunnelSocketConnection connection) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (connection.getActiveStreamCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, connection.getActiveStreamCount());
+    }
+
+    /**
+     * The long-poll GET /data of the tunnel client. A web request is on its way, so this does not wait long.
+     */
+    private MockHttpServletResponse poll() throws Exception {
+        MockHttpServletResponse poll = new MockHttpServletResponse();
+        tunnelDataController.longPollerGetWebToAppRequest(tunnelClientRequest("GET"), poll);
+        return poll;
+    }
+
+    private void waitForQueuedRequests(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (userServerContext.getRequestQueue().size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, userServerContext.getRequestQueue().size());
+    }
+
+    /**
+     * One web request of a batch poll response. The body is null if it is sent by reference.
+     */
+    private record BatchEntry(String webRequestId, String headers, byte[] body, boolean deflated) {
+    }
+
+    /**
+     * Split a batch poll response in its entries: a line "webRequestId headerBytes bodyBytes [deflate]", the
+     * header block, and the body.
+     */
+    private static List<BatchEntry> parseBatch(byte[] data) {
+        List<BatchEntry> entries = new ArrayList<>();
+        int position = 0;
+        while (position < data.length) {
+            int lineEnd = position;
+            while (data[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            String[] parts = new String(data, position, lineEnd - position, StandardCharsets.ISO_8859_1).trim().split(" ");
+            position = lineEnd + 1;
+            int headerBytes = Integer.parseInt(parts[1]);
+            int bodyBytes = Integer.parseInt(parts[2]);
+            String headers = new String(data, position, headerBytes, StandardCharsets.ISO_8859_1);
+            position += headerBytes;
+            byte[] body = null;
+            if (bodyBytes >= 0) {
+                body = new byte[bodyBytes];
+                System.arraycopy(data, position, body, 0, bodyBytes);
+                position += bodyBytes;
+            }
+            entries.add(new BatchEntry(parts[0], headers, body, parts.length == 4 && parts[3].equals(Constants.BODY_ENCODING_DEFLATE)));
+        }
+        return entries;
+    }
+
+    /**
+     * Send a batch of app responses (POST /data with the batch count header). That call ends with a long-poll wait for
+     * the next web requests, which is ended by queueing an unknown request id.
+     */
+    private void postBatch(byte[] appResponses) throws Exception {
+        MockHttpServletRequest post = tunnelClientRequest("POST");
+        post.addHeader(Constants.X_TUNNEL_BATCH_COUNT, "1");
+        post.setContentType("application/octet-stream");
+        post.setContent(appResponses);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        CompletableFuture<Void> done = CompletableFuture.runAsync(() -> {
+            try {
+                tunnelDataController.longPollerPostAppToWebResponseBatch(post, response);
+            } catch (Exception e) {
+                throw new IllegalStateException("Batch POST failed", e);
+            }
+        }, webClientExecutor);
+        Thread.sleep(100);
+        userServerContext.getRequestQueue().offer("no-such-request");
+        done.get(10, TimeUnit.SECONDS);
+        assertEquals(204, response.getStatus());
+    }
+
+    /**
+     * Send the app response, like the POST /data does (without its long-poll wait for the next request).
+     */
+    private void answer(String webRequestId, String appResponse) throws Exception {
+        WebRequest webRequest = userServerContext.getRequestSocketMap().get(webRequestId);
+        byte[] data = appResponse.getBytes(StandardCharsets.ISO_8859_1);
+        assertTrue(tunnelServer.relayAppResponseToWeb(userServerContext, webRequestId, webRequest,
+                new PrefixedInputStream(new ByteArrayInputStream(data)), data.length));
+    }
+
+    /**
+     * Acts like a browser: send one request on a new connection, and read the response until the server closes it.
+     */
+    private CompletableFuture<String> sendWebRequest(String request) {
+        return sendWebRequest(request, CompletableFuture.completedFuture(""));
+    }
+
+    /**
+     * Same, but the rest of the request is only sent when the rest future is completed, like a slow web client.
+     */
+    private CompletableFuture<String> sendWebRequest(String request, CompletableFuture<String> rest) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (Socket socket = new Socket("localhost", userServerContext.getServerPort())) {
+                socket.setSoTimeout(10000);
+                String closingRequest = request.replaceFirst("\r\n", "\r\nConnection: close\r\n");
+                socket.getOutputStream().write(closingRequest.getBytes(StandardCharsets.ISO_8859_1));
+                socket.getOutputStream().write(rest.get(10, TimeUnit.SECONDS).getBytes(StandardCharsets.ISO_8859_1));
+                return new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+            } catch (Exception e) {
+                throw new IllegalStateException("Web request failed", e);
+            }
+        }, webClientExecutor);
+    }
+
+    /**
+     * An app response as the tunnel client sends it: status line and headers, then the (maybe compressed) body.
+     */
+    private static byte[] appResponse(String headerLines, byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(("HTTP/1.1 200 OK\r\n" + headerLines + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.writeBytes(body);
+        return out.toByteArray();
+    }
+
+    /**
+     * Raw deflate, like the tunnel client does (see BodyCompression).
+     */
+    private static byte[] deflate(String body) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(out, deflater)) {
+            deflaterOutputStream.write(body.getBytes(StandardCharsets.ISO_8859_1));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] data) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try (InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(data), inflater)) {
+            return in.readAllBytes();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void assertWebResponse(CompletableFuture<String> webResponse, String status, String body) throws Exception {
+        String response = webResponse.get(10, TimeUnit.SECONDS);
+        assertTrue(response.startsWith("HTTP/1.1 " + status + "\r\n"), response);
+        assertTrue(response.endsWith("\r\n\r\n" + body), response);
+    }
+
+    private static MockHttpServletRequest tunnelClientRequest(String method) {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, "/data");
+        request.addHeader(Constants.X_TUNNEL_USER_ID, USER_ID);
+        return request;
+    }
+}
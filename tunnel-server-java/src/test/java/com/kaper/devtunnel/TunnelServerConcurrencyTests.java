@@ -0,0 +1,213 @@
+package com.kaper.devtunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import java.io.ByteArrayInputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * Concurrency stress test for the user registry and the request maps.
+ * Many threads send web requests, answer them like a tunnel client does, register and close users, and read the
+ * registry (like the status page does), while the timing wheel expires requests. Every web request must get the
+ * expected response, and no thread may run into an exception.
+ */
+class TunnelServerConcurrencyTests {
+    private static final int ONLINE_USERS = 4;
+    private static final int WEB_CLIENTS_PER_USER = 4;
+    private static final int APP_POLLERS_PER_USER = 2;
+    private static final long RUN_TIME_MS = 3000;
+
+    private final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean webClientsRunning = new AtomicBoolean(true);
+    private final AtomicBoolean pollersRunning = new AtomicBoolean(true);
+    private final Logger tunnelLogger = (Logger) LoggerFactory.getLogger("com.kaper");
+    private Level originalLogLevel;
+    private final TunnelServerFixture fixture = new TunnelServerFixture().responseCache(true, 1048576, 65536).singleFlight(true, 65536);
+
+    @BeforeEach
+    void quietLogging() {
+        // Thousands of requests, we do not want to see all of them.
+        originalLogLevel = tunnelLogger.getLevel();
+        tunnelLogger.setLevel(Level.ERROR);
+    }
+
+    @AfterEach
+    void cleanup() {
+        tunnelLogger.setLevel(originalLogLevel);
+        fixture.close();
+    }
+
+    @Test
+    void registerPollRespondAndCleanupFromManyThreads() throws Exception {
+        TunnelServer tunnelServer = fixture.tunnelServer();
+        AtomicInteger okResponses = new AtomicInteger();
+        AtomicInteger offlineResponses = new AtomicInteger();
+        List<Thread> webThreads = new ArrayList<>();
+        List<Thread> pollerThreads = new ArrayList<>();
+
+        List<UserServerContext> onlineUsers = new ArrayList<>();
+        for (int i = 0; i < ONLINE_USERS; i++) {
+            UserServerContext userServerContext = register(tunnelServer, "online-" + i, 30000);
+            onlineUsers.add(userServerContext);
+            for (int j = 0; j < APP_POLLERS_PER_USER; j++) {
+                pollerThreads.add(thread(() -> answerWebRequests(tunnelServer, userServerContext)));
+            }
+            for (int j = 0; j < WEB_CLIENTS_PER_USER; j++) {
+                webThreads.add(thread(() -> sendWebRequests(userServerContext, "200", okResponses)));
+            }
+        }
+        // A user without a tunnel client. Its requests are answered with a 503 by the queueing or the liveness check.
+        UserServerContext offlineUser = register(tunnelServer, "offline", 200);
+        for (int j = 0; j < 2; j++) {
+            webThreads.add(thread(() -> sendWebRequests(offlineUser, "503", offlineResponses)));
+        }
+        // Users which register and close all the time, while others iterate the registry.
+        for (int j = 0; j < 2; j++) {
+            String prefix = "churn-" + j;
+            webThreads.add(thread(() -> churnUsers(tunnelServer, prefix)));
+            webThreads.add(thread(() -> readRegistry(tunnelServer)));
+        }
+
+        pollerThreads.forEach(Thread::start);
+        webThreads.forEach(Thread::start);
+        Thread.sleep(RUN_TIME_MS);
+        webClientsRunning.set(false);
+        for (Thread thread : webThreads) {
+            thread.join(20000);
+        }
+        pollersRunning.set(false);
+        for (Thread thread : pollerThreads) {
+            thread.join(20000);
+        }
+
+        assertTrue(failures.isEmpty(), () -> failures.size() + " failures, first: " + failures.peek());
+        assertTrue(okResponses.get() > 0, "No web requests answered");
+        assertTrue(offlineResponses.get() > 0, "No offline responses");
+        for (UserServerContext userServerContext : onlineUsers) {
+            assertEquals(0, userServerContext.getRequestSocketMap().size(), "Requests left in map of " + userServerContext.getUserId());
+            assertEquals(0, userServerContext.getRequestQueue().size(), "Requests left in queue of " + userServerContext.getUserId());
+        }
+
+        onlineUsers.add(offlineUser);
+        for (UserServerContext userServerContext : onlineUsers) {
+            fixture.webSelectorEngine().unbind(userServerContext);
+            userServerContext.terminate();
+        }
+    }
+
+    private UserServerContext register(TunnelServer tunnelServer, String userId, long lastSeenTimeoutMs) throws Exception {
+        UserServerContext userServerContext = tunnelServer.getUserServerContext(userRequest(userId), new MockHttpServletResponse());
+        userServerContext.setLastSeenTimeoutMs(lastSeenTimeoutMs);
+        // Let the operating system pick a free port.
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            userServerContext.setServerPort(serverSocket.getLocalPort());
+        }
+        tunnelServer.startListening(userServerContext);
+        return userServerContext;
+    }
+
+    private static MockHttpServletRequest userRequest(String userId) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader(Constants.X_TUNNEL_USER_ID, userId);
+        return request;
+    }
+
+    private Thread thread(ThrowingRunnable runnable) {
+        return new Thread(() -> {
+            try {
+                runnable.run();
+            } catch (Throwable e) {
+                failures.add(e);
+            }
+        });
+    }
+
+    /**
+     * Acts like a tunnel client: take web requests from the queue, and send an app response.
+     */
+    private void answerWebRequests(TunnelServer tunnelServer, UserServerContext userServerContext) throws Exception {
+        while (pollersRunning.get() || !userServerContext.getRequestQueue().isEmpty()) {
+            userServerContext.setUserLastSeenNow();
+            String webRequestId = userServerContext.getRequestQueue().poll(50, TimeUnit.MILLISECONDS);
+            if (webRequestId == null) {
+                continue;
+            }
+            WebRequest webRequest = userServerContext.getRequestSocketMap().get(webRequestId);
+            if (webRequest == null) {
+                failures.add(new AssertionError("Queued web request missing in map: " + webRequestId));
+                continue;
+            }
+            byte[] body = ("hello " + webRequest.getHeaders().getFirstLine()).getBytes(StandardCharsets.UTF_8);
+            byte[] headers = ("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+            byte[] appResponse = new byte[headers.length + body.length];
+            System.arraycopy(headers, 0, appResponse, 0, headers.length);
+            System.arraycopy(body, 0, appResponse, headers.length, body.length);
+            tunnelServer.relayAppResponseToWeb(userServerContext, webRequestId, webRequest,
+                    new PrefixedInputStream(new ByteArrayInputStream(appResponse)), appResponse.length);
+        }
+    }
+
+    /**
+     * Acts like a browser: send requests to the user port, one connection per request.
+     */
+    private void sendWebRequests(UserServerContext userServerContext, String expectedStatus, AtomicInteger responseCount) throws Exception {
+        int requestNumber = 0;
+        while (webClientsRunning.get()) {
+            try (Socket socket = new Socket("localhost", userServerContext.getServerPort())) {
+                socket.setSoTimeout(10000);
+                socket.getOutputStream().write(("GET /" + (requestNumber++) + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                String response = new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+                if (response.startsWith("HTTP/1.1 " + expectedStatus)) {
+                    responseCount.incrementAndGet();
+                } else {
+                    failures.add(new AssertionError("Unexpected response for " + userServerContext.getUserId() + ": "
+                            + response.lines().findFirst().orElse("<empty>")));
+                }
+            }
+        }
+    }
+
+    private void churnUsers(TunnelServer tunnelServer, String prefix) throws Exception {
+        int count = 0;
+        while (webClientsRunning.get()) {
+            UserServerContext userServerContext = tunnelServer.getUserServerContext(userRequest(prefix + "-" + (count++ % 10)), new MockHttpServletResponse());
+            tunnelServer.registerUserServerContext(userServerContext);
+            tunnelServer.findRegisteredUserServerContext(userServerContext.getUserId());
+            tunnelServer.closeUserServerContext(userServerContext);
+        }
+    }
+
+    /**
+     * Iterate the registry and the request maps, like the status page and the liveness check do.
+     */
+    private void readRegistry(TunnelServer tunnelServer) {
+        while (webClientsRunning.get()) {
+            tunnelServer.getUserServerContextMap().forEach((userId, userServerContext) ->
+                    userServerContext.getRequestSocketMap().forEach((webRequestId, webRequest) -> webRequest.getHeaders().getFirstLine()));
+        }
+    }
+
+    @FunctionalInterface
+    private interface ThrowingRunnable {
+        void run() throws Exception;
+    }
+}
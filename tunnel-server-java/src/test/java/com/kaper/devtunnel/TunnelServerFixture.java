@@ -0,0 +1,114 @@
+package com.kaper.devtunnel;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * A TunnelServer with all its parts wired like spring does, for the tests (and the benchmarks in src/perf/java).
+ * The parts a test cares about can be replaced before the first tunnelServer() call, the rest has the defaults of
+ * application.yml, but with no journal, access log, or capture file. Close it after use: it stops the timing wheel,
+ * and closes the ports of the users it started.
+ */
+class TunnelServerFixture implements AutoCloseable {
+    private final TunnelMetrics tunnelMetrics = new TunnelMetrics(new SimpleMeterRegistry(), 50);
+    private final TimingWheel timingWheel = new TimingWheel(100);
+    private final List<UserServerContext> startedUsers = new ArrayList<>();
+    private BufferPool bufferPool = new BufferPool(16 * 1024 * 1024);
+    private WebSelectorEngine webSelectorEngine;
+    private PortAllocator portAllocator = new PortAllocator(9000, 9004);
+    private WebAdmission webAdmission = new WebAdmission(200, 10000, 1);
+    private ResponseCache responseCache = new ResponseCache(tunnelMetrics, false, 1048576, 65536);
+    private SingleFlight singleFlight = new SingleFlight(tunnelMetrics, false, 100, 65536);
+    private BodyCompression bodyCompression = new BodyCompression(true, 16, 6, "text/,application/json");
+    private TunnelServer tunnelServer;
+    private TunnelDataController tunnelDataController;
+
+    TunnelServerFixture bufferPool(int maxBytes) {
+        bufferPool = new BufferPool(maxBytes);
+        return this;
+    }
+
+    TunnelServerFixture webSelectorEngine(WebSelectorEngine webSelectorEngine) {
+        this.webSelectorEngine = webSelectorEngine;
+        return this;
+    }
+
+    TunnelServerFixture portAllocator(PortAllocator portAllocator) {
+        this.portAllocator = portAllocator;
+        return this;
+    }
+
+    TunnelServerFixture webAdmission(WebAdmission webAdmission) {
+        this.webAdmission = webAdmission;
+        return this;
+    }
+
+    TunnelServerFixture responseCache(boolean enabled, long maxBytesPerUser, int maxEntryBytes) {
+        responseCache = new ResponseCache(tunnelMetrics, enabled, maxBytesPerUser, maxEntryBytes);
+        return this;
+    }
+
+    TunnelServerFixture singleFlight(boolean enabled, int maxBodyBytes) {
+        singleFlight = new SingleFlight(tunnelMetrics, enabled, 100, maxBodyBytes);
+        return this;
+    }
+
+    TunnelServerFixture bodyCompression(boolean enabled, int minBytes) {
+        bodyCompression = new BodyCompression(enabled, minBytes, 6, "text/,application/json");
+        return this;
+    }
+
+    WebSelectorEngine webSelectorEngine() throws IOException {
+        if (webSelectorEngine == null) {
+            webSelectorEngine = new WebSelectorEngine(2, 5000, 1000, 0);
+        }
+        return webSelectorEngine;
+    }
+
+    TunnelServer tunnelServer() throws IOException {
+        if (tunnelServer == null) {
+            WebSelectorEngine webSelectorEngine = webSelectorEngine();
+            tunnelServer = new TunnelServer(webSelectorEngine, bufferPool, portAllocator, timingWheel,
+                    new RegistryJournal("", 0, 0), new SharedPortRouter(webSelectorEngine, 0, "", "X-Tunnel-Route", "tunnel-route"),
+                    tunnelMetrics, webAdmission, responseCache, singleFlight, new RequestTracer(true, 256),
+                    new AccessLog(tunnelMetrics, false, "", 104857600, 5, 65536, 512, 200), new TrafficCapture("", "", 0, 0), 30000, 300000, 30000);
+        }
+        return tunnelServer;
+    }
+
+    TunnelDataController tunnelDataController() throws IOException {
+        if (tunnelDataController == null) {
+            tunnelDataController = new TunnelDataController(tunnelServer(), bufferPool, tunnelMetrics, bodyCompression, 32, 1048576, 65536);
+        }
+        return tunnelDataController;
+    }
+
+    /**
+     * Register the user like its first GET /data does, and start listening on a free port for its web requests.
+     */
+    UserServerContext startUser(String userId) throws IOException {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/data");
+        request.addHeader(Constants.X_TUNNEL_USER_ID, userId);
+        UserServerContext userServerContext = tunnelServer().getUserServerContext(request, new MockHttpServletResponse());
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            userServerContext.setServerPort(serverSocket.getLocalPort());
+        }
+        tunnelServer.startListening(userServerContext);
+        startedUsers.add(userServerContext);
+        return userServerContext;
+    }
+
+    @Override
+    public void close() {
+        for (UserServerContext userServerContext : startedUsers) {
+            webSelectorEngine.unbind(userServerContext);
+            userServerContext.terminate();
+        }
+        timingWheel.close();
+    }
+}
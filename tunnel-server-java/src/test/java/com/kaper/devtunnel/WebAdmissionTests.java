@@ -0,0 +1,158 @@
+package com.kaper.devtunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * Admission control: a web request which is refused must give back its in-flight slot right away, also when it was
+ * refused only after admission because the queue of its user was full. Otherwise every refused request would lower
+ * the global limit for good. The user queue holds one request, and at most two requests may be in flight.
+ */
+class WebAdmissionTests {
+    private static final String USER_ID = "admission@localhost:3000#1";
+
+    private TunnelServerFixture fixture;
+    private WebAdmission webAdmission;
+    private TunnelServer tunnelServer;
+    private TunnelDataController tunnelDataController;
+    private UserServerContext userServerContext;
+    private final ExecutorService webClientExecutor = Executors.newCachedThreadPool();
+
+    @BeforeEach
+    void setup() throws Exception {
+        webAdmission = new WebAdmission(1, 2, 7);
+        fixture = new TunnelServerFixture().webAdmission(webAdmission).bodyCompression(false, 16);
+        tunnelServer = fixture.tunnelServer();
+        tunnelDataController = fixture.tunnelDataController();
+        userServerContext = fixture.startUser(USER_ID);
+        userServerContext.setClientVersion(Constants.CLIENT_VERSION_CHUNKED_REQUEST);
+    }
+
+    @AfterEach
+    void cleanup() {
+        fixture.close();
+        webClientExecutor.shutdownNow();
+    }
+
+    @Test
+    void userQueueFullGivesBackTheSlot() throws Exception {
+        CompletableFuture<String> queued = sendWebRequest("/queued");
+        waitForQueuedRequests(1);
+        assertEquals(1, webAdmission.getInFlight());
+
+        for (int i = 0; i < 5; i++) {
+            String refused = sendWebRequest("/refused").get(10, TimeUnit.SECONDS);
+            assertTrue(refused.startsWith("HTTP/1.1 503 OVERFLOW\r\n"), refused);
+            assertTrue(refused.contains("\r\nRetry-After: 7\r\n"), refused);
+        }
+        assertEquals(5, webAdmission.getUserQueueFullCount());
+        assertEquals(1, webAdmission.getInFlight(), "The refused requests must not hold on to their slot");
+
+        answer(pollWebRequestId(), "queued");
+        assertTrue(queued.get(10, TimeUnit.SECONDS).endsWith("\r\n\r\nqueued"));
+        waitForInFlight(0);
+    }
+
+    @Test
+    void inFlightLimitRefusesUntilARequestIsDone() throws Exception {
+        CompletableFuture<String> first = sendWebRequest("/first");
+        String firstId = pollWebRequestId();
+        CompletableFuture<String> second = sendWebRequest("/second");
+        waitForQueuedRequests(1);
+        assertEquals(2, webAdmission.getInFlight());
+
+        String refused = sendWebRequest("/refused").get(10, TimeUnit.SECONDS);
+        assertTrue(refused.startsWith("HTTP/1.1 503 OVERLOADED\r\n"), refused);
+        assertEquals(1, webAdmission.getInFlightLimitCount());
+        assertEquals(2, webAdmission.getInFlight());
+
+        answer(firstId, "first");
+        assertTrue(first.get(10, TimeUnit.SECONDS).endsWith("\r\n\r\nfirst"));
+        waitForInFlight(1);
+        // Pick up the second one first, the queue only holds one.
+        String secondId = pollWebRequestId();
+        CompletableFuture<String> third = sendWebRequest("/third");
+        answer(secondId, "second");
+        assertTrue(second.get(10, TimeUnit.SECONDS).endsWith("\r\n\r\nsecond"));
+        answer(pollWebRequestId(), "third");
+        assertTrue(third.get(10, TimeUnit.SECONDS).endsWith("\r\n\r\nthird"));
+        waitForInFlight(0);
+        assertEquals(1, webAdmission.getInFlightLimitCount());
+    }
+
+    /**
+     * The long-poll GET /data of the tunnel client, which picks up the next web request.
+     */
+    private String pollWebRequestId() throws Exception {
+        MockHttpServletResponse poll = new MockHttpServletResponse();
+        tunnelDataController.longPollerGetWebToAppRequest(tunnelClientRequest(), poll);
+        String webRequestId = poll.getHeader(Constants.X_TUNNEL_WEB_REQUEST_ID);
+        assertNotNull(webRequestId);
+        return webRequestId;
+    }
+
+    /**
+     * Send the app response, like the POST /data does (without its long-poll wait for the next request).
+     */
+    private void answer(String webRequestId, String body) throws Exception {
+        WebRequest webRequest = userServerContext.getRequestSocketMap().get(webRequestId);
+        byte[] data = ("HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body).getBytes(StandardCharsets.ISO_8859_1);
+        assertTrue(tunnelServer.relayAppResponseToWeb(userServerContext, webRequestId, webRequest,
+                new PrefixedInputStream(new ByteArrayInputStream(data)), data.length));
+    }
+
+    private void waitForQueuedRequests(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (userServerContext.getRequestQueue().size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, userServerContext.getRequestQueue().size());
+    }
+
+    /**
+     * The slot is given back when the response is sent, which is not always done yet when the web client has it.
+     */
+    private void waitForInFlight(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (webAdmission.getInFlight() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, webAdmission.getInFlight());
+    }
+
+    /**
+     * Acts like a browser: send a GET on a new connection, and read the response until the server closes it.
+     */
+    private CompletableFuture<String> sendWebRequest(String path) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (Socket socket = new Socket("localhost", userServerContext.getServerPort())) {
+                socket.setSoTimeout(10000);
+                String request = "GET " + path + " HTTP/1.1\r\nConnection: close\r\nHost: localhost\r\n\r\n";
+                socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+                return new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+            } catch (Exception e) {
+                throw new IllegalStateException("Web request failed", e);
+            }
+        }, webClientExecutor);
+    }
+
+    private static MockHttpServletRequest tunnelClientRequest() {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/data");
+        request.addHeader(Constants.X_TUNNEL_USER_ID, USER_ID);
+        return request;
+    }
+}